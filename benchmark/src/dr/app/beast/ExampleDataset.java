@@ -0,0 +1,250 @@
+/*
+ * ExampleDataset.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.app.tools.NexusExporter;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import dr.xml.XMLObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A benchmark dataset made from one of the XML files in the examples folder. The XML is read
+ * into a document which can be edited (for example to remove the mcmc element, so no log files
+ * are written, or to switch likelihoods to a different implementation) and is then parsed,
+ * without running it, to give the model objects by id.
+ *
+ * The examples folder is found using the beast.examples system property (default 'examples',
+ * relative to the working directory).
+ *
+ * @author agent
+ */
+public class ExampleDataset {
+
+    public static final String EXAMPLES_DIRECTORY = "beast.examples";
+
+    public ExampleDataset(String fileName) {
+        File file = new File(System.getProperty(EXAMPLES_DIRECTORY, "examples"), fileName);
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to read example XML file, " + file + ": " + e.getMessage(), e);
+        }
+        this.fileName = file.getName();
+    }
+
+    /**
+     * @return the element (at any depth) with the given id
+     */
+    public Element getElementById(String id) {
+        NodeList nodes = document.getElementsByTagName("*");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element element = (Element) nodes.item(i);
+            if (id.equals(element.getAttribute("id"))) {
+                return element;
+            }
+        }
+        throw new IllegalArgumentException("No element with id, " + id + ", in " + fileName);
+    }
+
+    /**
+     * Removes all the elements (at any depth) with the given tag name.
+     */
+    public void removeElements(String tagName) {
+        NodeList nodes = document.getElementsByTagName(tagName);
+        for (int i = nodes.getLength() - 1; i >= 0; i--) {
+            Node node = nodes.item(i);
+            node.getParentNode().removeChild(node);
+        }
+    }
+
+    /**
+     * Removes all the loggers (at any depth) which write to a file. The screen loggers are kept
+     * as the mcmc element requires at least one logger.
+     */
+    public void removeFileLoggers() {
+        for (String tagName : new String[] { "log", "logTree" }) {
+            NodeList nodes = document.getElementsByTagName(tagName);
+            for (int i = nodes.getLength() - 1; i >= 0; i--) {
+                Element element = (Element) nodes.item(i);
+                if (element.hasAttribute("fileName")) {
+                    element.getParentNode().removeChild(element);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the top level elements except those with the given tag names.
+     */
+    public void retainElements(String... tagNames) {
+        NodeList nodes = document.getDocumentElement().getChildNodes();
+        for (int i = nodes.getLength() - 1; i >= 0; i--) {
+            Node node = nodes.item(i);
+            if (node instanceof Element) {
+                boolean retain = false;
+                for (String tagName : tagNames) {
+                    retain |= ((Element) node).getTagName().equals(tagName);
+                }
+                if (!retain) {
+                    document.getDocumentElement().removeChild(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames all the elements (at any depth) with the given tag name, keeping their attributes
+     * and content.
+     */
+    public void renameElements(String tagName, String newTagName) {
+        NodeList nodes = document.getElementsByTagName(tagName);
+        for (int i = nodes.getLength() - 1; i >= 0; i--) {
+            document.renameNode(nodes.item(i), null, newTagName);
+        }
+    }
+
+    /**
+     * Sets an attribute on all the elements (at any depth) with the given tag name, except for
+     * references (idref elements).
+     */
+    public void setAttribute(String tagName, String name, String value) {
+        NodeList nodes = document.getElementsByTagName(tagName);
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element element = (Element) nodes.item(i);
+            if (!element.hasAttribute("idref")) {
+                element.setAttribute(name, value);
+            }
+        }
+    }
+
+    /**
+     * Adds some XML elements to the end of the document.
+     * @param xml one or more elements
+     */
+    public void addElements(String xml) {
+        try {
+            Document fragment = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                    new InputSource(new StringReader("<beast>" + xml + "</beast>")));
+            NodeList nodes = fragment.getDocumentElement().getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                document.getDocumentElement().appendChild(document.importNode(nodes.item(i), true));
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to parse XML elements: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses the (edited) document, without running it. The parser's logging is turned off.
+     */
+    public void parse() {
+        Logger.getLogger("dr").setUseParentHandlers(false);
+
+        try {
+            StringWriter writer = new StringWriter();
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            transformer.transform(new DOMSource(document), new StreamResult(writer));
+
+            BeastParser parser = new BeastParser(new String[]{fileName}, null, false, false, false, BeastVersion.INSTANCE);
+            objects = parser.parse(new StringReader(writer.toString()), false);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to parse example XML file, " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the parsed object with the given id
+     */
+    public <T> T getObject(String id, Class<T> type) {
+        if (objects == null) {
+            throw new IllegalStateException("The dataset has not been parsed");
+        }
+        XMLObject xo = objects.get(id);
+        if (xo == null) {
+            throw new IllegalArgumentException("No object with id, " + id + ", in " + fileName);
+        }
+        return type.cast(xo.getNativeObject());
+    }
+
+    /**
+     * Simulates trees under a constant size coalescent for a list of taxa of the (parsed) dataset
+     * and writes them as a NEXUS file in the form written by BEAST, with a rate on each node.
+     * @return the NEXUS file
+     */
+    public String createTreeFile(String taxaId, int treeCount) {
+        TaxonList taxa = getObject(taxaId, TaxonList.class);
+
+        ConstantPopulation demography = new ConstantPopulation(Units.Type.YEARS);
+        demography.setN0(1.0);
+        CoalescentSimulator simulator = new CoalescentSimulator();
+
+        Tree[] trees = new Tree[treeCount];
+        String[] names = new String[treeCount];
+        for (int i = 0; i < treeCount; i++) {
+            SimpleTree tree = simulator.simulateTree(taxa, demography);
+            for (int j = 0; j < tree.getNodeCount(); j++) {
+                tree.setNodeAttribute(tree.getNode(j), "rate", MathUtils.nextDouble());
+            }
+            trees[i] = tree;
+            names[i] = "STATE_" + (i * 1000);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        new NexusExporter(out).exportTrees(trees, true, names);
+        out.flush();
+        return bytes.toString();
+    }
+
+    private final Document document;
+    private final String fileName;
+    private Map<String, XMLObject> objects = null;
+}
@@ -0,0 +1,97 @@
+/*
+ * TreeAnnotatorBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.app.beast.ExampleDataset;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a TreeAnnotator run (counting the clades of all the trees, choosing the target tree and
+ * annotating it) on a file of trees simulated for the taxa of an example XML. Clade counting
+ * dominates for large numbers of trees.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeAnnotatorBenchmark {
+
+    @Param({ "Benchmarks/benchmark1.xml" })
+    public String dataset;
+
+    @Param({ "200" })
+    public int treeCount;
+
+    @Param({ "MAX_CLADE_CREDIBILITY", "MAX_MARGINAL_CLADE_CREDIBILITY" })
+    public String target;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        MathUtils.setSeed(666);
+
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.retainElements("taxa");
+        example.parse();
+
+        treeFile = File.createTempFile("benchmark", ".trees");
+        treeFile.deleteOnExit();
+        FileWriter writer = new FileWriter(treeFile);
+        writer.write(example.createTreeFile("taxa", treeCount));
+        writer.close();
+
+        outputFile = File.createTempFile("benchmark", ".tree");
+        outputFile.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        treeFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void annotate() throws IOException {
+        new TreeAnnotator(0, -1, TreeAnnotator.HeightsSummary.MEAN_HEIGHTS, 0.0, new double[] { 80 }, false,
+                TreeAnnotator.Target.valueOf(target), null,
+                treeFile.getAbsolutePath(), outputFile.getAbsolutePath(), threads);
+    }
+
+    private File treeFile;
+    private File outputFile;
+}
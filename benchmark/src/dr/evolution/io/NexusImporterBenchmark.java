@@ -0,0 +1,87 @@
+/*
+ * NexusImporterBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.app.beast.ExampleDataset;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times reading a NEXUS file of trees, as logged by BEAST, with the NexusImporter (threads = 1)
+ * or the ParallelNexusTreeImporter. The trees are simulated for the taxa of an example XML.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class NexusImporterBenchmark {
+
+    @Param({ "Benchmarks/benchmark1.xml" })
+    public String dataset;
+
+    @Param({ "200" })
+    public int treeCount;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MathUtils.setSeed(666);
+
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.retainElements("taxa");
+        example.parse();
+        nexus = example.createTreeFile("taxa", treeCount);
+    }
+
+    @Benchmark
+    public int importTrees() throws IOException, Importer.ImportException {
+        TreeImporter importer;
+        if (threads > 1) {
+            importer = new ParallelNexusTreeImporter(new StringReader(nexus), false, threads);
+        } else {
+            importer = new NexusImporter(new StringReader(nexus), false);
+        }
+
+        int count = 0;
+        while (importer.hasTree()) {
+            importer.importNextTree();
+            count++;
+        }
+        return count;
+    }
+
+    private String nexus;
+}
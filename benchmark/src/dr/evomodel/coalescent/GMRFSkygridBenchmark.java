@@ -0,0 +1,132 @@
+/*
+ * GMRFSkygridBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.coalescent;
+
+import dr.app.beast.ExampleDataset;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Element;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the log likelihood of the skygrid model of an example XML with a given number of grid
+ * points. With a tree (rather than intervals) the gmrfSkyGridLikelihood element gives a
+ * GMRFMultilocusSkyrideLikelihood; the likelihood is recomputed in response to the model
+ * change events of the population size parameter and the tree.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GMRFSkygridBenchmark {
+
+    @Param({ "TestXML/testSkygridGradient.xml" })
+    public String dataset;
+
+    @Param({ "skygrid" })
+    public String skygridId;
+
+    @Param({ "4", "50" })
+    public int gridPoints;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.removeElements("mcmc");
+        example.removeElements("report");
+        example.setAttribute("treeDataLikelihood", "useJava", "true");
+
+        // change the number of grid points
+        Element skygrid = example.getElementById(skygridId);
+        Element sizes = (Element) skygrid.getElementsByTagName("populationSizes").item(0);
+        ((Element) sizes.getElementsByTagName("parameter").item(0))
+                .setAttribute("dimension", Integer.toString(gridPoints + 1));
+        Element grid = (Element) skygrid.getElementsByTagName("numGridPoints").item(0);
+        ((Element) grid.getElementsByTagName("parameter").item(0))
+                .setAttribute("value", Integer.toString(gridPoints));
+
+        example.parse();
+
+        likelihood = example.getObject(skygridId, GMRFMultilocusSkyrideLikelihood.class);
+        populationSizes = likelihood.getPopSizeParameter();
+        treeModel = example.getObject("treeModel", TreeModel.class);
+
+        // an initial evaluation, as the MCMC does, so all the buffers are set before the first store
+        likelihood.getLogLikelihood();
+
+        MathUtils.setSeed(666);
+    }
+
+    /**
+     * Changes one of the log population sizes, recomputes and then restores the state.
+     */
+    @Benchmark
+    public double populationSizeChange() {
+        likelihood.storeModelState();
+
+        int index = MathUtils.nextInt(populationSizes.getDimension());
+        populationSizes.setParameterValue(index, populationSizes.getParameterValue(index) + 0.1 * MathUtils.nextGaussian());
+
+        double logL = likelihood.getLogLikelihood();
+
+        likelihood.restoreModelState();
+        return logL;
+    }
+
+    /**
+     * Changes the height of one internal node (so the coalescent intervals need recomputing),
+     * recomputes and then restores the state.
+     */
+    @Benchmark
+    public double nodeHeightChange() {
+        likelihood.storeModelState();
+
+        NodeRef node = treeModel.getNode(treeModel.getExternalNodeCount() +
+                MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = (treeModel.isRoot(node) ?
+                2.0 * treeModel.getNodeHeight(node) : treeModel.getNodeHeight(treeModel.getParent(node)));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+
+        double logL = likelihood.getLogLikelihood();
+
+        likelihood.restoreModelState();
+        return logL;
+    }
+
+    private GMRFMultilocusSkyrideLikelihood likelihood;
+    private Parameter populationSizes;
+    private TreeModel treeModel;
+}
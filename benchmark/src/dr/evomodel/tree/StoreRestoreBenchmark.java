@@ -0,0 +1,122 @@
+/*
+ * StoreRestoreBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.tree;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.WilsonBalding;
+import dr.inference.model.Parameter;
+import dr.inference.model.StoreJournal;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times store / propose / restore cycles for a large tree and parameter, as made by an MCMC
+ * step whose proposal is rejected, with full copy or incremental store and restore.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreRestoreBenchmark {
+
+    @Param({ "10000" })
+    public int tipCount;
+
+    @Param({ "false", "true" })
+    public boolean incremental;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < tipCount; i++) {
+            taxa.addTaxon(new Taxon("taxon" + (i + 1)));
+        }
+        ConstantPopulation demography = new ConstantPopulation(Units.Type.YEARS);
+        demography.setN0(1.0);
+        Tree tree = new CoalescentSimulator().simulateTree(taxa, demography);
+
+        System.setProperty(StoreJournal.INCREMENTAL_STORE, Boolean.toString(incremental));
+
+        treeModel = new DefaultTreeModel("treeModel", tree);
+        parameter = new Parameter.Default("rates", tipCount, 1.0);
+        wilsonBalding = new WilsonBalding(treeModel, 1.0);
+
+        treeModel.storeModelState();
+        treeModel.acceptModelState();
+        parameter.storeParameterValues();
+        parameter.acceptParameterValues();
+    }
+
+    @Benchmark
+    public void wilsonBalding() {
+        treeModel.storeModelState();
+        wilsonBalding.doOperation();
+        treeModel.restoreModelState();
+    }
+
+    @Benchmark
+    public void nodeHeight() {
+        treeModel.storeModelState();
+
+        NodeRef node = treeModel.getNode(treeModel.getExternalNodeCount() +
+                MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = (treeModel.isRoot(node) ?
+                2.0 * treeModel.getNodeHeight(node) : treeModel.getNodeHeight(treeModel.getParent(node)));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+
+        treeModel.restoreModelState();
+    }
+
+    @Benchmark
+    public void parameterValue() {
+        parameter.storeParameterValues();
+
+        int index = MathUtils.nextInt(tipCount);
+        parameter.setParameterValue(index, parameter.getParameterValue(index) * Math.exp(MathUtils.nextGaussian()));
+
+        parameter.restoreParameterValues();
+    }
+
+    private TreeModel treeModel;
+    private Parameter parameter;
+    private WilsonBalding wilsonBalding;
+}
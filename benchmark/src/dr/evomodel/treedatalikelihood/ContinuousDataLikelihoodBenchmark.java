@@ -0,0 +1,181 @@
+/*
+ * ContinuousDataLikelihoodBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import dr.app.beast.ExampleDataset;
+import dr.evomodel.treedatalikelihood.continuous.ContinuousDataLikelihoodDelegate;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times TreeDataLikelihood.getLogLikelihood with a ContinuousDataLikelihoodDelegate for the
+ * continuous traits of the taxa in an example XML. The process determines which of the
+ * SafeMultivariateIntegrator family is used: brownian (SafeMultivariateIntegrator), drift
+ * (SafeMultivariateWithDriftIntegrator) or ou (SafeMultivariateActualizedWithDriftIntegrator).
+ * The tree is simulated under a constant size coalescent.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ContinuousDataLikelihoodBenchmark {
+
+    @Param({ "Phylogeography/continuous/RacRABV_homogeneous.xml" })
+    public String dataset;
+
+    @Param({ "location" })
+    public String traitName;
+
+    @Param({ "2" })
+    public int dimension;
+
+    @Param({ "brownian", "drift", "ou" })
+    public String process;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.retainElements("taxa");
+        example.addElements(createModelXML());
+        example.parse();
+
+        likelihood = example.getObject("traitLikelihood", TreeDataLikelihood.class);
+        if (!(likelihood.getDataLikelihoodDelegate() instanceof ContinuousDataLikelihoodDelegate)) {
+            throw new IllegalStateException("Expected a ContinuousDataLikelihoodDelegate");
+        }
+        precision = example.getObject("precision.diagonal", Parameter.class);
+
+        // an initial evaluation, as the MCMC does, so all the buffers are set before the first store
+        likelihood.getLogLikelihood();
+
+        MathUtils.setSeed(666);
+    }
+
+    /**
+     * Recomputes the whole tree.
+     */
+    @Benchmark
+    public double fullEvaluation() {
+        likelihood.makeDirty();
+        return likelihood.getLogLikelihood();
+    }
+
+    /**
+     * Changes one of the diffusion precisions (as an MCMC operator would), recomputes and then
+     * restores the state.
+     */
+    @Benchmark
+    public double precisionChange() {
+        likelihood.storeModelState();
+
+        int index = MathUtils.nextInt(dimension);
+        precision.setParameterValue(index, precision.getParameterValue(index) * Math.exp(0.1 * MathUtils.nextGaussian()));
+
+        double logL = likelihood.getLogLikelihood();
+
+        likelihood.restoreModelState();
+        return logL;
+    }
+
+    private String createModelXML() {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<constantSize id=\"constant\" units=\"years\"><populationSize>")
+                .append("<parameter id=\"constant.popSize\" value=\"10.0\"/></populationSize></constantSize>");
+        xml.append("<coalescentTree id=\"startingTree\"><taxa idref=\"taxa\"/><constantSize idref=\"constant\"/></coalescentTree>");
+        xml.append("<treeModel id=\"treeModel\"><coalescentTree idref=\"startingTree\"/>")
+                .append("<rootHeight><parameter id=\"treeModel.rootHeight\"/></rootHeight>")
+                .append("<nodeHeights internalNodes=\"true\"><parameter id=\"treeModel.internalNodeHeights\"/></nodeHeights>")
+                .append("<nodeTraits name=\"").append(traitName).append("\" rootNode=\"false\" internalNodes=\"false\" ")
+                .append("leafNodes=\"true\" traitDimension=\"").append(dimension).append("\">")
+                .append("<parameter id=\"leafTraits\"/></nodeTraits></treeModel>");
+
+        xml.append("<multivariateDiffusionModel id=\"diffusionModel\"><precisionMatrix>")
+                .append("<compoundSymmetricMatrix id=\"precisionMatrix\" asCorrelation=\"true\" isCholesky=\"true\">")
+                .append("<diagonal><parameter id=\"precision.diagonal\" value=\"").append(repeat("1.0", dimension))
+                .append("\" lower=\"").append(repeat("0.0", dimension)).append("\"/></diagonal>")
+                .append("<offDiagonal><parameter id=\"precision.offDiagonal\" value=\"")
+                .append(repeat("0.1", dimension * (dimension - 1) / 2)).append("\"/></offDiagonal>")
+                .append("</compoundSymmetricMatrix></precisionMatrix></multivariateDiffusionModel>");
+
+        xml.append("<traitDataLikelihood id=\"traitLikelihood\" traitName=\"").append(traitName)
+                .append("\" forceFullPrecision=\"true\"").append(process.equals("brownian") ? " allowSingular=\"true\"" : "").append(">")
+                .append("<multivariateDiffusionModel idref=\"diffusionModel\"/>")
+                .append("<treeModel idref=\"treeModel\"/>")
+                .append("<traitParameter><parameter idref=\"leafTraits\"/></traitParameter>");
+        if (process.equals("drift")) {
+            xml.append("<driftModels>").append(createRates("drift", 0.1)).append("</driftModels>");
+        } else if (process.equals("ou")) {
+            xml.append("<optimalTraits>").append(createRates("optimal", 1.0)).append("</optimalTraits>")
+                    .append("<strengthOfSelectionMatrix>")
+                    .append("<compoundSymmetricMatrix id=\"attenuationMatrix\" asCorrelation=\"true\" isCholesky=\"true\">")
+                    .append("<diagonal><parameter value=\"").append(repeat("1.0", dimension))
+                    .append("\" lower=\"").append(repeat("0.0", dimension)).append("\"/></diagonal>")
+                    .append("<offDiagonal><parameter value=\"").append(repeat("0.1", dimension * (dimension - 1) / 2))
+                    .append("\"/></offDiagonal>")
+                    .append("</compoundSymmetricMatrix></strengthOfSelectionMatrix>");
+        } else if (!process.equals("brownian")) {
+            throw new IllegalArgumentException("Unknown process, " + process);
+        }
+        xml.append("<conjugateRootPrior>")
+                .append("<meanParameter><parameter value=\"").append(repeat("0.0", dimension)).append("\"/></meanParameter>")
+                .append("<priorSampleSize><parameter value=\"0.001\"/></priorSampleSize>")
+                .append("</conjugateRootPrior>");
+        xml.append("</traitDataLikelihood>");
+
+        return xml.toString();
+    }
+
+    private String createRates(String name, double value) {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < dimension; i++) {
+            xml.append("<strictClockBranchRates><rate><parameter id=\"").append(name).append(".").append(i + 1)
+                    .append("\" value=\"").append(value).append("\"/></rate></strictClockBranchRates>");
+        }
+        return xml.toString();
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private TreeDataLikelihood likelihood;
+    private Parameter precision;
+}
@@ -0,0 +1,112 @@
+/*
+ * TreeDataLikelihoodBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import dr.app.beast.ExampleDataset;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times TreeDataLikelihood.getLogLikelihood for the nucleotide alignment of an example XML,
+ * computed by BEAGLE (CPU) or by the pure Java delegate. The treeLikelihood of the example is
+ * replaced by a treeDataLikelihood.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TreeDataLikelihoodBenchmark {
+
+    @Param({ "Benchmarks/benchmark1.xml" })
+    public String dataset;
+
+    @Param({ "beagle", "java" })
+    public String implementation;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.removeElements("mcmc");
+        example.removeElements("report");
+        example.renameElements("treeLikelihood", "treeDataLikelihood");
+        if (implementation.equals("java")) {
+            example.setAttribute("treeDataLikelihood", "useJava", "true");
+        } else {
+            example.setAttribute("treeDataLikelihood", "preferGPU", "false");
+        }
+        example.parse();
+
+        likelihood = example.getObject("treeLikelihood", TreeDataLikelihood.class);
+        treeModel = example.getObject("treeModel", TreeModel.class);
+
+        // an initial evaluation, as the MCMC does, so all the buffers are set before the first store
+        likelihood.getLogLikelihood();
+
+        MathUtils.setSeed(666);
+    }
+
+    /**
+     * Recomputes the whole tree.
+     */
+    @Benchmark
+    public double fullEvaluation() {
+        likelihood.makeDirty();
+        return likelihood.getLogLikelihood();
+    }
+
+    /**
+     * Changes the height of one internal node (as an MCMC operator would), recomputes and then
+     * restores the state.
+     */
+    @Benchmark
+    public double nodeHeightChange() {
+        likelihood.storeModelState();
+
+        NodeRef node = treeModel.getNode(treeModel.getExternalNodeCount() +
+                MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = (treeModel.isRoot(node) ?
+                2.0 * treeModel.getNodeHeight(node) : treeModel.getNodeHeight(treeModel.getParent(node)));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+
+        double logL = likelihood.getLogLikelihood();
+
+        likelihood.restoreModelState();
+        return logL;
+    }
+
+    private TreeDataLikelihood likelihood;
+    private TreeModel treeModel;
+}
@@ -0,0 +1,106 @@
+/*
+ * MarkovChainBenchmark.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import dr.app.beast.ExampleDataset;
+import dr.evomodel.operators.AbstractTreeOperator;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times MarkovChain.runChain for the model of an example XML with a fixed operator schedule
+ * (no adaptation): all the operators of the example, only the tree topology operators or
+ * only the other operators. The file loggers of the example are removed and the tree likelihood
+ * is computed by the pure Java delegate. Times are per state.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class MarkovChainBenchmark {
+
+    public static final int STATE_COUNT = 1000;
+
+    @Param({ "Benchmarks/benchmark1.xml" })
+    public String dataset;
+
+    @Param({ "all", "tree", "parameters" })
+    public String operators;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExampleDataset example = new ExampleDataset(dataset);
+        example.removeFileLoggers();
+        example.removeElements("report");
+        example.renameElements("treeLikelihood", "treeDataLikelihood");
+        example.setAttribute("treeDataLikelihood", "useJava", "true");
+        example.parse();
+
+        MathUtils.setSeed(666);
+
+        MCMC mcmc = example.getObject("mcmc", MCMC.class);
+        OperatorSchedule schedule = mcmc.getOperatorSchedule();
+
+        SimpleOperatorSchedule fixedSchedule = new SimpleOperatorSchedule();
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            boolean isTreeOperator = operator instanceof AbstractTreeOperator;
+            if (operators.equals("all") ||
+                    (operators.equals("tree") && isTreeOperator) ||
+                    (operators.equals("parameters") && !isTreeOperator)) {
+                fixedSchedule.addOperator(operator);
+            }
+        }
+        if (fixedSchedule.getOperatorCount() == 0) {
+            throw new IllegalArgumentException("No operators selected by, " + operators);
+        }
+
+        MCMCOptions options = mcmc.getOptions();
+        markovChain = new MarkovChain(mcmc.getMarkovChain().getLikelihood(), fixedSchedule, new MCMCCriterion(),
+                options.getFullEvaluationCount(), options.minOperatorCountForFullEvaluation(),
+                options.getEvaluationTestThreshold(), false, options.useSmoothedAcceptanceProbability());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STATE_COUNT)
+    public long runChain() {
+        return markovChain.runChain(STATE_COUNT, true);
+    }
+
+    private MarkovChain markovChain;
+}
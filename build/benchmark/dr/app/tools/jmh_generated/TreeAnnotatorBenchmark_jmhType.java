@@ -0,0 +1,4 @@
+package dr.app.tools.jmh_generated;
+public class TreeAnnotatorBenchmark_jmhType extends TreeAnnotatorBenchmark_jmhType_B3 {
+}
+
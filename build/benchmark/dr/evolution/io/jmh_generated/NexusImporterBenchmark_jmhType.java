@@ -0,0 +1,4 @@
+package dr.evolution.io.jmh_generated;
+public class NexusImporterBenchmark_jmhType extends NexusImporterBenchmark_jmhType_B3 {
+}
+
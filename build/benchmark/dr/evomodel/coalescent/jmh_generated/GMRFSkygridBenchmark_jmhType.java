@@ -0,0 +1,4 @@
+package dr.evomodel.coalescent.jmh_generated;
+public class GMRFSkygridBenchmark_jmhType extends GMRFSkygridBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dr.evomodel.tree.jmh_generated;
+public class StoreRestoreBenchmark_jmhType extends StoreRestoreBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dr.evomodel.treedatalikelihood.jmh_generated;
+public class ContinuousDataLikelihoodBenchmark_jmhType extends ContinuousDataLikelihoodBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dr.evomodel.treedatalikelihood.jmh_generated;
+public class TreeDataLikelihoodBenchmark_jmhType extends TreeDataLikelihoodBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package dr.inference.markovchain.jmh_generated;
+public class MarkovChainBenchmark_jmhType extends MarkovChainBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,594 @@
+/*
+ * ParallelSequenceSimulator.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.app.beagle.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dr.app.tools.NexusExporter;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Codons;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.HiddenDataType;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.substmodel.EigenDecomposition;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.util.NumberFormatter;
+
+/**
+ * A sequence simulator that doesn't need BEAGLE. It uses the branch, site rate and frequency models
+ * of the Partitions but computes the transition probabilities itself and splits each partition into
+ * blocks of sites which are simulated on several threads. Each block gets its own stream from a
+ * SplittableRandom (split in block order) so the result for a given seed doesn't depend on the
+ * number of threads. The sequences are written straight to a FASTA or NEXUS file: each block is
+ * written into its place in the file as soon as it is done so only the blocks being simulated are
+ * held in memory.
+ *
+ * Ancestral sequences are not written.
+ *
+ * @author agent
+ */
+public class ParallelSequenceSimulator {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+	// limit the size of the buffer each block writes its rows into
+	private static final int MAX_BLOCK_BYTES = 1 << 24;
+
+	public ParallelSequenceSimulator(List<Partition> partitions, int threadCount, int blockSize, long seed) {
+
+		this.partitions = new ArrayList<Partition>(partitions);
+		this.threadCount = threadCount;
+		this.seed = seed;
+
+		DataType dataType = null;
+		int siteCount = 0;
+		for (Partition partition : partitions) {
+			if (dataType == null) {
+				dataType = partition.getDataType();
+			} else if (dataType.getType() != partition.getDataType().getType()) {
+				throw new RuntimeException("Partitions must have the same data type.");
+			}
+			siteCount = Math.max(siteCount, partition.to + 1);
+		}
+		this.dataType = dataType;
+		this.siteCount = siteCount;
+
+		// the rows are the union of the tips of the partition trees in the order they are first seen
+		taxonRows = new LinkedHashMap<String, Integer>();
+		for (Partition partition : partitions) {
+			TreeModel tree = partition.getTreeModel();
+			for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+				String id = tree.getNodeTaxon(tree.getExternalNode(i)).getId();
+				if (!taxonRows.containsKey(id)) {
+					taxonRows.put(id, taxonRows.size());
+				}
+			}
+		}
+
+		codes = new byte[dataType.getStateCount() + 1][];
+		for (int state = 0; state < dataType.getStateCount(); state++) {
+			codes[state] = getCode(state).getBytes(StandardCharsets.US_ASCII);
+		}
+		codes[dataType.getStateCount()] = getCode(dataType.getGapState()).getBytes(StandardCharsets.US_ASCII);
+		charsPerSite = codes[0].length;
+		for (byte[] code : codes) {
+			if (code.length != charsPerSite) {
+				throw new RuntimeException("The data type " + dataType.getDescription() + " doesn't have fixed width codes.");
+			}
+		}
+
+		int maxBlockSize = Math.max(1, MAX_BLOCK_BYTES / (taxonRows.size() * charsPerSite));
+		this.blockSize = Math.min(blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE, maxBlockSize);
+	}// END: Constructor
+
+	/**
+	 * Simulates the alignment and writes it to the file.
+	 * @param file the file to write
+	 * @param outputType FASTA or NEXUS
+	 */
+	public void simulate(File file, SimpleAlignment.OutputType outputType) throws IOException {
+
+		if (outputType != SimpleAlignment.OutputType.FASTA && outputType != SimpleAlignment.OutputType.NEXUS) {
+			throw new IllegalArgumentException("Only FASTA and NEXUS output can be streamed");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+		try {
+			List<PartitionSimulation> simulations = new ArrayList<PartitionSimulation>();
+			for (Partition partition : partitions) {
+				simulations.add(new PartitionSimulation(partition, executor));
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				FileChannel channel = raf.getChannel();
+				long[] rowOffsets = writeLayout(channel, outputType);
+
+				// split the streams in block order so they don't depend on the number of threads
+				SplittableRandom random = new SplittableRandom(seed);
+				List<Callable<Void>> blocks = new ArrayList<Callable<Void>>();
+				for (int from = 0; from < siteCount; from += blockSize) {
+					blocks.add(new BlockCallable(simulations, from, Math.min(from + blockSize, siteCount),
+							random.split(), channel, rowOffsets));
+				}
+
+				waitFor(executor.invokeAll(blocks));
+			} finally {
+				raf.close();
+			}
+
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Sequence simulation was interrupted");
+		} finally {
+			executor.shutdown();
+		}
+	}// END: simulate
+
+	private static void waitFor(List<Future<Void>> futures) throws InterruptedException {
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+	}// END: waitFor
+
+	/**
+	 * Writes the headers, taxon names and the end of the file and returns where each row's sequence starts.
+	 * The sequences are left to be filled in by the blocks.
+	 */
+	private long[] writeLayout(FileChannel channel, SimpleAlignment.OutputType outputType) throws IOException {
+
+		long[] rowOffsets = new long[taxonRows.size()];
+		long sequenceLength = (long) siteCount * charsPerSite;
+
+		long position = 0;
+		if (outputType == SimpleAlignment.OutputType.NEXUS) {
+			position += write(channel, position, "#NEXUS\n" +
+					"begin data;\n" +
+					"\tdimensions ntax=" + taxonRows.size() + " nchar=" + sequenceLength + ";\n" +
+					"\tformat datatype=" + dataType.getDescription() +
+					" missing=" + DataType.UNKNOWN_CHARACTER + " gap=" + DataType.GAP_CHARACTER + ";\n" +
+					"\tmatrix\n");
+		}
+
+		NumberFormatter formatter = new NumberFormatter(6);
+		int row = 0;
+		for (String id : taxonRows.keySet()) {
+			String name;
+			if (outputType == SimpleAlignment.OutputType.NEXUS) {
+				name = "\t" + getNexusName(id) + "\t";
+			} else {
+				name = ">" + formatter.formatToFieldWidth(id, 10) + "\n";
+			}
+			position += write(channel, position, name);
+			rowOffsets[row] = position;
+			position += sequenceLength;
+			position += write(channel, position, "\n");
+			row++;
+		}
+
+		if (outputType == SimpleAlignment.OutputType.NEXUS) {
+			write(channel, position, ";\nend;");
+		}
+
+		return rowOffsets;
+	}// END: writeLayout
+
+	private static int write(FileChannel channel, long position, String text) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		return length;
+	}// END: write
+
+	private static String getNexusName(String name) {
+		if (name.matches(NexusExporter.SPECIAL_CHARACTERS_REGEX)) {
+			return "'" + name.replace("'", "''") + "'";
+		}
+		return name;
+	}// END: getNexusName
+
+	// the same codes as Utils.intArray2Sequence
+	private String getCode(int state) {
+		if (dataType instanceof Codons) {
+			return dataType.getTriplet(state);
+		} else if (dataType instanceof HiddenDataType && state != dataType.getGapState()) {
+			return dataType.getCode(state % (dataType.getStateCount() / ((HiddenDataType) dataType).getHiddenClassCount()));
+		}
+		return dataType.getCode(state);
+	}// END: getCode
+
+	/**
+	 * Simulates the columns [from, to) of all the partitions into a buffer of rows and writes them to the file.
+	 */
+	private class BlockCallable implements Callable<Void> {
+
+		private BlockCallable(List<PartitionSimulation> simulations, int from, int to, SplittableRandom random,
+							  FileChannel channel, long[] rowOffsets) {
+			this.simulations = simulations;
+			this.from = from;
+			this.to = to;
+			this.random = random;
+			this.channel = channel;
+			this.rowOffsets = rowOffsets;
+		}// END: Constructor
+
+		public Void call() throws IOException {
+
+			int rowLength = (to - from) * charsPerSite;
+			byte[] rows = new byte[rowOffsets.length * rowLength];
+
+			// anything not simulated (columns outside the partitions or taxa missing from a tree) is a gap
+			byte[] gap = codes[dataType.getStateCount()];
+			for (int i = 0; i < rows.length; i += charsPerSite) {
+				System.arraycopy(gap, 0, rows, i, charsPerSite);
+			}
+
+			for (PartitionSimulation simulation : simulations) {
+				simulation.simulate(from, to, random, rows, rowLength);
+			}
+
+			for (int row = 0; row < rowOffsets.length; row++) {
+				ByteBuffer buffer = ByteBuffer.wrap(rows, row * rowLength, rowLength);
+				long position = rowOffsets[row] + (long) from * charsPerSite;
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+
+			return null;
+		}// END: call
+
+		private final List<PartitionSimulation> simulations;
+		private final int from;
+		private final int to;
+		private final SplittableRandom random;
+		private final FileChannel channel;
+		private final long[] rowOffsets;
+	}// END: BlockCallable class
+
+	/**
+	 * The transition probabilities and tree of a partition, set up once and then used (read only)
+	 * by all the blocks.
+	 */
+	private class PartitionSimulation {
+
+		private PartitionSimulation(Partition partition, ExecutorService executor) throws InterruptedException {
+
+			this.partition = partition;
+			final TreeModel tree = partition.getTreeModel();
+			stateCount = dataType.getStateCount();
+			matrixSize = stateCount * stateCount;
+
+			nodeCount = tree.getNodeCount();
+			root = tree.getRoot().getNumber();
+			childOffsets = new int[nodeCount + 1];
+			children = new int[nodeCount - 1];
+			rows = new int[nodeCount];
+			Arrays.fill(rows, -1);
+			int k = 0;
+			for (int i = 0; i < nodeCount; i++) {
+				NodeRef node = tree.getNode(i);
+				childOffsets[i] = k;
+				for (int j = 0; j < tree.getChildCount(node); j++) {
+					children[k] = tree.getChild(node, j).getNumber();
+					k++;
+				}
+				if (tree.isExternal(node)) {
+					rows[i] = taxonRows.get(tree.getNodeTaxon(node).getId());
+				}
+			}
+			childOffsets[nodeCount] = k;
+
+			categoryCount = partition.getSiteRateModel().getCategoryCount();
+			categoryCumulative = cumulate(partition.getSiteRateModel().getCategoryProportions());
+			frequencyCumulative = cumulate(partition.getFreqModel().getFrequencies());
+
+			Sequence rootSequence = partition.getRootSequence();
+			rootStates = (rootSequence != null ? getStates(rootSequence, partition.getPartitionSiteCount()) : null);
+
+			// the models are only read from this thread, the exponentiation is done on the executor
+			final double[] categoryRates = partition.getSiteRateModel().getCategoryRates();
+			final BranchModel branchModel = partition.getBranchModel();
+			List<SubstitutionModel> substitutionModels = branchModel.getSubstitutionModels();
+			final EigenDecomposition[] eigenDecompositions = new EigenDecomposition[substitutionModels.size()];
+			for (int i = 0; i < eigenDecompositions.length; i++) {
+				SubstitutionModel substitutionModel = substitutionModels.get(i);
+				if (substitutionModel.canReturnComplexDiagonalization()) {
+					throw new RuntimeException("Substitution models with complex eigen decompositions are not supported");
+				}
+				eigenDecompositions[i] = substitutionModel.getEigenDecomposition();
+			}
+
+			cumulativeMatrices = new double[nodeCount][];
+			List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < nodeCount; i++) {
+				if (i == root) {
+					continue;
+				}
+				NodeRef node = tree.getNode(i);
+				final int nodeNumber = i;
+				final double branchTime = tree.getBranchLength(node) * partition.getBranchRateModel().getBranchRate(tree, node);
+				final BranchModel.Mapping mapping = branchModel.getBranchModelMapping(node);
+				callables.add(new Callable<Void>() {
+					public Void call() {
+						cumulativeMatrices[nodeNumber] = getCumulativeMatrices(mapping, branchTime, categoryRates, eigenDecompositions);
+						return null;
+					}
+				});
+			}
+			waitFor(executor.invokeAll(callables));
+		}// END: Constructor
+
+		/**
+		 * Simulates the sites of this partition that fall in the columns [from, to) and puts the tip states in the rows.
+		 */
+		void simulate(int from, int to, SplittableRandom random, byte[] rowBuffer, int rowLength) {
+
+			int every = partition.every;
+			int firstSite = (from <= partition.from ? 0 : (from - partition.from + every - 1) / every);
+			int lastSite = Math.min(partition.getPartitionSiteCount(), (to - partition.from + every - 1) / every);
+			int siteCount = lastSite - firstSite;
+			if (partition.from >= to || siteCount <= 0) {
+				return;
+			}
+
+			int[] categories = new int[siteCount];
+			for (int i = 0; i < siteCount; i++) {
+				categories[i] = sample(categoryCumulative, 0, categoryCount, random);
+			}
+
+			int[] rootSequence = new int[siteCount];
+			for (int i = 0; i < siteCount; i++) {
+				rootSequence[i] = (rootStates != null ? rootStates[firstSite + i] : sample(frequencyCumulative, 0, stateCount, random));
+			}
+
+			// pre-order traversal keeping only the sequences of nodes whose children haven't been simulated
+			Deque<int[]> spare = new ArrayDeque<int[]>();
+			int[] nodeStack = new int[nodeCount];
+			int[][] sequenceStack = new int[nodeCount][];
+			int top = 0;
+			nodeStack[top] = root;
+			sequenceStack[top] = rootSequence;
+			top++;
+
+			while (top > 0) {
+				top--;
+				int node = nodeStack[top];
+				int[] sequence = sequenceStack[top];
+				sequenceStack[top] = null;
+
+				if (childOffsets[node] == childOffsets[node + 1]) {
+					int row = rows[node];
+					int offset = row * rowLength + ((partition.from + firstSite * every) - from) * charsPerSite;
+					for (int i = 0; i < siteCount; i++) {
+						System.arraycopy(codes[sequence[i]], 0, rowBuffer, offset, charsPerSite);
+						offset += every * charsPerSite;
+					}
+				} else {
+					for (int j = childOffsets[node]; j < childOffsets[node + 1]; j++) {
+						int child = children[j];
+						double[] matrices = cumulativeMatrices[child];
+						int[] childSequence = (spare.isEmpty() ? new int[siteCount] : spare.pop());
+						for (int i = 0; i < siteCount; i++) {
+							int offset = categories[i] * matrixSize + sequence[i] * stateCount;
+							childSequence[i] = sample(matrices, offset, stateCount, random);
+						}
+						nodeStack[top] = child;
+						sequenceStack[top] = childSequence;
+						top++;
+					}
+				}
+				spare.push(sequence);
+			}
+		}// END: simulate
+
+		/**
+		 * @return the transition probability matrices for each category (convolved over the branch model's
+		 * epochs) with each row accumulated for sampling
+		 */
+		private double[] getCumulativeMatrices(BranchModel.Mapping mapping, double branchTime, double[] categoryRates,
+											   EigenDecomposition[] eigenDecompositions) {
+
+			int[] order = mapping.getOrder();
+			double[] weights = mapping.getWeights();
+			double sum = 0.0;
+			for (double w : weights) {
+				sum += w;
+			}
+
+			double[] matrices = new double[categoryCount * matrixSize];
+			double[] matrix = new double[matrixSize];
+			double[] product = new double[matrixSize];
+			for (int c = 0; c < categoryCount; c++) {
+				for (int j = 0; j < order.length; j++) {
+					double distance = (order.length > 1 ? weights[j] * branchTime / sum : branchTime) * categoryRates[c];
+					getTransitionProbabilities(eigenDecompositions[order[j]], distance, j == 0 ? product : matrix);
+					if (j > 0) {
+						product = multiply(product, matrix);
+					}
+				}
+
+				int offset = c * matrixSize;
+				for (int i = 0; i < stateCount; i++) {
+					double total = 0.0;
+					for (int s = 0; s < stateCount; s++) {
+						total += product[i * stateCount + s];
+						matrices[offset + i * stateCount + s] = total;
+					}
+				}
+			}
+			return matrices;
+		}// END: getCumulativeMatrices
+
+		// the same calculation as BaseSubstitutionModel.getTransitionProbabilities
+		private void getTransitionProbabilities(EigenDecomposition eigen, double distance, double[] matrix) {
+			double[] evec = eigen.getEigenVectors();
+			double[] ievc = eigen.getInverseEigenVectors();
+			double[] eval = eigen.getEigenValues();
+
+			double[] iexp = new double[matrixSize];
+			for (int i = 0; i < stateCount; i++) {
+				double temp = Math.exp(distance * eval[i]);
+				for (int j = 0; j < stateCount; j++) {
+					iexp[i * stateCount + j] = ievc[i * stateCount + j] * temp;
+				}
+			}
+
+			int u = 0;
+			for (int i = 0; i < stateCount; i++) {
+				for (int j = 0; j < stateCount; j++) {
+					double temp = 0.0;
+					for (int k = 0; k < stateCount; k++) {
+						temp += evec[i * stateCount + k] * iexp[k * stateCount + j];
+					}
+					matrix[u] = Math.abs(temp);
+					u++;
+				}
+			}
+		}// END: getTransitionProbabilities
+
+		private double[] multiply(double[] a, double[] b) {
+			double[] result = new double[matrixSize];
+			for (int i = 0; i < stateCount; i++) {
+				for (int j = 0; j < stateCount; j++) {
+					double temp = 0.0;
+					for (int k = 0; k < stateCount; k++) {
+						temp += a[i * stateCount + k] * b[k * stateCount + j];
+					}
+					result[i * stateCount + j] = temp;
+				}
+			}
+			return result;
+		}// END: multiply
+
+		private int[] getStates(Sequence sequence, int partitionSiteCount) {
+			int[] states = new int[partitionSiteCount];
+			if (dataType instanceof Codons) {
+				if (sequence.getLength() != 3 * partitionSiteCount) {
+					throw new RuntimeException("Root codon sequence has " + sequence.getLength() +
+							" characters expecting " + 3 * partitionSiteCount + " characters");
+				}
+				for (int i = 0; i < partitionSiteCount; i++) {
+					states[i] = ((Codons) dataType).getState(sequence.getChar(3 * i),
+							sequence.getChar(3 * i + 1), sequence.getChar(3 * i + 2));
+				}
+			} else {
+				if (sequence.getLength() != partitionSiteCount) {
+					throw new RuntimeException("Root sequence has " + sequence.getLength() +
+							" characters expecting " + partitionSiteCount + " characters");
+				}
+				for (int i = 0; i < partitionSiteCount; i++) {
+					states[i] = dataType.getState(sequence.getChar(i));
+				}
+			}
+			return states;
+		}// END: getStates
+
+		private final Partition partition;
+		private final int stateCount;
+		private final int matrixSize;
+		private final int categoryCount;
+
+		private final int nodeCount;
+		private final int root;
+		private final int[] childOffsets;
+		private final int[] children;
+		private final int[] rows;
+
+		private final double[] categoryCumulative;
+		private final double[] frequencyCumulative;
+		private final int[] rootStates;
+		private final double[][] cumulativeMatrices;
+	}// END: PartitionSimulation class
+
+	private static double[] cumulate(double[] pdf) {
+		double[] cumulative = new double[pdf.length];
+		double total = 0.0;
+		for (int i = 0; i < pdf.length; i++) {
+			total += pdf[i];
+			cumulative[i] = total;
+		}
+		return cumulative;
+	}// END: cumulate
+
+	/**
+	 * Samples from the (unnormalised) cumulative probabilities cumulative[offset] to cumulative[offset + count - 1].
+	 */
+	private static int sample(double[] cumulative, int offset, int count, SplittableRandom random) {
+		double u = random.nextDouble() * cumulative[offset + count - 1];
+		for (int i = 0; i < count - 1; i++) {
+			if (u < cumulative[offset + i]) {
+				return i;
+			}
+		}
+		return count - 1;
+	}// END: sample
+
+	private final List<Partition> partitions;
+	private final int threadCount;
+	private final int blockSize;
+	private final long seed;
+
+	private final DataType dataType;
+	private final int siteCount;
+	private final Map<String, Integer> taxonRows;
+	private final byte[][] codes;
+	private final int charsPerSite;
+
+}// END: class
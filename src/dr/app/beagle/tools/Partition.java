@@ -129,7 +129,6 @@ public class Partition {
 
 		setBufferHelpers();
 		setSubstitutionModelDelegate();
-		loadBeagleInstance();
 
 		alignmentMap = new LinkedHashMap<Taxon, int[]>();
 		random = new MersenneTwister(MathUtils.nextLong());
@@ -196,6 +195,11 @@ public class Partition {
 
 		try {
 
+			// only load BEAGLE when it is needed (the ParallelSequenceSimulator doesn't use it)
+			if (beagle == null) {
+				loadBeagleInstance();
+			}
+
 			NodeRef root = treeModel.getRoot();
 
 			// gamma category rates
@@ -278,6 +282,7 @@ public class Partition {
 			}//END: DEBUG
 
 			beagle.finalize();
+			beagle = null;
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -574,6 +579,14 @@ public class Partition {
 		return freqModel;
 	}// END: getFreqModel
 
+	public GammaSiteRateModel getSiteRateModel() {
+		return siteRateModel;
+	}// END: getSiteRateModel
+
+	public BranchRateModel getBranchRateModel() {
+		return branchRateModel;
+	}// END: getBranchRateModel
+
 	public Integer getPartitionNumber() {
 		return partitionNumber;
 	}// END: getPartitionNumber
@@ -0,0 +1,133 @@
+/*
+ * ParallelSequenceSimulatorParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.app.beagle.tools.parsers;
+
+import dr.app.beagle.tools.ParallelSequenceSimulator;
+import dr.app.beagle.tools.Partition;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.math.MathUtils;
+import dr.util.FileHelpers;
+import dr.xml.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * @author agent
+ */
+public class ParallelSequenceSimulatorParser extends AbstractXMLObjectParser {
+
+    public static final String PARALLEL_SEQUENCE_SIMULATOR = "parallelSequenceSimulator";
+    public static final String OUTPUT = "output";
+    public static final String THREADS = "threads";
+    public static final String BLOCK_SIZE = "blockSize";
+
+    public String getParserName() {
+        return PARALLEL_SEQUENCE_SIMULATOR;
+    }
+
+    @Override
+    public String getParserDescription() {
+        return "A multithreaded sequence simulator that doesn't need BEAGLE and writes the alignment directly to a file";
+    }
+
+    @Override
+    public Class getReturnType() {
+        return ParallelSequenceSimulator.class;
+    }
+
+    @Override
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return new XMLSyntaxRule[]{
+                new StringAttributeRule(FileHelpers.FILE_NAME, "The name of the file to write the alignment to"),
+                new StringAttributeRule(OUTPUT, "The output format (fasta or nexus), default is fasta",
+                        new String[]{SimpleAlignment.OutputType.FASTA.getText(), SimpleAlignment.OutputType.NEXUS.getText()},
+                        true),
+                AttributeRule.newIntegerRule(THREADS, true, "The number of threads to use, default is the number of processors"),
+                AttributeRule.newIntegerRule(BLOCK_SIZE, true, "The number of sites simulated together by a thread, default is "
+                        + ParallelSequenceSimulator.DEFAULT_BLOCK_SIZE),
+                new ElementRule(Partition.class, 1, Integer.MAX_VALUE)
+        };
+    }// END: getSyntaxRules
+
+    @Override
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        SimpleAlignment.OutputType output = SimpleAlignment.OutputType.FASTA;
+        if (xo.hasAttribute(OUTPUT)) {
+            output = SimpleAlignment.OutputType.parseFromString(xo.getStringAttribute(OUTPUT));
+        }
+
+        int threadCount = xo.getAttribute(THREADS, Runtime.getRuntime().availableProcessors());
+        if (threadCount < 1) {
+            throw new XMLParseException("The number of threads should be at least 1");
+        }
+        int blockSize = xo.getAttribute(BLOCK_SIZE, ParallelSequenceSimulator.DEFAULT_BLOCK_SIZE);
+        if (blockSize < 1) {
+            throw new XMLParseException("The block size should be at least 1");
+        }
+
+        int siteCount = 0;
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Partition partition = (Partition) xo.getChild(i);
+            siteCount = Math.max(siteCount, partition.to + 1);
+        }
+
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Partition partition = (Partition) xo.getChild(i);
+            if (partition.from > siteCount) {
+                throw new XMLParseException("Illegal 'from' attribute in " + PartitionParser.PARTITION + " element");
+            }
+            if (partition.to == -1) {
+                partition.to = siteCount - 1;
+            }
+            partition.setPartitionNumber(i);
+            partitions.add(partition);
+        }
+
+        File file = XMLParser.getLogFile(xo, FileHelpers.FILE_NAME);
+
+        Logger.getLogger("dr.app.beagle.tools").info("\nUsing Parallel Sequence Simulator:\n\t" +
+                partitions.size() + " partitions with a total of " + siteCount + " sites" +
+                "\n\tusing " + threadCount + " thread" + (threadCount > 1 ? "s" : "") +
+                "\n\twriting to " + file.getName() + "\n");
+
+        ParallelSequenceSimulator simulator = new ParallelSequenceSimulator(partitions, threadCount, blockSize,
+                MathUtils.nextLong());
+        try {
+            simulator.simulate(file, output);
+        } catch (IOException ioe) {
+            throw new XMLParseException("Unable to write the simulated alignment to " + file.getName() + ": " + ioe.getMessage());
+        }
+
+        return simulator;
+    }// END: parseXMLObject
+
+}// END: class
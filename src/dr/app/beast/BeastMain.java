@@ -32,9 +32,13 @@ import dr.app.plugin.Plugin;
 import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.loggers.MCLogger;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.mcmcmc.MultiProcessMCMCMC;
+import dr.inference.mcmcmc.ReplicaWorker;
+import dr.inference.model.StoreJournal;
 import dr.math.MathUtils;
 import dr.util.ErrorLogHandler;
 import dr.util.MessageLogHandler;
@@ -81,7 +85,8 @@ public class BeastMain {
 
     public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
                      boolean parserWarning, boolean strictXML, List<String> additionalParsers,
-                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery) {
+                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery,
+                     MCMCMCOptions.SwapSchedule swapSchedule, boolean adaptTemperatures) {
 
         if (inputFile == null) {
             throw new RuntimeException("Error: no input file specified");
@@ -159,7 +164,24 @@ public class BeastMain {
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
 
-            if (!useMC3) {
+            String workerSpecification = System.getProperty(ReplicaWorker.WORKER_PROPERTY);
+            if (workerSpecification != null) {
+                // run a single chain for a MultiProcessMCMCMC running in another process
+                ReplicaWorker worker = new ReplicaWorker(workerSpecification);
+                if (worker.getIndex() > 0) {
+                    // the messages will be the same as those of the first worker
+                    logger.setLevel(Level.OFF);
+                }
+
+                MCMC mcmc = (MCMC) parser.parse(fileReader, MCMC.class);
+                if (mcmc == null) {
+                    throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                }
+                fileReader.close();
+
+                worker.run(mcmc);
+
+            } else if (!useMC3) {
                 // just parse the file running all threads...
 
                 parser.parse(fileReader, true);
@@ -167,7 +189,7 @@ public class BeastMain {
             } else {
                 int chainCount = chainTemperatures.length;
                 MCMC[] chains = new MCMC[chainCount];
-                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery);
+                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery, swapSchedule, adaptTemperatures);
 
                 Logger.getLogger("dr.apps.beast").info("Starting cold chain plus hot chains with temperatures: ");
                 for (int i = 1; i < chainTemperatures.length; i++) {
@@ -205,9 +227,9 @@ public class BeastMain {
                 // restart messages
                 logger.setLevel(Level.ALL);
 
+                // run on this thread (as a single chain is) so BEAST doesn't exit before the chains finish
                 MCMCMC mc3 = new MCMCMC(chains, options);
-                Thread thread = new Thread(mc3);
-                thread.start();
+                mc3.run();
             }
 
         } catch (java.io.IOException ioe) {
@@ -334,6 +356,8 @@ public class BeastMain {
                         new Arguments.LongOption("seed", "Specify a random number generator seed"),
                         new Arguments.StringOption("prefix", "PREFIX", "Specify a prefix for all output log filenames"),
                         new Arguments.Option("overwrite", "Allow overwriting of log files"),
+                        new Arguments.Option("async_logging", "Format and write file logs on a background thread"),
+                        new Arguments.Option("incremental_store", "Only copy the parameter values and tree nodes that have changed when storing and restoring the state"),
                         new Arguments.IntegerOption("errors", "Specify maximum number of numerical errors before stopping"),
                         new Arguments.IntegerOption("threads", "The number of computational threads to use (default auto)"),
                         new Arguments.Option("fail_threads", "Exit with error on uncaught exception in thread."),
@@ -373,6 +397,10 @@ public class BeastMain {
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
                         new Arguments.IntegerOption("mc3_swap", 1, Integer.MAX_VALUE, "frequency at which chains temperatures will be swapped"),
+                        new Arguments.StringOption("mc3_scheme", new String[]{"stochastic", "deterministic"}, false, "whether the even or odd neighbouring chains are picked at random or alternately for swaps [default = stochastic]"),
+                        new Arguments.Option("mc3_adapt", "adapt the hot chain temperatures towards equal swap rates"),
+                        new Arguments.Option("mc3_processes", "run each MC3 chain in its own process on this machine"),
+                        new Arguments.IntegerOption("independent_chains", 1, Integer.MAX_VALUE, "run this number of independent chains, each in its own process on this machine"),
 
                         new Arguments.StringOption("load_state", "FILENAME", "Specify a filename to load a saved state from"),
                         new Arguments.StringOption("save_stem", "FILENAME", "Specify a stem for the filenames to save states to"),
@@ -380,6 +408,8 @@ public class BeastMain {
                         new Arguments.LongOption("save_every", "Specify a frequency to save the state file"),
                         new Arguments.StringOption("save_state", "FILENAME", "Specify a filename to save state to"),
                         new Arguments.Option("full_checkpoint_precision", "Use hex-encoded doubles in checkpoint files"),
+                        new Arguments.Option("binary_checkpoint", "Write checkpoint files in a compact binary format"),
+                        new Arguments.IntegerOption("full_checkpoint_every", 1, Integer.MAX_VALUE, "With -binary_checkpoint, write a full snapshot every N saves and only changed values in between"),
                         new Arguments.Option("force_resume", "Force resuming from a saved state"),
 
                         new Arguments.StringOption("citations_file", "FILENAME", "Specify a filename to write a citation list to"),
@@ -453,9 +483,15 @@ public class BeastMain {
 
         boolean usingSMC = false;
 
+        // set in the processes started to run the chains of a multi-process analysis
+        final ReplicaWorker worker = (System.getProperty(ReplicaWorker.WORKER_PROPERTY) != null ?
+                new ReplicaWorker(System.getProperty(ReplicaWorker.WORKER_PROPERTY)) : null);
+
         boolean usingMC3 = false;
         double[] chainTemperatures = null;
         int swapChainsEvery = DEFAULT_SWAP_CHAIN_EVERY;
+        MCMCMCOptions.SwapSchedule swapSchedule = MCMCMCOptions.SwapSchedule.STOCHASTIC;
+        boolean adaptTemperatures = false;
 
         if (arguments.hasOption("particles")) {
             System.setProperty("smc.particle_folder", arguments.getStringOption("particles"));
@@ -465,8 +501,8 @@ public class BeastMain {
         }
 
         // smc option is always run without GUI.
-        final boolean window = !usingSMC && arguments.hasOption("window");
-        final boolean options = !usingSMC && (arguments.hasOption("options") || (argumentCount == 0));
+        final boolean window = !usingSMC && worker == null && arguments.hasOption("window");
+        final boolean options = !usingSMC && worker == null && (arguments.hasOption("options") || (argumentCount == 0));
 
         if (!usingSMC) {
             if (arguments.hasOption("tests")) {
@@ -524,9 +560,32 @@ public class BeastMain {
                 swapChainsEvery = arguments.getIntegerOption("mc3_swap");
             }
 
+            if (arguments.hasOption("mc3_scheme")) {
+                swapSchedule = MCMCMCOptions.SwapSchedule.valueOf(arguments.getStringOption("mc3_scheme").toUpperCase());
+            }
+
+            adaptTemperatures = arguments.hasOption("mc3_adapt");
+
             usingMC3 = chainCount > 1;
         }
 
+        final boolean usingProcesses = worker == null &&
+                (arguments.hasOption("mc3_processes") || arguments.hasOption("independent_chains"));
+        if (usingProcesses) {
+            if (arguments.hasOption("mc3_processes") == arguments.hasOption("independent_chains")) {
+                System.err.println("Either the -mc3_processes or the -independent_chains option should be used, not both");
+                System.exit(1);
+            }
+            if (arguments.hasOption("mc3_processes") && !usingMC3) {
+                System.err.println("The -mc3_processes option needs more than one MC3 chain (see -mc3_chains)");
+                System.exit(1);
+            }
+            if (arguments.hasOption("load_state")) {
+                System.err.println("The -load_state option can't be used to start a multi-process analysis");
+                System.exit(1);
+            }
+        }
+
         // ============= BEAGLE settings =============
         long beagleFlags = 0;
 
@@ -645,8 +704,8 @@ public class BeastMain {
                     Double.toString(arguments.getRealOption("mcmc.adaptation_target")));
         }
 
-        if (!usingSMC) {
-            // ignore these other options
+        if (!usingSMC && worker == null) {
+            // ignore these other options (a worker is given its checkpoints by the coordinator)
 
             if (arguments.hasOption("load_state")) {
                 String stateFile = arguments.getStringOption("load_state");
@@ -677,6 +736,15 @@ public class BeastMain {
                 System.setProperty(BeastCheckpointer.FULL_CHECKPOINT_PRECISION, "true");
             }
 
+            if (arguments.hasOption("binary_checkpoint")) {
+                System.setProperty(BeastCheckpointer.BINARY_CHECKPOINT, "true");
+            }
+
+            if (arguments.hasOption("full_checkpoint_every")) {
+                int fullEvery = arguments.getIntegerOption("full_checkpoint_every");
+                System.setProperty(BeastCheckpointer.FULL_CHECKPOINT_EVERY, Integer.toString(fullEvery));
+            }
+
             if (arguments.hasOption("force_resume")) {
                 System.setProperty("force.resume", Boolean.TRUE.toString());
             }
@@ -705,6 +773,12 @@ public class BeastMain {
             }
         }
 
+        if (worker != null) {
+            // each worker writes its own logs which the coordinator combines at the end
+            System.setProperty("mpi.rank.postfix", worker.getFilePostfix());
+            seed = updateSeedByRank(seed, worker.getIndex());
+        }
+
         int maxErrorCount = 0;
         if (arguments.hasOption("errors")) {
             maxErrorCount = arguments.getIntegerOption("errors");
@@ -742,7 +816,9 @@ public class BeastMain {
 
         }
 
-        printTitle();
+        if (worker == null) {
+            printTitle();
+        }
 
         File inputFile = null;
 
@@ -879,6 +955,14 @@ public class BeastMain {
             System.setProperty("log.allow.overwrite", "true");
         }
 
+        if (arguments.hasOption("async_logging")) {
+            System.setProperty(MCLogger.ASYNC_LOGGING, "true");
+        }
+
+        if (arguments.hasOption("incremental_store")) {
+            System.setProperty(StoreJournal.INCREMENTAL_STORE, "true");
+        }
+
         additionalParsers.add("beagle");
 
         if (beagleFlags != 0) {
@@ -892,11 +976,46 @@ public class BeastMain {
 
         MathUtils.setSeed(seed);
 
+        if (usingProcesses) {
+            // start the worker processes with the same arguments (and the same seed)
+            List<String> workerArguments = new ArrayList<String>(Arrays.asList(args));
+            if (!arguments.hasOption("seed")) {
+                workerArguments.add(0, "-seed");
+                workerArguments.add(1, Long.toString(seed));
+            }
+
+            int workerCount;
+            MCMCMCOptions mcmcmcOptions = null;
+            if (arguments.hasOption("mc3_processes")) {
+                mcmcmcOptions = new MCMCMCOptions(chainTemperatures, swapChainsEvery, swapSchedule, adaptTemperatures);
+                workerCount = chainTemperatures.length;
+            } else {
+                workerCount = arguments.getIntegerOption("independent_chains");
+            }
+            long checkpointEvery = (arguments.hasOption("save_every") ? arguments.getLongOption("save_every") : 0);
+            String checkpointStem = (arguments.hasOption("save_stem") ? arguments.getStringOption("save_stem") :
+                    new File(System.getProperty("user.dir"), "beast_worker_state").getPath());
+
+            System.out.println("Random number seed: " + seed);
+            System.out.println("Running " + workerCount + (mcmcmcOptions != null ? " MC3 chains" : " independent chains") +
+                    " in separate processes");
+
+            try {
+                new MultiProcessMCMCMC(BeastMain.class.getName(), workerArguments, workerCount, mcmcmcOptions,
+                        swapChainsEvery, checkpointEvery, checkpointStem, allowOverwrite).run();
+            } catch (Exception e) {
+                System.err.println("Fatal exception: " + e.getMessage());
+                System.err.flush();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
         System.out.println("Random number seed: " + seed);
 
         try {
             new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers,
-                    usingMC3, chainTemperatures, swapChainsEvery);
+                    usingMC3, chainTemperatures, swapChainsEvery, swapSchedule, adaptTemperatures);
         } catch (RuntimeException rte) {
             // The stack trace here is not useful
 //            rte.printStackTrace(System.err);
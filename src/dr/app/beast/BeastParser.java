@@ -28,6 +28,7 @@ package dr.app.beast;
 import dr.util.Citation;
 import dr.util.Pair;
 import dr.util.Version;
+import dr.xml.LazyXMLObjectParser;
 import dr.xml.PropertyParser;
 import dr.xml.UserInput;
 import dr.xml.XMLObjectParser;
@@ -137,6 +138,14 @@ public class BeastParser extends XMLParser {
                 System.out.println("\n\nLoading additional parsers (" + parsersFile + "):");
             }
         }
+
+        // if the parsers have been indexed then they are only loaded when their elements are used
+        ParserIndex index = ParserIndex.read(c, parsersFile);
+        if (index != null) {
+            loadIndex(index, parsersFile, verbose, parserWarning, canReplace);
+            return;
+        }
+
         final InputStream stream = c.getResourceAsStream(parsersFile);
         if (stream == null) {
             throw new RuntimeException("Parsers file not found: " + parsersFile);
@@ -148,58 +157,102 @@ public class BeastParser extends XMLParser {
             if (verbose && line.trim().startsWith("#")) System.out.println(line);
 
             if (line.trim().length() > 0 && !line.trim().startsWith("#")) {
-                try {
-                    if (line.contains("Vector")) {
-                        System.out.println("");
-                    }
-                    Class parser = Class.forName(line);
-                    if (XMLObjectParser.class.isAssignableFrom(parser)) {
-                        // if this class is an XMLObjectParser then create an instance
-                        boolean replaced = addXMLObjectParser((XMLObjectParser) parser.newInstance(), canReplace);
-                        if (verbose) {
-                            System.out.println((replaced ? "Replaced" : "Loaded") + " parser: " + parser.getName());
-                        } else if (parserWarning && replaced) {
-                            System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
-                                    + "which is REPLACING the same parser loaded previously.\n");
-                        }
-                    } else {
-                        boolean parserFound = false;
-                        // otherwise look for a static member which is an instance of XMLObjectParser
-                        Field[] fields = parser.getDeclaredFields();
-                        for (Field field : fields) {
-                            if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
-                                try {
-                                    boolean replaced = addXMLObjectParser((XMLObjectParser) field.get(null), canReplace);
-                                    if (verbose) {
-                                        System.out.println((replaced ? "Replaced" : "Loaded") + " parser: "
-                                                + parser.getName() + "." + field.getName());
-                                    } else if (parserWarning && replaced) {
-                                        System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
-                                                + "which is REPLACING the same parser loaded previously.\n");
-                                    }
-                                } catch (IllegalArgumentException iae) {
-                                    System.err.println("Failed to install parser: " + iae.getMessage());
-                                }
-                                parserFound = true;
-                            }
-                        }
+                loadParser(line, parsersFile, verbose, parserWarning, canReplace);
+            }
+            line = reader.readLine();
+        }
 
-                        if (!parserFound) {
-                            throw new IllegalArgumentException(parser.getName() + " is not of type XMLObjectParser " +
-                                    "and doesn't contain any static members of this type");
+        if (verbose) {
+            System.out.println("load " + parsersFile + " successfully.\n");
+        }
+    }
+
+    /**
+     * Load the parser (or the parsers held as static members) of a class listed in a *.properties file
+     * @param line            the class name
+     * @param parsersFile     parser file name, (*.properties)
+     * @param verbose         verbose
+     * @param parserWarning   parserWarning
+     * @param canReplace      can this new loaded parser to replace old one with the same name
+     */
+    private void loadParser(String line, String parsersFile, boolean verbose, boolean parserWarning, boolean canReplace) {
+        try {
+            if (line.contains("Vector")) {
+                System.out.println("");
+            }
+            Class parser = Class.forName(line);
+            if (XMLObjectParser.class.isAssignableFrom(parser)) {
+                // if this class is an XMLObjectParser then create an instance
+                boolean replaced = addXMLObjectParser((XMLObjectParser) parser.newInstance(), canReplace);
+                if (verbose) {
+                    System.out.println((replaced ? "Replaced" : "Loaded") + " parser: " + parser.getName());
+                } else if (parserWarning && replaced) {
+                    System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
+                            + "which is REPLACING the same parser loaded previously.\n");
+                }
+            } else {
+                boolean parserFound = false;
+                // otherwise look for a static member which is an instance of XMLObjectParser
+                Field[] fields = parser.getDeclaredFields();
+                for (Field field : fields) {
+                    if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
+                        try {
+                            boolean replaced = addXMLObjectParser((XMLObjectParser) field.get(null), canReplace);
+                            if (verbose) {
+                                System.out.println((replaced ? "Replaced" : "Loaded") + " parser: "
+                                        + parser.getName() + "." + field.getName());
+                            } else if (parserWarning && replaced) {
+                                System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
+                                        + "which is REPLACING the same parser loaded previously.\n");
+                            }
+                        } catch (IllegalArgumentException iae) {
+                            System.err.println("Failed to install parser: " + iae.getMessage());
                         }
+                        parserFound = true;
                     }
+                }
 
-                } catch (Exception e) {
-                    System.err.println("\nFailed to load parser: " + e.getMessage());
-                    System.err.println("line = " + line + "\n");
+                if (!parserFound) {
+                    throw new IllegalArgumentException(parser.getName() + " is not of type XMLObjectParser " +
+                            "and doesn't contain any static members of this type");
                 }
             }
-            line = reader.readLine();
+
+        } catch (Exception e) {
+            System.err.println("\nFailed to load parser: " + e.getMessage());
+            System.err.println("line = " + line + "\n");
+        }
+    }
+
+    /**
+     * Registers the parsers in an index without loading them. The element names are checked for
+     * collisions exactly as if the parsers had been loaded. Any classes that could not be indexed
+     * are loaded straight away.
+     */
+    private void loadIndex(ParserIndex index, String parsersFile, boolean verbose, boolean parserWarning, boolean canReplace) {
+        for (ParserIndex.Entry entry : index.getEntries()) {
+            LazyXMLObjectParser parser = entry.getParser();
+            if (parser == null) {
+                // this could not be indexed so load it now as before
+                loadParser(entry.getLine(), parsersFile, verbose, parserWarning, canReplace);
+                continue;
+            }
+            try {
+                boolean replaced = addXMLObjectParser(parser, canReplace);
+                if (verbose) {
+                    System.out.println((replaced ? "Replaced" : "Indexed") + " parser: " + parser.getSourceName());
+                } else if (parserWarning && replaced) {
+                    System.out.println("WARNING: parser - " + parser.getSourceName() + " in " + parsersFile +" is duplicated, "
+                            + "which is REPLACING the same parser loaded previously.\n");
+                }
+            } catch (Exception e) {
+                System.err.println("\nFailed to load parser: " + e.getMessage());
+                System.err.println("parser = " + parser.getSourceName() + "\n");
+            }
         }
 
         if (verbose) {
-            System.out.println("load " + parsersFile + " successfully.\n");
+            System.out.println("load " + parsersFile + " (indexed) successfully.\n");
         }
     }
 
@@ -26,6 +26,7 @@
 package dr.app.beast;
 
 import dr.app.util.Arguments;
+import dr.inference.mcmcmc.MCMCMCOptions;
 import dr.inference.parallel.MPIServices;
 import dr.math.MathUtils;
 import mpi.MPI;
@@ -38,7 +39,8 @@ import java.io.File;
 public class BeastRemote extends BeastMain {
 
     public BeastRemote(File inputFile, BeastConsoleApp consoleApp, boolean verbose, boolean parserWarning) {
-        super(inputFile, consoleApp, 0, verbose, parserWarning, true, null, false, null, 0);
+        super(inputFile, consoleApp, 0, verbose, parserWarning, true, null, false, null, 0,
+                MCMCMCOptions.SwapSchedule.STOCHASTIC, false);
     }
 
     public static void terminateSlaves() {
@@ -0,0 +1,276 @@
+/*
+ * ParserIndex.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.xml.LazyXMLObjectParser;
+import dr.xml.XMLObjectParser;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A compact index of the parsers listed in a parsers properties file, giving the element names
+ * of each parser so they can be registered without loading the parser classes. The index is
+ * written when BEAST is built (see the parser-index target in build.xml) by running this
+ * class over the properties files.
+ *
+ * Each line of the index holds the parser class (with '#' and the field name if the parser is
+ * a static field of the class), the parser name and the comma separated element names, separated
+ * by tabs. A line of the properties file that could not be indexed is copied as it is so it will
+ * be loaded (and any error reported) when BEAST starts. The first line holds a checksum of the
+ * properties file so an index that is out of date is ignored.
+ *
+ * @author agent
+ */
+public class ParserIndex {
+
+    public static final String PARSER_INDEX_SUFFIX = "_parsers.index";
+
+    private static final String CHECKSUM = "# checksum ";
+
+    private ParserIndex(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the entries of the index in the order of the properties file
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public static class Entry {
+        Entry(String line, LazyXMLObjectParser parser) {
+            this.line = line;
+            this.parser = parser;
+        }
+
+        /**
+         * @return the line of the properties file that could not be indexed (or null)
+         */
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * @return the indexed parser, which has not been loaded (or null if this could not be indexed)
+         */
+        public LazyXMLObjectParser getParser() {
+            return parser;
+        }
+
+        private final String line;
+        private final LazyXMLObjectParser parser;
+    }
+
+    /**
+     * Reads the index for a parsers properties file from the same place as the properties file.
+     * @param c the class to find the files relative to
+     * @param parsersFile the name of the parsers properties file
+     * @return the index, or null if there is no index or it was not made from this properties file
+     * @throws IOException
+     */
+    public static ParserIndex read(Class c, String parsersFile) throws IOException {
+        final InputStream propertiesStream = c.getResourceAsStream(parsersFile);
+        if (propertiesStream == null) {
+            return null;
+        }
+        long checksum = getChecksum(propertiesStream);
+
+        String indexFile = parsersFile.replace(BeastParser.PARSER_PROPERTIES_SUFFIX, PARSER_INDEX_SUFFIX);
+        final InputStream stream = c.getResourceAsStream(indexFile);
+        if (stream == null) {
+            return null;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(CHECKSUM + checksum)) {
+                return null;
+            }
+
+            List<Entry> entries = new ArrayList<Entry>();
+            line = reader.readLine();
+            while (line != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 1) {
+                    entries.add(new Entry(line, null));
+                    line = reader.readLine();
+                    continue;
+                }
+                if (fields.length != 3) {
+                    throw new IOException("Badly formed line in " + indexFile + ": " + line);
+                }
+                String className = fields[0];
+                String fieldName = null;
+                int hash = className.indexOf('#');
+                if (hash >= 0) {
+                    fieldName = className.substring(hash + 1);
+                    className = className.substring(0, hash);
+                }
+                entries.add(new Entry(null, new LazyXMLObjectParser(className, fieldName, fields[1], fields[2].split(","))));
+                line = reader.readLine();
+            }
+            return new ParserIndex(entries);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index for a parsers properties file. Every parser is loaded to find its names
+     * in the same way as BeastParser would when loading the properties file itself.
+     * @param propertiesFile the parsers properties file
+     * @param indexFile the index file to write
+     * @return the number of parsers that could not be loaded
+     * @throws IOException
+     */
+    public static int write(File propertiesFile, File indexFile) throws IOException {
+        long checksum = getChecksum(new FileInputStream(propertiesFile));
+
+        BufferedReader reader = new BufferedReader(new FileReader(propertiesFile));
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+        writer.println(CHECKSUM + checksum);
+
+        // the element names already taken in this file, to report duplicates
+        Map<String, String> sources = new HashMap<String, String>();
+        int errorCount = 0;
+
+        String line = reader.readLine();
+        while (line != null) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                // collect the entries for the line first so nothing is written if any of them fail
+                StringWriter entries = new StringWriter();
+                PrintWriter entryWriter = new PrintWriter(entries);
+                try {
+                    Class parserClass = Class.forName(line);
+                    if (XMLObjectParser.class.isAssignableFrom(parserClass)) {
+                        XMLObjectParser parser = (XMLObjectParser) parserClass.newInstance();
+                        writeEntry(entryWriter, parserClass.getName(), parser, sources);
+                    } else {
+                        boolean parserFound = false;
+                        for (Field field : parserClass.getDeclaredFields()) {
+                            if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
+                                XMLObjectParser parser = (XMLObjectParser) field.get(null);
+                                writeEntry(entryWriter, parserClass.getName() + "#" + field.getName(), parser, sources);
+                                parserFound = true;
+                            }
+                        }
+                        if (!parserFound) {
+                            throw new IllegalArgumentException(parserClass.getName() + " is not of type XMLObjectParser " +
+                                    "and doesn't contain any static members of this type");
+                        }
+                    }
+                    entryWriter.flush();
+                    writer.print(entries);
+                } catch (Exception e) {
+                    System.err.println("Failed to index parser in " + propertiesFile.getName() + ": " + e.getMessage());
+                    System.err.println("line = " + line);
+                    writer.println(line);
+                    errorCount++;
+                }
+            }
+            line = reader.readLine();
+        }
+
+        reader.close();
+        writer.close();
+
+        return errorCount;
+    }
+
+    private static void writeEntry(PrintWriter writer, String source, XMLObjectParser parser, Map<String, String> sources) {
+        StringBuilder names = new StringBuilder();
+        for (String name : parser.getParserNames()) {
+            if (name.indexOf(',') >= 0 || name.indexOf('\t') >= 0) {
+                throw new IllegalArgumentException("Parser name, " + name + ", in " + source + " is not a valid element name");
+            }
+            String existing = sources.put(name, source);
+            if (existing != null) {
+                System.err.println("WARNING: element name " + name + " is used by both " + existing + " and " + source);
+            }
+            if (names.length() > 0) {
+                names.append(",");
+            }
+            names.append(name);
+        }
+        writer.println(source + "\t" + parser.getParserName() + "\t" + names);
+    }
+
+    private static long getChecksum(InputStream stream) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try {
+            int n = stream.read(buffer);
+            while (n >= 0) {
+                crc.update(buffer, 0, n);
+                n = stream.read(buffer);
+            }
+        } finally {
+            stream.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes an index for each parsers properties file in a directory.
+     * @param args the directory containing the properties files and the directory to write the indices to
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ParserIndex <properties directory> <index directory>");
+            System.exit(1);
+        }
+
+        File sourceDir = new File(args[0]);
+        File targetDir = new File(args[1]);
+        targetDir.mkdirs();
+
+        File[] files = sourceDir.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Directory not found: " + sourceDir);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BeastParser.PARSER_PROPERTIES_SUFFIX)) {
+                File indexFile = new File(targetDir, name.replace(BeastParser.PARSER_PROPERTIES_SUFFIX, PARSER_INDEX_SUFFIX));
+                int errorCount = write(file, indexFile);
+                System.out.println("Indexed " + name + (errorCount > 0 ? " (" + errorCount + " could not be indexed)" : ""));
+            }
+        }
+
+        // loading the parsers may have started threads so don't wait for them
+        System.exit(0);
+    }
+
+    private final List<Entry> entries;
+}
@@ -67,6 +67,9 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
     public final static String FULL_CHECKPOINT_PRECISION = "full.checkpoint.precision";
 
+    public final static String BINARY_CHECKPOINT = "checkpoint.binary";
+    public final static String FULL_CHECKPOINT_EVERY = "checkpoint.full.every";
+
     private final String loadStateFileName;
     private final String saveStateFileName;
 
@@ -76,6 +79,10 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
     private final boolean useFullPrecision;
 
+    private final boolean useBinaryFormat;
+    private final Map<File, BinaryCheckpoint.Writer> binaryWriters = new HashMap<File, BinaryCheckpoint.Writer>();
+    private final int fullCheckpointEvery;
+
     public BeastCheckpointer() {
         loadStateFileName = System.getProperty(LOAD_STATE_FILE, null);
         saveStateFileName = System.getProperty(SAVE_STATE_FILE, null);
@@ -96,6 +103,9 @@ public class BeastCheckpointer implements StateLoaderSaver {
         useFullPrecision = (System.getProperty(FULL_CHECKPOINT_PRECISION) != null) &&
                 System.getProperty(FULL_CHECKPOINT_PRECISION).equalsIgnoreCase("true");
 
+        useBinaryFormat = Boolean.parseBoolean(System.getProperty(BINARY_CHECKPOINT, "false"));
+        fullCheckpointEvery = Integer.parseInt(System.getProperty(FULL_CHECKPOINT_EVERY, "1"));
+
         Factory.INSTANCE = new Factory() {
             @Override
             public StateLoader getInitialStateLoader() {
@@ -227,6 +237,10 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected boolean writeStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
+        if (useBinaryFormat) {
+            return writeBinaryStateToFile(file, state, lnL, markovChain);
+        }
+
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
         OutputStream fileOut = null;
@@ -372,8 +386,237 @@ public class BeastCheckpointer implements StateLoaderSaver {
         return true;
     }
 
+    /**
+     * Writes the state in the binary checkpoint format. With incremental saving switched on, only the
+     * parameter values that have changed since the last full snapshot are written.
+     */
+    protected boolean writeBinaryStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
+        BinaryCheckpoint.Writer writer = binaryWriters.get(file);
+        if (writer == null) {
+            writer = new BinaryCheckpoint.Writer(fullCheckpointEvery);
+            binaryWriters.put(file, writer);
+        }
+
+        try {
+            writer.write(file, captureSnapshot(state, lnL, markovChain));
+        } catch (IOException ioe) {
+            System.err.println("Unable to write file: " + ioe.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    protected static BinaryCheckpoint.Snapshot captureSnapshot(long state, double lnL, MarkovChain markovChain) {
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+
+        BinaryCheckpoint.Snapshot snapshot = new BinaryCheckpoint.Snapshot();
+        snapshot.rngState = MathUtils.getRandomState();
+        snapshot.state = state;
+        snapshot.lnL = lnL;
+
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            if (!parameter.isImmutable()) {
+                double[] values = new double[parameter.getDimension()];
+                for (int dim = 0; dim < values.length; dim++) {
+                    values[dim] = parameter.getParameterUntransformedValue(dim);
+                }
+                snapshot.parameters.add(new BinaryCheckpoint.ParameterState(parameter.getParameterName(), values));
+            }
+        }
+
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            BinaryCheckpoint.OperatorState operatorState = new BinaryCheckpoint.OperatorState();
+            operatorState.name = operator.getOperatorName();
+            operatorState.acceptCount = operator.getAcceptCount();
+            operatorState.rejectCount = operator.getRejectCount();
+            if (operator instanceof AdaptableMCMCOperator) {
+                operatorState.adaptable = true;
+                operatorState.adaptableParameter = ((AdaptableMCMCOperator)operator).getAdaptableParameter();
+                operatorState.adaptationCount = ((AdaptableMCMCOperator)operator).getAdaptationCount();
+            }
+            snapshot.operators.add(operatorState);
+        }
+
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeParameterModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                TreeModel tree = (TreeModel) model;
+                BinaryCheckpoint.TreeState treeState = new BinaryCheckpoint.TreeState();
+                treeState.name = tree.getModelName();
+
+                int nodeCount = tree.getNodeCount();
+                treeState.nodeHeights = new double[nodeCount];
+                treeState.taxa = new String[tree.getExternalNodeCount()];
+                treeState.parents = new int[nodeCount];
+                treeState.childOrder = new int[nodeCount];
+
+                List<TreeParameterModel> linkedTraits = new ArrayList<TreeParameterModel>();
+                for (TreeParameterModel tpm : traitModels) {
+                    if (tree == tpm.getTreeModel()) {
+                        linkedTraits.add(tpm);
+                    }
+                }
+                treeState.traitValues = new double[linkedTraits.size()][nodeCount];
+
+                for (int i = 0; i < nodeCount; i++) {
+                    NodeRef node = tree.getNode(i);
+                    int number = node.getNumber();
+                    treeState.nodeHeights[number] = tree.getNodeHeight(node);
+                    if (tree.isExternal(node)) {
+                        treeState.taxa[number] = tree.getNodeTaxon(node).getId();
+                    }
+
+                    NodeRef parent = tree.getParent(node);
+                    if (parent != null) {
+                        treeState.parents[number] = parent.getNumber();
+                        if (tree.getChild(parent, 0) == node) {
+                            treeState.childOrder[number] = 0;
+                        } else if (tree.getChild(parent, 1) == node) {
+                            treeState.childOrder[number] = 1;
+                        } else {
+                            throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                        }
+                        for (int j = 0; j < linkedTraits.size(); j++) {
+                            treeState.traitValues[j][number] = linkedTraits.get(j).getNodeValue(tree, node);
+                        }
+                    } else {
+                        treeState.parents[number] = -1;
+                        treeState.childOrder[number] = -1;
+                    }
+                }
+
+                snapshot.trees.add(treeState);
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Restores the chain from a binary checkpoint (full or incremental).
+     */
+    protected long readBinaryStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
+        BinaryCheckpoint.Snapshot snapshot;
+        try {
+            snapshot = BinaryCheckpoint.read(file);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+
+        if (lnL != null) {
+            lnL[0] = snapshot.lnL;
+        }
+
+        Iterator<BinaryCheckpoint.ParameterState> parameterStates = snapshot.parameters.iterator();
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            if (!parameter.isImmutable()) {
+                if (!parameterStates.hasNext()) {
+                    throw new RuntimeException("Checkpoint file has fewer parameters than the model: " + parameter.getParameterName());
+                }
+                BinaryCheckpoint.ParameterState parameterState = parameterStates.next();
+                double[] values = parameterState.values;
+
+                if (values.length != parameter.getDimension()) {
+                    System.err.println("Unable to match state parameter dimension: " + values.length + ", expecting " + parameter.getDimension() + " for parameter: " + parameter.getParameterName());
+                }
+
+                if (parameterState.name.equals("branchRates.categories.rootNodeNumber")) {
+                    parameter.setParameterValue(0, values[0]);
+                } else {
+                    for (int dim = 0; dim < Math.min(values.length, parameter.getDimension()); dim++) {
+                        try {
+                            parameter.setParameterUntransformedValue(dim, values[dim]);
+                        } catch (RuntimeException rte) {
+                            System.err.println(rte);
+                        }
+                    }
+                }
+            }
+        }
+
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+        if (snapshot.operators.size() < operatorSchedule.getOperatorCount()) {
+            throw new RuntimeException("Checkpoint file has fewer operators than the operator schedule");
+        }
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            BinaryCheckpoint.OperatorState operatorState = snapshot.operators.get(i);
+            if (!operatorState.name.equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match " + operator.getOperatorName() + " operator: " + operatorState.name);
+            }
+            operator.setAcceptCount(operatorState.acceptCount);
+            operator.setRejectCount(operatorState.rejectCount);
+            if (operator instanceof AdaptableMCMCOperator) {
+                if (!operatorState.adaptable) {
+                    throw new RuntimeException("Coercable operator missing parameter: " + operatorState.name);
+                }
+                ((AdaptableMCMCOperator)operator).setAdaptableParameter(operatorState.adaptableParameter);
+                ((AdaptableMCMCOperator)operator).setAdaptationCount(operatorState.adaptationCount);
+            }
+        }
+
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeParameterModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+
+        Set<String> expectedTreeModelNames = new HashSet<String>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                expectedTreeModelNames.add(model.getModelName());
+            }
+        }
+
+        for (BinaryCheckpoint.TreeState treeState : snapshot.trees) {
+            for (Model model : Model.CONNECTED_MODEL_SET) {
+                if (model instanceof TreeModel && treeState.name.equals(model.getModelName())) {
+                    TreeModel tree = (TreeModel) model;
+                    tree.beginTreeEdit();
+                    tree.adoptTreeStructure(treeState.parents, treeState.nodeHeights, treeState.childOrder, treeState.taxa);
+                    if (traitModels.size() > 0) {
+                        System.out.println("adopting " + traitModels.size() + " trait models to treeModel " + tree.getId());
+                        tree.adoptTraitData(treeState.parents, traitModels, treeState.traitValues, treeState.taxa);
+                    }
+                    tree.endTreeEdit();
+
+                    expectedTreeModelNames.remove(model.getModelName());
+                }
+            }
+        }
+
+        if (expectedTreeModelNames.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (String notFoundName : expectedTreeModelNames) {
+                sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
+            }
+            throw new RuntimeException("\n" + sb.toString());
+        }
+
+        if (System.getProperty(BeastCheckpointer.CHECKPOINT_SEED) != null) {
+            MathUtils.setSeed(Long.parseLong(System.getProperty(BeastCheckpointer.CHECKPOINT_SEED)));
+        } else if (snapshot.rngState != null) {
+            MathUtils.setRandomState(snapshot.rngState);
+        }
+
+        return snapshot.state;
+    }
+
     protected long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
 
+        if (BinaryCheckpoint.isBinaryCheckpoint(file)) {
+            return readBinaryStateFromFile(file, markovChain, lnL);
+        }
+
         DoubleParser parser = useFullPrecision ? DoubleParser.HEX : DoubleParser.TEXT;
 
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
@@ -549,7 +792,10 @@ public class BeastCheckpointer implements StateLoaderSaver {
             }
 
             line = in.readLine();
-            fields = line.split("\t");
+            // a model without any trees has nothing after the operators
+            if (line != null) {
+                fields = line.split("\t");
+            }
             // Read in all (possibly more than one) trees
             while (fields[0].equals("tree")) {
 
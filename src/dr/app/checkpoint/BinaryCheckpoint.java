@@ -0,0 +1,623 @@
+/*
+ * BinaryCheckpoint.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A versioned binary checkpoint format. All numbers are big-endian so a file can be read straight
+ * from a memory-mapped buffer. Files are written to a temporary file and then atomically renamed
+ * over the target so an interrupted save never leaves a truncated checkpoint behind.
+ *
+ * When incremental saving is used, a full snapshot is written to a separate base file every N saves
+ * and the checkpoint file itself only holds the parameter values that differ from that base (together
+ * with the trees, operators and random number generator state, which are always written in full).
+ * Each base file is named after the sequence number of the save that wrote it, and the previous base
+ * is only deleted once the checkpoint file has been replaced, so a crash at any point leaves a
+ * checkpoint and a matching base on disk.
+ *
+ * Layout:
+ * <pre>
+ * magic "BEASTCKP", int version, byte kind (0 = full, 1 = delta), long sequence
+ * [delta only: long base sequence, string base file name]
+ * long state, double lnL, int rngLength, int[rngLength]
+ * int parameterCount, { string name, int dimension, full: double[dimension] | delta: int n, n * (int index, double value) }
+ * int operatorCount, { string name, long accept, long reject, byte adaptable, [double parameter, long adaptationCount] }
+ * int treeCount, { string name, int nodeCount, double[nodeCount] heights, int tipCount, string[tipCount] taxa,
+ *                  int[nodeCount] parents, byte[nodeCount] child order, int traitCount, double[traitCount][nodeCount] }
+ * </pre>
+ * Strings are stored as an int byte count followed by UTF-8 bytes.
+ *
+ * @author agent
+ */
+public class BinaryCheckpoint {
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "BEASTCKP".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+
+    public static final String BASE_FILE_SUFFIX = ".base";
+
+    /**
+     * The complete state of the chain as stored in a checkpoint.
+     */
+    public static class Snapshot {
+        public long state;
+        public double lnL;
+        public int[] rngState;
+        public final List<ParameterState> parameters = new ArrayList<ParameterState>();
+        public final List<OperatorState> operators = new ArrayList<OperatorState>();
+        public final List<TreeState> trees = new ArrayList<TreeState>();
+
+        /**
+         * Writes the snapshot in the tab-delimited text checkpoint layout.
+         * @param out the stream to write to
+         */
+        public void writeText(PrintStream out) {
+            if (rngState != null) {
+                out.print("rng");
+                for (int value : rngState) {
+                    out.print("\t");
+                    out.print(value);
+                }
+                out.println();
+            }
+
+            out.print("state\t");
+            out.println(state);
+
+            out.print("lnL\t");
+            out.println(lnL);
+
+            for (ParameterState parameter : parameters) {
+                out.print("parameter");
+                out.print("\t");
+                out.print(parameter.name);
+                out.print("\t");
+                out.print(parameter.values.length);
+                for (double value : parameter.values) {
+                    out.print("\t");
+                    out.print(value);
+                }
+                out.print("\n");
+            }
+
+            for (OperatorState operator : operators) {
+                out.print("operator");
+                out.print("\t");
+                out.print(operator.name);
+                out.print("\t");
+                out.print(operator.acceptCount);
+                out.print("\t");
+                out.print(operator.rejectCount);
+                if (operator.adaptable) {
+                    out.print("\t");
+                    out.print(operator.adaptableParameter);
+                    out.print("\t");
+                    out.print(operator.adaptationCount);
+                }
+                out.println();
+            }
+
+            for (TreeState tree : trees) {
+                out.print("tree");
+                out.print("\t");
+                out.println(tree.name);
+
+                out.println("#node height taxon");
+                int nodeCount = tree.nodeHeights.length;
+                out.println(nodeCount);
+                for (int i = 0; i < nodeCount; i++) {
+                    out.print(i);
+                    out.print("\t");
+                    out.print(tree.nodeHeights[i]);
+                    if (i < tree.taxa.length) {
+                        out.print("\t");
+                        out.print(tree.taxa[i]);
+                    }
+                    out.println();
+                }
+
+                out.println("#edges");
+                out.println("#child-node parent-node L/R-child traits");
+
+                out.println(nodeCount);
+                for (int i = 0; i < nodeCount; i++) {
+                    if (tree.parents[i] != -1) {
+                        out.print(i);
+                        out.print("\t");
+                        out.print(tree.parents[i]);
+                        out.print("\t");
+                        out.print(tree.childOrder[i]);
+                        for (double[] trait : tree.traitValues) {
+                            out.print("\t");
+                            out.print(trait[i]);
+                        }
+                        out.println();
+                    }
+                }
+            }
+        }
+    }
+
+    public static class ParameterState {
+        public ParameterState(String name, double[] values) {
+            this.name = name;
+            this.values = values;
+        }
+
+        public final String name;
+        public final double[] values;
+    }
+
+    public static class OperatorState {
+        public String name;
+        public long acceptCount;
+        public long rejectCount;
+        public boolean adaptable;
+        public double adaptableParameter;
+        public long adaptationCount;
+    }
+
+    public static class TreeState {
+        public String name;
+        public double[] nodeHeights;
+        public String[] taxa;
+        public int[] parents;
+        public int[] childOrder;
+        public double[][] traitValues;
+    }
+
+    /**
+     * @param file the file to check
+     * @return true if the file starts with the binary checkpoint magic number
+     */
+    public static boolean isBinaryCheckpoint(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a binary checkpoint as a reader over its text rendering. This allows tools that
+     * parse the text layout to accept either format.
+     */
+    public static BufferedReader openAsText(File file) throws IOException {
+        Snapshot snapshot = read(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false, "UTF-8");
+        snapshot.writeText(out);
+        out.flush();
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes.toByteArray()), StandardCharsets.UTF_8));
+    }
+
+    // **************************************************************
+    // Writing
+    // **************************************************************
+
+    /**
+     * Writes binary checkpoints, keeping track of the last full snapshot so that incremental
+     * checkpoints can be written.
+     */
+    public static class Writer {
+
+        /**
+         * @param fullSnapshotEvery write a full snapshot every this many saves, storing only changed
+         *                          parameter values in between. Values less than 2 always write full snapshots.
+         */
+        public Writer(int fullSnapshotEvery) {
+            this.fullSnapshotEvery = fullSnapshotEvery;
+        }
+
+        public void write(File file, Snapshot snapshot) throws IOException {
+            if (sequence == 0 && file.exists()) {
+                // resuming: carry on from the sequence of the existing checkpoint so that a new base
+                // snapshot never overwrites the one that checkpoint refers to
+                Header header = readHeader(file);
+                if (header != null) {
+                    sequence = header.sequence;
+                    writtenBaseFile = header.baseFile;
+                }
+            }
+            sequence++;
+
+            if (fullSnapshotEvery < 2) {
+                writeFile(file, encode(snapshot, FULL, null, null));
+                deleteWrittenBase(null);
+                return;
+            }
+
+            if (baseValues == null || saveCount % fullSnapshotEvery == 0 || !matchesBase(snapshot)) {
+                // each base snapshot gets its own file, so the current checkpoint keeps a valid base
+                // until it has been replaced by one that refers to the new base
+                baseFile = new File(file.getPath() + BASE_FILE_SUFFIX + "." + sequence);
+                baseSequence = sequence;
+                writeFile(baseFile, encode(snapshot, FULL, null, null));
+                baseValues = new ArrayList<double[]>();
+                for (ParameterState parameter : snapshot.parameters) {
+                    baseValues.add(parameter.values.clone());
+                }
+            }
+            saveCount++;
+
+            writeFile(file, encode(snapshot, DELTA, baseFile, file));
+            deleteWrittenBase(baseFile);
+        }
+
+        /**
+         * Writes the contents of a checkpoint or base file. Each file is written to a temporary
+         * file that is then renamed over the target.
+         */
+        protected void writeFile(File file, byte[] contents) throws IOException {
+            writeAtomically(file, contents);
+        }
+
+        /**
+         * Deletes the base snapshot that the checkpoint file referred to before the last write, once
+         * the checkpoint refers to a different one.
+         */
+        private void deleteWrittenBase(File currentBaseFile) throws IOException {
+            if (writtenBaseFile != null && !writtenBaseFile.equals(currentBaseFile)) {
+                Files.deleteIfExists(writtenBaseFile.toPath());
+            }
+            writtenBaseFile = currentBaseFile;
+        }
+
+        private boolean matchesBase(Snapshot snapshot) {
+            if (baseValues.size() != snapshot.parameters.size()) {
+                return false;
+            }
+            for (int i = 0; i < baseValues.size(); i++) {
+                if (baseValues.get(i).length != snapshot.parameters.get(i).values.length) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] encode(Snapshot snapshot, byte kind, File base, File file) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes));
+
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(kind);
+            out.writeLong(sequence);
+            if (kind == DELTA) {
+                out.writeLong(baseSequence);
+                writeString(out, relativeName(base, file));
+            }
+
+            out.writeLong(snapshot.state);
+            out.writeDouble(snapshot.lnL);
+            int[] rng = snapshot.rngState != null ? snapshot.rngState : new int[0];
+            out.writeInt(rng.length);
+            for (int value : rng) {
+                out.writeInt(value);
+            }
+
+            out.writeInt(snapshot.parameters.size());
+            for (int i = 0; i < snapshot.parameters.size(); i++) {
+                ParameterState parameter = snapshot.parameters.get(i);
+                writeString(out, parameter.name);
+                out.writeInt(parameter.values.length);
+                if (kind == FULL) {
+                    for (double value : parameter.values) {
+                        out.writeDouble(value);
+                    }
+                } else {
+                    double[] baseValue = baseValues.get(i);
+                    int changed = 0;
+                    for (int j = 0; j < baseValue.length; j++) {
+                        if (Double.doubleToRawLongBits(baseValue[j]) != Double.doubleToRawLongBits(parameter.values[j])) {
+                            changed++;
+                        }
+                    }
+                    out.writeInt(changed);
+                    for (int j = 0; j < baseValue.length; j++) {
+                        if (Double.doubleToRawLongBits(baseValue[j]) != Double.doubleToRawLongBits(parameter.values[j])) {
+                            out.writeInt(j);
+                            out.writeDouble(parameter.values[j]);
+                        }
+                    }
+                }
+            }
+
+            out.writeInt(snapshot.operators.size());
+            for (OperatorState operator : snapshot.operators) {
+                writeString(out, operator.name);
+                out.writeLong(operator.acceptCount);
+                out.writeLong(operator.rejectCount);
+                out.writeBoolean(operator.adaptable);
+                if (operator.adaptable) {
+                    out.writeDouble(operator.adaptableParameter);
+                    out.writeLong(operator.adaptationCount);
+                }
+            }
+
+            out.writeInt(snapshot.trees.size());
+            for (TreeState tree : snapshot.trees) {
+                writeString(out, tree.name);
+                int nodeCount = tree.nodeHeights.length;
+                out.writeInt(nodeCount);
+                for (double height : tree.nodeHeights) {
+                    out.writeDouble(height);
+                }
+                out.writeInt(tree.taxa.length);
+                for (String taxon : tree.taxa) {
+                    writeString(out, taxon);
+                }
+                for (int parent : tree.parents) {
+                    out.writeInt(parent);
+                }
+                for (int order : tree.childOrder) {
+                    out.writeByte(order);
+                }
+                out.writeInt(tree.traitValues.length);
+                for (double[] trait : tree.traitValues) {
+                    for (int i = 0; i < nodeCount; i++) {
+                        out.writeDouble(trait[i]);
+                    }
+                }
+            }
+
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        private final int fullSnapshotEvery;
+
+        private long sequence = 0;
+        private int saveCount = 0;
+
+        private File baseFile = null;
+        private File writtenBaseFile = null;
+        private long baseSequence = -1;
+        private List<double[]> baseValues = null;
+    }
+
+    private static String relativeName(File base, File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && parent.equals(base.getAbsoluteFile().getParentFile())) {
+            return base.getName();
+        }
+        return base.getAbsolutePath();
+    }
+
+    private static void writeAtomically(File file, byte[] contents) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // **************************************************************
+    // Reading
+    // **************************************************************
+
+    /**
+     * Reads a binary checkpoint, applying it to its base snapshot if it is incremental.
+     * @param file the checkpoint file
+     * @return the complete snapshot
+     */
+    public static Snapshot read(File file) throws IOException {
+        ByteBuffer buffer = map(file);
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary checkpoint file: " + file);
+        }
+        int version = buffer.getInt();
+        if (version > VERSION) {
+            throw new IOException("Binary checkpoint version " + version + " is newer than supported version " + VERSION);
+        }
+        byte kind = buffer.get();
+        buffer.getLong(); // sequence
+
+        Snapshot base = null;
+        if (kind == DELTA) {
+            long baseSequence = buffer.getLong();
+            File baseFile = resolveBaseFile(file, readString(buffer));
+            ByteBuffer baseBuffer = map(baseFile);
+            baseBuffer.position(MAGIC.length + 4 + 1);
+            if (baseBuffer.getLong() != baseSequence) {
+                throw new IOException("Base snapshot, " + baseFile + ", does not match incremental checkpoint " + file);
+            }
+            base = readBody(baseBuffer, FULL, null);
+        } else if (kind != FULL) {
+            throw new IOException("Unknown binary checkpoint kind: " + kind);
+        }
+
+        return readBody(buffer, kind, base);
+    }
+
+    private static class Header {
+        long sequence;
+        File baseFile;
+    }
+
+    /**
+     * @return the sequence number and base file of a binary checkpoint, or null if the file is not one
+     */
+    private static Header readHeader(File file) throws IOException {
+        if (!isBinaryCheckpoint(file)) {
+            return null;
+        }
+        ByteBuffer buffer = map(file);
+        buffer.position(MAGIC.length + 4);
+        byte kind = buffer.get();
+        Header header = new Header();
+        header.sequence = buffer.getLong();
+        if (kind == DELTA) {
+            buffer.getLong(); // base sequence
+            header.baseFile = resolveBaseFile(file, readString(buffer));
+        }
+        return header;
+    }
+
+    private static File resolveBaseFile(File file, String baseName) {
+        File baseFile = new File(baseName);
+        if (!baseFile.isAbsolute()) {
+            baseFile = new File(file.getAbsoluteFile().getParentFile(), baseName);
+        }
+        return baseFile;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return buffer;
+        }
+    }
+
+    private static Snapshot readBody(ByteBuffer buffer, byte kind, Snapshot base) throws IOException {
+        Snapshot snapshot = new Snapshot();
+
+        snapshot.state = buffer.getLong();
+        snapshot.lnL = buffer.getDouble();
+        int rngLength = buffer.getInt();
+        if (rngLength > 0) {
+            snapshot.rngState = new int[rngLength];
+            for (int i = 0; i < rngLength; i++) {
+                snapshot.rngState[i] = buffer.getInt();
+            }
+        }
+
+        int parameterCount = buffer.getInt();
+        if (base != null && base.parameters.size() != parameterCount) {
+            throw new IOException("Incremental checkpoint does not match the parameters of its base snapshot");
+        }
+        for (int i = 0; i < parameterCount; i++) {
+            String name = readString(buffer);
+            int dimension = buffer.getInt();
+            double[] values;
+            if (kind == FULL) {
+                values = new double[dimension];
+                buffer.asDoubleBuffer().get(values);
+                buffer.position(buffer.position() + 8 * dimension);
+            } else {
+                values = base.parameters.get(i).values;
+                int changed = buffer.getInt();
+                for (int j = 0; j < changed; j++) {
+                    int index = buffer.getInt();
+                    values[index] = buffer.getDouble();
+                }
+            }
+            snapshot.parameters.add(new ParameterState(name, values));
+        }
+
+        int operatorCount = buffer.getInt();
+        for (int i = 0; i < operatorCount; i++) {
+            OperatorState operator = new OperatorState();
+            operator.name = readString(buffer);
+            operator.acceptCount = buffer.getLong();
+            operator.rejectCount = buffer.getLong();
+            operator.adaptable = buffer.get() != 0;
+            if (operator.adaptable) {
+                operator.adaptableParameter = buffer.getDouble();
+                operator.adaptationCount = buffer.getLong();
+            }
+            snapshot.operators.add(operator);
+        }
+
+        int treeCount = buffer.getInt();
+        for (int t = 0; t < treeCount; t++) {
+            TreeState tree = new TreeState();
+            tree.name = readString(buffer);
+            int nodeCount = buffer.getInt();
+            tree.nodeHeights = new double[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                tree.nodeHeights[i] = buffer.getDouble();
+            }
+            tree.taxa = new String[buffer.getInt()];
+            for (int i = 0; i < tree.taxa.length; i++) {
+                tree.taxa[i] = readString(buffer);
+            }
+            tree.parents = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                tree.parents[i] = buffer.getInt();
+            }
+            tree.childOrder = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                tree.childOrder[i] = buffer.get();
+            }
+            tree.traitValues = new double[buffer.getInt()][nodeCount];
+            for (double[] trait : tree.traitValues) {
+                for (int i = 0; i < nodeCount; i++) {
+                    trait[i] = buffer.getDouble();
+                }
+            }
+            snapshot.trees.add(tree);
+        }
+
+        return snapshot;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -26,6 +26,7 @@
 package dr.app.realtime;
 
 import dr.app.checkpoint.BeastCheckpointer;
+import dr.app.checkpoint.BinaryCheckpoint;
 import dr.evolution.tree.BranchRates;
 import dr.evolution.tree.NodeRef;
 import dr.evomodel.branchratemodel.DiscretizedBranchRates;
@@ -86,8 +87,9 @@ public class CheckPointModifier extends BeastCheckpointer {
         this.traitModels = new ArrayList<TreeParameterModel>();
 
         try {
-            FileReader fileIn = new FileReader(file);
-            BufferedReader in = new BufferedReader(fileIn);
+            // binary checkpoints are read through their text rendering so they can be matched by name below
+            BufferedReader in = BinaryCheckpoint.isBinaryCheckpoint(file) ?
+                    BinaryCheckpoint.openAsText(file) : new BufferedReader(new FileReader(file));
 
             int[] rngState = null;
 
@@ -406,7 +408,6 @@ public class CheckPointModifier extends BeastCheckpointer {
             }
 
             in.close();
-            fileIn.close();
 
         } catch (IOException ioe) {
             throw new RuntimeException("Unable to read file: " + ioe.getMessage());
@@ -237,6 +237,7 @@ public class CheckPointUpdaterApp {
                         new Arguments.StringOption("load_state", "FILENAME", "Specify a filename to load a state from"),
                         new Arguments.StringOption("output_file", "FILENAME", "Specify a filename for the output file"),
                         new Arguments.StringOption("update_choice", "UPDATECHOICE", "Specify a function by which to update the tree"),
+                        new Arguments.Option("binary", "Write the output file in the binary checkpoint format"),
                         new Arguments.Option("help", "Print this information and stop")
                 });
 
@@ -302,6 +303,10 @@ public class CheckPointUpdaterApp {
             throw new RuntimeException("No output file specified.");
         }
 
+        if (arguments.hasOption("binary")) {
+            System.setProperty(BeastCheckpointer.BINARY_CHECKPOINT, "true");
+        }
+
         new CheckPointUpdaterApp(inputFile, debugStateFile, chosen);
 
         System.exit(0);
@@ -28,7 +28,7 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
-import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelNexusTreeImporter;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
@@ -129,7 +129,7 @@ public class LogCombiner {
             if (treeFiles) {
 
                 if (processTrees) { // then we need to read each tree and write it.
-                    TreeImporter importer = new NexusImporter(new FileReader(inputFile), stripAnnotations);
+                    TreeImporter importer = new ParallelNexusTreeImporter(inputFile, stripAnnotations);
                     try {
                         while (importer.hasTree()) {
                             Tree tree = importer.importNextTree();
@@ -29,7 +29,7 @@ import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
-import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelNexusTreeImporter;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
@@ -1508,7 +1508,7 @@ public class TimeSlicer {
         String line1 = reader1.readLine();
         TreeImporter importer1;
         if (line1.toUpperCase().startsWith("#NEXUS")) {
-            importer1 = new NexusImporter(new FileReader(treeFileName));
+            importer1 = new ParallelNexusTreeImporter(new File(treeFileName), false);
         } else {
             importer1 = new NewickImporter(new FileReader(treeFileName));
         }
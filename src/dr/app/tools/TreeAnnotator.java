@@ -30,6 +30,7 @@ import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelNexusTreeImporter;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.*;
 import dr.evolution.util.Taxon;
@@ -41,7 +42,6 @@ import dr.inference.trace.TraceCorrelation;
 import dr.inference.trace.TraceType;
 import dr.stats.DiscreteStatistics;
 import dr.util.HeapSort;
-import dr.util.Pair;
 import dr.util.Version;
 import jam.console.ConsoleApplication;
 import org.rosuda.JRI.REXP;
@@ -53,6 +53,7 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.util.*;
 
 /**
@@ -137,7 +138,29 @@ public class TreeAnnotator {
                          String inputFileName,
                          String outputFileName
     ) throws IOException {
+        this(burninTrees, burninStates, heightsOption, posteriorLimit, hpd2D, computeESS, targetOption,
+                targetTreeFileName, inputFileName, outputFileName, 1);
+    }
+
+    /**
+     * As above but reading the tree file using a number of threads to parse the trees.
+     * @param threadCount the number of threads used to parse trees (1 to read on the calling thread)
+     * @throws IOException
+     */
+    public TreeAnnotator(final int burninTrees,
+                         final long burninStates,
+                         HeightsSummary heightsOption,
+                         double posteriorLimit,
+                         double[] hpd2D,
+                         boolean computeESS,
+                         Target targetOption,
+                         String targetTreeFileName,
+                         String inputFileName,
+                         String outputFileName,
+                         int threadCount
+    ) throws IOException {
 
+        this.threadCount = threadCount;
         this.posteriorLimit = posteriorLimit;
         this.hpd2D = hpd2D;
         this.computeESS = computeESS;
@@ -162,7 +185,7 @@ public class TreeAnnotator {
         if (targetOption != Target.USER_TARGET_TREE) {
             cladeSystem = new CladeSystem();
             FileReader fileReader = new FileReader(inputFileName);
-            TreeImporter importer = new NexusImporter(fileReader, true);
+            TreeImporter importer = createImporter(fileReader, true);
             try {
                 totalTrees = 0;
                 while (importer.hasTree()) {
@@ -229,7 +252,7 @@ public class TreeAnnotator {
                 progressStream.println("Ignoring first " + burninStates + " states (" + burnin + " trees).");
             }
 
-            progressStream.println("Total unique clades: " + cladeSystem.getCladeMap().keySet().size());
+            progressStream.println("Total unique clades: " + cladeSystem.getCladeCount());
             progressStream.println();
         }
 
@@ -284,7 +307,7 @@ public class TreeAnnotator {
         if (stepSize < 1) stepSize = 1;
 
         FileReader fileReader = new FileReader(inputFileName);
-        NexusImporter importer = new NexusImporter(fileReader);
+        TreeImporter importer = createImporter(fileReader, false);
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -326,7 +349,7 @@ public class TreeAnnotator {
         progressStream.println("Annotating target tree...");
 
         try {
-            cladeSystem.annotateTree(targetTree, targetTree.getRoot(), null, heightsOption);
+            cladeSystem.annotateTree(targetTree, heightsOption);
 
             if( heightsOption == HeightsSummary.CA_HEIGHTS ) {
                 setTreeHeightsByCA(targetTree, inputFileName, burnin);
@@ -351,6 +374,17 @@ public class TreeAnnotator {
 
     }
 
+    /**
+     * Trees are parsed on several threads if requested but are always returned (and so summarized)
+     * in the order they are in the file so the results don't depend on the number of threads.
+     */
+    private TreeImporter createImporter(Reader reader, boolean ignoreMetaComments) {
+        if (threadCount > 1) {
+            return new ParallelNexusTreeImporter(reader, ignoreMetaComments, threadCount);
+        }
+        return new NexusImporter(reader, ignoreMetaComments);
+    }
+
     private void setupAttributes(Tree tree) {
         for (int i = 0; i < tree.getNodeCount(); i++) {
             NodeRef node = tree.getNode(i);
@@ -384,7 +418,7 @@ public class TreeAnnotator {
 
         int counter = 0;
         int bestTreeNumber = 0;
-        TreeImporter importer = new NexusImporter(new FileReader(inputFileName), true);
+        TreeImporter importer = createImporter(new FileReader(inputFileName), true);
         try {
             while (importer.hasTree()) {
                 Tree tree = importer.importNextTree();
@@ -442,22 +476,16 @@ public class TreeAnnotator {
         if (clade.size > 1) {
             double bestLogCredibility = Double.NEGATIVE_INFINITY;
 
-            for (Pair<BitSet, BitSet> subClade : clade.subClades) {
+            for (CladeSystem.Clade[] subClade : clade.subClades) {
 
-                CladeSystem.Clade left = cladeSystem.getCladeMap().get(subClade.fst);
-                if (left == null) {
-                    throw new IllegalArgumentException("no clade found");
-                }
+                CladeSystem.Clade left = subClade[0];
 
                 double leftLogCredibility = credibilityCache.getOrDefault(left, Double.NaN);
                 if (Double.isNaN(leftLogCredibility)) {
                     leftLogCredibility = findMMCCTree(cladeSystem, left);
                     credibilityCache.put(left, leftLogCredibility);
                 }
-                CladeSystem.Clade right = cladeSystem.getCladeMap().get(subClade.snd);
-                if (right == null) {
-                    throw new IllegalArgumentException("no clade found");
-                }
+                CladeSystem.Clade right = subClade[1];
                 double rightLogCredibility = credibilityCache.getOrDefault(right, Double.NaN);
                 if (Double.isNaN(rightLogCredibility)) {
                     rightLogCredibility = findMMCCTree(cladeSystem, right);
@@ -491,7 +519,7 @@ public class TreeAnnotator {
     }
 
     private double scoreTree(Tree tree, CladeSystem cladeSystem) {
-        return cladeSystem.getLogCladeCredibility(tree, tree.getRoot(), null);
+        return cladeSystem.getLogCladeCredibility(tree);
     }
 
     private class CladeSystem {
@@ -516,161 +544,286 @@ public class TreeAnnotator {
          */
         public void add(Tree tree, boolean includeTips) {
             if (taxonList == null) {
-                taxonList = tree;
+                setTaxonList(tree);
             }
 
-            // Recurse over the tree and add all the clades (or increment their
+            // Visit the nodes in post-order and add all the clades (or increment their
             // frequency if already present). The root clade is added too (for
             // annotation purposes).
-            BitSet rootBits = addClades(tree, tree.getRoot(), includeTips);
-            rootClade = cladeMap.get(rootBits);
+            mapClades(tree, true, includeTips);
+            rootClade = nodeClades[tree.getRoot().getNumber()];
         }
 
         public Clade getRootClade() {
             return rootClade;
         }
 
-        private BitSet addClades(Tree tree, NodeRef node, boolean includeTips) {
-
-            BitSet bits = new BitSet();
+        private void setTaxonList(TaxonList taxonList) {
+            this.taxonList = taxonList;
+            taxonIndexMap = new HashMap<String, Integer>();
+            for (int i = taxonList.getTaxonCount() - 1; i >= 0; i--) {
+                // in reverse so the first of any duplicate ids is kept, as getTaxonIndex() would
+                taxonIndexMap.put(taxonList.getTaxon(i).getId(), i);
+            }
+            tipClades = new Clade[taxonList.getTaxonCount()];
+        }
 
-            if (tree.isExternal(node)) {
+        private int getTaxonIndex(Tree tree, NodeRef node) {
+            Integer index = taxonIndexMap.get(tree.getNodeTaxon(node).getId());
+            return (index != null ? index : -1);
+        }
 
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits.set(index);
+        /**
+         * Computes the fingerprint of the clade below every node of the tree and finds the
+         * corresponding clade (creating it and counting it if add is true). The results are left
+         * in nodeClades, indexed by node number.
+         */
+        private void mapClades(Tree tree, boolean add, boolean includeTips) {
+            int nodeCount = tree.getNodeCount();
+            if (postOrder == null || postOrder.length != nodeCount) {
+                postOrder = new int[nodeCount];
+                nodeClades = new Clade[nodeCount];
+                nodeHash1 = new long[nodeCount];
+                nodeHash2 = new long[nodeCount];
+                nodeSizes = new int[nodeCount];
+            }
+            getPostOrder(tree, postOrder);
 
-                if (includeTips) {
-                    Clade clade = addClade(bits);
-                    clade.taxon = tree.getNodeTaxon(node);
-                }
+            for (int nodeNumber : postOrder) {
+                NodeRef node = tree.getNode(nodeNumber);
+                Clade clade;
 
-            } else {
+                if (tree.isExternal(node)) {
 
-                List<BitSet> subClades = new ArrayList<BitSet>();
+                    int index = getTaxonIndex(tree, node);
+                    if (index < 0) {
+                        throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", not found in target tree");
+                    }
+                    nodeHash1[nodeNumber] = taxonHash(index, 1);
+                    nodeHash2[nodeNumber] = taxonHash(index, 2);
+                    nodeSizes[nodeNumber] = 1;
+
+                    clade = tipClades[index];
+                    if (add) {
+                        if (clade == null) {
+                            clade = createClade(new CladeKey(nodeHash1[nodeNumber], nodeHash2[nodeNumber], 1), 1);
+                            clade.taxon = tree.getNodeTaxon(node);
+                            clade.taxonIndex = index;
+                            clade.firstTaxonIndex = index;
+                            tipClades[index] = clade;
+                        }
+                        if (includeTips) {
+                            clade.setCount(clade.getCount() + 1);
+                        }
+                    }
 
-                for (int i = 0; i < tree.getChildCount(node); i++) {
+                } else {
 
-                    NodeRef node1 = tree.getChild(node, i);
-                    BitSet subClade = addClades(tree, node1, includeTips);
-                    bits.or(subClade);
-                    subClades.add(subClade);
-                }
+                    if (add && tree.getChildCount(node) != 2) {
+                        throw new IllegalArgumentException("TreeAnnotator requires strictly bifurcating trees");
+                    }
 
-                Clade clade = addClade(bits);
+                    long hash1 = 0;
+                    long hash2 = 0;
+                    int size = 0;
+                    for (int i = 0; i < tree.getChildCount(node); i++) {
+                        int child = tree.getChild(node, i).getNumber();
+                        hash1 += nodeHash1[child];
+                        hash2 += nodeHash2[child];
+                        size += nodeSizes[child];
+                    }
+                    nodeHash1[nodeNumber] = hash1;
+                    nodeHash2[nodeNumber] = hash2;
+                    nodeSizes[nodeNumber] = size;
+
+                    Long pairKey = getPairKey(tree, node);
+                    clade = (pairKey != null ? pairMap.get(pairKey) : null);
+                    if (clade == null) {
+                        CladeKey key = new CladeKey(hash1, hash2, size);
+                        clade = findClade(tree, node, key);
+
+                        if (add) {
+                            if (clade == null) {
+                                clade = createClade(key, size);
+                                clade.firstTaxonIndex = Math.min(
+                                        nodeClades[tree.getChild(node, 0).getNumber()].firstTaxonIndex,
+                                        nodeClades[tree.getChild(node, 1).getNumber()].firstTaxonIndex);
+                                if (cladeMap.containsKey(key)) {
+                                    // a different set of taxa with the same fingerprint
+                                    collisionMap.put(getTaxa(tree, node), clade);
+                                } else {
+                                    cladeMap.put(key, clade);
+                                }
+                            }
+                            // this pair of subclades has not been seen before
+                            clade.addSubclades(nodeClades[tree.getChild(node, 0).getNumber()],
+                                    nodeClades[tree.getChild(node, 1).getNumber()]);
+                            pairMap.put(pairKey, clade);
+                        }
+                    }
 
-                if (subClades.size() != 2) {
-                    throw new IllegalArgumentException("TreeAnnotator requires strictly bifurcating trees");
+                    if (add) {
+                        clade.setCount(clade.getCount() + 1);
+                    }
                 }
-                clade.addSubclades(subClades.get(0), subClades.get(1));
-            }
 
-            return bits;
+                nodeClades[nodeNumber] = clade;
+            }
         }
 
-        private Clade addClade(BitSet bits) {
-            Clade clade = cladeMap.get(bits);
-            if (clade == null) {
-                clade = new Clade(bits);
-                cladeMap.put(bits, clade);
+        /**
+         * Find the clade for an internal node by its fingerprint, checking the set of taxa against
+         * the clade found.
+         */
+        private Clade findClade(Tree tree, NodeRef node, CladeKey key) {
+            Clade clade = cladeMap.get(key);
+            if (clade != null) {
+                BitSet bits = getTaxa(tree, node);
+                if (!bits.equals(getTaxa(clade))) {
+                    clade = collisionMap.get(bits);
+                }
             }
-            clade.setCount(clade.getCount() + 1);
+            return clade;
+        }
 
+        private Clade createClade(CladeKey key, int size) {
+            Clade clade = new Clade(key, size, clades.size());
+            clades.add(clade);
             return clade;
         }
 
-        public void collectAttributes(Tree tree) {
-            collectAttributes(tree, tree.getRoot());
+        /**
+         * A pair of subclades identifies a clade exactly so this is tried before the fingerprint.
+         * Returns null if either child is not a known clade.
+         */
+        private Long getPairKey(Tree tree, NodeRef node) {
+            if (tree.getChildCount(node) != 2) {
+                return null;
+            }
+            Clade left = nodeClades[tree.getChild(node, 0).getNumber()];
+            Clade right = nodeClades[tree.getChild(node, 1).getNumber()];
+            if (left == null || right == null) {
+                return null;
+            }
+            long a = Math.min(left.number, right.number);
+            long b = Math.max(left.number, right.number);
+            return (a << 32) | b;
+        }
+
+        private void getPostOrder(Tree tree, int[] order) {
+            // iterative so that very unbalanced trees don't overflow the stack
+            int[] stack = new int[tree.getNodeCount()];
+            int[] childIndex = new int[tree.getNodeCount()];
+            int top = 0;
+            int k = 0;
+            stack[top] = tree.getRoot().getNumber();
+            childIndex[top] = 0;
+            while (top >= 0) {
+                NodeRef node = tree.getNode(stack[top]);
+                if (childIndex[top] < tree.getChildCount(node)) {
+                    NodeRef child = tree.getChild(node, childIndex[top]);
+                    childIndex[top]++;
+                    top++;
+                    stack[top] = child.getNumber();
+                    childIndex[top] = 0;
+                } else {
+                    order[k] = stack[top];
+                    k++;
+                    top--;
+                }
+            }
         }
 
-        private BitSet collectAttributes(Tree tree, NodeRef node) {
+        private long taxonHash(int index, int which) {
+            // splitmix64 finalizer
+            long z = (long) index * 2 + which;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
 
+        private BitSet getTaxa(Tree tree, NodeRef node) {
             BitSet bits = new BitSet();
+            addTaxa(tree, node, bits);
+            return bits;
+        }
 
+        private void addTaxa(Tree tree, NodeRef node, BitSet bits) {
             if (tree.isExternal(node)) {
-
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                if (index < 0) {
-                    throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", not found in target tree");
-                }
-                bits.set(index);
-
+                bits.set(getTaxonIndex(tree, node));
             } else {
-
                 for (int i = 0; i < tree.getChildCount(node); i++) {
-
-                    NodeRef node1 = tree.getChild(node, i);
-
-                    bits.or(collectAttributes(tree, node1));
+                    addTaxa(tree, tree.getChild(node, i), bits);
                 }
             }
+        }
 
-            collectAttributesForClade(bits, tree, node);
-
+        private BitSet getTaxa(Clade clade) {
+            BitSet bits = new BitSet();
+            addTaxa(clade, bits);
             return bits;
         }
 
-        private void collectAttributesForClade(BitSet bits, Tree tree, NodeRef node) {
-            Clade clade = cladeMap.get(bits);
-            if (clade != null) {
+        private void addTaxa(Clade clade, BitSet bits) {
+            if (clade.size == 1) {
+                bits.set(clade.taxonIndex);
+            } else {
+                // any resolution of the clade holds the same taxa
+                Clade[] subClade = clade.subClades.get(0);
+                addTaxa(subClade[0], bits);
+                addTaxa(subClade[1], bits);
+            }
+        }
+
+        public void collectAttributes(Tree tree) {
+            mapClades(tree, false, true);
 
-                if (clade.attributeValues == null) {
-                    clade.attributeValues = new ArrayList<Object[]>();
+            for (int nodeNumber : postOrder) {
+                Clade clade = nodeClades[nodeNumber];
+                if (clade != null) {
+                    collectAttributesForClade(clade, tree, tree.getNode(nodeNumber));
                 }
+            }
+        }
 
-                int i = 0;
-                Object[] values = new Object[attributeNames.size()];
-                for (String attributeName : attributeNames) {
-                    boolean processed = false;
-
-                    if (!processed) {
-                        Object value;
-                        if (attributeName.equals("height")) {
-                            value = tree.getNodeHeight(node);
-                        } else if (attributeName.equals("length")) {
-                            value = tree.getBranchLength(node);
-// AR - we deal with this once everything                             
-//                        } else if (attributeName.equals(location1Attribute)) {
-//                            // If this is one of the two specified bivariate location names then
-//                            // merge this and the other one into a single array.
-//                            Object value1 = tree.getNodeAttribute(node, attributeName);
-//                            Object value2 = tree.getNodeAttribute(node, location2Attribute);
-//
-//                            value = new Object[]{value1, value2};
-//                        } else if (attributeName.equals(location2Attribute)) {
-//                            // do nothing - already dealt with this...
-//                            value = null;
-                        } else {
-                            value = tree.getNodeAttribute(node, attributeName);
-                            if (value instanceof String && ((String) value).startsWith("\"")) {
-                                value = ((String) value).replaceAll("\"", "");
-                            }
-                        }
+        private void collectAttributesForClade(Clade clade, Tree tree, NodeRef node) {
 
-                        //if (value == null) {
-                        //    progressStream.println("attribute " + attributeNames[i] + " is null.");
-                        //}
+            if (clade.attributeSummaries == null) {
+                clade.attributeSummaries = new AttributeSummary[attributeNames.size()];
+            }
 
-                        values[i] = value;
+            int i = 0;
+            for (String attributeName : attributeNames) {
+                Object value;
+                if (attributeName.equals("height")) {
+                    value = tree.getNodeHeight(node);
+                } else if (attributeName.equals("length")) {
+                    value = tree.getBranchLength(node);
+                } else {
+                    value = tree.getNodeAttribute(node, attributeName);
+                    if (value instanceof String && ((String) value).startsWith("\"")) {
+                        value = ((String) value).replaceAll("\"", "");
                     }
-                    i++;
                 }
-                clade.attributeValues.add(values);
 
-                //progressStream.println(clade + " " + clade.getValuesSize());
-                clade.setCount(clade.getCount() + 1);
+                if (clade.attributeSummaries[i] == null) {
+                    clade.attributeSummaries[i] = new AttributeSummary(value);
+                }
+                clade.attributeSummaries[i].add(value);
+
+                i++;
             }
-        }
 
-        public Map<BitSet, Clade> getCladeMap() {
-            return cladeMap;
+            //progressStream.println(clade + " " + clade.getValuesSize());
+            clade.setCount(clade.getCount() + 1);
         }
 
-        public Clade getClade(BitSet bitSet) {
-            return cladeMap.get(bitSet);
+        public int getCladeCount() {
+            return clades.size();
         }
 
         public void calculateCladeCredibilities(int totalTreesUsed) {
-            for (Clade clade : cladeMap.values()) {
+            for (Clade clade : clades) {
 
                 if (clade.getCount() > totalTreesUsed) {
 
@@ -682,99 +835,44 @@ public class TreeAnnotator {
             }
         }
 
-//        public double getSumCladeCredibility(Tree tree, NodeRef node, BitSet bits) {
-//
-//            double sum = 0.0;
-//
-//            if (tree.isExternal(node)) {
-//
-//                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-//                bits.set(index);
-//            } else {
-//
-//                BitSet bits2 = new BitSet();
-//                for (int i = 0; i < tree.getChildCount(node); i++) {
-//
-//                    NodeRef node1 = tree.getChild(node, i);
-//
-//                    sum += getSumCladeCredibility(tree, node1, bits2);
-//                }
-//
-//                sum += getCladeCredibility(bits2);
-//
-//                if (bits != null) {
-//                    bits.or(bits2);
-//                }
-//            }
-//
-//            return sum;
-//        }
-
-        public double getLogCladeCredibility(Tree tree, NodeRef node, BitSet bits) {
-
-            double logCladeCredibility = 0.0;
-
-            if (tree.isExternal(node)) {
-
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits.set(index);
-            } else {
+        public double getLogCladeCredibility(Tree tree) {
 
-                BitSet bits2 = new BitSet();
-                for (int i = 0; i < tree.getChildCount(node); i++) {
+            mapClades(tree, false, false);
 
-                    NodeRef node1 = tree.getChild(node, i);
+            // summed by subtree so the total is exactly that of a recursive sum
+            double[] subtreeCredibility = new double[tree.getNodeCount()];
 
-                    logCladeCredibility += getLogCladeCredibility(tree, node1, bits2);
-                }
-
-                logCladeCredibility += Math.log(getCladeCredibility(bits2));
-
-                if (bits != null) {
-                    bits.or(bits2);
+            for (int nodeNumber : postOrder) {
+                NodeRef node = tree.getNode(nodeNumber);
+                if (!tree.isExternal(node)) {
+                    double logCladeCredibility = 0.0;
+                    for (int i = 0; i < tree.getChildCount(node); i++) {
+                        logCladeCredibility += subtreeCredibility[tree.getChild(node, i).getNumber()];
+                    }
+                    Clade clade = nodeClades[nodeNumber];
+                    logCladeCredibility += Math.log(clade != null ? clade.getCredibility() : 0.0);
+                    subtreeCredibility[nodeNumber] = logCladeCredibility;
                 }
             }
 
-            return logCladeCredibility;
+            return subtreeCredibility[tree.getRoot().getNumber()];
         }
 
-        private double getCladeCredibility(BitSet bits) {
-            Clade clade = cladeMap.get(bits);
-            if (clade == null) {
-                return 0.0;
-            }
-            return clade.getCredibility();
-        }
+        public void annotateTree(MutableTree tree, HeightsSummary heightsOption) {
 
-        public void annotateTree(MutableTree tree, NodeRef node, BitSet bits, HeightsSummary heightsOption) {
+            mapClades(tree, false, true);
 
-            BitSet bits2 = new BitSet();
-
-            if (tree.isExternal(node)) {
-
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits2.set(index);
-
-                annotateNode(tree, node, bits2, true, heightsOption);
-            } else {
+            // copy the order as annotating may be reentrant through plugins
+            int[] order = postOrder.clone();
+            Clade[] cladesForNodes = nodeClades.clone();
 
-                for (int i = 0; i < tree.getChildCount(node); i++) {
-
-                    NodeRef node1 = tree.getChild(node, i);
-
-                    annotateTree(tree, node1, bits2, heightsOption);
-                }
-
-                annotateNode(tree, node, bits2, false, heightsOption);
-            }
-
-            if (bits != null) {
-                bits.or(bits2);
+            for (int nodeNumber : order) {
+                NodeRef node = tree.getNode(nodeNumber);
+                annotateNode(tree, node, cladesForNodes[nodeNumber], tree.isExternal(node), heightsOption);
             }
         }
 
-        private void annotateNode(MutableTree tree, NodeRef node, BitSet bits, boolean isTip, HeightsSummary heightsOption) {
-            Clade clade = cladeMap.get(bits);
+        private void annotateNode(MutableTree tree, NodeRef node, Clade clade, boolean isTip, HeightsSummary heightsOption) {
             assert clade != null : "Clade missing?";
 
             boolean filter = false;
@@ -789,36 +887,23 @@ public class TreeAnnotator {
             int i = 0;
             for (String attributeName : attributeNames) {
 
-                if (clade.attributeValues != null && clade.attributeValues.size() > 0) {
-                    double[] values = new double[clade.attributeValues.size()];
-
-                    HashMap<Object, Integer> hashMap = new HashMap<Object, Integer>();
+                if (clade.attributeSummaries != null && clade.attributeSummaries[i] != null) {
+                    AttributeSummary summary = clade.attributeSummaries[i];
 
-                    Object[] v = clade.attributeValues.get(0);
-                    if (v[i] != null) {
+                    if (summary.kind != AttributeSummary.Kind.NONE) {
 
                         final boolean isHeight = attributeName.equals("height");
-                        boolean isBoolean = v[i] instanceof Boolean;
+                        boolean isBoolean = summary.kind == AttributeSummary.Kind.BOOLEAN;
 
-                        boolean isDiscrete = v[i] instanceof String;
+                        boolean isDiscrete = summary.kind == AttributeSummary.Kind.DISCRETE;
 
-                        if (forceIntegerToDiscrete && v[i] instanceof Integer) isDiscrete = true;
+                        boolean isDoubleArray = summary.kind == AttributeSummary.Kind.DOUBLE_ARRAY;
 
-                        double minValue = Double.MAX_VALUE;
-                        double maxValue = -Double.MAX_VALUE;
+                        double[] values = summary.getValues();
+                        HashMap<Object, Integer> hashMap = summary.getCounts();
 
-                        final boolean isArray = v[i] instanceof Object[];
-                        boolean isDoubleArray = isArray && ((Object[]) v[i])[0] instanceof Double;
-                        // This is Java, friends - first value type does not imply all.
-                        if (isDoubleArray) {
-                            for (Object n : (Object[]) v[i]) {
-                                if (!(n instanceof Double)) {
-                                    isDoubleArray = false;
-                                    break;
-                                }
-                            }
-                        }
-                        // todo Handle other types of arrays
+                        double minValue = summary.minValue;
+                        double maxValue = summary.maxValue;
 
                         double[][] valuesArray = null;
                         double[] minValueArray = null;
@@ -826,46 +911,12 @@ public class TreeAnnotator {
                         int lenArray = 0;
 
                         if (isDoubleArray) {
-                            lenArray = ((Object[]) v[i]).length;
-
-                            valuesArray = new double[lenArray][clade.attributeValues.size()];
-                            minValueArray = new double[lenArray];
-                            maxValueArray = new double[lenArray];
-
-                            for (int k = 0; k < lenArray; k++) {
-                                minValueArray[k] = Double.MAX_VALUE;
-                                maxValueArray[k] = -Double.MAX_VALUE;
-                            }
+                            lenArray = summary.getArrayLength();
+                            valuesArray = summary.getArrayValues();
+                            minValueArray = summary.minValueArray;
+                            maxValueArray = summary.maxValueArray;
                         }
 
-                        for (int j = 0; j < clade.attributeValues.size(); j++) {
-                            Object value = clade.attributeValues.get(j)[i];
-                            if (isDiscrete) {
-                                final Object s = value;
-                                if (hashMap.containsKey(s)) {
-                                    hashMap.put(s, hashMap.get(s) + 1);
-                                } else {
-                                    hashMap.put(s, 1);
-                                }
-                            } else if (isBoolean) {
-                                values[j] = (((Boolean) value) ? 1.0 : 0.0);
-                            } else if (isDoubleArray) {
-                                // Forcing to Double[] causes a cast exception. MAS
-                                Object[] array = (Object[]) value;
-                                for (int k = 0; k < lenArray; k++) {
-                                    valuesArray[k][j] = ((Double) array[k]);
-                                    if (valuesArray[k][j] < minValueArray[k]) minValueArray[k] = valuesArray[k][j];
-                                    if (valuesArray[k][j] > maxValueArray[k]) maxValueArray[k] = valuesArray[k][j];
-                                }
-                            } else {
-                                // Ignore other (unknown) types
-                                if (value instanceof Number) {
-                                    values[j] = ((Number) value).doubleValue();
-                                    if (values[j] < minValue) minValue = values[j];
-                                    if (values[j] > maxValue) maxValue = values[j];
-                                }
-                            }
-                        }
                         if (isHeight) {
                             if (heightsOption == HeightsSummary.MEAN_HEIGHTS) {
                                 final double mean = DiscreteStatistics.mean(values);
@@ -1208,40 +1259,15 @@ public class TreeAnnotator {
             }
         }
 
-        public BitSet removeClades(Tree tree, NodeRef node, boolean includeTips) {
+        public void removeClades(Tree tree, NodeRef node, boolean includeTips) {
+            mapClades(tree, false, includeTips);
 
-            BitSet bits = new BitSet();
-
-            if (tree.isExternal(node)) {
-
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits.set(index);
-
-                if (includeTips) {
-                    removeClade(bits);
+            for (int nodeNumber : postOrder) {
+                Clade clade = nodeClades[nodeNumber];
+                if (clade != null && (includeTips || !tree.isExternal(tree.getNode(nodeNumber)))) {
+                    clade.setCount(clade.getCount() - 1);
                 }
-
-            } else {
-
-                for (int i = 0; i < tree.getChildCount(node); i++) {
-
-                    NodeRef node1 = tree.getChild(node, i);
-
-                    bits.or(removeClades(tree, node1, includeTips));
-                }
-
-                removeClade(bits);
-            }
-
-            return bits;
-        }
-
-        private void removeClade(BitSet bits) {
-            Clade clade = cladeMap.get(bits);
-            if (clade != null) {
-                clade.setCount(clade.getCount() - 1);
             }
-
         }
 
         // Get tree clades as bitSets on target taxa
@@ -1255,7 +1281,7 @@ public class TreeAnnotator {
             final int inode = node.getNumber();
             codes[inode].clear();
             if (tree.isExternal(node)) {
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
+                int index = getTaxonIndex(tree, node);
                 codes[inode].set(index);
             } else {
                 for (int i = 0; i < tree.getChildCount(node); i++) {
@@ -1268,12 +1294,43 @@ public class TreeAnnotator {
             return inode;
         }
 
+        /**
+         * A clade is identified by a fingerprint of its set of taxa (the sums of two 64 bit hashes
+         * of the taxon indices) rather than by a BitSet. Two different clades will share a key with
+         * negligible probability but this is checked for when a clade is first found.
+         */
+        private class CladeKey {
+            CladeKey(long hash1, long hash2, int size) {
+                this.hash1 = hash1;
+                this.hash2 = hash2;
+                this.size = size;
+            }
+
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+
+                final CladeKey key = (CladeKey) o;
+
+                return hash1 == key.hash1 && hash2 == key.hash2 && size == key.size;
+            }
+
+            public int hashCode() {
+                return (int) (hash1 ^ (hash1 >>> 32));
+            }
+
+            final long hash1;
+            final long hash2;
+            final int size;
+        }
+
         class Clade {
-            public Clade(BitSet bits) {
-                this.bits = bits;
+            public Clade(CladeKey key, int size, int number) {
+                this.key = key;
+                this.number = number;
                 count = 0;
                 credibility = 0.0;
-                size = bits.cardinality();
+                this.size = size;
             }
 
             public int getCount() {
@@ -1292,44 +1349,33 @@ public class TreeAnnotator {
                 this.credibility = credibility;
             }
 
-            public void addSubclades(BitSet subClade1, BitSet subClade2) {
+            public void addSubclades(Clade subClade1, Clade subClade2) {
                 if (this.subClades == null) {
-                    this.subClades = new HashSet<>();
+                    this.subClades = new ArrayList<Clade[]>();
                 }
-                // Store the subclade with lowest first set bit index as the first of the pair to make
+                // Store the subclade with lowest taxon index as the first of the pair to make
                 // sure the order is the same if the pair is the same.
-                if (subClade1.nextSetBit(0) < subClade2.nextSetBit(0)) {
-                    this.subClades.add(new Pair<>(subClade1, subClade2));
+                if (subClade1.firstTaxonIndex < subClade2.firstTaxonIndex) {
+                    this.subClades.add(new Clade[] { subClade1, subClade2 });
                 } else {
-                    this.subClades.add(new Pair<>(subClade2, subClade1));
+                    this.subClades.add(new Clade[] { subClade2, subClade1 });
                 }
             }
 
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
-
-                final Clade clade = (Clade) o;
-
-                return !(bits != null ? !bits.equals(clade.bits) : clade.bits != null);
-
-            }
-
-            public int hashCode() {
-                return (bits != null ? bits.hashCode() : 0);
-            }
-
             public String toString() {
-                return "clade " + bits.toString();
+                return "clade " + getTaxa(this).toString();
             }
 
             int count;
             double credibility;
             final int size;
-            final BitSet bits;
+            final int number;
+            final CladeKey key;
             Taxon taxon = null;
-            List<Object[]> attributeValues = null;
-            Set<Pair<BitSet, BitSet>> subClades = null;
+            int taxonIndex = -1;
+            int firstTaxonIndex = -1;
+            AttributeSummary[] attributeSummaries = null;
+            List<Clade[]> subClades = null;
             Clade bestLeft = null;
             Clade bestRight = null;
             double bestSubTreeCredibility;
@@ -1339,15 +1385,169 @@ public class TreeAnnotator {
         // Private stuff
         //
         TaxonList taxonList = null;
-        Map<BitSet, Clade> cladeMap = new HashMap<>();
+        Map<String, Integer> taxonIndexMap = null;
+
+        Map<CladeKey, Clade> cladeMap = new HashMap<>();
+        // clades whose key is shared with a different clade in cladeMap
+        Map<BitSet, Clade> collisionMap = new HashMap<>();
+        // clades indexed by the numbers of a pair of subclades
+        Map<Long, Clade> pairMap = new HashMap<>();
+        List<Clade> clades = new ArrayList<>();
+        Clade[] tipClades = null;
 
         Clade rootClade;
 
         Tree targetTree;
+
+        // working arrays for mapClades(), indexed by node number
+        int[] postOrder = null;
+        Clade[] nodeClades = null;
+        long[] nodeHash1 = null;
+        long[] nodeHash2 = null;
+        int[] nodeSizes = null;
+    }
+
+    /**
+     * Accumulates the values of one attribute over the trees for a clade. The type of summary is
+     * set by the first value seen (as the values used to be interpreted when annotating) and the
+     * values are stored as primitives rather than keeping every tree's values as objects.
+     */
+    private static class AttributeSummary {
+        enum Kind {
+            NONE,
+            DISCRETE,
+            BOOLEAN,
+            DOUBLE_ARRAY,
+            NUMERIC
+        }
+
+        AttributeSummary(Object firstValue) {
+            if (firstValue == null) {
+                kind = Kind.NONE;
+            } else if (firstValue instanceof String || (forceIntegerToDiscrete && firstValue instanceof Integer)) {
+                kind = Kind.DISCRETE;
+                counts = new LinkedHashMap<Object, Integer>();
+            } else if (firstValue instanceof Boolean) {
+                kind = Kind.BOOLEAN;
+            } else if (isDoubleArray(firstValue)) {
+                kind = Kind.DOUBLE_ARRAY;
+                int length = ((Object[]) firstValue).length;
+                arrayValues = new double[length][INITIAL_CAPACITY];
+                minValueArray = new double[length];
+                maxValueArray = new double[length];
+                for (int k = 0; k < length; k++) {
+                    minValueArray[k] = Double.MAX_VALUE;
+                    maxValueArray[k] = -Double.MAX_VALUE;
+                }
+            } else {
+                // Ignore other (unknown) types
+                kind = Kind.NUMERIC;
+            }
+        }
+
+        private static boolean isDoubleArray(Object value) {
+            // This is Java, friends - first value type does not imply all.
+            if (!(value instanceof Object[]) || !(((Object[]) value)[0] instanceof Double)) {
+                return false;
+            }
+            for (Object n : (Object[]) value) {
+                if (!(n instanceof Double)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(Object value) {
+            if (kind == Kind.NONE) {
+                return;
+            }
+
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                if (arrayValues != null) {
+                    for (int k = 0; k < arrayValues.length; k++) {
+                        arrayValues[k] = Arrays.copyOf(arrayValues[k], count * 2);
+                    }
+                }
+            }
+
+            switch (kind) {
+                case DISCRETE:
+                    Integer n = counts.get(value);
+                    counts.put(value, n == null ? 1 : n + 1);
+                    break;
+                case BOOLEAN:
+                    values[count] = (((Boolean) value) ? 1.0 : 0.0);
+                    break;
+                case DOUBLE_ARRAY:
+                    // Forcing to Double[] causes a cast exception. MAS
+                    Object[] array = (Object[]) value;
+                    for (int k = 0; k < arrayValues.length; k++) {
+                        double x = ((Double) array[k]);
+                        arrayValues[k][count] = x;
+                        if (x < minValueArray[k]) minValueArray[k] = x;
+                        if (x > maxValueArray[k]) maxValueArray[k] = x;
+                    }
+                    break;
+                case NUMERIC:
+                    if (value instanceof Number) {
+                        double x = ((Number) value).doubleValue();
+                        values[count] = x;
+                        if (x < minValue) minValue = x;
+                        if (x > maxValue) maxValue = x;
+                    }
+                    break;
+            }
+            count++;
+        }
+
+        double[] getValues() {
+            return Arrays.copyOf(values, count);
+        }
+
+        int getArrayLength() {
+            return arrayValues.length;
+        }
+
+        double[][] getArrayValues() {
+            double[][] copy = new double[arrayValues.length][];
+            for (int k = 0; k < arrayValues.length; k++) {
+                copy[k] = Arrays.copyOf(arrayValues[k], count);
+            }
+            return copy;
+        }
+
+        HashMap<Object, Integer> getCounts() {
+            // inserted in the order the values were first seen so that the iteration order is the
+            // same as a map built up value by value
+            HashMap<Object, Integer> hashMap = new HashMap<Object, Integer>();
+            if (counts != null) {
+                for (Map.Entry<Object, Integer> entry : counts.entrySet()) {
+                    hashMap.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return hashMap;
+        }
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        final Kind kind;
+        int count = 0;
+        double[] values = new double[INITIAL_CAPACITY];
+        double minValue = Double.MAX_VALUE;
+        double maxValue = -Double.MAX_VALUE;
+
+        LinkedHashMap<Object, Integer> counts = null;
+
+        double[][] arrayValues = null;
+        double[] minValueArray = null;
+        double[] maxValueArray = null;
     }
 
     int totalTrees = 0;
     int totalTreesUsed = 0;
+    int threadCount = 1;
     double posteriorLimit = 0.0;
     //PL:    double hpd2D = 0.80;
     double[] hpd2D = {0.80};
@@ -1547,7 +1747,8 @@ public class TreeAnnotator {
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
                         new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma separated) HPD proportion(s)"),
-                        new Arguments.Option("ess", "compute ess for branch parameters")
+                        new Arguments.Option("ess", "compute ess for branch parameters"),
+                        new Arguments.IntegerOption("threads", "the number of threads used to read the trees [default = 1]")
                 });
 
         try {
@@ -1625,6 +1826,11 @@ public class TreeAnnotator {
             targetTreeFileName = arguments.getStringOption("target");
         }
 
+        int threadCount = 1;
+        if (arguments.hasOption("threads")) {
+            threadCount = arguments.getIntegerOption("threads");
+        }
+
         final String[] args2 = arguments.getLeftoverArguments();
 
         switch (args2.length) {
@@ -1642,7 +1848,7 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName);
+        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName, threadCount);
 
         System.exit(0);
     }
@@ -1676,12 +1882,12 @@ public class TreeAnnotator {
         if (reportStepSize < 1) reportStepSize = 1;
 
         final FileReader fileReader = new FileReader(inputFileName);
-        final NexusImporter importer = new NexusImporter(fileReader, true);
+        final TreeImporter importer = createImporter(fileReader, true);
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
         CladeSystem cladeSystem = new CladeSystem(targetTree);
-        final int nClades = cladeSystem.getCladeMap().size();
+        final int nClades = cladeSystem.getCladeCount();
 
         // allocate posterior tree nodes order once
         int[] postOrderList = new int[nClades];
@@ -0,0 +1,135 @@
+/*
+ * PatternIndex.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.alignment;
+
+import dr.evolution.datatype.DataType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hash index of site patterns, used to find duplicate patterns without comparing each new
+ * pattern against every existing one. The states of a pattern are packed into long words
+ * (using just enough bits for the state codes of the data type) which are used as the key.
+ *
+ * @author agent
+ */
+class PatternIndex {
+
+    /**
+     * @param dataType the data type of the patterns (used to find the number of bits per state)
+     */
+    PatternIndex(DataType dataType) {
+        int maxState = Math.max(dataType.getStateCount(), dataType.getAmbiguousStateCount()) - 1;
+        maxState = Math.max(maxState, Math.max(dataType.getUnknownState(), dataType.getGapState()));
+        bitsPerState = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxState));
+        statesPerWord = 64 / bitsPerState;
+    }
+
+    /**
+     * @return the index of the pattern, or -1 if it has not been added
+     */
+    int getIndex(int[] pattern) {
+        return getIndex(getKey(pattern));
+    }
+
+    int getIndex(Key key) {
+        Integer index = indices.get(key);
+        return (index != null ? index : -1);
+    }
+
+    void put(int[] pattern, int index) {
+        put(getKey(pattern), index);
+    }
+
+    void put(Key key, int index) {
+        indices.put(key, index);
+    }
+
+    /**
+     * Makes the key for a pattern. Patterns with any states that don't fit in the bits per
+     * state are given a key of the unpacked states so they can never match a packed one.
+     */
+    Key getKey(int[] pattern) {
+        int wordCount = (pattern.length + statesPerWord - 1) / statesPerWord;
+        long[] words = new long[wordCount];
+        long limit = 1L << bitsPerState;
+
+        int k = 0;
+        for (int i = 0; i < wordCount; i++) {
+            long word = 0;
+            int end = Math.min(k + statesPerWord, pattern.length);
+            for (; k < end; k++) {
+                int state = pattern[k];
+                if (state < 0 || state >= limit) {
+                    return new Key(unpacked(pattern), false);
+                }
+                word = (word << bitsPerState) | state;
+            }
+            words[i] = word;
+        }
+        return new Key(words, true);
+    }
+
+    private static long[] unpacked(int[] pattern) {
+        long[] words = new long[pattern.length];
+        for (int i = 0; i < pattern.length; i++) {
+            words[i] = pattern[i];
+        }
+        return words;
+    }
+
+    static final class Key {
+        Key(long[] words, boolean packed) {
+            this.words = words;
+            this.packed = packed;
+            this.hash = Arrays.hashCode(words) * 31 + (packed ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && packed == key.packed && Arrays.equals(words, key.words);
+        }
+
+        private final long[] words;
+        private final boolean packed;
+        private final int hash;
+    }
+
+    private final int bitsPerState;
+    private final int statesPerWord;
+
+    private final Map<Key, Integer> indices = new HashMap<Key, Integer>();
+}
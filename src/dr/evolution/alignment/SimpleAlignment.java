@@ -193,6 +193,8 @@ public class SimpleAlignment extends Sequences implements Alignment, dr.util.XHT
             throw new IllegalArgumentException("Sequence of " + sequence.getTaxon().getId()
                     + " contains invalid char \'" + sequence.getChar(invalidCharAt) + "\' at index " + invalidCharAt);
 
+        sequence.pack();
+
         super.addSequence(sequence);
         updateSiteCount();
     }
@@ -219,6 +221,8 @@ public class SimpleAlignment extends Sequences implements Alignment, dr.util.XHT
             throw new IllegalArgumentException("Sequence of " + sequence.getTaxon().getId()
                     + " contains invalid char \'" + sequence.getChar(invalidCharAt) + "\' at index " + invalidCharAt);
 
+        sequence.pack();
+
         super.insertSequence(position, sequence);
     }
     
@@ -258,6 +262,30 @@ public class SimpleAlignment extends Sequences implements Alignment, dr.util.XHT
         return pattern;
     }
 
+    /**
+     * Gets the patterns of a block of sites, filling the given arrays (one per site) so
+     * they can be reused from block to block. The states are read a sequence at a time.
+     *
+     * @param from     the first site
+     * @param every    the step between sites
+     * @param patterns the arrays to fill, each of length getSequenceCount()
+     * @param count    the number of sites
+     */
+    public void getSitePatterns(int from, int every, int[][] patterns, int count) {
+        int n = getSequenceCount();
+        int gapState = dataType.getGapState();
+
+        for (int i = 0; i < n; i++) {
+            Sequence seq = getSequence(i);
+            int length = seq.getLength();
+
+            for (int j = 0; j < count; j++) {
+                int site = from + (j * every);
+                patterns[j][i] = (site < length ? seq.getState(site) : gapState);
+            }
+        }
+    }
+
     @Override
     public double[][] getUncertainSitePattern(int siteIndex) {
         if (areUncertain())   {
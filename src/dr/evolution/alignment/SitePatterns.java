@@ -35,6 +35,12 @@ import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Stores a set of site patterns. This differs from the simple Patterns
@@ -95,8 +101,28 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
     protected boolean unique = true; // Compress into weighted list of unique patterns
 
+    /**
+     * the smallest number of sites compressed by each thread
+     */
+    private static final int MIN_CHUNK_SITE_COUNT = 1000;
+
+    /**
+     * the number of sites whose patterns are read at a time
+     */
+    private static final int SITE_BLOCK_SIZE = 256;
+
     private boolean uncertainSites = false;
 
+    /**
+     * the number of threads used to compress the sites into patterns
+     */
+    private int threadCount = 1;
+
+    /**
+     * hash index of the unique patterns, only kept while the patterns are being set up
+     */
+    private PatternIndex patternIndex = null;
+
     /**
      * Constructor
      */
@@ -142,6 +168,16 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
     }
 
     public SitePatterns(Alignment alignment, TaxonList taxa, int from, int to, int every, boolean strip, boolean unique, int[] constantSiteCounts) {
+        this(alignment, taxa, from, to, every, strip, unique, constantSiteCounts, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threadCount the number of threads used to compress the sites into unique patterns. The
+     *                    resulting patterns, their order and weights don't depend on this.
+     */
+    public SitePatterns(Alignment alignment, TaxonList taxa, int from, int to, int every, boolean strip, boolean unique, int[] constantSiteCounts, int threadCount) {
         if (taxa != null) {
             SimpleAlignment a = new SimpleAlignment();
 
@@ -155,6 +191,7 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         }
         this.strip = strip;
         this.unique = unique;
+        this.threadCount = threadCount;
 
         setPatterns(alignment, from, to, every, constantSiteCounts);
     }
@@ -255,17 +292,24 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
         patternCount = 0;
 
-        patterns = new int[siteCount][];
+        // the constant patterns are added as well as the sites
+        int maxPatternCount = siteCount + (constantSiteCounts != null ? siteList.getStateCount() : 0);
+
+        patterns = new int[maxPatternCount][];
 
         sitePatternIndices = new int[siteCount];
-        weights = new double[siteCount];
+        weights = new double[maxPatternCount];
 
         invariantCount = 0;
 
         uncertainSites = siteList.areUncertain();
 
         if (uncertainSites) {
-            uncertainPatterns = new double[siteCount][][];
+            uncertainPatterns = new double[maxPatternCount][][];
+        }
+
+        if (unique) {
+            patternIndex = new PatternIndex(getDataType());
         }
 
         if (constantSiteCounts != null) {
@@ -281,30 +325,208 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
-        int site = 0;
+        if (unique && threadCount > 1 && siteCount >= 2 * MIN_CHUNK_SITE_COUNT) {
+            addSitesInParallel(siteList, from, every);
+        } else {
+            int[][] block = new int[SITE_BLOCK_SIZE][siteList.getPatternLength()];
 
-        for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
-            double[][] probs = null;
+            for (int first = 0; first < siteCount; first += SITE_BLOCK_SIZE) {
+                int count = Math.min(SITE_BLOCK_SIZE, siteCount - first);
+                getSitePatterns(siteList, from, every, first, count, block);
+
+                for (int j = 0; j < count; j++) {
+                    int site = first + j;
+                    int[] pattern = block[j];
+
+                    if (isIncluded(pattern)) {
+
+                        sitePatternIndices[site] = addSitePattern(siteList, from + (site * every), pattern);
+
+                    }  else {
+                        sitePatternIndices[site] = -1;
+                    }
+                }
+            }
+        }
+
+        patternIndex = null;
+    }
 
-            if (uncertainSites) {
-                probs = siteList.getUncertainSitePattern(i);
+    /**
+     * Gets the patterns of a block of sites. For a SimpleAlignment these are read in bulk into the
+     * block's arrays, otherwise the arrays are replaced by those returned by getSitePattern.
+     */
+    private static void getSitePatterns(SiteList siteList, int from, int every, int firstSite, int count, int[][] block) {
+        if (siteList instanceof SimpleAlignment) {
+            ((SimpleAlignment) siteList).getSitePatterns(from + (firstSite * every), every, block, count);
+        } else {
+            for (int j = 0; j < count; j++) {
+                block[j] = siteList.getSitePattern(from + ((firstSite + j) * every));
             }
+        }
+    }
+
+    /**
+     * adds the pattern of a site to the pattern list. The pattern array may be reused by the
+     * caller so is copied if it is a new pattern.
+     *
+     * @return the index of the pattern in the pattern list
+     */
+    private int addSitePattern(SiteList siteList, int siteIndex, int[] pattern) {
 
-            if (!strip || !isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern))) {
+        PatternIndex.Key key = null;
 
-                sitePatternIndices[site] = addPattern(pattern, probs);
+        if (unique) {
+            key = patternIndex.getKey(pattern);
+            int i = patternIndex.getIndex(key);
 
-            }  else {
-                sitePatternIndices[site] = -1;
+            if (i != -1) {
+                weights[i] += 1;
+                return i;
             }
-            site++;
+        }
+
+        double[][] probs = null;
+        if (uncertainSites) {
+            probs = siteList.getUncertainSitePattern(siteIndex);
+        }
+
+        return addNewPattern(pattern.clone(), key, 1, probs);
+    }
+
+    /**
+     * Compresses the sites into patterns by splitting them into chunks of consecutive sites which
+     * are each compressed on a separate thread. The chunks' patterns are then merged in order so
+     * the patterns are in the order of their first occurrence just as if done sequentially.
+     */
+    private void addSitesInParallel(final SiteList siteList, final int from, final int every) {
+        int chunkSiteCount = Math.max(MIN_CHUNK_SITE_COUNT, (siteCount + (threadCount * 4) - 1) / (threadCount * 4));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "site-patterns");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<PatternChunk>> futures = new ArrayList<Future<PatternChunk>>();
+            for (int first = 0; first < siteCount; first += chunkSiteCount) {
+                final int firstSite = first;
+                final int lastSite = Math.min(first + chunkSiteCount, siteCount);
+                futures.add(pool.submit(new Callable<PatternChunk>() {
+                    public PatternChunk call() {
+                        return new PatternChunk(siteList, from, every, firstSite, lastSite);
+                    }
+                }));
+            }
+
+            for (Future<PatternChunk> future : futures) {
+                addChunk(future.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while compressing site patterns");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merges the patterns of a chunk of sites into the pattern list
+     */
+    private void addChunk(PatternChunk chunk) {
+        int[] indices = new int[chunk.patternCount];
+        for (int i = 0; i < chunk.patternCount; i++) {
+            int index = patternIndex.getIndex(chunk.keys[i]);
+            if (index == -1) {
+                index = addNewPattern(chunk.patterns[i], chunk.keys[i], 1, chunk.uncertainPatterns[i]);
+                weights[index] += chunk.weights[i] - 1;
+            } else {
+                weights[index] += chunk.weights[i];
+            }
+            indices[i] = index;
+        }
+
+        for (int i = 0; i < chunk.sitePatternIndices.length; i++) {
+            int index = chunk.sitePatternIndices[i];
+            sitePatternIndices[chunk.firstSite + i] = (index == -1 ? -1 : indices[index]);
         }
     }
 
+    /**
+     * The unique patterns of a chunk of consecutive sites in the order of their first occurrence
+     */
+    private class PatternChunk {
+
+        PatternChunk(SiteList siteList, int from, int every, int firstSite, int lastSite) {
+            this.firstSite = firstSite;
+
+            int count = lastSite - firstSite;
+            sitePatternIndices = new int[count];
+            patterns = new int[count][];
+            keys = new PatternIndex.Key[count];
+            weights = new int[count];
+            uncertainPatterns = new double[count][][];
+
+            PatternIndex index = new PatternIndex(getDataType());
+            int[][] block = new int[SITE_BLOCK_SIZE][siteList.getPatternLength()];
+
+            for (int first = firstSite; first < lastSite; first += SITE_BLOCK_SIZE) {
+                int blockCount = Math.min(SITE_BLOCK_SIZE, lastSite - first);
+                getSitePatterns(siteList, from, every, first, blockCount, block);
+
+                for (int j = 0; j < blockCount; j++) {
+                    int site = first + j;
+                    int[] pattern = block[j];
+
+                    int patternIndex = -1;
+                    if (isIncluded(pattern)) {
+                        PatternIndex.Key key = index.getKey(pattern);
+                        patternIndex = index.getIndex(key);
+                        if (patternIndex == -1) {
+                            patternIndex = patternCount;
+                            patterns[patternIndex] = pattern.clone();
+                            keys[patternIndex] = key;
+                            if (uncertainSites) {
+                                uncertainPatterns[patternIndex] = siteList.getUncertainSitePattern(from + (site * every));
+                            }
+                            index.put(key, patternIndex);
+                            patternCount++;
+                        }
+                        weights[patternIndex]++;
+                    }
+                    sitePatternIndices[site - firstSite] = patternIndex;
+                }
+            }
+        }
+
+        final int firstSite;
+        final int[] sitePatternIndices;
+        final int[][] patterns;
+        final PatternIndex.Key[] keys;
+        final int[] weights;
+        final double[][][] uncertainPatterns;
+        int patternCount = 0;
+    }
+
+    /**
+     * @return true if the pattern is kept (i.e., not stripped out as completely ambiguous)
+     */
+    private boolean isIncluded(int[] pattern) {
+        return !strip || !isInvariant(pattern) ||
+                (!isGapped(pattern) &&
+                        !isAmbiguous(pattern) &&
+                        !isUnknown(pattern));
+    }
+
     /**
      * sets up pattern list using an alignment
      */
@@ -337,17 +559,17 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         invariantCount = 0;
         int[] pattern;
 
+        if (unique) {
+            patternIndex = new PatternIndex(getDataType());
+        }
+
         int site = 0;
 
         for (int i = from; i <= to; i += every) {
             pattern = siteList.getSitePattern(i);
 
             if (mask[i]) {
-                if (!strip || !isInvariant(pattern) ||
-                        (!isGapped(pattern) &&
-                                !isAmbiguous(pattern) &&
-                                !isUnknown(pattern))
-                        ) {
+                if (isIncluded(pattern)) {
 
                     double[][] probs = null;
                     if (uncertainSites) {
@@ -361,6 +583,8 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
                 site++;
             }
         }
+
+        patternIndex = null;
     }
 
 
@@ -380,15 +604,28 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
      */
     private int addPattern(int[] pattern, int weight, double[][] uncertainty) {
 
-        for (int i = 0; i < patternCount; i++) {
+        PatternIndex.Key key = null;
 
-            if (unique && comparePatterns(patterns[i], pattern)) {
+        if (unique) {
+            key = patternIndex.getKey(pattern);
+            int i = patternIndex.getIndex(key);
 
+            if (i != -1) {
                 weights[i] += weight;
                 return i;
             }
         }
 
+        return addNewPattern(pattern, key, weight, uncertainty);
+    }
+
+    /**
+     * adds a pattern that is not already in the pattern list
+     *
+     * @return the index of the pattern in the pattern list
+     */
+    private int addNewPattern(int[] pattern, PatternIndex.Key key, int weight, double[][] uncertainty) {
+
         if (isInvariant(pattern)) {
             invariantCount += weight;
         }
@@ -414,6 +651,10 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
+        if (key != null) {
+            patternIndex.put(key, index);
+        }
+
         patternCount++;
 
         return index;
@@ -929,26 +929,7 @@ public class NexusImporter extends Importer implements SequenceImporter, TreeImp
                     if (translationList != null) {
                         // this ensures that if a translation list is used, the external node numbers
                         // of the trees correspond as well.
-
-                        Map<Taxon, Integer> taxonNumberMap = new HashMap<Taxon, Integer>();
-                        int count = 0;
-                        for (String label : translationList.keySet()) {
-                            Taxon taxon = translationList.get(label);
-                            int number;
-
-                            if (taxonList != null) { // Map back to original numbering from TaxonList
-                                number =  taxonList.getTaxonIndex(taxon);
-                            } else { // Old functionality
-                                try {
-                                    number = Integer.parseInt(label) - 1;
-                                } catch (NumberFormatException nfe) {
-                                    number = count;
-                                }
-                            }
-
-                            taxonNumberMap.put(taxon, number);
-                            count++;
-                        }
+                        Map<Taxon, Integer> taxonNumberMap = getTaxonNumberMap(translationList, taxonList);
 
                         tree = new FlexibleTree(root, false, true, taxonNumberMap);
                     } else {
@@ -1037,6 +1018,41 @@ public class NexusImporter extends Importer implements SequenceImporter, TreeImp
         }
     }
 
+    /**
+     * Gets the external node number of each taxon in a translation list. These are taken from the
+     * taxon list if given, otherwise from the translation labels if they are numbers.
+     */
+    static Map<Taxon, Integer> getTaxonNumberMap(Map<String, Taxon> translationList, TaxonList taxonList) {
+        Map<Taxon, Integer> taxonNumberMap = new HashMap<Taxon, Integer>();
+        int count = 0;
+        for (String label : translationList.keySet()) {
+            Taxon taxon = translationList.get(label);
+            int number;
+
+            if (taxonList != null) { // Map back to original numbering from TaxonList
+                number =  taxonList.getTaxonIndex(taxon);
+            } else { // Old functionality
+                try {
+                    number = Integer.parseInt(label) - 1;
+                } catch (NumberFormatException nfe) {
+                    number = count;
+                }
+            }
+
+            taxonNumberMap.put(taxon, number);
+            count++;
+        }
+        return taxonNumberMap;
+    }
+
+    /**
+     * @return the translation list of the TREES block once hasTree() has been called (or null
+     * if there is no TREES block)
+     */
+    HashMap<String, Taxon> getTranslationList() {
+        return translationList;
+    }
+
     /**
      * Reads a branch in. This could be a node or a tip (calls readNode or readTip
      * accordingly). It then reads the branch length and SimpleNode that will
@@ -1318,7 +1334,7 @@ public class NexusImporter extends Importer implements SequenceImporter, TreeImp
         return dateArray;
     }
 
-    static void parseMetaCommentPairs(String meta, Attributable item) throws Importer.BadFormatException {
+    public static void parseMetaCommentPairs(String meta, Attributable item) throws Importer.BadFormatException {
         if (meta.startsWith("B ")) {
             // a MrBayes annotation
             String[] parts = meta.split(" ");
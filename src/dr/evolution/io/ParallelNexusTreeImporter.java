@@ -0,0 +1,397 @@
+/*
+ * ParallelNexusTreeImporter.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.ArrayTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A tree importer for NEXUS files which parses blocks of trees on several threads. The file is scanned
+ * on the calling thread through a large buffer and split into commands at each ';' that is not in a
+ * comment or quoted token (so statements may span lines or share them), and the tree statements are
+ * collected into blocks. The header (taxa and translate table) is read
+ * once by a NexusImporter and each block is then parsed on a worker thread into ArrayTrees, which hold
+ * the tree in arrays and only parse the meta-comments of the nodes into attributes when they are asked
+ * for. Trees are returned in file order with the same numbering, lengths and attributes as reading the
+ * file with a NexusImporter. Only a bounded number of blocks are read ahead.
+ *
+ * Only the first TREES block is read, as with NexusImporter.importNextTree(). Tools that need to
+ * change the trees should take a copy with ArrayTree.getCopy().
+ *
+ * @author agent
+ */
+public class ParallelNexusTreeImporter implements TreeImporter {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final char START_COMMENT = '[';
+    private static final char STOP_COMMENT = ']';
+    private static final String TOKEN_DELIMITERS = "(),:=;]";
+
+    /**
+     * Reads the trees from a file through a channel (in the platform's default encoding, as the
+     * tools' FileReaders do), with the number of threads taken from the available processors.
+     */
+    public ParallelNexusTreeImporter(File file, boolean ignoreMetaComments) throws IOException {
+        this(openFile(file), ignoreMetaComments, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelNexusTreeImporter(Reader reader, boolean ignoreMetaComments, int threadCount) {
+        this(reader, ignoreMetaComments, threadCount, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelNexusTreeImporter(Reader reader, boolean ignoreMetaComments, int threadCount, int blockSize) {
+        this.reader = (reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, BUFFER_SIZE));
+        this.ignoreMetaComments = ignoreMetaComments;
+        this.blockSize = blockSize;
+        this.maxBlocksAhead = 2 * threadCount;
+        this.pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tree-importer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public boolean hasTree() throws IOException, Importer.ImportException {
+        while (currentBlock == null || currentIndex >= currentBlock.size()) {
+            fillBlocks();
+            if (pendingBlocks.isEmpty()) {
+                close();
+                return false;
+            }
+            currentBlock = waitForBlock(pendingBlocks.removeFirst());
+            currentIndex = 0;
+        }
+        return true;
+    }
+
+    public Tree importNextTree() throws IOException, Importer.ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = currentBlock.get(currentIndex);
+        currentBlock.set(currentIndex, null);
+        currentIndex++;
+        return tree;
+    }
+
+    public Tree importTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        return importNextTree();
+    }
+
+    public Tree[] importTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    /**
+     * Stops the worker threads. Called automatically once the last tree has been read.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static Reader openFile(File file) throws IOException {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        FileInputStream stream = new FileInputStream(file);
+        return new BufferedReader(Channels.newReader(stream.getChannel(), decoder, BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    private void fillBlocks() throws IOException, Importer.ImportException {
+        while (!endOfTrees && pendingBlocks.size() < maxBlocksAhead) {
+            final List<String> statements = readStatements();
+            if (statements.isEmpty()) {
+                break;
+            }
+            if (translationList == null) {
+                readHeader();
+            }
+            pendingBlocks.addLast(pool.submit(new Callable<List<Tree>>() {
+                public List<Tree> call() throws Exception {
+                    return parseBlock(statements);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Reads the taxa and translation table from the header of the file with a NexusImporter so
+     * the trees are given the same taxa and numbering.
+     */
+    private void readHeader() throws IOException, Importer.ImportException {
+        NexusImporter importer = new NexusImporter(new StringReader(header + "End;\n"), ignoreMetaComments);
+        importer.hasTree();
+        translationList = importer.getTranslationList();
+        if (translationList == null) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        taxonNumberMap = NexusImporter.getTaxonNumberMap(translationList, null);
+    }
+
+    private List<Tree> parseBlock(List<String> statements) throws Importer.ImportException {
+        TreeStatementParser parser = new TreeStatementParser(translationList, taxonNumberMap, ignoreMetaComments);
+        List<Tree> trees = new ArrayList<Tree>(statements.size());
+        for (String statement : statements) {
+            ArrayTree tree = parser.parseTree(statement);
+            if (tree != null) {
+                trees.add(tree);
+            }
+        }
+        return trees;
+    }
+
+    private List<Tree> waitForBlock(Future<List<Tree>> future) throws IOException, Importer.ImportException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading trees");
+        } catch (ExecutionException ee) {
+            close();
+            Throwable cause = ee.getCause();
+            if (cause instanceof Importer.ImportException) {
+                throw (Importer.ImportException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Reads the next block of tree statements, reading the header of the file first if necessary.
+     */
+    private List<String> readStatements() throws IOException {
+        List<String> statements = new ArrayList<String>();
+
+        if (header == null) {
+            StringBuilder sb = new StringBuilder();
+            boolean inTreesBlock = false;
+            String command;
+            while ((command = readCommand()) != null) {
+                int start = skipComments(command, 0);
+                String word = readWord(command, start);
+                if (word.startsWith("#")) {
+                    // the #NEXUS line is not ended by a ';'
+                    start = skipComments(command, start + word.length());
+                    word = readWord(command, start);
+                }
+                if (inTreesBlock && isTreeCommand(word)) {
+                    pendingStatement = command.substring(start);
+                    break;
+                }
+                if (inTreesBlock && isEndOfBlock(word)) {
+                    endOfTrees = true;
+                    break;
+                }
+                if (word.equals("begin") &&
+                        readWord(command, skipComments(command, start + word.length())).equals("trees")) {
+                    inTreesBlock = true;
+                }
+                sb.append(command);
+            }
+            if (!inTreesBlock || command == null) {
+                endOfTrees = true;
+            }
+            sb.append('\n');
+            header = sb.toString();
+        }
+
+        String command = pendingStatement;
+        pendingStatement = null;
+        if (command == null && !endOfTrees) {
+            command = readCommand();
+        }
+        while (command != null && !endOfTrees) {
+            int start = skipComments(command, 0);
+            String word = readWord(command, start);
+            if (isEndOfBlock(word)) {
+                endOfTrees = true;
+                break;
+            }
+            if (word.length() > 0) {
+                // anything other than a tree is passed on for the parser to reject, as NexusImporter does;
+                // a truncated final tree (without a ';') is also passed on and the parser decides
+                statements.add(command.substring(start));
+                if (statements.size() == blockSize) {
+                    return statements;
+                }
+            }
+            command = readCommand();
+        }
+        if (command == null) {
+            endOfTrees = true;
+        }
+
+        return statements;
+    }
+
+    /**
+     * Reads the next command: the text up to and including the next ';' that is not in a (nested)
+     * comment or a quoted token, so commands can span lines or share them. Returns the rest of the
+     * file (without a ';') at its end, or null if there is nothing left but white space.
+     */
+    private String readCommand() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean hasText = false;
+        int commentDepth = 0;
+        char quote = 0;
+        char closedQuote = 0;
+        char previous = ' ';
+
+        while (true) {
+            if (bufferPosition == bufferLength) {
+                bufferLength = reader.read(buffer, 0, buffer.length);
+                bufferPosition = 0;
+                if (bufferLength <= 0) {
+                    bufferLength = 0;
+                    return hasText ? sb.toString() : null;
+                }
+            }
+            char ch = buffer[bufferPosition++];
+            sb.append(ch);
+            if (!Character.isWhitespace(ch)) {
+                hasText = true;
+            }
+
+            if (commentDepth > 0) {
+                if (ch == START_COMMENT) {
+                    commentDepth++;
+                } else if (ch == STOP_COMMENT) {
+                    commentDepth--;
+                }
+                ch = ' ';
+            } else if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                    closedQuote = ch;
+                    previous = ch;
+                    continue;
+                }
+            } else if (ch == closedQuote) {
+                // a doubled quote inside a quoted token
+                quote = ch;
+            } else if (ch == START_COMMENT) {
+                commentDepth = 1;
+            } else if (ch == ';') {
+                return sb.toString();
+            } else if ((ch == '\'' || ch == '"') &&
+                    (Character.isWhitespace(previous) || TOKEN_DELIMITERS.indexOf(previous) != -1)) {
+                quote = ch;
+            }
+            closedQuote = 0;
+            previous = ch;
+        }
+    }
+
+    /**
+     * @return the index of the first character from start that is not white space or in a comment
+     */
+    private static int skipComments(String command, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < command.length()) {
+            char ch = command.charAt(i);
+            if (ch == START_COMMENT) {
+                depth++;
+            } else if (depth > 0) {
+                if (ch == STOP_COMMENT) {
+                    depth--;
+                }
+            } else if (!Character.isWhitespace(ch)) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the word starting at index in lower case
+     */
+    private static String readWord(String command, int index) {
+        int end = index;
+        while (end < command.length()) {
+            char ch = command.charAt(end);
+            if (Character.isWhitespace(ch) || ch == ';' || ch == '=' || ch == START_COMMENT) {
+                break;
+            }
+            end++;
+        }
+        return command.substring(index, end).toLowerCase();
+    }
+
+    private static boolean isTreeCommand(String word) {
+        return word.equals("tree") || word.equals("utree");
+    }
+
+    private static boolean isEndOfBlock(String word) {
+        return word.equals("end") || word.equals("endblock");
+    }
+
+    private final BufferedReader reader;
+    private final boolean ignoreMetaComments;
+    private final int blockSize;
+    private final int maxBlocksAhead;
+    private final ExecutorService pool;
+
+    private String header = null;
+    private Map<String, Taxon> translationList = null;
+    private Map<Taxon, Integer> taxonNumberMap = null;
+    private String pendingStatement = null;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLength = 0;
+    private boolean endOfTrees = false;
+
+    private final Deque<Future<List<Tree>>> pendingBlocks = new ArrayDeque<Future<List<Tree>>>();
+    private List<Tree> currentBlock = null;
+    private int currentIndex = 0;
+}
@@ -0,0 +1,586 @@
+/*
+ * TreeStatementParser.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.ArrayTree;
+import dr.evolution.util.Taxon;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Parses a single NEXUS tree statement (e.g., 'tree STATE_0 [&lnP=-1234.5] = [&R] (...);')
+ * held in a string into an ArrayTree. The statement is tokenized in the same way as the
+ * NexusImporter does (comments, meta-comments, quoted labels and delimiters) so the trees
+ * are the same, but it works directly on the characters of the string rather than through
+ * a reader and the nodes' meta-comments are kept as text to be parsed when needed.
+ *
+ * @author agent
+ */
+class TreeStatementParser {
+
+    private static final char START_COMMENT = '[';
+    private static final char STOP_COMMENT = ']';
+    private static final char WRITE_COMMENT = '!';
+    private static final char META_COMMENT = '&';
+
+    /**
+     * @param translationList the translation of the node labels to taxa (an empty list means
+     *                        a new taxon is made for each label)
+     * @param taxonNumberMap  the external node number of each taxon (or null to number the
+     *                        external nodes in the order they are in the tree)
+     */
+    TreeStatementParser(Map<String, Taxon> translationList, Map<Taxon, Integer> taxonNumberMap, boolean ignoreMetaComments) {
+        this.translationList = translationList;
+        this.taxonNumberMap = (taxonNumberMap != null && taxonNumberMap.size() > 0 ? taxonNumberMap : null);
+        this.ignoreMetaComments = ignoreMetaComments;
+    }
+
+    /**
+     * Parses a tree statement.
+     *
+     * @return the tree or null if the statement ends before the tree does
+     */
+    ArrayTree parseTree(String statement) throws Importer.ImportException {
+        this.text = statement;
+        position = 0;
+        lastChar = '\0';
+        lastDelimiter = 0;
+        lastMetaComment = null;
+        nodeCount = 0;
+        externalNodeCount = 0;
+        childCount = 0;
+
+        ArrayTree tree = null;
+
+        try {
+            String token = readToken(";");
+
+            if (!token.equalsIgnoreCase("UTREE") && !token.equalsIgnoreCase("TREE")) {
+                throw new Importer.BadFormatException("Unknown command '" + token + "' in TREES block");
+            }
+
+            if (nextCharacter() == '*') {
+                // Star is used to specify a default tree - ignore it
+                readCharacter();
+            }
+
+            String token2 = readToken("=;");
+            // Save tree comment and attach it later
+            final String comment = lastMetaComment;
+            lastMetaComment = null;
+
+            if (lastDelimiter != '=') {
+                throw new Importer.BadFormatException("Missing label for tree'" + token2 + "' or missing '=' in TREE command of TREES block");
+            }
+
+            if (nextCharacter() != '(') {
+                throw new Importer.BadFormatException("Missing tree definition in TREE command of TREES block");
+            }
+
+            // tree special comments
+            final String scomment = lastMetaComment;
+            lastMetaComment = null;
+
+            int root = readInternalNode();
+
+            tree = createTree(token2, root);
+
+            if (lastDelimiter == ':') {
+                // in case the root has a branch length, skip it
+                readToken(";");
+
+                if (lastMetaComment != null) {
+                    // There was a meta-comment which is put on the root
+                    branchComments[root] = lastMetaComment;
+                    tree = createTree(token2, root);
+                    lastMetaComment = null;
+                }
+            }
+
+            if (lastDelimiter != ';') {
+                throw new Importer.BadFormatException("Expecting ';' after tree, '" + token2 + "', TREE command of TREES block");
+            }
+
+            if (scomment != null) {
+                // below is correct only if [&W] appears on it own
+                String c = scomment;
+                while (c.length() > 0) {
+                    final char ch = c.charAt(0);
+                    if (ch == ';') {
+                        c = c.substring(1);
+                        continue;
+                    }
+                    if (ch == 'R') {
+                        // we only have rooted trees anyway
+                        c = c.substring(1);
+                    } else if (ch == 'W') {
+                        int e = c.indexOf(';');
+                        if (e < 0) e = c.length();
+
+                        try {
+                            final Float value = Float.valueOf(c.substring(2, e));
+                            tree.setAttribute("weight", value);
+                        } catch (NumberFormatException ex) {
+                            // don't fail, ignore
+                        }
+                        c = c.substring(e);
+                    } else {
+                        c = c.substring(1);
+                    }
+                }
+            }
+
+            if (comment != null) {
+                try {
+                    NexusImporter.parseMetaCommentPairs(comment, tree);
+                } catch (Importer.BadFormatException e) {
+                    // set generic comment attribute
+                    tree.setAttribute("comment", comment);
+                }
+            }
+
+        } catch (EOFException e) {
+            // If we reach the end we may as well return what we have
+        }
+
+        return tree;
+    }
+
+    /**
+     * Reads a branch in (a node and its branch length).
+     */
+    private int readBranch() throws EOFException, Importer.ImportException {
+        double length = 0.0;
+        int branch;
+
+        lastMetaComment = null;
+
+        if (nextCharacter() == '(') {
+            // is an internal node
+            branch = readInternalNode();
+
+        } else {
+            // is an external node
+            branch = readExternalNode();
+        }
+
+        if (lastDelimiter != ':' && lastDelimiter != ',' && lastDelimiter != ')') {
+            String label = readToken(",():;");
+            if (label.length() > 0) {
+                labels[branch] = label;
+            }
+        }
+
+        if (lastDelimiter == ':') {
+            String token = readToken(",():;");
+            try {
+                length = Double.parseDouble(token);
+            } catch (NumberFormatException nfe) {
+                throw new Importer.ImportException("Number format error: " + nfe.getMessage());
+            }
+
+            if (lastMetaComment != null) {
+                if (!ignoreMetaComments) {
+                    branchComments[branch] = lastMetaComment;
+                }
+                lastMetaComment = null;
+            }
+        }
+
+        lengths[branch] = length;
+
+        return branch;
+    }
+
+    /**
+     * Reads an internal node in. This could be a polytomy.
+     */
+    private int readInternalNode() throws EOFException, Importer.ImportException {
+        int node = addNode();
+
+        // read the opening '('
+        readCharacter();
+
+        int[] nodeChildren = new int[2];
+        int count = 0;
+
+        // read the first child
+        nodeChildren[count++] = readBranch();
+
+        if (lastDelimiter != ',' && !NexusImporter.suppressWarnings) {
+            java.util.logging.Logger.getLogger("dr.evolution.io").warning("Internal node only has a single child.");
+        }
+
+        // this allows one or more children
+        while (lastDelimiter == ',') {
+            if (count == nodeChildren.length) {
+                nodeChildren = Arrays.copyOf(nodeChildren, count * 2);
+            }
+            nodeChildren[count++] = readBranch();
+        }
+
+        // should have had a closing ')'
+        if (lastDelimiter != ')') {
+            throw new Importer.BadFormatException("Missing closing ')' in tree in TREES block");
+        }
+
+        readToken(":(),;");
+
+        if (lastMetaComment != null) {
+            if (!ignoreMetaComments) {
+                comments[node] = lastMetaComment;
+            }
+            lastMetaComment = null;
+        }
+
+        // the children are stored together once the node is complete
+        childStarts[node] = childCount;
+        childCounts[node] = count;
+        for (int i = 0; i < count; i++) {
+            if (childCount == childList.length) {
+                childList = Arrays.copyOf(childList, childCount * 2);
+            }
+            childList[childCount++] = nodeChildren[i];
+            parents[nodeChildren[i]] = node;
+        }
+        // internal nodes are numbered in post-order
+        order[node] = internalOrder++;
+
+        return node;
+    }
+
+    /**
+     * Reads an external node in.
+     */
+    private int readExternalNode() throws EOFException, Importer.ImportException {
+        int node = addNode();
+
+        String label = readToken(":(),;");
+
+        Taxon taxon;
+
+        if (translationList.size() > 0) {
+            taxon = translationList.get(label);
+
+            if (taxon == null) {
+                // taxon not found in taxon list...
+                throw new Importer.UnknownTaxonException("Taxon in tree, '" + label + "' is unknown");
+            }
+        } else {
+            taxon = new Taxon(label);
+        }
+
+        if (lastMetaComment != null) {
+            if (!ignoreMetaComments) {
+                comments[node] = lastMetaComment;
+            }
+            lastMetaComment = null;
+        }
+
+        taxa[node] = taxon;
+        childCounts[node] = 0;
+        order[node] = externalNodeCount;
+        externalNodeCount++;
+
+        return node;
+    }
+
+    private int addNode() {
+        if (nodeCount == parents.length) {
+            int size = nodeCount * 2;
+            parents = Arrays.copyOf(parents, size);
+            childStarts = Arrays.copyOf(childStarts, size);
+            childCounts = Arrays.copyOf(childCounts, size);
+            order = Arrays.copyOf(order, size);
+            lengths = Arrays.copyOf(lengths, size);
+            taxa = Arrays.copyOf(taxa, size);
+            comments = Arrays.copyOf(comments, size);
+            branchComments = Arrays.copyOf(branchComments, size);
+            labels = Arrays.copyOf(labels, size);
+        }
+        int node = nodeCount;
+        parents[node] = -1;
+        lengths[node] = 0.0;
+        taxa[node] = null;
+        comments[node] = null;
+        branchComments[node] = null;
+        labels[node] = null;
+        if (node == 0) {
+            internalOrder = 0;
+        }
+        nodeCount++;
+        return node;
+    }
+
+    /**
+     * Makes the tree from the nodes read, numbering them as a FlexibleTree would.
+     */
+    private ArrayTree createTree(String id, int root) {
+        int[] numbers = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            if (childCounts[i] == 0) {
+                numbers[i] = (taxonNumberMap != null ? taxonNumberMap.get(taxa[i]) : order[i]);
+            } else {
+                numbers[i] = externalNodeCount + order[i];
+            }
+        }
+
+        int[] treeParents = new int[nodeCount];
+        int[] childOffsets = new int[nodeCount + 1];
+        int[] treeChildren = new int[childCount];
+        double[] treeLengths = new double[nodeCount];
+        Taxon[] treeTaxa = new Taxon[externalNodeCount];
+        String[] treeComments = new String[nodeCount];
+        String[] treeBranchComments = new String[nodeCount];
+        String[] treeLabels = new String[nodeCount];
+
+        int[] counts = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            counts[numbers[i]] = childCounts[i];
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            childOffsets[i + 1] = childOffsets[i] + counts[i];
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            int n = numbers[i];
+            treeParents[n] = (parents[i] != -1 ? numbers[parents[i]] : -1);
+            for (int j = 0; j < childCounts[i]; j++) {
+                treeChildren[childOffsets[n] + j] = numbers[childList[childStarts[i] + j]];
+            }
+            treeLengths[n] = lengths[i];
+            if (childCounts[i] == 0) {
+                treeTaxa[n] = taxa[i];
+            }
+            treeComments[n] = comments[i];
+            treeBranchComments[n] = branchComments[i];
+            treeLabels[n] = labels[i];
+        }
+
+        return new ArrayTree(id, externalNodeCount, numbers[root], treeParents, childOffsets, treeChildren,
+                treeLengths, treeTaxa, treeComments, treeLabels, treeBranchComments);
+    }
+
+    // **************************************************************
+    // Tokenizer (as in Importer)
+    // **************************************************************
+
+    private char nextCharacter() throws EOFException {
+        if (lastChar == '\0') {
+            lastChar = readCharacter();
+        }
+        return lastChar;
+    }
+
+    private char readCharacter() throws EOFException {
+
+        skipSpace();
+
+        char ch = read();
+
+        while (ch == START_COMMENT) {
+            skipComments();
+            skipSpace();
+            ch = read();
+        }
+
+        return ch;
+    }
+
+    private char read() throws EOFException {
+        char ch;
+
+        if (lastChar == '\0') {
+            if (position >= text.length()) {
+                throw new EOFException();
+            }
+            ch = text.charAt(position++);
+            if (ch == '\0') {
+                throw new EOFException();
+            }
+        } else {
+            ch = lastChar;
+            lastChar = '\0';
+        }
+
+        return ch;
+    }
+
+    private void skipSpace() throws EOFException {
+        char ch;
+        do {
+            ch = read();
+        } while (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n');
+        lastChar = ch;
+    }
+
+    private String readToken(String delimiters) throws EOFException {
+        int space = 0;
+        char ch, ch2, quoteChar = '\0';
+        boolean done = false, first = true, quoted = false, isSpace;
+
+        nextCharacter();
+
+        StringBuilder token = new StringBuilder();
+
+        while (!done) {
+            ch = read();
+
+            try {
+                isSpace = Character.isWhitespace(ch);
+
+                if (quoted && ch == quoteChar) { // Found the closing quote
+                    ch2 = read();
+
+                    if (ch == ch2) {
+                        // A repeated quote character so add this to the token
+                        token.append(ch);
+                    } else {
+                        // otherwise it terminates the token
+
+                        lastDelimiter = ' ';
+                        lastChar = ch2;
+                        done = true;
+                        quoted = false;
+                    }
+                } else if (first && (ch == '\'' || ch == '"')) {
+                    // if the opening character is a quote
+                    // read everything up to the closing quote
+                    quoted = true;
+                    quoteChar = ch;
+                    first = false;
+                    space = 0;
+                } else if (ch == START_COMMENT) {
+                    skipComments();
+                    lastDelimiter = ' ';
+                    done = true;
+                } else {
+                    if (quoted) {
+                        // compress multiple spaces into one
+                        if (isSpace) {
+                            space++;
+                            ch = ' ';
+                        } else {
+                            space = 0;
+                        }
+
+                        if (space < 2) {
+                            token.append(ch);
+                        }
+                    } else if (isSpace) {
+                        lastDelimiter = ' ';
+                        done = true;
+                    } else if (delimiters.indexOf(ch) != -1) {
+                        done = true;
+                        lastDelimiter = ch;
+                    } else {
+                        token.append(ch);
+                        first = false;
+                    }
+                }
+            } catch (EOFException e) {
+                // We catch an EOF and return the token we have so far
+                done = true;
+            }
+        }
+
+        if (Character.isWhitespace((char) lastDelimiter)) {
+            ch = nextCharacter();
+            while (Character.isWhitespace(ch)) {
+                read();
+                ch = nextCharacter();
+            }
+
+            if (delimiters.indexOf(ch) != -1) {
+                lastDelimiter = readCharacter();
+            }
+        }
+
+        return token.toString();
+    }
+
+    private void skipComments() throws EOFException {
+        char ch;
+        int n = 1;
+        boolean write = false;
+        StringBuilder meta = null;
+
+        if (nextCharacter() == WRITE_COMMENT) {
+            read();
+            write = true;
+        } else if (nextCharacter() == META_COMMENT) {
+            read();
+            // combine two consecutive meta comments
+            meta = lastMetaComment != null ? new StringBuilder(lastMetaComment + ";") : new StringBuilder();
+        }
+
+        lastMetaComment = null;
+
+        do {
+            ch = read();
+            if (ch == START_COMMENT) {
+                n++;
+            } else if (ch == STOP_COMMENT) {
+                n--;
+            } else if (!write && meta != null) {
+                meta.append(ch);
+            }
+        } while (n > 0);
+
+        if (meta != null) {
+            lastMetaComment = meta.toString();
+        }
+    }
+
+    private final Map<String, Taxon> translationList;
+    private final Map<Taxon, Integer> taxonNumberMap;
+    private final boolean ignoreMetaComments;
+
+    private String text;
+    private int position;
+    private char lastChar;
+    private int lastDelimiter;
+    private String lastMetaComment;
+
+    // the nodes in the order they are read
+    private int nodeCount = 0;
+    private int externalNodeCount = 0;
+    private int internalOrder = 0;
+    private int[] parents = new int[64];
+    private int[] childStarts = new int[64];
+    private int[] childCounts = new int[64];
+    private int[] order = new int[64];
+    private double[] lengths = new double[64];
+    private Taxon[] taxa = new Taxon[64];
+    private String[] comments = new String[64];
+    private String[] branchComments = new String[64];
+    private String[] labels = new String[64];
+
+    private int[] childList = new int[64];
+    private int childCount = 0;
+}
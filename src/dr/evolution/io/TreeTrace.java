@@ -121,7 +121,7 @@ public class TreeTrace implements Identifiable {
         String line = reader.readLine();
 
         if (line.toUpperCase().startsWith("#NEXUS")) {
-            NexusImporter importer = new NexusImporter(reader);
+            TreeImporter importer = new ParallelNexusTreeImporter(reader, false, Runtime.getRuntime().availableProcessors());
             Tree[] trees = importer.importTrees(null);
 
             if (trees.length < 2) {
@@ -30,6 +30,7 @@ import dr.evolution.util.Taxon;
 import dr.util.Attributable;
 import dr.util.Identifiable;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -91,6 +92,9 @@ public class Sequence implements Identifiable, Attributable {
      * @return the length of the sequences.
      */
     public int getLength() {
+        if (packedCodes != null) {
+            return packedLength;
+        }
         return sequenceString.length();
     }
 
@@ -98,6 +102,11 @@ public class Sequence implements Identifiable, Attributable {
      * @return a String containing the sequences.
      */
     public String getSequenceString() {
+        if (packedCodes != null) {
+            char[] chars = new char[packedLength];
+            getChars(0, packedLength, chars, 0);
+            return new String(chars);
+        }
         return sequenceString.toString();
     }
 
@@ -105,6 +114,9 @@ public class Sequence implements Identifiable, Attributable {
      * @return a char containing the state at index.
      */
     public char getChar(int index) {
+        if (packedCodes != null) {
+            return symbols[getCode(index)];
+        }
         return sequenceString.charAt(index);
     }
 
@@ -112,13 +124,16 @@ public class Sequence implements Identifiable, Attributable {
      * @return the state at site index.
      */
     public int getState(int index) {
+        if (packedCodes != null) {
+            return symbolStates[getCode(index)];
+        }
         return dataType.getState(sequenceString.charAt(index));
     }
 
     /**
      */
     public void setState(int index, int state) {
-
+        unpack();
         sequenceString.setCharAt(index, dataType.getChar(state));
     }
 
@@ -126,6 +141,15 @@ public class Sequence implements Identifiable, Attributable {
      * Characters are copied from the sequences into the destination character array dst.
      */
     public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (packedCodes != null) {
+            if (srcBegin < 0 || srcEnd > packedLength || srcBegin > srcEnd) {
+                throw new StringIndexOutOfBoundsException("srcBegin " + srcBegin + ", srcEnd " + srcEnd + ", length " + packedLength);
+            }
+            for (int i = srcBegin; i < srcEnd; i++) {
+                dst[dstBegin + i - srcBegin] = symbols[getCode(i)];
+            }
+            return;
+        }
         sequenceString.getChars(srcBegin, srcEnd, dst, dstBegin);
     }
 
@@ -137,8 +161,8 @@ public class Sequence implements Identifiable, Attributable {
         if (validChars != null) {
             String validString = new String(validChars);
 
-            for (int i = 0; i < sequenceString.length(); i++) {
-                char c = sequenceString.charAt(i);
+            for (int i = 0, n = getLength(); i < n; i++) {
+                char c = getChar(i);
 
                 if (validString.indexOf(c) < 0) return i;
             }
@@ -150,20 +174,27 @@ public class Sequence implements Identifiable, Attributable {
      * Set the DataType of the sequences.
      */
     public void setDataType(DataType dataType) {
-        this.dataType = dataType;
+        if (packedCodes != null) {
+            unpack();
+            this.dataType = dataType;
+            pack();
+        } else {
+            this.dataType = dataType;
+        }
     }
 
     /**
      * Set the DataType of the sequences.
      */
     public DataType guessDataType() {
-        return DataType.guessDataType(sequenceString.toString());
+        return DataType.guessDataType(getSequenceString());
     }
 
     /**
      * Set the sequences using a string.
      */
     public void setSequenceString(String sequence) {
+        unpack();
         sequenceString.setLength(0);
         sequenceString.append(sequence.toUpperCase());
     }
@@ -172,6 +203,7 @@ public class Sequence implements Identifiable, Attributable {
      * Append a string to the sequences.
      */
     public void appendSequenceString(String sequence) {
+        unpack();
         sequenceString.append(sequence);
     }
 
@@ -179,9 +211,111 @@ public class Sequence implements Identifiable, Attributable {
      * Insert a string into the sequences.
      */
     public void insertSequenceString(int offset, String sequence) {
+        unpack();
         sequenceString.insert(offset, sequence);
     }
 
+    /**
+     * Packs the characters of the sequence into 2, 4 or 8 bits each depending on how many
+     * different characters it has (e.g., 2 bits for a nucleotide sequence without gaps or
+     * ambiguities). A table of the different characters, and their states in the data type,
+     * is kept so the characters are unchanged and don't need decoding for each access.
+     * The sequence is unpacked again if it is later changed. This requires the data type
+     * to have been set. Subclasses are left unpacked as they may read sequenceString directly.
+     */
+    public void pack() {
+        if (getClass() != Sequence.class || packedCodes != null || dataType == null || sequenceString.length() == 0) {
+            return;
+        }
+
+        int length = sequenceString.length();
+
+        char[] symbolTable = new char[MAX_PACKED_SYMBOLS];
+        int symbolCount = 0;
+        int[] symbolCodes = new int[MAX_PACKED_SYMBOLS];
+        Arrays.fill(symbolCodes, -1);
+        byte[] codes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            char c = sequenceString.charAt(i);
+            if (c >= MAX_PACKED_SYMBOLS) {
+                // only 8 bit characters are packed
+                return;
+            }
+            int code = symbolCodes[c];
+            if (code == -1) {
+                code = symbolCount;
+                symbolTable[symbolCount] = c;
+                symbolCodes[c] = code;
+                symbolCount++;
+            }
+            codes[i] = (byte) code;
+        }
+
+        char[] packedSymbols = new char[symbolCount];
+        System.arraycopy(symbolTable, 0, packedSymbols, 0, symbolCount);
+        int[] packedSymbolStates;
+        try {
+            packedSymbolStates = getSymbolStates(packedSymbols);
+        } catch (RuntimeException re) {
+            // the data type can't decode one of the characters so leave it to fail when accessed
+            return;
+        }
+
+        bitsPerCode = (symbolCount <= 4 ? 2 : (symbolCount <= 16 ? 4 : 8));
+        int codesPerWord = 64 / bitsPerCode;
+        packedCodes = new long[(length + codesPerWord - 1) / codesPerWord];
+        for (int i = 0; i < length; i++) {
+            packedCodes[i / codesPerWord] |= ((long) (codes[i] & 0xFF)) << ((i % codesPerWord) * bitsPerCode);
+        }
+        packedLength = length;
+
+        symbols = packedSymbols;
+        symbolStates = packedSymbolStates;
+
+        sequenceString = null;
+    }
+
+    /**
+     * @return true if the sequence is currently packed
+     */
+    public boolean isPacked() {
+        return packedCodes != null;
+    }
+
+    /**
+     * Restores the sequence's characters to a string buffer so it can be changed.
+     */
+    private void unpack() {
+        if (packedCodes != null) {
+            StringBuffer sb = new StringBuffer(packedLength);
+            for (int i = 0; i < packedLength; i++) {
+                sb.append(symbols[getCode(i)]);
+            }
+            sequenceString = sb;
+            packedCodes = null;
+            symbols = null;
+            symbolStates = null;
+        }
+    }
+
+    private int getCode(int index) {
+        if (index < 0 || index >= packedLength) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        int codesPerWord = 64 / bitsPerCode;
+        int shift = (index % codesPerWord) * bitsPerCode;
+        return (int) (packedCodes[index / codesPerWord] >>> shift) & ((1 << bitsPerCode) - 1);
+    }
+
+    private int[] getSymbolStates(char[] symbols) {
+        int[] states = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            states[i] = dataType.getState(symbols[i]);
+        }
+        return states;
+    }
+
     /**
      * Sets a taxon for this sequences.
      *
@@ -262,8 +396,18 @@ public class Sequence implements Identifiable, Attributable {
     // **************************************************************
 
     protected Taxon taxon = null;
+    // only a plain Sequence is ever packed, so this is never null in a subclass
     protected StringBuffer sequenceString = null;
     protected DataType dataType = null;
+
+    private static final int MAX_PACKED_SYMBOLS = 256;
+
+    // the packed characters (when packed the sequenceString is null)
+    private long[] packedCodes = null;
+    private int packedLength = 0;
+    private int bitsPerCode = 0;
+    private char[] symbols = null;
+    private int[] symbolStates = null;
 }
 
 
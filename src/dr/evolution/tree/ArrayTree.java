@@ -0,0 +1,405 @@
+/*
+ * ArrayTree.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import dr.evolution.io.Importer;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.util.Taxon;
+import dr.util.Attributable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A compact, read-only tree with its structure held in arrays indexed by node number. This
+ * is what the ParallelNexusTreeImporter reads trees into. The meta-comments of the nodes are
+ * kept as text and only parsed into attributes (in the same way as the NexusImporter) when
+ * they are first asked for, so tools that only need the topology or heights don't pay for them.
+ *
+ * The node numbering, branch lengths and node heights are the same as those of the
+ * FlexibleTree returned by the NexusImporter for the same tree. Use getCopy() to get a
+ * FlexibleTree that can be changed.
+ *
+ * @author agent
+ */
+public class ArrayTree implements Tree {
+
+    /**
+     * @param id             the id of the tree
+     * @param externalNodeCount the number of external nodes (numbered 0 to externalNodeCount - 1)
+     * @param root           the number of the root node
+     * @param parents        the number of each node's parent (-1 for the root)
+     * @param childOffsets   the position in children of the first child of each node (with a
+     *                       final entry for the end of the last node's children)
+     * @param children       the numbers of the children of each node in order
+     * @param lengths        the branch length above each node
+     * @param taxa           the taxon of each external node
+     * @param comments       the meta-comment of each node (or null)
+     * @param labels         the label following each node (or null)
+     * @param branchComments a meta-comment following the branch length of each node (or null)
+     */
+    public ArrayTree(String id, int externalNodeCount, int root, int[] parents, int[] childOffsets, int[] children,
+                     double[] lengths, Taxon[] taxa, String[] comments, String[] labels, String[] branchComments) {
+        this.id = id;
+        this.externalNodeCount = externalNodeCount;
+        this.root = root;
+        this.parents = parents;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.lengths = lengths;
+        this.taxa = taxa;
+        this.comments = comments;
+        this.labels = labels;
+        this.branchComments = branchComments;
+
+        nodes = new Node[parents.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i);
+        }
+    }
+
+    // **************************************************************
+    // Tree IMPLEMENTATION
+    // **************************************************************
+
+    public NodeRef getRoot() {
+        return nodes[root];
+    }
+
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    public NodeRef getNode(int i) {
+        return nodes[i];
+    }
+
+    public NodeRef getInternalNode(int i) {
+        return nodes[i + externalNodeCount];
+    }
+
+    public NodeRef getExternalNode(int i) {
+        return nodes[i];
+    }
+
+    public int getExternalNodeCount() {
+        return externalNodeCount;
+    }
+
+    public int getInternalNodeCount() {
+        return nodes.length - externalNodeCount;
+    }
+
+    public Taxon getNodeTaxon(NodeRef node) {
+        int number = node.getNumber();
+        return (number < externalNodeCount ? taxa[number] : null);
+    }
+
+    public boolean hasNodeHeights() {
+        return heights != null;
+    }
+
+    public double getNodeHeight(NodeRef node) {
+        if (heights == null) {
+            calculateNodeHeights();
+        }
+        return heights[node.getNumber()];
+    }
+
+    public boolean hasBranchLengths() {
+        return true;
+    }
+
+    public double getBranchLength(NodeRef node) {
+        return lengths[node.getNumber()];
+    }
+
+    public double getNodeRate(NodeRef node) {
+
+        Object rateAttr = getNodeAttribute(node, "rate");
+
+        if (rateAttr != null) {
+            if (rateAttr instanceof Number) return (Double) rateAttr;
+            if (rateAttr instanceof String) return Double.parseDouble((String) rateAttr);
+        }
+
+        return 1.0;
+    }
+
+    public Object getNodeAttribute(NodeRef node, String name) {
+        Attributable.AttributeHelper attributes = getAttributes(node.getNumber());
+        return (attributes != null ? attributes.getAttribute(name) : null);
+    }
+
+    public Iterator getNodeAttributeNames(NodeRef node) {
+        Attributable.AttributeHelper attributes = getAttributes(node.getNumber());
+        return (attributes != null ? attributes.getAttributeNames() : null);
+    }
+
+    public boolean isExternal(NodeRef node) {
+        return getChildCount(node) == 0;
+    }
+
+    public boolean isRoot(NodeRef node) {
+        return node.getNumber() == root;
+    }
+
+    public int getChildCount(NodeRef node) {
+        int number = node.getNumber();
+        return childOffsets[number + 1] - childOffsets[number];
+    }
+
+    public NodeRef getChild(NodeRef node, int j) {
+        int number = node.getNumber();
+        if (j < 0 || j >= childOffsets[number + 1] - childOffsets[number]) {
+            throw new IllegalArgumentException("Node " + number + " doesn't have a child " + j);
+        }
+        return nodes[children[childOffsets[number] + j]];
+    }
+
+    public NodeRef getParent(NodeRef node) {
+        int parent = parents[node.getNumber()];
+        return (parent != -1 ? nodes[parent] : null);
+    }
+
+    /**
+     * @return a FlexibleTree copy of this tree (including the attributes of the nodes)
+     */
+    public Tree getCopy() {
+        return new FlexibleTree(this, true);
+    }
+
+    /**
+     * Sets the node heights from the branch lengths in the same way as a FlexibleTree
+     * (negative branch lengths are taken as zero).
+     */
+    private void calculateNodeHeights() {
+        double[] depths = new double[nodes.length];
+        setDepths(root, 0.0, depths);
+
+        double maxDepth = 0.0;
+        for (int i = 0; i < externalNodeCount; i++) {
+            if (depths[i] > maxDepth) {
+                maxDepth = depths[i];
+            }
+        }
+
+        double[] heights = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            heights[i] = maxDepth - depths[i];
+        }
+        this.heights = heights;
+    }
+
+    private void setDepths(int node, double depth, double[] depths) {
+        // iterative pre-order traversal so very large trees don't overflow the stack
+        int[] stack = new int[nodes.length];
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            int n = stack[--top];
+            double d = (n == node ? depth : depths[parents[n]]);
+            if (lengths[n] > 0.0) {
+                d += lengths[n];
+            }
+            depths[n] = d;
+            for (int k = childOffsets[n]; k < childOffsets[n + 1]; k++) {
+                stack[top++] = children[k];
+            }
+        }
+    }
+
+    private Attributable.AttributeHelper getAttributes(int number) {
+        if (attributes == null) {
+            attributes = new Attributable.AttributeHelper[nodes.length];
+            attributesParsed = new boolean[nodes.length];
+        }
+        if (!attributesParsed[number]) {
+            attributesParsed[number] = true;
+            String comment = comments[number];
+            String label = labels[number];
+            String branchComment = branchComments[number];
+            if (comment != null || label != null || branchComment != null) {
+                Attributable.AttributeHelper helper = new Attributable.AttributeHelper();
+                parseComment(comment, helper);
+                if (label != null) {
+                    helper.setAttribute("label", label);
+                }
+                parseComment(branchComment, helper);
+                attributes[number] = helper;
+                comments[number] = null;
+                labels[number] = null;
+                branchComments[number] = null;
+            }
+        }
+        return attributes[number];
+    }
+
+    private static void parseComment(String comment, Attributable item) {
+        if (comment != null) {
+            try {
+                NexusImporter.parseMetaCommentPairs(comment, item);
+            } catch (Importer.BadFormatException bfe) {
+                // ignore it
+            }
+        }
+    }
+
+    // **************************************************************
+    // TaxonList IMPLEMENTATION
+    // **************************************************************
+
+    public int getTaxonCount() {
+        return externalNodeCount;
+    }
+
+    public Taxon getTaxon(int taxonIndex) {
+        return getNodeTaxon(nodes[taxonIndex]);
+    }
+
+    public String getTaxonId(int taxonIndex) {
+        Taxon taxon = getTaxon(taxonIndex);
+        return (taxon != null ? taxon.getId() : null);
+    }
+
+    public int getTaxonIndex(String id) {
+        for (int i = 0; i < externalNodeCount; i++) {
+            if (id.equals(getTaxonId(i))) return i;
+        }
+        return -1;
+    }
+
+    public int getTaxonIndex(Taxon taxon) {
+        for (int i = 0; i < externalNodeCount; i++) {
+            if (taxa[i] == taxon) return i;
+        }
+        return -1;
+    }
+
+    public List<Taxon> asList() {
+        List<Taxon> taxonList = new ArrayList<Taxon>();
+        for (int i = 0; i < externalNodeCount; i++) {
+            taxonList.add(taxa[i]);
+        }
+        return taxonList;
+    }
+
+    public Iterator<Taxon> iterator() {
+        return asList().iterator();
+    }
+
+    public Object getTaxonAttribute(int taxonIndex, String name) {
+        Taxon taxon = getTaxon(taxonIndex);
+        if (taxon != null) {
+            return taxon.getAttribute(name);
+        }
+        return getNodeAttribute(nodes[taxonIndex], name);
+    }
+
+    // **************************************************************
+    // Units IMPLEMENTATION
+    // **************************************************************
+
+    public Type getUnits() {
+        return units;
+    }
+
+    public void setUnits(Type units) {
+        this.units = units;
+    }
+
+    // **************************************************************
+    // Identifiable IMPLEMENTATION
+    // **************************************************************
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    // **************************************************************
+    // Attributable IMPLEMENTATION
+    // **************************************************************
+
+    public void setAttribute(String name, Object value) {
+        if (treeAttributes == null) {
+            treeAttributes = new Attributable.AttributeHelper();
+        }
+        treeAttributes.setAttribute(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        return (treeAttributes != null ? treeAttributes.getAttribute(name) : null);
+    }
+
+    public Iterator<String> getAttributeNames() {
+        return (treeAttributes != null ? treeAttributes.getAttributeNames() : null);
+    }
+
+    public String toString() {
+        return TreeUtils.newick(this);
+    }
+
+    private static final class Node implements NodeRef {
+        Node(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public void setNumber(int n) {
+            throw new UnsupportedOperationException("The nodes of an ArrayTree can't be renumbered");
+        }
+
+        private final int number;
+    }
+
+    private String id;
+    private Type units = Type.SUBSTITUTIONS;
+
+    private final int externalNodeCount;
+    private final int root;
+    private final Node[] nodes;
+    private final int[] parents;
+    private final int[] childOffsets;
+    private final int[] children;
+    private final double[] lengths;
+    private final Taxon[] taxa;
+    private final String[] comments;
+    private final String[] labels;
+    private final String[] branchComments;
+
+    private double[] heights = null;
+    private Attributable.AttributeHelper[] attributes = null;
+    private boolean[] attributesParsed = null;
+    private Attributable.AttributeHelper treeAttributes = null;
+}
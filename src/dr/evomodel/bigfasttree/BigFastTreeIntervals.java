@@ -15,6 +15,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * The coalescent intervals of a tree model, kept sorted by time. After a node height changes only
+ * that node's event is moved (by a binary search and a shift of the events in between) rather than
+ * re-sorting all the node heights.
+ *
+ * Any number of likelihoods can share one set of intervals (and one update and store/restore) by referring
+ * to the same bigFastTreeIntervals element.
+ */
 public class BigFastTreeIntervals extends AbstractModel implements Units, IntervalList {
     public BigFastTreeIntervals(TreeModel tree) {
         super("bigFastIntervals");
@@ -142,6 +150,7 @@ public class BigFastTreeIntervals extends AbstractModel implements Units, Interv
                 throw new IllegalArgumentException("The first event is not a sample event");
             }
             events.setEvent(lastTime, IntervalType.SAMPLE, nodes[0].getNumber(), 0,-1, 0);
+            events.setNodeOrder(nodes[0].getNumber(), 0);
 
             int lineages = 1;
             for (int i = 1; i < nodes.length; i++) {
@@ -176,7 +185,7 @@ public class BigFastTreeIntervals extends AbstractModel implements Units, Interv
 
         intervalsKnown = true;
         dirty = false;
-        updatedNodes = new ArrayList<>();
+        updatedNodes.clear();
     }
 
     private Type units = Type.GENERATIONS;
@@ -210,6 +219,7 @@ public class BigFastTreeIntervals extends AbstractModel implements Units, Interv
                     }
 
                 } else if (treeChangedEvent.isTreeChanged()) {
+                    intervalsKnown = false;
                     if (!treeChangedEvent.isNodeOrderChanged()) {
                         onlyUpdateTimes = true;
                     } else {
@@ -235,7 +245,7 @@ public class BigFastTreeIntervals extends AbstractModel implements Units, Interv
 
     @Override
     protected void storeState() {
-        storedUpdatedNodes = new ArrayList<>();
+        storedUpdatedNodes.clear();
         storedUpdatedNodes.addAll(updatedNodes);
 //        Collections.copy(storedUpdatedNodes, updatedNodes);
         storedIntervalsKnown = intervalsKnown;
@@ -28,15 +28,15 @@ package dr.evomodel.coalescent;
 import dr.evolution.coalescent.IntervalList;
 import dr.evolution.coalescent.IntervalType;
 import dr.evomodelxml.coalescent.GMRFSkyrideLikelihoodParser;
-import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.hmc.HessianWrtParameterProvider;
 import dr.inference.model.Likelihood;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.SymmTridiagMatrix;
 
 import java.util.ArrayList;
@@ -49,7 +49,7 @@ import java.util.List;
  */
 
 public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
-        implements GradientWrtParameterProvider, CoalescentIntervalProvider, Citable {
+        implements HessianWrtParameterProvider, CoalescentIntervalProvider, Citable {
 
     public static final boolean DEBUG = false;
 
@@ -82,8 +82,14 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
     private final List<Parameter> covPrecParametersRecent;
     private final List<Parameter> covPrecParametersDistant;
 
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovRecent;
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovDistant;
+    // the field precision and work buffers so the field density and its derivatives don't allocate
+    private GMRFTridiagonalPrecision fieldPrecision;
+    private double[] fieldBuffer;
+    private double[] productBuffer;
+
+    private List<GMRFTridiagonalPrecision> weightMatricesForMissingCovRecent;
+    private List<GMRFTridiagonalPrecision> weightMatricesForMissingCovDistant;
+    private double[] missingCovBuffer;
 
     private int[] firstObservedIndex;
     private int[] lastObservedIndex;
@@ -768,8 +774,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
         //return sufficientStatistics[i];
     }
 
-    protected double calculateLogCoalescentLikelihood() {
-
+    private void makeSufficientStatisticsKnown() {
         if (!intervalsKnown) {
             // intervalsKnown -> false when handleModelChanged event occurs in super.
             wrapSetupIntervals();
@@ -779,6 +784,11 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
             setupSufficientStatistics();
             intervalsKnown = true;
         }
+    }
+
+    protected double calculateLogCoalescentLikelihood() {
+
+        makeSufficientStatisticsKnown();
 
         // Matrix operations taken from block update sampler to calculate data likelihood and field prior
 
@@ -834,6 +844,9 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
         weightMatrix = new SymmTridiagMatrix(diag, offdiag);
 
+        fieldPrecision = new GMRFTridiagonalPrecision(diag, offdiag);
+        fieldBuffer = new double[fieldLength];
+        productBuffer = new double[fieldLength];
     }
 
     protected double getFieldScalar() {
@@ -842,8 +855,10 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
     private void setupGMRFWeightsForMissingCov() {
 
+        missingCovBuffer = new double[fieldLength];
+
         if(firstObservedIndex != null){
-            weightMatricesForMissingCovRecent = new ArrayList<SymmTridiagMatrix>();
+            weightMatricesForMissingCovRecent = new ArrayList<GMRFTridiagonalPrecision>();
 
             for (int i = 0; i < covPrecParametersRecent.size(); i++) {
                 double[] offdiagRec = new double[firstObservedIndex[i] - 2];
@@ -858,13 +873,13 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 }
                 diagRec[0] = 1.0;
 
-                weightMatricesForMissingCovRecent.add(i, new SymmTridiagMatrix(diagRec, offdiagRec));
+                weightMatricesForMissingCovRecent.add(i, new GMRFTridiagonalPrecision(diagRec, offdiagRec));
             }
 
         }
 
         if(lastObservedIndex != null) {
-            weightMatricesForMissingCovDistant = new ArrayList<SymmTridiagMatrix>();
+            weightMatricesForMissingCovDistant = new ArrayList<GMRFTridiagonalPrecision>();
 
             for (int i = 0; i < covPrecParametersDistant.size(); i++) {
                 double[] offdiag = new double[fieldLength - lastObservedIndex[i] - 1];
@@ -884,35 +899,13 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 //Take care of the endpoint
                 diag[fieldLength - lastObservedIndex[i] - 1] = 1.0;
 
-                weightMatricesForMissingCovDistant.add(i, new SymmTridiagMatrix(diag, offdiag));
+                weightMatricesForMissingCovDistant.add(i, new GMRFTridiagonalPrecision(diag, offdiag));
             }
         }
 
     }
 
 
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovRecent(double precision, int covIndex, int firstObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovRecent.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(firstObs - 2, firstObs - 2,
-                a.get(firstObs - 2, firstObs - 2) * precision);
-        return a;
-    }
-
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovDistant(double precision, int covIndex, int lastObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovDistant.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(fieldLength - lastObs - 1, fieldLength - lastObs - 1,
-                a.get(fieldLength - lastObs - 1, fieldLength - lastObs - 1) * precision);
-        return a;
-    }
-
     public int nLoci() {
         // return treeList.size();
         return intervalsList.size();
@@ -956,6 +949,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
         System.arraycopy(numCoalEvents, 0, storedNumCoalEvents, 0, numCoalEvents.length);
         // storedPrecMatrix = precMatrix.copy();
         System.arraycopy(ploidySums, 0, storedPloidySums, 0, ploidySums.length);
+        skygridHelper.storeState();
     }
 
 
@@ -969,6 +963,12 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
         double[] tmp2 = ploidySums;
         ploidySums = storedPloidySums;
         storedPloidySums = tmp2;
+        skygridHelper.restoreState();
+    }
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        super.handleVariableChangedEvent(variable, index, type);
+        skygridHelper.variableChanged(variable);
     }
 
     // Implementation of GradientWrtParameterProvider
@@ -987,51 +987,78 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
     }
 
     public double[] getGradientLogDensity() {
-        double [] gradLogDens = new double [popSizeParameter.getSize()];
-        double[] currentGamma = popSizeParameter.getParameterValues();
-        int popSizeDim = popSizeParameter.getSize();
+        makeSufficientStatisticsKnown();
 
-        // handle covariate case later
-        gradLogDens[0] = precisionParameter.getParameterValue(0)*(currentGamma[0]-currentGamma[1])
-                + numCoalEvents[0] - sufficientStatistics[0]*Math.exp(-currentGamma[0]);
+        final int popSizeDim = popSizeParameter.getSize();
+        double[] gradLogDens = new double[popSizeDim];
 
-        gradLogDens[popSizeDim-1] = precisionParameter.getParameterValue(0)*(currentGamma[popSizeDim-1]-currentGamma[popSizeDim-2])
-                + numCoalEvents[popSizeDim-1] - sufficientStatistics[popSizeDim-1]*Math.exp(-currentGamma[popSizeDim-1]);
+        // gradient of the field, -Q (gamma - covariate effects)
+        for (int i = 0; i < popSizeDim; i++) {
+            fieldBuffer[i] = popSizeParameter.getParameterValue(i);
+        }
+        skygridHelper.updateGammaWithCovariates(fieldBuffer);
+        setFieldPrecisionScale();
+        fieldPrecision.multiply(fieldBuffer, productBuffer);
 
-        if(beta != null) {
-            for (int k = 0; k < beta.size(); k++) {
+        for (int i = 0; i < popSizeDim; i++) {
+            gradLogDens[i] = -productBuffer[i] - numCoalEvents[i]
+                    + sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i));
+        }
+
+        return gradLogDens;
+    }
 
-                Parameter b = beta.get(k);
-                MatrixParameter covariate = covariates.get(k);
+    public double[] getDiagonalHessianLogDensity() {
+        makeSufficientStatisticsKnown();
 
-                gradLogDens[0] = gradLogDens[0] - precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, 0) * b.getParameterValue(0)
-                        + precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, 1) * b.getParameterValue(0);
+        final int popSizeDim = popSizeParameter.getSize();
+        double[] hessian = new double[popSizeDim];
 
-                gradLogDens[popSizeDim - 1] = gradLogDens[popSizeDim - 1] - precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, popSizeDim - 1) * b.getParameterValue(0)
-                        + precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, popSizeDim - 2) * b.getParameterValue(0);
-            }
+        setFieldPrecisionScale();
+        for (int i = 0; i < popSizeDim; i++) {
+            hessian[i] = -fieldPrecision.getDiagonal(i)
+                    - sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i));
         }
 
-        for(int i = 1; i<(popSizeDim-1); i++){
-            gradLogDens[i] = precisionParameter.getParameterValue(0)*(-currentGamma[i-1] + 2*currentGamma[i] - currentGamma[i+1])
-                    + numCoalEvents[i] - sufficientStatistics[i]*Math.exp(-currentGamma[i]);
-
-            if(beta != null) {
-                for (int k = 0; k < beta.size(); k++) {
+        return hessian;
+    }
 
-                    Parameter bk = beta.get(k);
-                    MatrixParameter covk = covariates.get(k);
+    public double[][] getHessianLogDensity() {
+        final int popSizeDim = popSizeParameter.getSize();
+        double[][] hessian = new double[popSizeDim][popSizeDim];
 
-                    gradLogDens[i] = gradLogDens[i] + precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i - 1) * bk.getParameterValue(0)
-                            - 2 * precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i) * bk.getParameterValue(0)
-                            + precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i + 1) * bk.getParameterValue(0);
-                }
+        double[] diagonal = getDiagonalHessianLogDensity();
+        for (int i = 0; i < popSizeDim; i++) {
+            hessian[i][i] = diagonal[i];
+            if (i < popSizeDim - 1) {
+                hessian[i][i + 1] = -fieldPrecision.getOffDiagonal(i);
+                hessian[i + 1][i] = -fieldPrecision.getOffDiagonal(i);
             }
         }
 
-        return gradLogDens;
+        return hessian;
+    }
+
+    /**
+     * Sets result to the product of the Hessian of the log density (wrt the log population sizes) and v
+     * without forming the matrix.
+     */
+    public void getHessianVectorProduct(double[] v, double[] result) {
+        makeSufficientStatisticsKnown();
+
+        final int popSizeDim = popSizeParameter.getSize();
+
+        setFieldPrecisionScale();
+        fieldPrecision.multiply(v, result);
+        for (int i = 0; i < popSizeDim; i++) {
+            result[i] = -result[i]
+                    - sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i)) * v[i];
+        }
     }
 
+    private void setFieldPrecisionScale() {
+        fieldPrecision.setScale(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
+    }
 
     /*public int getCoalescentIntervalLineageCount(int i) {
         return 0;
@@ -1045,7 +1072,19 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
         SkygridHelper() { }
 
-        void updateGammaWithCovariates(DenseVector currentGamma) {
+        void updateGammaWithCovariates(double[] currentGamma) {
+            // Do nothing
+        }
+
+        void variableChanged(Variable variable) {
+            // Do nothing
+        }
+
+        void storeState() {
+            // Do nothing
+        }
+
+        void restoreState() {
             // Do nothing
         }
 
@@ -1055,27 +1094,20 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
         double getLogFieldLikelihood() {
 
-            if (!intervalsKnown) {
-                //intervalsKnown -> false when handleModelChanged event occurs in super.
-                wrapSetupIntervals();
-                for(IntervalList intervalList : intervalsList){
-                    intervalList.calculateIntervals();
-                }
-                setupSufficientStatistics();
-                intervalsKnown = true;
-            }
+            makeSufficientStatisticsKnown();
 
-            DenseVector diagonal1 = new DenseVector(fieldLength);
-            DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+            double[] currentGamma = fieldBuffer;
+            for (int i = 0; i < fieldLength; i++) {
+                currentGamma[i] = popSizeParameter.getParameterValue(i);
+            }
 
             updateGammaWithCovariates(currentGamma);
 
             double currentLike = handleMissingValues();
 
-            SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-            currentQ.mult(currentGamma, diagonal1);
+            setFieldPrecisionScale();
 
-            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * fieldPrecision.quadraticForm(currentGamma);
             if (lambdaParameter.getParameterValue(0) == 1) {
                 currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
             } else {
@@ -1091,7 +1123,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
         SkygridCovariateHelper() { }
 
         @Override
-        protected void updateGammaWithCovariates(DenseVector currentGamma) {
+        protected void updateGammaWithCovariates(double[] currentGamma) {
 
             assert (beta != null);
 
@@ -1099,74 +1131,179 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
             if (NEW_APPROACH) {
 
-                final int N = currentGamma.size();
-                double[] update = new double[N];
+                final int N = currentGamma.length;
 
-                if (dMatrix != null) {
-                    final int K = dMatrix.getColumnDimension();
+                updateCovariateEffects(N);
 
-                    if (N != dMatrix.getRowDimension()) {
-                        throw new RuntimeException("Incorrect covariate dimensions (" + N + " != "
-                                + dMatrix.getRowDimension() + ")");
-                    }
+                for (int i = 0; i < N; ++i) {
+                    currentGamma[i] -= covariateEffects[i];
+                }
 
-                    for (int i = 0; i < N; ++i) {
-                        for (int j = 0; j < K; ++j) {
-                            update[i] += dMatrix.getParameterValue(i, j) * betaParameter.getParameterValue(j);
-                        }
-                    }
+            } else {
+                double[] currentBeta = new double[beta.size()];
+
+                for (int i = 0; i < beta.size(); i++) {
+                    currentBeta[i] = beta.get(i).getParameterValue(0);
                 }
 
                 if (covariates != null) {
-                    if (beta.size() != covariates.size()) {
-                        throw new RuntimeException("beta.size(" + beta.size() + ") != covariates.size(" + covariates.size() + ")");
+
+                    for (int i = 0; i < covariates.size(); i++) {
+                        for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
+                            currentGamma[j] -= covariates.get(i).getParameterValue(0, j) * currentBeta[i];
+                        }
                     }
+                }
+            }
+        }
 
-                    for (int k = 0; k < beta.size(); ++k) {
+        /**
+         * Keeps the covariate effects (the design matrix and covariates times their coefficients)
+         * up to date. When only some coefficients have changed since the last call, just their
+         * columns are added in. Everything is recomputed when a covariate has changed and, to stop
+         * rounding errors building up, after every MAX_INCREMENTAL_UPDATES coefficient changes.
+         */
+        private void updateCovariateEffects(int N) {
 
-                        Parameter b = beta.get(k);
-                        final int J = b.getDimension();
-                        MatrixParameter covariate = covariates.get(k);
+            if (!covariateEffectsKnown || incrementalUpdateCount >= MAX_INCREMENTAL_UPDATES) {
+                setupCovariateColumns(N);
 
-                        if ((J != covariate.getRowDimension()) ||
-                                (N != covariate.getColumnDimension())) { // Note: XML current has covariates transposed
-                            throw new RuntimeException("Incorrect dimensions in " + covariate.getId() + " (r=" + covariate.getRowDimension() +
-                                    ",c=" + covariate.getColumnDimension()+ ")");
-                        }
+                Arrays.fill(covariateEffects, 0.0);
+                for (int c = 0; c < coefficientParameters.length; ++c) {
+                    coefficientValues[c] = coefficientParameters[c].getParameterValue(coefficientIndices[c]);
+                }
+                for (int i = 0; i < N; ++i) {
+                    for (int c = 0; c < coefficientParameters.length; ++c) {
+                        covariateEffects[i] += covariateColumns[c][i] * coefficientValues[c];
+                    }
+                }
 
-                        for (int i = 0; i < N; ++i) {
-                            for (int j = 0; j < J; ++j) {
-                                update[i] += covariate.getParameterValue(j, i) * b.getParameterValue(j);
-                            }
-                        }
+                covariateEffectsKnown = true;
+                incrementalUpdateCount = 0;
+                return;
+            }
+
+            for (int c = 0; c < coefficientParameters.length; ++c) {
+                final double value = coefficientParameters[c].getParameterValue(coefficientIndices[c]);
+                if (value != coefficientValues[c]) {
+                    final double delta = value - coefficientValues[c];
+                    final double[] column = covariateColumns[c];
+                    for (int i = 0; i < N; ++i) {
+                        covariateEffects[i] += column[i] * delta;
                     }
+                    coefficientValues[c] = value;
+                    incrementalUpdateCount++;
                 }
+            }
+        }
 
-                for (int i = 0; i < N; ++i) {
-                    currentGamma.set(i, currentGamma.get(i) - update[i]);
+        private void setupCovariateColumns(int N) {
+
+            int K = (dMatrix != null ? dMatrix.getColumnDimension() : 0);
+
+            if (dMatrix != null && N != dMatrix.getRowDimension()) {
+                throw new RuntimeException("Incorrect covariate dimensions (" + N + " != "
+                        + dMatrix.getRowDimension() + ")");
+            }
+
+            int coefficientCount = K;
+
+            if (covariates != null) {
+                if (beta.size() != covariates.size()) {
+                    throw new RuntimeException("beta.size(" + beta.size() + ") != covariates.size(" + covariates.size() + ")");
                 }
 
-            } else {
-                DenseVector currentBeta = new DenseVector(beta.size());
+                for (int k = 0; k < beta.size(); ++k) {
 
-                for (int i = 0; i < beta.size(); i++) {
-                    currentBeta.set(i, beta.get(i).getParameterValue(0));
+                    Parameter b = beta.get(k);
+                    final int J = b.getDimension();
+                    MatrixParameter covariate = covariates.get(k);
+
+                    if ((J != covariate.getRowDimension()) ||
+                            (N != covariate.getColumnDimension())) { // Note: XML current has covariates transposed
+                        throw new RuntimeException("Incorrect dimensions in " + covariate.getId() + " (r=" + covariate.getRowDimension() +
+                                ",c=" + covariate.getColumnDimension()+ ")");
+                    }
+
+                    coefficientCount += J;
                 }
+            }
 
-                if (covariates != null) {
+            if (covariateColumns == null || covariateColumns.length != coefficientCount) {
+                covariateColumns = new double[coefficientCount][N];
+                coefficientParameters = new Parameter[coefficientCount];
+                coefficientIndices = new int[coefficientCount];
+                coefficientValues = new double[coefficientCount];
+                covariateEffects = new double[N];
+            }
 
-                    for (int i = 0; i < covariates.size(); i++) {
-                        for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
-                            currentGamma.set(j, currentGamma.get(j) - covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+            int c = 0;
+            for (int j = 0; j < K; ++j) {
+                for (int i = 0; i < N; ++i) {
+                    covariateColumns[c][i] = dMatrix.getParameterValue(i, j);
+                }
+                coefficientParameters[c] = betaParameter;
+                coefficientIndices[c] = j;
+                c++;
+            }
+
+            if (covariates != null) {
+                for (int k = 0; k < beta.size(); ++k) {
+
+                    Parameter b = beta.get(k);
+                    MatrixParameter covariate = covariates.get(k);
+
+                    for (int j = 0; j < b.getDimension(); ++j) {
+                        for (int i = 0; i < N; ++i) {
+                            covariateColumns[c][i] = covariate.getParameterValue(j, i);
                         }
+                        coefficientParameters[c] = b;
+                        coefficientIndices[c] = j;
+                        c++;
                     }
                 }
             }
         }
+
+        @Override
+        void variableChanged(Variable variable) {
+            if (variable == popSizeParameter || variable == precisionParameter || variable == lambdaParameter
+                    || variable == betaParameter || (beta != null && beta.contains(variable))) {
+                // the coefficients are checked for changes when the effects are next needed
+                return;
+            }
+            covariateEffectsKnown = false;
+            covariatesChangedSinceStore = true;
+        }
+
+        @Override
+        void storeState() {
+            covariatesChangedSinceStore = false;
+        }
+
+        @Override
+        void restoreState() {
+            // restored coefficients are picked up like any other change but restored covariates aren't
+            if (covariatesChangedSinceStore) {
+                covariateEffectsKnown = false;
+            }
+        }
+
+        private double[][] covariateColumns = null;
+        private Parameter[] coefficientParameters;
+        private int[] coefficientIndices;
+        private double[] coefficientValues;
+        private double[] covariateEffects;
+
+        private boolean covariateEffectsKnown = false;
+        private boolean covariatesChangedSinceStore = false;
+        private int incrementalUpdateCount = 0;
     }
 
     private static final boolean NEW_APPROACH = true;
 
+    private static final int MAX_INCREMENTAL_UPDATES = 1000;
+
     class SkygridMissingCovariateHelper extends SkygridCovariateHelper {
 
         SkygridMissingCovariateHelper() { }
@@ -1179,9 +1316,8 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
             assert (covPrecParametersDistant != null);
 
             int numMissing;
-            DenseVector tempVectMissingCov;
-            SymmTridiagMatrix missingCovQ;
-            DenseVector tempVectMissingCov2;
+            double[] tempVectMissingCov = missingCovBuffer;
+            GMRFTridiagonalPrecision missingCovQ;
             int numMissingRecent;
 
             double currentLike = 0.0;
@@ -1190,20 +1326,18 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersDistant.size(); i++) {
 
                     numMissing = fieldLength - lastObservedIndex[i];
-                    tempVectMissingCov = new DenseVector(numMissing);
-                    tempVectMissingCov2 = new DenseVector(numMissing);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovDistant(covPrecParametersDistant.get(i).getParameterValue(0), i,
-                            lastObservedIndex[i]);
+                    double precision = covPrecParametersDistant.get(i).getParameterValue(0);
+                    missingCovQ = weightMatricesForMissingCovDistant.get(i);
+                    missingCovQ.setScale(precision, 1.0);
 
                     for (int j = 0; j < numMissing; j++) {
-                        tempVectMissingCov.set(j, covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
-                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1));
+                        tempVectMissingCov[j] = covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
+                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
-                    currentLike += 0.5 * (numMissing) * Math.log(covPrecParametersDistant.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                    currentLike += 0.5 * (numMissing) * Math.log(precision)
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
 
@@ -1212,20 +1346,18 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersRecent.size(); i++) {
 
                     numMissingRecent = firstObservedIndex[i]-1;
-                    tempVectMissingCov = new DenseVector(numMissingRecent);
-                    tempVectMissingCov2 = new DenseVector(numMissingRecent);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovRecent(covPrecParametersRecent.get(i).getParameterValue(0), i,
-                            firstObservedIndex[i]);
+                    double precision = covPrecParametersRecent.get(i).getParameterValue(0);
+                    missingCovQ = weightMatricesForMissingCovRecent.get(i);
+                    missingCovQ.setScale(precision, 1.0);
 
                     for (int j = 0; j < numMissingRecent; j++) {
-                        tempVectMissingCov.set(j, covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
-                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1));
+                        tempVectMissingCov[j] = covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
+                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
-                    currentLike += 0.5 * (numMissingRecent) * Math.log(covPrecParametersRecent.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                    currentLike += 0.5 * (numMissingRecent) * Math.log(precision)
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
             return currentLike;
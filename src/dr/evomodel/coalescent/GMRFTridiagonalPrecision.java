@@ -0,0 +1,133 @@
+/*
+ * GMRFTridiagonalPrecision.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.coalescent;
+
+/**
+ * The precision matrix of a first-order GMRF, held as the diagonal and off-diagonal of its unscaled
+ * weight matrix together with the scaled copies for the current precision (and lambda). The scaled
+ * values are updated in place when the precision changes and the products with a vector are written
+ * into the caller's buffers, so evaluating the field density or its derivatives doesn't allocate.
+ *
+ * @author agent
+ */
+public final class GMRFTridiagonalPrecision {
+
+    /**
+     * @param diagonal    the diagonal of the weight matrix (length n)
+     * @param offDiagonal the off-diagonal of the weight matrix (length n - 1)
+     */
+    public GMRFTridiagonalPrecision(double[] diagonal, double[] offDiagonal) {
+        if (offDiagonal.length != Math.max(diagonal.length - 1, 0)) {
+            throw new IllegalArgumentException("Off-diagonal should have length " + (diagonal.length - 1));
+        }
+        this.dimension = diagonal.length;
+        this.weightDiagonal = diagonal.clone();
+        this.weightOffDiagonal = offDiagonal.clone();
+        this.diagonal = new double[dimension];
+        this.offDiagonal = new double[offDiagonal.length];
+        setScale(1.0, 1.0);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Scales the weight matrix to give the precision matrix, precision * (lambda * W + (1 - lambda) * I),
+     * in the same way as GMRFSkyrideLikelihood.getScaledWeightMatrix(precision, lambda).
+     */
+    public void setScale(double precision, double lambda) {
+        if (precision == this.precision && lambda == this.lambda) {
+            return;
+        }
+        if (lambda == 1.0) {
+            for (int i = 0; i < dimension; i++) {
+                diagonal[i] = weightDiagonal[i] * precision;
+            }
+            for (int i = 0; i < offDiagonal.length; i++) {
+                offDiagonal[i] = weightOffDiagonal[i] * precision;
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                diagonal[i] = precision * (1 - lambda + lambda * weightDiagonal[i]);
+            }
+            for (int i = 0; i < offDiagonal.length; i++) {
+                offDiagonal[i] = weightOffDiagonal[i] * precision * lambda;
+            }
+        }
+        this.precision = precision;
+        this.lambda = lambda;
+    }
+
+    public double getDiagonal(int i) {
+        return diagonal[i];
+    }
+
+    public double getOffDiagonal(int i) {
+        return offDiagonal[i];
+    }
+
+    /**
+     * Sets y = Q x (x and y must be different arrays).
+     */
+    public void multiply(double[] x, double[] y) {
+        final int n = dimension;
+        if (n == 1) {
+            y[0] = diagonal[0] * x[0];
+            return;
+        }
+        y[0] = diagonal[0] * x[0] + offDiagonal[0] * x[1];
+        for (int i = 1; i < n - 1; i++) {
+            y[i] = offDiagonal[i - 1] * x[i - 1] + diagonal[i] * x[i] + offDiagonal[i] * x[i + 1];
+        }
+        y[n - 1] = offDiagonal[n - 2] * x[n - 2] + diagonal[n - 1] * x[n - 1];
+    }
+
+    /**
+     * @return x' Q x
+     */
+    public double quadraticForm(double[] x) {
+        final int n = dimension;
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += diagonal[i] * x[i] * x[i];
+        }
+        double cross = 0.0;
+        for (int i = 0; i < n - 1; i++) {
+            cross += offDiagonal[i] * x[i] * x[i + 1];
+        }
+        return sum + 2.0 * cross;
+    }
+
+    private final int dimension;
+    private final double[] weightDiagonal;
+    private final double[] weightOffDiagonal;
+    private final double[] diagonal;
+    private final double[] offDiagonal;
+
+    private double precision = Double.NaN;
+    private double lambda = Double.NaN;
+}
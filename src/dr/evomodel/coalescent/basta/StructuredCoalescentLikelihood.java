@@ -46,7 +46,7 @@ import dr.inference.model.Variable;
 import dr.math.MathUtils;
 import dr.util.*;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -68,10 +68,13 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     private static final boolean DEBUG = false;
     private static final boolean MATRIX_DEBUG = false;
-    private static final boolean UPDATE_DEBUG = false;
 
     //private static final boolean USE_BEAGLE = false;
-    private static final boolean ASSOC_MULTIPLICATION = true;
+
+    //only re-propagate the intervals above the lowest changed node after a tree move
+    private static final boolean INCREMENTAL = true;
+    //number of points along the intervals at which the lineage densities are kept to resume from
+    private static final int CHECKPOINT_COUNT = 32;
 
     public StructuredCoalescentLikelihood(Tree tree, BranchRateModel branchRateModel, Parameter popSizes, PatternList patternList,
                                           DataType dataType, String tag, GeneralSubstitutionModel generalSubstitutionModel, int subIntervals,
@@ -118,9 +121,15 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         this.addedLength = 0;
 
         this.nodeProbDist = new ProbDist[nodeCount];
+        this.storedNodeProbDist = new ProbDist[nodeCount];
         for (int i = 0; i < this.nodeProbDist.length; i++) {
             this.nodeProbDist[i] = new ProbDist(demes);
+            this.nodeProbDist[i].number = i;
+            this.storedNodeProbDist[i] = new ProbDist(demes);
+            this.storedNodeProbDist[i].number = i;
         }
+        this.probDistTouched = new boolean[nodeCount];
+        this.touchedProbDists = new int[nodeCount];
         //set the pattern and starting lineage probability for each external node
         for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
             NodeRef refNode = treeModel.getExternalNode(i);
@@ -136,17 +145,43 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         this.currentCoalescentInterval = 0;
         this.migrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
         this.storedMigrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
+        this.matrixLengths = new double[maxCoalescentIntervals];
+        this.storedMatrixLengths = new double[maxCoalescentIntervals];
+        Arrays.fill(this.matrixLengths, Double.NaN);
+        this.matrixTouched = new boolean[maxCoalescentIntervals];
+        this.touchedMatrices = new int[maxCoalescentIntervals];
+
+        this.eventNodes = new int[nodeCount];
+        this.eventHeights = new double[nodeCount];
+        this.eventLeft = new int[nodeCount];
+        this.eventRight = new int[nodeCount];
+        this.newEventNodes = new int[nodeCount];
+        this.newEventHeights = new double[nodeCount];
+        this.newEventLeft = new int[nodeCount];
+        this.newEventRight = new int[nodeCount];
+        this.storedEventNodes = new int[nodeCount];
+        this.storedEventHeights = new double[nodeCount];
+        this.storedEventLeft = new int[nodeCount];
+        this.storedEventRight = new int[nodeCount];
+
+        this.checkpointSpacing = Math.max(1, (nodeCount + CHECKPOINT_COUNT - 1) / CHECKPOINT_COUNT);
+        this.checkpoints = new Checkpoint[CHECKPOINT_COUNT];
+        this.storedCheckpoints = new Checkpoint[CHECKPOINT_COUNT];
+        for (int i = 0; i < CHECKPOINT_COUNT; i++) {
+            this.checkpoints[i] = new Checkpoint(nodeCount, demes);
+            this.storedCheckpoints[i] = new Checkpoint(nodeCount, demes);
+        }
+        this.checkpointTouched = new boolean[CHECKPOINT_COUNT];
+        this.touchedCheckpoints = new int[CHECKPOINT_COUNT];
 
-        this.times = new ArrayList<ComparableDouble>();
-        this.children = new ArrayList<Integer>();
-        this.nodes = new ArrayList<NodeRef>();
-
-        this.storedTimes = new ArrayList<ComparableDouble>();
-        this.storedChildren = new ArrayList<Integer>();
-        this.storedNodes = new ArrayList<NodeRef>();
+        this.popSizeValues = new double[demes];
+        this.startProbs = new double[demes];
+        this.endProbs = new double[demes];
+        this.coalescentComponents = new double[demes];
 
-        this.treeModelUpdateFired = false;
-        this.rateChanged = false;
+        this.eventsKnown = false;
+        this.matricesKnown = false;
+        this.checkpointsKnown = false;
 
         this.likelihoodKnown = false;
 
@@ -223,39 +258,63 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     private double traverseTree(Tree tree, NodeRef root, PatternList patternList) {
         double MULTIFURCATION_LIMIT = 1e-9;
 
-        if (treeModelUpdateFired && !rateChanged) {
-            if (DEBUG) {
-                System.out.println("treeModelUpdateFired");
-                System.out.println("current coalescent intervals:");
-                for (int i = 1; i < times.size(); i++) {
-                    System.out.println((i-1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue()));
-                }
+        final int eventCount = eventNodes.length;
+        final int firstChangedEvent = updateEvents();
+
+        if (DEBUG) {
+            System.out.println("first changed event = " + firstChangedEvent);
+            System.out.println("current coalescent intervals:");
+            for (int i = 1; i < eventCount; i++) {
+                System.out.println((i-1) + ": " + (eventHeights[i] - eventHeights[i-1]));
             }
-            updateTransitionProbabilities();
-            treeModelUpdateFired = false;
-        } else {
-            times.clear();
-            children.clear();
-            nodes.clear();
-            collectAllTimes(tree, root, nodes, times, children);
-            indices = new int[times.size()];
+        }
 
-            HeapSort.sort(times, indices);
+        synchronized (branchRateModel) {
+            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
+        }
+        for (int k = 0; k < demes; k++) {
+            popSizeValues[k] = popSizes.getParameterValue(k);
         }
 
-        double lnL = 0.0;
+        double lnL;
+        double start;
+        int i;
+        int j;
+
+        final int checkpoint = findCheckpoint(firstChangedEvent);
+        if (checkpoint >= 0) {
+            //nothing has changed below this checkpoint, so resume the traversal from there
+            Checkpoint cp = checkpoints[checkpoint];
+            restoreCheckpoint(cp);
+            lnL = cp.logLikelihood;
+            start = cp.start;
+            i = cp.event;
+            j = cp.lineageEvent;
+            this.checkpointCount = checkpoint + 1;
+        } else {
+            Arrays.fill(addedLineages, false);
+            this.addedLength = 0;
+            this.currentCoalescentInterval = 0;
+            lnL = 0.0;
+            // start is the time of the first tip
+            start = eventHeights[0];
+            i = 0;
+            j = 0;
+            this.checkpointCount = 0;
+        }
 
-        // start is the time of the first tip
-        double start = times.get(indices[0]).doubleValue();
+        int nextCheckpoint = i + checkpointSpacing;
+        while (i < eventCount) {
 
-        int i = 0;
-        int j = 0;
-        while (i < times.size()) {
+            if (INCREMENTAL && i >= nextCheckpoint) {
+                saveCheckpoint(i, j, start, lnL);
+                nextCheckpoint = i + checkpointSpacing;
+            }
 
             int lineagesRemoved = 0;
             int lineagesAdded = 0;
 
-            final double finish = times.get(indices[i]).doubleValue();
+            final double finish = eventHeights[i];
             double next = finish;
 
             if (DEBUG) {
@@ -265,16 +324,16 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             double intervalLength = finish - start;
 
             while (Math.abs(next - finish) < MULTIFURCATION_LIMIT) {
-                final int children = this.children.get(indices[i]);
+                final int children = treeModel.getChildCount(treeModel.getNode(eventNodes[i]));
                 if (children == 0) {
                     lineagesAdded += 1;
                 } else {
                     lineagesRemoved += (children - 1);
                 }
                 i += 1;
-                if (i == times.size()) break;
+                if (i == eventCount) break;
 
-                next = times.get(indices[i]).doubleValue();
+                next = eventHeights[i];
             }
 
             if (lineagesAdded > 0) {
@@ -286,12 +345,12 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                     if (DEBUG) {
                         System.out.println("start = " + start + " ; finish = " + finish + " ; intervalCount > 0");
                     }
-                    while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - finish) < MULTIFURCATION_LIMIT) {
-                        NodeRef refNode = nodes.get(indices[j]);
+                    while (Math.abs(eventHeights[j] - finish) < MULTIFURCATION_LIMIT) {
+                        NodeRef refNode = treeModel.getNode(eventNodes[j]);
                         if (treeModel.isExternal(refNode)) {
                             //ProbDist newProbDist = new ProbDist(demes, 0.0, refNode);
                             //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                            nodeProbDist[refNode.getNumber()].update( 0.0);
+                            touchProbDist(refNode.getNumber()).update( 0.0);
                             //newProbDist.setIntervalType(IntervalType.SAMPLE);
                             //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] =  1.0;
                             //newProbDist.copyLineageDensities();
@@ -311,13 +370,13 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                             NodeRef rightChild = treeModel.getChild(refNode, 1);
                             //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode, leftChild, rightChild);
                             //newProbDist.setIntervalType(IntervalType.COALESCENT);
-                            nodeProbDist[refNode.getNumber()].update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
+                            touchProbDist(refNode.getNumber()).update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
                             //temporary list required to keep accurate track of expected lineage counts
                             //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
                             addedLineages[refNode.getNumber()] = true;
                         }
                         j++;
-                        if (j >= indices.length) {
+                        if (j >= eventCount) {
                             j = 0;
                             break;
                         }
@@ -327,12 +386,12 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                     if (DEBUG) {
                         System.out.println("first sampling event");
                     }
-                    while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - start) < MULTIFURCATION_LIMIT) {
-                        NodeRef refNode = nodes.get(indices[j]);
+                    while (Math.abs(eventHeights[j] - start) < MULTIFURCATION_LIMIT) {
+                        NodeRef refNode = treeModel.getNode(eventNodes[j]);
                         if (treeModel.isExternal(refNode)) {
                             //ProbDist newProbDist = new ProbDist(demes, 0.0, refNode);
                             //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                            nodeProbDist[refNode.getNumber()].update( 0.0);
+                            touchProbDist(refNode.getNumber()).update( 0.0);
                             //newProbDist.setIntervalType(IntervalType.SAMPLE);
                             //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] =  1.0;
                             //newProbDist.copyLineageDensities();
@@ -347,10 +406,10 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                         } else {
                             throw new RuntimeException("First interval cannot be a coalescent event.");
                         }
-                        //System.out.println("** (j=" + j + ") " + treeModel.getNodeHeight(nodes.get(indices[j])));
+                        //System.out.println("** (j=" + j + ") " + eventHeights[j]);
                         j++;
                         //System.out.println("** (j=" + j + ") ");
-                        if (j >= indices.length) {
+                        if (j >= eventCount) {
                             j = 0;
                             break;
                         }
@@ -365,12 +424,12 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                     System.out.println("start = " + start + " ; finish = " + finish);
                 }
                 incrementActiveLineages(finish-start);
-                while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - finish) < MULTIFURCATION_LIMIT) {
-                    NodeRef refNode = nodes.get(indices[j]);
+                while (Math.abs(eventHeights[j] - finish) < MULTIFURCATION_LIMIT) {
+                    NodeRef refNode = treeModel.getNode(eventNodes[j]);
                     if (treeModel.isExternal(refNode)) {
                         //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode);
                         //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                        nodeProbDist[refNode.getNumber()].update( 0.0);
+                        touchProbDist(refNode.getNumber()).update( 0.0);
                         //newProbDist.setIntervalType(IntervalType.SAMPLE);
                         //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] = 1.0;
                         //newProbDist.copyLineageDensities();
@@ -396,7 +455,7 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                         }*/
                         //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode, leftChild, rightChild);
                         //newProbDist.setIntervalType(IntervalType.COALESCENT);
-                        nodeProbDist[refNode.getNumber()].update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
+                        touchProbDist(refNode.getNumber()).update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
                         //lnL += newProbDist.computeCoalescedLineage(leftProbDist, rightProbDist);
                         lnL += nodeProbDist[refNode.getNumber()].computeCoalescedLineage(leftProbDist, rightProbDist);
                         if (!treeModel.isRoot(refNode)) {
@@ -409,10 +468,10 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                             }
                         }
                     }
-                    //System.out.println("** (j=" + j + ") " + treeModel.getNodeHeight(nodes.get(indices[j])));
+                    //System.out.println("** (j=" + j + ") " + eventHeights[j]);
                     j++;
                     //System.out.println("** (j=" + j + ") ");
-                    if (j >= indices.length) {
+                    if (j >= eventCount) {
                         break;
                     }
                 }
@@ -462,11 +521,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println("Structured coalescent lnL = " + lnL);
         }
 
-        this.finalCoalescentInterval = this.currentCoalescentInterval;
-        //System.out.println("finalCoalescentInterval = " + finalCoalescentInterval);
         this.currentCoalescentInterval = 0;
         this.matricesKnown = true;
-        this.rateChanged = false;
+        this.checkpointsKnown = true;
 
         return lnL;
     }
@@ -493,9 +550,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             }
         }*/
 
-        double[] startProbs = new double[demes];
-        double[] endProbs = new double[demes];
         for (int i = 0; i < this.demes; i++) {
+            this.startProbs[i] = 0.0;
+            this.endProbs[i] = 0.0;
             this.startExpected[i] = 0.0;
             this.endExpected[i] = 0.0;
         }
@@ -519,8 +576,8 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         }*/
 
         for (int i = 0; i < demes; i++) {
-            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i])/popSizes.getParameterValue(i);
-            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i])/popSizes.getParameterValue(i);
+            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i])/popSizeValues[i];
+            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i])/popSizeValues[i];
         }
 
         intervalOne *= -intervalLength/4.0;
@@ -590,12 +647,14 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println("Incrementing active lineages by " + increment);
         }
 
-        final double branchRate;
-        synchronized (branchRateModel) {
-            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
-        }
-        if (!matricesKnown) {
-            generalSubstitutionModel.getTransitionProbabilities(branchRate * increment, migrationMatrices[this.currentCoalescentInterval]);
+        final int interval = this.currentCoalescentInterval;
+        final double length = branchRate * increment;
+
+        //only recompute the matrix when the length of this coalescent interval has changed
+        if (!matricesKnown || matrixLengths[interval] != length) {
+            touchMatrix(interval);
+            generalSubstitutionModel.getTransitionProbabilities(length, migrationMatrices[interval]);
+            matrixLengths[interval] = length;
 
             if (MATRIX_DEBUG) {
                 System.out.println("-----------");
@@ -610,7 +669,7 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
                 System.out.println("-----------");
                 System.out.println("Matrix exponentiation (t=" + increment + ") is: ");
                 for (int i = 0; i < demes * demes; i++) {
-                    System.out.print(migrationMatrices[this.currentCoalescentInterval][i] + " ");
+                    System.out.print(migrationMatrices[interval][i] + " ");
                     if ((i + 1) % demes == 0) {
                         System.out.println();
                     }
@@ -619,169 +678,199 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             }
         }
 
-        //TODO evaluate later if this should be done in parallel
-        //double start = System.currentTimeMillis();
-        /*for (ProbDist pd : activeLineageList) {
-            pd.incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
-            if (DEBUG) {
-                System.out.println("  " + pd);
-            }
-        }*/
+        //all the active lineages go through the same matrix, so compute their end densities in a single pass;
+        //the terms of each end density are accumulated in the same order as rdot, so the result is unchanged
+        final double[] matrix = migrationMatrices[interval];
         for (int i = 0; i < addedLength; i++) {
-            activeLineageList[i].incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
+            ProbDist pd = touchProbDist(activeLineageList[i].number);
+            final double[] start = pd.startLineageProbs;
+            final double[] end = pd.endLineageProbs;
+
+            pd.intervalLength += increment;
+            if (pd.incremented) {
+                System.arraycopy(end, 0, start, 0, demes);
+            }
+            for (int k = 0; k < demes; k++) {
+                end[k] = 0.0;
+            }
+            for (int l = 0; l < demes; l++) {
+                final double value = start[l];
+                if (value != 0.0) {
+                    final int offset = l * demes;
+                    for (int k = 0; k < demes; k++) {
+                        end[k] += value * matrix[offset + k];
+                    }
+                }
+            }
+            pd.incremented = true;
         }
-        //double end = System.currentTimeMillis();
         this.currentCoalescentInterval++;
     }
 
     /**
-     * Extract coalescent times and tip information into ArrayList times from tree.
-     * Upon return times contain the time of each node in the subtree below top, and at the corresponding index
-     * of children is the descendant count for that time.
+     * Sort the nodes of the tree by height (and node number for equal heights) into the event arrays, starting
+     * from the order of the previous evaluation as most tree moves only shift a few events.
      *
-     * @param top          the node to start from
-     * @param tree         given tree
-     * @param times        array to fill with times
-     * @param children     array to fill with descendents count
+     * @return the index of the first event that differs from the previous evaluation
      */
-    private void collectAllTimes(Tree tree, NodeRef top, ArrayList<NodeRef> nodes,
-                                        ArrayList<ComparableDouble> times, ArrayList<Integer> children) {
+    private int updateEvents() {
+        final int eventCount = eventNodes.length;
 
-        times.add(new ComparableDouble(tree.getNodeHeight(top)));
-        nodes.add(top);
-        children.add(tree.getChildCount(top));
-
-        for (int i = 0; i < tree.getChildCount(top); i++) {
-            NodeRef child = tree.getChild(top, i);
-            collectAllTimes(tree, child, nodes, times, children);
-        }
-    }
-
-    /**
-     * compare the two times lists and only recompute those matrices that correspond to different coalescent
-     * interval lengths
-     */
-    private void updateTransitionProbabilities() {
-
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- START ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
-                    }
-                    System.out.println("-----------");
-                    index++;
-                }
+        if (eventsKnown) {
+            System.arraycopy(eventNodes, 0, newEventNodes, 0, eventCount);
+            for (int k = 0; k < eventCount; k++) {
+                newEventHeights[k] = treeModel.getNodeHeight(treeModel.getNode(newEventNodes[k]));
+            }
+        } else {
+            for (int k = 0; k < eventCount; k++) {
+                newEventHeights[k] = treeModel.getNodeHeight(treeModel.getNode(k));
+            }
+            HeapSort.sort(newEventHeights, newEventNodes);
+            for (int k = 0; k < eventCount; k++) {
+                newEventHeights[k] = treeModel.getNodeHeight(treeModel.getNode(newEventNodes[k]));
             }
         }
 
-        double[] oldLengths = new double[times.size()-1];
-        for (int i = 1; i < times.size(); i++) {
-            oldLengths[i-1] = times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue();
+        for (int k = 1; k < eventCount; k++) {
+            final int node = newEventNodes[k];
+            final double height = newEventHeights[k];
+            int l = k - 1;
+            while (l >= 0 && (newEventHeights[l] > height || (newEventHeights[l] == height && newEventNodes[l] > node))) {
+                newEventNodes[l + 1] = newEventNodes[l];
+                newEventHeights[l + 1] = newEventHeights[l];
+                l--;
+            }
+            newEventNodes[l + 1] = node;
+            newEventHeights[l + 1] = height;
         }
 
-        if (DEBUG) {
-            System.out.println("old coalescent intervals:");
-            for (int i = 1; i < times.size(); i++) {
-                System.out.println((i - 1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i - 1]).doubleValue()));
+        int firstChangedEvent = eventsKnown ? eventCount : 0;
+        for (int k = 0; k < eventCount; k++) {
+            NodeRef node = treeModel.getNode(newEventNodes[k]);
+            final int childCount = treeModel.getChildCount(node);
+            newEventLeft[k] = childCount > 0 ? treeModel.getChild(node, 0).getNumber() : -1;
+            newEventRight[k] = childCount > 1 ? treeModel.getChild(node, 1).getNumber() : -1;
+            if (k < firstChangedEvent && (newEventNodes[k] != eventNodes[k] || newEventHeights[k] != eventHeights[k]
+                    || newEventLeft[k] != eventLeft[k] || newEventRight[k] != eventRight[k])) {
+                firstChangedEvent = k;
             }
         }
 
-        storedTimes.clear();
-        storedNodes.clear();
-        storedChildren.clear();
-
-        collectAllTimes(treeModel, treeModel.getRoot(), storedNodes, storedTimes, storedChildren);
-
-        storedIndices = new int[storedTimes.size()];
-        HeapSort.sort(storedTimes, storedIndices);
+        int[] tmpNodes = eventNodes;
+        eventNodes = newEventNodes;
+        newEventNodes = tmpNodes;
+        double[] tmpHeights = eventHeights;
+        eventHeights = newEventHeights;
+        newEventHeights = tmpHeights;
+        int[] tmpChildren = eventLeft;
+        eventLeft = newEventLeft;
+        newEventLeft = tmpChildren;
+        tmpChildren = eventRight;
+        eventRight = newEventRight;
+        newEventRight = tmpChildren;
+
+        eventsKnown = true;
+
+        return firstChangedEvent;
+    }
 
-        if (DEBUG) {
-            System.out.println("new coalescent intervals:");
-            for (int i = 1; i < storedTimes.size(); i++) {
-                System.out.println((i - 1) + ": " + (storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i - 1]).doubleValue()));
+    /**
+     * @return the last checkpoint taken before the first changed event, or -1 if a full traversal is required
+     */
+    private int findCheckpoint(int firstChangedEvent) {
+        if (!INCREMENTAL || !checkpointsKnown) {
+            return -1;
+        }
+        for (int c = checkpointCount - 1; c >= 0; c--) {
+            if (checkpoints[c].event < firstChangedEvent) {
+                return c;
             }
         }
+        return -1;
+    }
 
-        double[] newLengths = new double[storedTimes.size()-1];
-        for (int i = 1; i < storedTimes.size(); i++) {
-            newLengths[i-1] = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
+    /**
+     * Keep the densities of all the currently active lineages at the start of the given event.
+     */
+    private void saveCheckpoint(int event, int lineageEvent, double start, double lnL) {
+        if (checkpointCount == checkpoints.length) {
+            return;
         }
-
-        final double branchRate;
-        synchronized (branchRateModel) {
-            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
+        touchCheckpoint(checkpointCount);
+        Checkpoint cp = checkpoints[checkpointCount];
+        cp.event = event;
+        cp.lineageEvent = lineageEvent;
+        cp.start = start;
+        cp.logLikelihood = lnL;
+        cp.coalescentInterval = this.currentCoalescentInterval;
+        cp.lineageCount = this.addedLength;
+        for (int k = 0; k < addedLength; k++) {
+            ProbDist pd = activeLineageList[k];
+            cp.lineages[k] = pd.number;
+            System.arraycopy(pd.startLineageProbs, 0, cp.startLineageProbs, k * demes, demes);
+            System.arraycopy(pd.endLineageProbs, 0, cp.endLineageProbs, k * demes, demes);
+            cp.intervalLengths[k] = pd.intervalLength;
+            cp.incremented[k] = pd.incremented;
         }
+        checkpointCount++;
+    }
 
-        if (UPDATE_DEBUG) {
-            for (int i = 0; i < times.size(); i++) {
-                System.out.print(times.get(i) + " ");
-            }
-            System.out.println();
-            for (int i = 0; i < storedTimes.size(); i++) {
-                System.out.print(storedTimes.get(i) + " ");
-            }
-            System.out.println();
+    /**
+     * Reset the active lineages and their densities to those kept at the given checkpoint.
+     */
+    private void restoreCheckpoint(Checkpoint cp) {
+        Arrays.fill(addedLineages, false);
+        for (int k = 0; k < cp.lineageCount; k++) {
+            ProbDist pd = touchProbDist(cp.lineages[k]);
+            System.arraycopy(cp.startLineageProbs, k * demes, pd.startLineageProbs, 0, demes);
+            System.arraycopy(cp.endLineageProbs, k * demes, pd.endLineageProbs, 0, demes);
+            pd.intervalLength = cp.intervalLengths[k];
+            pd.incremented = cp.incremented[k];
+            addedLineages[pd.number] = true;
+            activeLineageList[k] = pd;
         }
+        this.addedLength = cp.lineageCount;
+        this.currentCoalescentInterval = cp.coalescentInterval;
+    }
 
-        int matrixIndex = 0;
-
-        //take into account interval length of 0.0
-        //if the number of intervals would increase, currently throw an error but full evaluation would be better
-        if (oldLengths.length == newLengths.length) {
-            for (int i = 0; i < oldLengths.length; i++) {
-                if ((oldLengths[i] != newLengths[i]) && (newLengths[i] != 0.0)) {
-                    if (UPDATE_DEBUG) {
-                        System.out.println("updating transition probability matrix for coalescent interval length " + newLengths[i] + " at index " + matrixIndex);
-                    }
-                    generalSubstitutionModel.getTransitionProbabilities(branchRate * newLengths[i], migrationMatrices[matrixIndex]);
-                    matrixIndex++;
-                } else {
-                    if (MATRIX_DEBUG) {
-                        System.out.println("no matrix update required");
-                    }
-                    if (newLengths[i] != 0.0) {
-                        matrixIndex++;
-                    }
-                }
-            }
-        } else {
-            throw new RuntimeException("Number of coalescent intervals has increased?");
-        }
-
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- END ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
-                    }
-                    System.out.println("-----------");
-                    index++;
-                }
-            }
+    /**
+     * Keep a copy of the density of a node before it is first changed after storeState().
+     */
+    private ProbDist touchProbDist(int number) {
+        ProbDist pd = nodeProbDist[number];
+        if (!probDistTouched[number]) {
+            storedNodeProbDist[number].copyFrom(pd);
+            probDistTouched[number] = true;
+            touchedProbDists[touchedProbDistCount++] = number;
         }
+        return pd;
+    }
 
-        times = storedTimes;
-        nodes = storedNodes;
-        children = storedChildren;
-        indices = storedIndices;
-
-        matricesKnown = true;
+    /**
+     * Swap in a buffer for a matrix that is about to be recomputed for the first time after storeState().
+     */
+    private void touchMatrix(int interval) {
+        if (!matrixTouched[interval]) {
+            double[] tmp = migrationMatrices[interval];
+            migrationMatrices[interval] = storedMigrationMatrices[interval];
+            storedMigrationMatrices[interval] = tmp;
+            storedMatrixLengths[interval] = matrixLengths[interval];
+            matrixTouched[interval] = true;
+            touchedMatrices[touchedMatrixCount++] = interval;
+        }
+    }
 
+    /**
+     * Swap in a buffer for a checkpoint that is about to be overwritten for the first time after storeState().
+     */
+    private void touchCheckpoint(int index) {
+        if (!checkpointTouched[index]) {
+            Checkpoint tmp = checkpoints[index];
+            checkpoints[index] = storedCheckpoints[index];
+            storedCheckpoints[index] = tmp;
+            checkpointTouched[index] = true;
+            touchedCheckpoints[touchedCheckpointCount++] = index;
+        }
     }
 
     // **************************************************************
@@ -823,15 +912,14 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             //for all the nodes that are older than the event, set needsUpdate to true
             //then trigger a recalculation that makes use of an adjusted traverseTree method (that checks whether
             //or not the ProbDist needs to be updated
+            //only the matrices of intervals whose length has changed will be recomputed and the traversal
+            //resumes from the last checkpoint below the lowest changed node
             likelihoodKnown = false;
-            //TODO not all matrices will have to be recomputed all the time
-            matricesKnown = false;
-            treeModelUpdateFired = true;
             areStatesRedrawn = false;
         } else if (model == branchRateModel) {
-            matricesKnown = false;
             //the following to accommodate events stemming from the upDownOperator
-            this.rateChanged = true;
+            matricesKnown = false;
+            checkpointsKnown = false;
             /*likelihoodKnown = false;
             for (ProbDist pd : this.nodeProbDist) {
                 pd.needsUpdate = true;
@@ -841,8 +929,7 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             areStatesRedrawn = false;
         } else if (model == generalSubstitutionModel) {
             matricesKnown = false;
-            //TODO is this necessary? turns out it is to avoid store/restore issues but why??
-            this.rateChanged = true;
+            checkpointsKnown = false;
             /*likelihoodKnown = false;
             for (ProbDist pd : this.nodeProbDist) {
                 pd.needsUpdate = true;
@@ -868,15 +955,35 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         //hence we should use the adaptive multivariate transition kernel on all popSizes
         likelihoodKnown = false;
         areStatesRedrawn = false;
-        //a change in one of the popSizes does not affect matrix exponentiation
-        matricesKnown = true;
+        //a change in one of the popSizes does not affect matrix exponentiation, but it does affect all the densities
+        checkpointsKnown = false;
     }
 
     protected void storeState() {
         //super.storeState();
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            System.arraycopy(this.migrationMatrices[i],0, this.storedMigrationMatrices[i], 0, demes*demes);
+        //matrices, densities and checkpoints are only swapped out when they are first changed after this point
+        for (int i = 0; i < touchedMatrixCount; i++) {
+            matrixTouched[touchedMatrices[i]] = false;
+        }
+        touchedMatrixCount = 0;
+        for (int i = 0; i < touchedProbDistCount; i++) {
+            probDistTouched[touchedProbDists[i]] = false;
         }
+        touchedProbDistCount = 0;
+        for (int i = 0; i < touchedCheckpointCount; i++) {
+            checkpointTouched[touchedCheckpoints[i]] = false;
+        }
+        touchedCheckpointCount = 0;
+
+        System.arraycopy(eventNodes, 0, storedEventNodes, 0, eventNodes.length);
+        System.arraycopy(eventHeights, 0, storedEventHeights, 0, eventHeights.length);
+        System.arraycopy(eventLeft, 0, storedEventLeft, 0, eventLeft.length);
+        System.arraycopy(eventRight, 0, storedEventRight, 0, eventRight.length);
+        storedEventsKnown = eventsKnown;
+        storedCheckpointCount = checkpointCount;
+        storedCheckpointsKnown = checkpointsKnown;
+        storedMatricesKnown = matricesKnown;
+
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
 
@@ -894,11 +1001,49 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     protected void restoreState() {
         //super.restoreState();
         double[] tmp;
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            tmp = this.migrationMatrices[i];
-            this.migrationMatrices[i] = this.storedMigrationMatrices[i];
-            this.storedMigrationMatrices[i] = tmp;
+        for (int i = 0; i < touchedMatrixCount; i++) {
+            final int index = touchedMatrices[i];
+            tmp = this.migrationMatrices[index];
+            this.migrationMatrices[index] = this.storedMigrationMatrices[index];
+            this.storedMigrationMatrices[index] = tmp;
+            this.matrixLengths[index] = this.storedMatrixLengths[index];
+            matrixTouched[index] = false;
+        }
+        touchedMatrixCount = 0;
+        for (int i = 0; i < touchedProbDistCount; i++) {
+            final int index = touchedProbDists[i];
+            ProbDist pd = this.nodeProbDist[index];
+            this.nodeProbDist[index] = this.storedNodeProbDist[index];
+            this.storedNodeProbDist[index] = pd;
+            probDistTouched[index] = false;
         }
+        touchedProbDistCount = 0;
+        for (int i = 0; i < touchedCheckpointCount; i++) {
+            final int index = touchedCheckpoints[i];
+            Checkpoint cp = this.checkpoints[index];
+            this.checkpoints[index] = this.storedCheckpoints[index];
+            this.storedCheckpoints[index] = cp;
+            checkpointTouched[index] = false;
+        }
+        touchedCheckpointCount = 0;
+
+        int[] tmpEvents = eventNodes;
+        eventNodes = storedEventNodes;
+        storedEventNodes = tmpEvents;
+        double[] tmpHeights = eventHeights;
+        eventHeights = storedEventHeights;
+        storedEventHeights = tmpHeights;
+        tmpEvents = eventLeft;
+        eventLeft = storedEventLeft;
+        storedEventLeft = tmpEvents;
+        tmpEvents = eventRight;
+        eventRight = storedEventRight;
+        storedEventRight = tmpEvents;
+        eventsKnown = storedEventsKnown;
+        checkpointCount = storedCheckpointCount;
+        checkpointsKnown = storedCheckpointsKnown;
+        matricesKnown = storedMatricesKnown;
+
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
 
@@ -918,7 +1063,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     public void makeDirty() {
         likelihoodKnown = false;
+        eventsKnown = false;
         matricesKnown = false;
+        checkpointsKnown = false;
         areStatesRedrawn = false;
     }
 
@@ -1069,6 +1216,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         //private double[] expectedLineages;
         private double intervalLength;
 
+        //number of the node this density belongs to
+        private int number;
+
         //this node variable serves a double purpose as it's either a tip node in the case of a sampling event
         //or an internal node in the case of a coalescent event
         private NodeRef node;
@@ -1109,6 +1259,19 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             this.rightChild = rightChild;
         }
 
+        public void copyFrom(ProbDist other) {
+            System.arraycopy(other.startLineageProbs, 0, this.startLineageProbs, 0, this.startLineageProbs.length);
+            System.arraycopy(other.endLineageProbs, 0, this.endLineageProbs, 0, this.endLineageProbs.length);
+            this.intervalLength = other.intervalLength;
+            this.node = other.node;
+            this.patternIndex = other.patternIndex;
+            this.incremented = other.incremented;
+            this.needsUpdate = other.needsUpdate;
+            this.intervalType = other.intervalType;
+            this.leftChild = other.leftChild;
+            this.rightChild = other.rightChild;
+        }
+
         public void update(double distance) {
             this.intervalLength = distance;
             for (int i = 0; i < startLineageProbs.length; i++) {
@@ -1156,9 +1319,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         //compute the probability distribution of lineages among demes for a coalescent event
         public double computeCoalescedLineage(ProbDist leftProbDist, ProbDist rightProbDist) {
             double sum = 0.0;
-            double[] sumComponents = new double[demes];
+            final double[] sumComponents = coalescentComponents;
             for (int i = 0; i < demes; i++) {
-                sumComponents[i] = (leftProbDist.endLineageProbs[i] * rightProbDist.endLineageProbs[i])/popSizes.getParameterValue(i);
+                sumComponents[i] = (leftProbDist.endLineageProbs[i] * rightProbDist.endLineageProbs[i])/popSizeValues[i];
                 sum += sumComponents[i];
             }
 
@@ -1180,44 +1343,6 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             return Math.log(sum);
         }
 
-        //compute the end probability densities and expected numbers of lineages
-        public void computeEndLineageDensities(double lineageLength, double[] migrationMatrix) {
-            //TODO this should be possible in parallel for each lineage within the same coalescent interval
-            //TODO will need to collect all the tasks first (i.e. collectEndLineageDensities) and then start in parallel
-            for (int k = 0; k < demes; k++) {
-                    /*double value = 0.0;
-                    for (int l = 0; l < demes; l++) {
-                        value += this.startLineageProbs[l] * migrationMatrix[l*demes+k];
-                    }
-                    this.endLineageProbs[k] = value;*/
-                this.endLineageProbs[k] = rdot(demes, startLineageProbs, 0, 1, migrationMatrix, k, demes);
-            }
-            //}
-
-        }
-
-        //TODO this should really become 1 call to computeEndLineageDensities
-        public void incrementIntervalLength(double increment, double[] migrationMatrix) {
-            this.intervalLength += increment;
-            if (incremented) {
-                if (ASSOC_MULTIPLICATION) {
-                    System.arraycopy(this.endLineageProbs, 0, this.startLineageProbs, 0, demes);
-                    //for (int i = 0; i < demes; i++) {
-                    //    startLineageProbs[i] = endLineageProbs[i];
-                    //}
-                    computeEndLineageDensities(increment, migrationMatrix);
-                } else {
-                    throw new RuntimeException("Only incremental matrix exponentiation allowed for performance reasons.");
-                }
-            } else {
-                if (DEBUG) {
-                    System.out.println("this.intervalLength computeEndLineageDensities: " + this.intervalLength + " ; increment = " + increment);
-                }
-                computeEndLineageDensities(this.intervalLength, migrationMatrix);
-            }
-            this.incremented = true;
-        }
-
         public IntervalType getIntervalType() {
             return this.intervalType;
         }
@@ -1246,6 +1371,38 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     }
 
+    /**
+     * Private class that holds the densities of the active lineages at the start of an event, so that a later
+     * traversal can resume from there when the tree below that event has not changed
+     */
+    private class Checkpoint {
+
+        //index of the event (and of the next node to process) at which the traversal resumes
+        private int event;
+        private int lineageEvent;
+
+        private double start;
+        private double logLikelihood;
+        private int coalescentInterval;
+
+        //node numbers and densities of the active lineages
+        private int lineageCount;
+        private final int[] lineages;
+        private final double[] startLineageProbs;
+        private final double[] endLineageProbs;
+        private final double[] intervalLengths;
+        private final boolean[] incremented;
+
+        public Checkpoint(int maxLineages, int nDemes) {
+            this.lineages = new int[maxLineages];
+            this.startLineageProbs = new double[maxLineages * nDemes];
+            this.endLineageProbs = new double[maxLineages * nDemes];
+            this.intervalLengths = new double[maxLineages];
+            this.incremented = new boolean[maxLineages];
+        }
+
+    }
+
     // **************************************************************
     // Method from JavaBlas v1.2.4 (www.jblas.org)
     // **************************************************************
@@ -1353,18 +1510,52 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     //array with a probability distribution for each node
     private ProbDist[] nodeProbDist;
-
-    //elements for constructing the coalescent intervals and times
-    private ArrayList<ComparableDouble> times;
-    private ArrayList<Integer> children;
-    private ArrayList<NodeRef> nodes;
-    private int[] indices;
-
-    //stored versions of the coalescent intervals and times
-    private ArrayList<ComparableDouble> storedTimes;
-    private ArrayList<Integer> storedChildren;
-    private ArrayList<NodeRef> storedNodes;
-    private int[] storedIndices;
+    //copies of the distributions that have changed since storeState()
+    private ProbDist[] storedNodeProbDist;
+    private boolean[] probDistTouched;
+    private int[] touchedProbDists;
+    private int touchedProbDistCount;
+
+    //all the nodes sorted by height (and node number), along with their children (-1 for tips)
+    private int[] eventNodes;
+    private double[] eventHeights;
+    private int[] eventLeft;
+    private int[] eventRight;
+    private boolean eventsKnown;
+
+    //buffers for sorting the events of the next evaluation
+    private int[] newEventNodes;
+    private double[] newEventHeights;
+    private int[] newEventLeft;
+    private int[] newEventRight;
+
+    //stored versions of the events
+    private int[] storedEventNodes;
+    private double[] storedEventHeights;
+    private int[] storedEventLeft;
+    private int[] storedEventRight;
+    private boolean storedEventsKnown;
+
+    //points along the events from which the traversal can be resumed
+    private int checkpointSpacing;
+    private Checkpoint[] checkpoints;
+    private Checkpoint[] storedCheckpoints;
+    private int checkpointCount;
+    private int storedCheckpointCount;
+    private boolean[] checkpointTouched;
+    private int[] touchedCheckpoints;
+    private int touchedCheckpointCount;
+    private boolean checkpointsKnown;
+    private boolean storedCheckpointsKnown;
+
+    //values that are fixed during a single evaluation
+    private double branchRate;
+    private double[] popSizeValues;
+
+    //buffers for the likelihood computations
+    private double[] startProbs;
+    private double[] endProbs;
+    private double[] coalescentComponents;
 
     //list of currently active lineages
     //private ArrayList<ProbDist> activeLineageList;
@@ -1388,11 +1579,16 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     private int maxCoalescentIntervals;
     private int currentCoalescentInterval;
     private double[][] migrationMatrices;
-    private int finalCoalescentInterval;
     private double[][] storedMigrationMatrices;
 
+    //the length (rate times time) each matrix was computed for
+    private double[] matrixLengths;
+    private double[] storedMatrixLengths;
+    private boolean[] matrixTouched;
+    private int[] touchedMatrices;
+    private int touchedMatrixCount;
+
     private boolean matricesKnown;
-    private boolean rateChanged;
-    private boolean treeModelUpdateFired;
+    private boolean storedMatricesKnown;
 
 }
@@ -148,8 +148,41 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
         regRateChanged = false;
     }
 
+    /**
+     * The substitution model creates a new eigen decomposition whenever it is recomputed or restored,
+     * so the one held here (and the precomputed ievcRateRegEvec) must follow it.
+     */
+    private void checkEigenDecomposition() {
+        EigenDecomposition current = substModel.getEigenDecomposition();
+        if (current != eigenDecomposition) {
+            eigenDecomposition = current;
+            regRateChanged = true;
+        }
+    }
+
+    public EigenDecomposition getEigenDecomposition() {
+        checkEigenDecomposition();
+        return eigenDecomposition;
+    }
+
+    /**
+     * @return ievc %*% (rate * registration) %*% evec for the current eigen decomposition; it is kept until the
+     * substitution model or the registration changes
+     */
+    public double[] getIevcRateRegEvec() {
+        if (!PRECOMPUTE) {
+            throw new RuntimeException("Rate registration matrix is not precomputed");
+        }
+        checkEigenDecomposition();
+        if (regRateChanged) {
+            makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
+        }
+        return ievcRateRegEvec;
+    }
+
     public double getMarginalRate() {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
@@ -189,6 +222,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
                                            double[] transitionProbs,
                                            double[] countMatrix) {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
@@ -208,6 +242,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     public void computeJointStatMarkovJumps(double time,
                                             double[] countMatrix) {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
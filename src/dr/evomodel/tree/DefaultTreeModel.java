@@ -478,7 +478,22 @@ public class DefaultTreeModel extends TreeModel {
      */
     protected void storeState() {
 
-        copyNodeStructure(storedNodes);
+        if (nodeJournal == null && incrementalStore) {
+            // from now on changes to the nodes are recorded so only those need copying
+            nodeJournal = new StoreJournal(nodeCount);
+            nodeJournal.recordAll();
+        }
+
+        if (nodeJournal == null || nodeJournal.isAllChanged()) {
+            copyNodeStructure(storedNodes);
+        } else {
+            for (int i = 0, n = nodeJournal.getCount(); i < n; i++) {
+                copyNodeLinks(nodes, storedNodes, nodeJournal.getIndex(i));
+            }
+        }
+        if (nodeJournal != null) {
+            nodeJournal.clear();
+        }
         storedRootNumber = root.getNumber();
 
     }
@@ -488,9 +503,18 @@ public class DefaultTreeModel extends TreeModel {
      */
     protected void restoreState() {
 
-        Node[] tmp = storedNodes;
-        storedNodes = nodes;
-        nodes = tmp;
+        if (nodeJournal != null && !nodeJournal.isAllChanged()) {
+            // reconnect just the nodes that have changed since the store
+            for (int i = 0, n = nodeJournal.getCount(); i < n; i++) {
+                copyNodeLinks(storedNodes, nodes, nodeJournal.getIndex(i));
+            }
+            nodeJournal.clear();
+        } else {
+            // (the stored nodes are then out of date so the journal is left as all changed)
+            Node[] tmp = storedNodes;
+            storedNodes = nodes;
+            nodes = tmp;
+        }
 
         root = nodes[storedRootNumber];
     }
@@ -514,32 +538,48 @@ public class DefaultTreeModel extends TreeModel {
         }
 
         for (int i = 0, n = nodes.length; i < n; i++) {
-            Node node0 = nodes[i];
-            Node node1 = destination[i];
+            copyNodeLinks(nodes, destination, i);
+        }
+    }
 
-            // the parameter values are automatically stored and restored
-            // just need to keep the links
-            node1.heightParameter = node0.heightParameter;
-            node1.rateParameter = node0.rateParameter;
-            node1.traitParameters = node0.traitParameters;
+    /**
+     * Connects up node i in the destination array in the same way as node i in the source array.
+     */
+    private void copyNodeLinks(Node[] source, Node[] destination, int i) {
+        Node node0 = source[i];
+        Node node1 = destination[i];
+
+        // the parameter values are automatically stored and restored
+        // just need to keep the links
+        node1.heightParameter = node0.heightParameter;
+        node1.rateParameter = node0.rateParameter;
+        node1.traitParameters = node0.traitParameters;
+
+        if (node0.parent != null) {
+            node1.parent = destination[node0.parent.getNumber()];
+        } else {
+            node1.parent = null;
+        }
 
-            if (node0.parent != null) {
-                node1.parent = storedNodes[node0.parent.getNumber()];
-            } else {
-                node1.parent = null;
-            }
+        if (node0.leftChild != null) {
+            node1.leftChild = destination[node0.leftChild.getNumber()];
+        } else {
+            node1.leftChild = null;
+        }
 
-            if (node0.leftChild != null) {
-                node1.leftChild = storedNodes[node0.leftChild.getNumber()];
-            } else {
-                node1.leftChild = null;
-            }
+        if (node0.rightChild != null) {
+            node1.rightChild = destination[node0.rightChild.getNumber()];
+        } else {
+            node1.rightChild = null;
+        }
+    }
 
-            if (node0.rightChild != null) {
-                node1.rightChild = storedNodes[node0.rightChild.getNumber()];
-            } else {
-                node1.rightChild = null;
-            }
+    /**
+     * Records that the links or parameters of a node have changed (if incremental store is on).
+     */
+    private void nodeChanged(Node node) {
+        if (nodeJournal != null) {
+            nodeJournal.record(node.number);
         }
     }
 
@@ -983,6 +1023,9 @@ public class DefaultTreeModel extends TreeModel {
             }
         }
 
+        nodeChanged(n1);
+        nodeChanged(n2);
+
         Parameter temp = n1.heightParameter;
         n1.heightParameter = n2.heightParameter;
         n2.heightParameter = temp;
@@ -1206,6 +1249,8 @@ public class DefaultTreeModel extends TreeModel {
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = this;
+            nodeChanged(this);
+            nodeChanged(node);
         }
 
         /**
@@ -1222,6 +1267,8 @@ public class DefaultTreeModel extends TreeModel {
                 throw new IllegalArgumentException("Unknown child node");
             }
             node.parent = null;
+            nodeChanged(this);
+            nodeChanged(node);
             return node;
         }
 
@@ -1242,6 +1289,8 @@ public class DefaultTreeModel extends TreeModel {
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = null;
+            nodeChanged(this);
+            nodeChanged(node);
             return node;
         }
 
@@ -1325,6 +1374,11 @@ public class DefaultTreeModel extends TreeModel {
     private Node[] nodes = null;
     private Node[] storedNodes = null;
 
+    // the nodes changed since storedNodes was last brought up to date (only used if incremental
+    // store is turned on)
+    private StoreJournal nodeJournal = null;
+    private final boolean incrementalStore = StoreJournal.isIncrementalStoreEnabled();
+
     /**
      * number of nodes (including root and tips)
      */
@@ -27,12 +27,14 @@ package dr.evomodel.tree;
 
 import dr.app.tools.NexusExporter;
 import dr.evolution.tree.*;
+import dr.inference.loggers.AsyncLogWriter;
 import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.MCLogger;
 import dr.util.Keywordable;
 
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A logger that logs tree and clade frequencies.
@@ -62,6 +64,8 @@ public class TreeLogger extends MCLogger {
     private NumberFormat format;
     private LogUpon condition = null;
 
+    private final Queue<TreeRecord> treeRecordPool = new ConcurrentLinkedQueue<TreeRecord>();
+
     /**
      * Interface to indicate when to log a tree
      */
@@ -134,6 +138,8 @@ public class TreeLogger extends MCLogger {
 
     public void startLogging() {
 
+        startAsynchronousWriter();
+
         if (nexusFormat) {
             int taxonCount = tree.getTaxonCount();
             logLine("#NEXUS");
@@ -206,30 +212,20 @@ public class TreeLogger extends MCLogger {
                     (logEvery < 0 || ((state % logEvery) == 0));
 
         if ( doIt ) {
-            StringBuffer buffer = new StringBuffer("tree STATE_");
-            buffer.append(state);
-            if (treeAttributeProviders != null) {
-                boolean hasAttribute = false;
-                for (TreeAttributeProvider tap : treeAttributeProviders) {
-                    String[] attributeLabel = tap.getTreeAttributeLabel();
-                    String[] attributeValue = tap.getAttributeForTree(tree);
-                    for (int i = 0; i < attributeLabel.length; i++) {
-                        if (!hasAttribute) {
-                            buffer.append(" [&");
-                            hasAttribute = true;
-                        } else {
-                            buffer.append(",");
-                        }
-                        buffer.append(attributeLabel[i]);
-                        buffer.append("=");
-                        buffer.append(attributeValue[i]);
-                    }
-                }
-                if (hasAttribute) {
-                    buffer.append("]");
+            if (getAsyncWriter() != null) {
+                TreeRecord record = treeRecordPool.poll();
+                if (record == null) {
+                    record = new TreeRecord();
                 }
+                record.capture(state);
+                getAsyncWriter().submit(record);
+                return;
             }
 
+            StringBuffer buffer = new StringBuffer("tree STATE_");
+            buffer.append(state);
+            appendTreeAttributes(buffer, getTreeAttributes());
+
             buffer.append(" = [&R] ");
 
             if (substitutions) {
@@ -246,6 +242,246 @@ public class TreeLogger extends MCLogger {
         }
     }
 
+    private String[][] getTreeAttributes() {
+        if (treeAttributeProviders == null) {
+            return null;
+        }
+        String[][] attributes = new String[treeAttributeProviders.length * 2][];
+        int k = 0;
+        for (TreeAttributeProvider tap : treeAttributeProviders) {
+            attributes[k++] = tap.getTreeAttributeLabel();
+            attributes[k++] = tap.getAttributeForTree(tree);
+        }
+        return attributes;
+    }
+
+    private static void appendTreeAttributes(StringBuffer buffer, String[][] attributes) {
+        if (attributes != null) {
+            boolean hasAttribute = false;
+            for (int k = 0; k < attributes.length; k += 2) {
+                String[] attributeLabel = attributes[k];
+                String[] attributeValue = attributes[k + 1];
+                for (int i = 0; i < attributeLabel.length; i++) {
+                    if (!hasAttribute) {
+                        buffer.append(" [&");
+                        hasAttribute = true;
+                    } else {
+                        buffer.append(",");
+                    }
+                    buffer.append(attributeLabel[i]);
+                    buffer.append("=");
+                    buffer.append(attributeValue[i]);
+                }
+            }
+            if (hasAttribute) {
+                buffer.append("]");
+            }
+        }
+    }
+
+    /**
+     * A pooled snapshot of the tree used when logging asynchronously. The structure, heights, rates and
+     * raw trait values are copied on the chain thread; the Newick string is built on the writer thread
+     * and is identical to that produced by TreeUtils.newick.
+     */
+    private class TreeRecord implements AsyncLogWriter.Record {
+
+        void capture(long state) {
+            this.state = state;
+            this.attributes = getTreeAttributes();
+
+            int nodeCount = tree.getNodeCount();
+            if (heights == null || heights.length != nodeCount) {
+                heights = new double[nodeCount];
+                rates = new double[nodeCount];
+                children = new int[nodeCount][];
+                taxonIds = new String[nodeCount];
+            }
+
+            root = tree.getRoot().getNumber();
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                int number = node.getNumber();
+                heights[number] = tree.getNodeHeight(node);
+                int childCount = tree.getChildCount(node);
+                if (children[number] == null || children[number].length != childCount) {
+                    children[number] = new int[childCount];
+                }
+                for (int j = 0; j < childCount; j++) {
+                    children[number][j] = tree.getChild(node, j).getNumber();
+                }
+                taxonIds[number] = (childCount == 0 ? tree.getTaxonId(number) : null);
+                if (substitutions && !tree.isRoot(node)) {
+                    rates[number] = branchRates.getBranchRate(tree, node);
+                }
+            }
+
+            traits.clear();
+            if (treeTraitProviders != null) {
+                for (TreeTraitProvider ttp : treeTraitProviders) {
+                    for (TreeTrait treeTrait : ttp.getTreeTraits()) {
+                        if (treeTrait.getLoggable() &&
+                                (treeTrait.getIntent() == TreeTrait.Intent.NODE || treeTrait.getIntent() == TreeTrait.Intent.BRANCH)) {
+                            traits.add(treeTrait);
+                        }
+                    }
+                }
+            }
+            if (traitValues == null || traitValues.length != traits.size() ||
+                    (traits.size() > 0 && traitValues[0].length != nodeCount)) {
+                traitValues = new Object[traits.size()][nodeCount];
+            }
+            for (int t = 0; t < traits.size(); t++) {
+                TreeTrait treeTrait = traits.get(t);
+                boolean raw = isFormattedFromRawValue(treeTrait);
+                for (int i = 0; i < nodeCount; i++) {
+                    NodeRef node = tree.getNode(i);
+                    traitValues[t][node.getNumber()] = raw ? copyTraitValue(treeTrait.getTrait(tree, node)) :
+                            treeTrait.getTraitString(tree, node);
+                }
+            }
+        }
+
+        public void write() {
+            StringBuffer buffer = new StringBuffer("tree STATE_");
+            buffer.append(state);
+            appendTreeAttributes(buffer, attributes);
+
+            buffer.append(" = [&R] ");
+
+            newick(root, -1, buffer);
+
+            buffer.append(";");
+            writeLine(buffer.toString());
+
+            attributes = null;
+            treeRecordPool.offer(this);
+        }
+
+        private void newick(int node, int parent, StringBuffer buffer) {
+            boolean labels = !substitutions && !mapNames;
+
+            if (children[node].length == 0) {
+                if (!labels) {
+                    if (idMap != null) {
+                        buffer.append(idMap.get(taxonIds[node]));
+                    } else {
+                        buffer.append((node + 1));
+                    }
+                } else {
+                    String label = taxonIds[node];
+                    if (label.contains(" ") || label.contains(":") || label.contains(";") || label.contains(",")) {
+                        buffer.append("\"");
+                        buffer.append(label);
+                        buffer.append("\"");
+                    } else {
+                        buffer.append(label);
+                    }
+                }
+            } else {
+                buffer.append("(");
+                newick(children[node][0], node, buffer);
+                for (int i = 1; i < children[node].length; i++) {
+                    buffer.append(",");
+                    newick(children[node][i], node, buffer);
+                }
+                buffer.append(")");
+            }
+
+            writeTraits(node, TreeTrait.Intent.NODE, buffer);
+
+            if (parent != -1) {
+                buffer.append(":");
+                writeTraits(node, TreeTrait.Intent.BRANCH, buffer);
+
+                double length = heights[parent] - heights[node];
+                if (substitutions) {
+                    length *= rates[node];
+                }
+                buffer.append(format != null ? format.format(length) : String.valueOf(length));
+            }
+        }
+
+        private void writeTraits(int node, TreeTrait.Intent intent, StringBuffer buffer) {
+            boolean hasAttribute = false;
+            for (int t = 0; t < traits.size(); t++) {
+                TreeTrait treeTrait = traits.get(t);
+                if (treeTrait.getIntent() == intent) {
+                    String value = formatTraitValue(treeTrait, traitValues[t][node]);
+                    if (value != null) {
+                        if (!hasAttribute) {
+                            buffer.append("[&");
+                            hasAttribute = true;
+                        } else {
+                            buffer.append(",");
+                        }
+                        buffer.append(treeTrait.getTraitName());
+                        buffer.append("=");
+                        buffer.append(value);
+                    }
+                }
+            }
+            if (hasAttribute) {
+                buffer.append("]");
+            }
+        }
+
+        long state;
+        String[][] attributes;
+        int root;
+        double[] heights;
+        double[] rates;
+        int[][] children;
+        String[] taxonIds;
+        final List<TreeTrait> traits = new ArrayList<TreeTrait>();
+        Object[][] traitValues;
+    }
+
+    /**
+     * @return true if the trait's string is one of the standard formattings of its value so the raw value
+     * can be captured and formatted later.
+     */
+    private static boolean isFormattedFromRawValue(TreeTrait treeTrait) {
+        Class<?> type = treeTrait.getClass();
+        while (type != TreeTrait.D.class && type != TreeTrait.I.class &&
+                type != TreeTrait.DA.class && type != TreeTrait.IA.class) {
+            if (type == null || type == Object.class) {
+                return false;
+            }
+            try {
+                type.getDeclaredMethod("getTraitString", Tree.class, NodeRef.class);
+                return false;
+            } catch (NoSuchMethodException nsme) {
+                type = type.getSuperclass();
+            }
+        }
+        return true;
+    }
+
+    private static Object copyTraitValue(Object value) {
+        if (value instanceof double[]) {
+            return ((double[]) value).clone();
+        } else if (value instanceof int[]) {
+            return ((int[]) value).clone();
+        }
+        return value;
+    }
+
+    private static String formatTraitValue(TreeTrait treeTrait, Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Double) {
+            return TreeTrait.D.formatTrait((Double) value);
+        } else if (value instanceof Integer) {
+            return TreeTrait.I.formatTrait((Integer) value);
+        } else if (value instanceof double[]) {
+            return TreeTrait.DA.formatTrait((double[]) value);
+        } else if (value instanceof int[]) {
+            return TreeTrait.IA.formatTrait((int[]) value);
+        }
+        throw new IllegalArgumentException("Unexpected value for trait " + treeTrait.getTraitName());
+    }
+
     public void stopLogging() {
         logLine("End;");
         super.stopLogging();
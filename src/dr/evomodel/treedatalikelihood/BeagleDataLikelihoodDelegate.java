@@ -35,6 +35,8 @@ import dr.evomodel.branchmodel.BranchModel;
 import dr.evomodel.siteratemodel.SiteRateModel;
 import dr.evomodel.tipstatesmodel.TipStatesModel;
 import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
 import dr.inference.model.AbstractModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
@@ -59,7 +61,7 @@ import static dr.evomodel.treedatalikelihood.BeagleFunctionality.*;
  * @version $Id$
  */
 
-public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate, Citable {
+public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate, Citable, Loggable {
 
     private static final boolean COUNT_CALCULATIONS = true; // keep a cumulative total of number of computations
 
@@ -193,6 +195,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 }
             }
 
+            matrixCache = TransitionMatrixCache.createFromSystemProperties(stateCount, categoryCount);
+            if (matrixCache != null) {
+                evolutionaryProcessDelegate.setTransitionMatrixCache(matrixCache);
+            }
+
             int numPartials = partialBufferHelper.getBufferCount();
             int numScaleBuffers = scaleBufferHelper.getBufferCount();
             int numMatrices = evolutionaryProcessDelegate.getMatrixBufferCount();
@@ -457,6 +464,9 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             logger.info("  " + (settings.usePreOrder ? "Using" : "Ignoring") + " preOrder partials in tree likelihood.");
             logger.info("  " + (useAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
             logger.info("  With " + patternList.getPatternCount() + " unique site patterns.");
+            if (matrixCache != null) {
+                logger.info("  Caching up to " + Integer.getInteger(TransitionMatrixCache.CACHE_SIZE_PROPERTY) + " transition matrices.");
+            }
 
             if (patternList.areUncertain() && !useAmbiguities) {
                 logger.info("  WARNING: Uncertain site patterns will be ignored.");
@@ -750,6 +760,9 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 return Double.NEGATIVE_INFINITY;
             }
             beagle.setCategoryRates(categoryRates);
+            if (matrixCache != null) {
+                matrixCache.setCategoryRates(categoryRates);
+            }
             // TODO Try beagle.setCategoryWeights() here
             double[] categoryWeights = this.siteRateModel.getCategoryProportions();
             // these could be set only when they change but store/restore would need to be considered
@@ -1066,6 +1079,21 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         return totalPartialsUpdateCount;
     }
 
+    // **************************************************************
+    // INSTANCE LOGGABLE
+    // **************************************************************
+
+    /**
+     * @return the hit and miss counts of the transition matrix cache (if one is used)
+     */
+    @Override
+    public LogColumn[] getColumns() {
+        if (matrixCache == null) {
+            return new LogColumn[0];
+        }
+        return matrixCache.getColumns();
+    }
+
     // **************************************************************
     // INSTANCE CITABLE
     // **************************************************************
@@ -1166,6 +1194,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
      */
     private final EvolutionaryProcessDelegate evolutionaryProcessDelegate;
 
+    /**
+     * An optional cache of transition matrices (null if not used)
+     */
+    private final TransitionMatrixCache matrixCache;
+
     /**
      * the site model for these sites
      */
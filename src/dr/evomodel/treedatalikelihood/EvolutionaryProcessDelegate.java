@@ -78,6 +78,11 @@ public interface EvolutionaryProcessDelegate {
 
     void flipTransitionMatrices(int[] branchIndices, int updateCount);
 
+    /**
+     * Sets a cache to be used by updateTransitionMatrices to avoid recomputing matrices (null for none).
+     */
+    void setTransitionMatrixCache(TransitionMatrixCache matrixCache);
+
     void storeState();
 
     void restoreState();
@@ -50,6 +50,8 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
 
     private final PreOrderSettings settings;
 
+    private TransitionMatrixCache matrixCache = null;
+
     /**
      * A class which handles substitution models including epoch models where multiple
      * substitution models on a branch are convolved.
@@ -224,6 +226,10 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
                 ed.getEigenVectors(),
                 ed.getInverseEigenVectors(),
                 ed.getEigenValues());
+
+        if (matrixCache != null) {
+            matrixCache.invalidate(eigenBufferHelper.getOffsetIndex(0));
+        }
     }
 
     @Override
@@ -243,6 +249,12 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
             probabilityIndices[i] = matrixBufferHelper.getOffsetIndex(branchIndices[i]);
         }// END: i loop
 
+        if (matrixCache != null) {
+            matrixCache.updateTransitionMatrices(beagle, eigenBufferHelper.getOffsetIndex(0),
+                    probabilityIndices, edgeLengths, updateCount);
+            return;
+        }
+
         beagle.updateTransitionMatrices(eigenBufferHelper.getOffsetIndex(0),
                 probabilityIndices,
                 null, // firstDerivativeIndices
@@ -259,6 +271,10 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
         }
     }
 
+    @Override
+    public void setTransitionMatrixCache(TransitionMatrixCache matrixCache) {
+        this.matrixCache = matrixCache;
+    }
 
     @Override
     public void storeState() {
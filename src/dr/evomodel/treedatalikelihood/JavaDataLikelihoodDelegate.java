@@ -0,0 +1,652 @@
+/*
+ * JavaDataLikelihoodDelegate.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.UncertainSiteList;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.siteratemodel.SiteRateModel;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.model.AbstractModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * JavaDataLikelihoodDelegate
+ *
+ * A DataLikelihoodDelegate that does not require the native BEAGLE library. The computation is done by a
+ * ParallelJavaBeagleImpl which blocks the site patterns across a fork/join pool. Buffer management and the
+ * rescaling schemes follow BeagleDataLikelihoodDelegate so the two delegates give the same likelihoods.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class JavaDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate, Loggable {
+
+    private static final boolean COUNT_CALCULATIONS = true; // keep a cumulative total of number of computations
+
+    private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
+
+    // Which scheme to use if choice not specified (or 'default' is selected):
+    private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
+
+    // Default frequency for complete recomputation of scaling factors under the 'dynamic' scheme
+    private static final int RESCALE_FREQUENCY = 100;
+
+    /**
+     * @param tree Used for configuration - shouldn't be watched for changes
+     * @param patternList List of patterns
+     * @param branchModel Specifies substitution model for each branch
+     * @param siteRateModel Specifies rates per site
+     * @param useAmbiguities Whether to respect state ambiguities in data
+     * @param rescalingScheme the partials rescaling scheme
+     * @param delayRescalingUntilUnderflow don't rescale until the first underflow
+     * @param threadCount number of threads (-1 for the number of available processors)
+     */
+    public JavaDataLikelihoodDelegate(Tree tree,
+                                      PatternList patternList,
+                                      BranchModel branchModel,
+                                      SiteRateModel siteRateModel,
+                                      boolean useAmbiguities,
+                                      PartialsRescalingScheme rescalingScheme,
+                                      boolean delayRescalingUntilUnderflow,
+                                      int threadCount) {
+
+        super("JavaDataLikelihoodDelegate");
+        final Logger logger = Logger.getLogger("dr.evomodel");
+
+        logger.info("\nUsing Java DataLikelihood Delegate");
+        setId(patternList.getId());
+
+        this.dataType = patternList.getDataType();
+        this.patternList = patternList;
+        patternCount = patternList.getPatternCount();
+        stateCount = dataType.getStateCount();
+
+        // Check for matching state counts
+        int stateCount2 = branchModel.getRootFrequencyModel().getFrequencyCount();
+        if (stateCount != stateCount2) {
+            throw new IllegalArgumentException("Pattern state count (" + stateCount
+                    + ") does not match substitution model state count (" + stateCount2 + ")");
+        }
+
+        this.branchModel = branchModel;
+        addModel(this.branchModel);
+
+        this.siteRateModel = siteRateModel;
+        addModel(this.siteRateModel);
+
+        this.categoryCount = this.siteRateModel.getCategoryCount();
+
+        nodeCount = tree.getNodeCount();
+        tipCount = tree.getExternalNodeCount();
+        internalNodeCount = nodeCount - tipCount;
+
+        branchUpdateIndices = new int[nodeCount];
+        branchLengths = new double[nodeCount];
+        scaleBufferIndices = new int[internalNodeCount];
+        storedScaleBufferIndices = new int[internalNodeCount];
+
+        operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+
+        // one partials buffer for each tip and two for each internal node (for store restore)
+        partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
+
+        // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
+        scaleBufferHelper = new BufferIndexHelper(internalNodeCount + 1, 0);
+
+        if (branchModel.getSubstitutionModels().size() == 1) {
+            evolutionaryProcessDelegate = new HomogenousSubstitutionModelDelegate(tree, branchModel);
+        } else {
+            evolutionaryProcessDelegate = new SubstitutionModelDelegate(tree, branchModel);
+        }
+
+        matrixCache = TransitionMatrixCache.createFromSystemProperties(stateCount, categoryCount);
+        if (matrixCache != null) {
+            evolutionaryProcessDelegate.setTransitionMatrixCache(matrixCache);
+        }
+
+        this.rescalingScheme = rescalingScheme;
+        this.delayRescalingUntilUnderflow = delayRescalingUntilUnderflow;
+
+        if (this.rescalingScheme == PartialsRescalingScheme.DEFAULT ||
+                this.rescalingScheme == PartialsRescalingScheme.AUTO) {
+            this.rescalingScheme = DEFAULT_RESCALING_SCHEME;
+        }
+
+        // to keep behaviour of the delayed scheme (always + delay)...
+        if (this.rescalingScheme == PartialsRescalingScheme.DELAYED) {
+            this.delayRescalingUntilUnderflow = true;
+            this.rescalingScheme = PartialsRescalingScheme.ALWAYS;
+        }
+
+        String r = System.getProperty(RESCALE_FREQUENCY_PROPERTY);
+        if (r != null) {
+            rescalingFrequency = Integer.parseInt(r);
+            if (rescalingFrequency < 1) {
+                rescalingFrequency = RESCALE_FREQUENCY;
+            }
+        }
+        // force a rescaling at the first evaluation that uses dynamic scaling
+        rescalingCount = rescalingFrequency + 1;
+
+        beagle = new ParallelJavaBeagleImpl(
+                tipCount,
+                partialBufferHelper.getBufferCount(),
+                stateCount,
+                patternCount,
+                evolutionaryProcessDelegate.getEigenBufferCount(),
+                evolutionaryProcessDelegate.getMatrixBufferCount(),
+                categoryCount,
+                scaleBufferHelper.getBufferCount(),
+                threadCount);
+
+        if (patternList instanceof UncertainSiteList) {
+            useAmbiguities = true;
+        }
+
+        logger.info("  Using " + beagle.getThreadCount() + " thread" + (beagle.getThreadCount() > 1 ? "s" : "") +
+                " for the Java likelihood computation.");
+        logger.info("  " + (useAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
+        logger.info("  With " + patternList.getPatternCount() + " unique site patterns.");
+        if (matrixCache != null) {
+            logger.info("  Caching up to " + Integer.getInteger(TransitionMatrixCache.CACHE_SIZE_PROPERTY) + " transition matrices.");
+        }
+        if (patternList.areUncertain() && !useAmbiguities) {
+            logger.info("  WARNING: Uncertain site patterns will be ignored.");
+        }
+
+        try {
+            for (int i = 0; i < tipCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = tree.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + tree.getId() +
+                            ", is not found in patternList, " + patternList.getId());
+                } else {
+                    if (useAmbiguities) {
+                        setPartials(patternList, index, i);
+                    } else {
+                        setStates(patternList, index, i);
+                    }
+                }
+            }
+        } catch (TaxonList.MissingTaxonException mte) {
+            throw new RuntimeException(mte.toString());
+        }
+
+        beagle.setPatternWeights(patternList.getPatternWeights());
+
+        String rescaleMessage = "  Using rescaling scheme : " + this.rescalingScheme.getText();
+        if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
+            rescaleMessage += " (rescaling every " + rescalingFrequency + " evaluations)";
+        }
+        if (this.delayRescalingUntilUnderflow) {
+            rescaleMessage += " (delay rescaling until first overflow)";
+        }
+        logger.info(rescaleMessage);
+
+        updateSubstitutionModel = true;
+        updateSiteModel = true;
+        updateRootFrequency = true;
+    }
+
+    /**
+     * Sets the partials from a sequence in an alignment.
+     */
+    private void setPartials(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        double[] partials = new double[patternCount * stateCount];
+
+        int v = 0;
+        for (int i = 0; i < patternCount; i++) {
+            if (patternList instanceof UncertainSiteList) {
+                ((UncertainSiteList) patternList).fillPartials(sequenceIndex, i, partials, v);
+                v += stateCount;
+            } else if (patternList.areUncertain()) {
+                double[] prob = patternList.getUncertainPatternState(sequenceIndex, i);
+                System.arraycopy(prob, 0, partials, v, stateCount);
+                v += stateCount;
+            } else {
+                int state = patternList.getPatternState(sequenceIndex, i);
+                boolean[] stateSet = dataType.getStateSet(state);
+                for (int j = 0; j < stateCount; j++) {
+                    partials[v] = stateSet[j] ? 1.0 : 0.0;
+                    v++;
+                }
+            }
+        }
+
+        // the tip partials are replicated for each category
+        beagle.setTipPartials(nodeIndex, partials);
+    }
+
+    /**
+     * Sets the states from a sequence in an alignment.
+     */
+    private void setStates(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        int[] states = new int[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            states[i] = patternList.getPatternState(sequenceIndex, i);
+        }
+        beagle.setTipStates(nodeIndex, states);
+    }
+
+    @Override
+    public String getReport() {
+        return null;
+    }
+
+    @Override
+    public TreeTraversal.TraversalType getOptimalTraversalType() {
+        return TreeTraversal.TraversalType.POST_ORDER;
+    }
+
+    @Override
+    public int getTraitCount() {
+        return 1;
+    }
+
+    @Override
+    public int getTraitDim() {
+        return patternCount;
+    }
+
+    @Override
+    public RateRescalingScheme getRateRescalingScheme() {
+        return RateRescalingScheme.NONE;
+    }
+
+    public final BranchModel getBranchModel() {
+        return branchModel;
+    }
+
+    public PatternList getPatternList() {
+        return this.patternList;
+    }
+
+    public final SiteRateModel getSiteRateModel() {
+        return this.siteRateModel;
+    }
+
+    public final EvolutionaryProcessDelegate getEvolutionaryProcessDelegate() {
+        return this.evolutionaryProcessDelegate;
+    }
+
+    /**
+     * Calculate the log likelihood of the current state.
+     *
+     * @return the log likelihood.
+     */
+    @Override
+    public double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations,
+                                      int rootNodeNumber) throws LikelihoodException {
+
+        if (!this.delayRescalingUntilUnderflow || everUnderflowed) {
+            if (this.rescalingScheme == PartialsRescalingScheme.ALWAYS) {
+                useScaleFactors = true;
+                recomputeScaleFactors = true;
+            } else if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
+                useScaleFactors = true;
+
+                if (rescalingCount > rescalingFrequency) {
+                    // recompute the scale factors at all the nodes so force a full traversal
+                    rescalingCount = 0;
+                    recomputeScaleFactors = true;
+                    throw new LikelihoodRescalingException();
+                }
+
+                rescalingCount++;
+            }
+        }
+
+        int branchUpdateCount = 0;
+        for (BranchOperation op : branchOperations) {
+            branchUpdateIndices[branchUpdateCount] = op.getBranchNumber();
+            branchLengths[branchUpdateCount] = op.getBranchLength();
+            branchUpdateCount++;
+        }
+
+        if (updateSubstitutionModel) {
+            evolutionaryProcessDelegate.updateSubstitutionModels(beagle, flip);
+        }
+
+        if (updateSiteModel) {
+            double[] categoryRates = this.siteRateModel.getCategoryRates();
+            if (categoryRates == null) {
+                // If this returns null then there was a numerical error calculating the category rates
+                // (probably a very small alpha) so reject the move.
+                return Double.NEGATIVE_INFINITY;
+            }
+            beagle.setCategoryRates(categoryRates);
+            if (matrixCache != null) {
+                matrixCache.setCategoryRates(categoryRates);
+            }
+            beagle.setCategoryWeights(0, this.siteRateModel.getCategoryProportions());
+        }
+
+        if (updateRootFrequency) {
+            beagle.setStateFrequencies(0, evolutionaryProcessDelegate.getRootStateFrequencies());
+        }
+
+        if (branchUpdateCount > 0) {
+            evolutionaryProcessDelegate.updateTransitionMatrices(
+                    beagle,
+                    branchUpdateIndices,
+                    branchLengths,
+                    branchUpdateCount,
+                    flip);
+        }
+
+        if (flip) {
+            // Flip all the buffers to be written to first...
+            for (NodeOperation op : nodeOperations) {
+                partialBufferHelper.flipOffset(op.getNodeNumber());
+            }
+        }
+
+        int operationCount = nodeOperations.size();
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            int nodeNum = op.getNodeNumber();
+
+            operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
+
+            if (useScaleFactors) {
+                // get the index of this scaling buffer
+                int n = nodeNum - tipCount;
+
+                if (recomputeScaleFactors) {
+                    scaleBufferHelper.flipOffset(n);
+                    scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
+
+                    operations[k + 1] = scaleBufferIndices[n]; // Write new scaleFactor
+                    operations[k + 2] = Beagle.NONE;
+                } else {
+                    operations[k + 1] = Beagle.NONE;
+                    operations[k + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
+                }
+            } else {
+                operations[k + 1] = Beagle.NONE; // Not using scaleFactors
+                operations[k + 2] = Beagle.NONE;
+            }
+
+            operations[k + 3] = partialBufferHelper.getOffsetIndex(op.getLeftChild()); // source node 1
+            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(op.getLeftChild()); // source matrix 1
+            operations[k + 5] = partialBufferHelper.getOffsetIndex(op.getRightChild()); // source node 2
+            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(op.getRightChild()); // source matrix 2
+
+            k += Beagle.OPERATION_TUPLE_SIZE;
+        }
+
+        beagle.updatePartials(operations, operationCount, Beagle.NONE);
+
+        if (COUNT_CALCULATIONS) {
+            totalMatrixUpdateCount += branchUpdateCount;
+            totalPartialsUpdateCount += operationCount;
+            totalEvaluationCount += 1;
+        }
+
+        int rootIndex = partialBufferHelper.getOffsetIndex(rootNodeNumber);
+
+        int cumulateScaleBufferIndex = Beagle.NONE;
+        if (useScaleFactors) {
+            if (recomputeScaleFactors) {
+                scaleBufferHelper.flipOffset(internalNodeCount);
+                cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+                beagle.resetScaleFactors(cumulateScaleBufferIndex);
+                beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, cumulateScaleBufferIndex);
+            } else {
+                cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+            }
+        }
+
+        double[] sumLogLikelihoods = new double[1];
+        beagle.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
+                new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+
+        double logL = sumLogLikelihoods[0];
+
+        if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+
+            everUnderflowed = true;
+
+            if (firstRescaleAttempt && rescalingScheme != PartialsRescalingScheme.NONE) {
+                if (rescalingMessageCount % 1000 == 0) {
+                    if (rescalingMessageCount > 0) {
+                        Logger.getLogger("dr.evomodel").info("Underflow calculating likelihood (" + rescalingMessageCount + " messages not shown; " + getId() + ").");
+                    } else {
+                        Logger.getLogger("dr.evomodel").info("Underflow calculating likelihood. Attempting a rescaling... (" + getId() + ")");
+                    }
+                }
+                rescalingMessageCount += 1;
+
+                useScaleFactors = true;
+                recomputeScaleFactors = true;
+
+                firstRescaleAttempt = false; // Only try to rescale once
+
+                // turn off double buffer flipping so the next call overwrites the
+                // underflowed buffers. Flip will be turned on again in storeState for
+                // next step
+                flip = false;
+                throw new LikelihoodUnderflowException();
+            }
+
+            logL = Double.NEGATIVE_INFINITY;
+
+        } else {
+            firstRescaleAttempt = true;
+            recomputeScaleFactors = false;
+            flip = true;
+        }
+
+        updateSubstitutionModel = false;
+        updateSiteModel = false;
+        updateRootFrequency = false;
+
+        return logL;
+    }
+
+    public void getPartials(int number, double[] partials) {
+        beagle.getPartials(partialBufferHelper.getOffsetIndex(number), Beagle.NONE, partials);
+    }
+
+    @Override
+    public void makeDirty() {
+        updateSiteModel = true;
+        updateSubstitutionModel = true;
+        updateRootFrequency = true;
+    }
+
+    @Override
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == siteRateModel) {
+            updateSiteModel = true;
+        } else if (model == branchModel) {
+            updateSubstitutionModel = true;
+            updateRootFrequency = true;
+        }
+
+        // Tell TreeDataLikelihood to update all nodes
+        fireModelChanged();
+    }
+
+    @Override
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+    }
+
+    /**
+     * Stores the additional state other than model components
+     */
+    @Override
+    public void storeState() {
+        partialBufferHelper.storeState();
+        evolutionaryProcessDelegate.storeState();
+
+        if (useScaleFactors) { // Only store when actually used
+            scaleBufferHelper.storeState();
+            System.arraycopy(scaleBufferIndices, 0, storedScaleBufferIndices, 0, scaleBufferIndices.length);
+        }
+
+        // turn on double buffering flipping (may have been turned off to enable a rescale)
+        flip = true;
+    }
+
+    /**
+     * Restore the additional stored state
+     */
+    @Override
+    public void restoreState() {
+        updateSiteModel = true; // this is required to upload the categoryRates after the restore
+        updateRootFrequency = true;
+
+        partialBufferHelper.restoreState();
+        evolutionaryProcessDelegate.restoreState();
+
+        if (useScaleFactors) {
+            scaleBufferHelper.restoreState();
+            int[] tmp = storedScaleBufferIndices;
+            storedScaleBufferIndices = scaleBufferIndices;
+            scaleBufferIndices = tmp;
+        }
+    }
+
+    @Override
+    protected void acceptState() {
+    }
+
+    @Override
+    public void setCallback(TreeDataLikelihood treeDataLikelihood) {
+        // Do nothing
+    }
+
+    @Override
+    public void setComputePostOrderStatisticsOnly(boolean computePostOrderStatistic) {
+        // Do nothing
+    }
+
+    @Override
+    public boolean providesPostOrderStatisticsOnly() {
+        return false;
+    }
+
+    @Override
+    public int vectorizeNodeOperations(List<NodeOperation> nodeOperations, int[] operations) {
+        throw new RuntimeException("Not yet implemented");
+    }
+
+    // **************************************************************
+    // INSTANCE LOGGABLE
+    // **************************************************************
+
+    /**
+     * @return the hit and miss counts of the transition matrix cache (if one is used)
+     */
+    @Override
+    public LogColumn[] getColumns() {
+        if (matrixCache == null) {
+            return new LogColumn[0];
+        }
+        return matrixCache.getColumns();
+    }
+
+    // **************************************************************
+    // INSTANCE PROFILEABLE
+    // **************************************************************
+
+    @Override
+    public long getTotalCalculationCount() {
+        // Can only return one count at the moment so return the number of partials updated
+        return totalPartialsUpdateCount;
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    private final int nodeCount;
+    private final int tipCount;
+    private final int internalNodeCount;
+
+    private final int[] branchUpdateIndices;
+    private final double[] branchLengths;
+
+    private int[] scaleBufferIndices;
+    private int[] storedScaleBufferIndices;
+
+    private final int[] operations;
+
+    private boolean flip = true;
+    private final BufferIndexHelper partialBufferHelper;
+    private final BufferIndexHelper scaleBufferHelper;
+
+    private PartialsRescalingScheme rescalingScheme;
+    private int rescalingFrequency = RESCALE_FREQUENCY;
+    private boolean delayRescalingUntilUnderflow;
+
+    private boolean useScaleFactors = false;
+    private boolean recomputeScaleFactors = false;
+    private boolean everUnderflowed = false;
+    private int rescalingCount = 0;
+
+    private boolean firstRescaleAttempt = true;
+    private int rescalingMessageCount = 0;
+
+    // count the number of partial likelihood and matrix updates
+    private long totalMatrixUpdateCount = 0;
+    private long totalPartialsUpdateCount = 0;
+    private long totalEvaluationCount = 0;
+
+    private final PatternList patternList;
+    private final DataType dataType;
+
+    private final int patternCount;
+    private final int stateCount;
+    private final int categoryCount;
+
+    private final BranchModel branchModel;
+    private final SiteRateModel siteRateModel;
+    private final EvolutionaryProcessDelegate evolutionaryProcessDelegate;
+    private final TransitionMatrixCache matrixCache;
+
+    private final ParallelJavaBeagleImpl beagle;
+
+    private boolean updateSubstitutionModel;
+    private boolean updateSiteModel;
+    private boolean updateRootFrequency;
+}
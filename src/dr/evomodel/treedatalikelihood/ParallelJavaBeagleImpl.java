@@ -0,0 +1,771 @@
+/*
+ * ParallelJavaBeagleImpl.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelJavaBeagleImpl
+ *
+ * A pure-Java implementation of the subset of the BEAGLE API used by the DataLikelihoodDelegates. Partials,
+ * matrices and scale factors are held in flat double[] buffers using the BEAGLE layout (category-major, then
+ * pattern, then state) and the site patterns are split into fixed-size blocks that are processed on a
+ * fork/join pool. Each block runs the whole post-order operation list for its patterns so no synchronization
+ * is needed between nodes. As the blocking does not depend on the number of threads the results are
+ * identical whatever the thread count.
+ *
+ * Scale buffers hold log scale factors (i.e., as BEAGLE with SCALERS_LOG).
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ParallelJavaBeagleImpl implements Beagle {
+
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    public ParallelJavaBeagleImpl(final int tipCount,
+                                  final int partialsBufferCount,
+                                  final int stateCount,
+                                  final int patternCount,
+                                  final int eigenBufferCount,
+                                  final int matrixBufferCount,
+                                  final int categoryCount,
+                                  final int scaleBufferCount,
+                                  final int threadCount) {
+
+        this.tipCount = tipCount;
+        this.partialsBufferCount = partialsBufferCount;
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.eigenBufferCount = eigenBufferCount;
+        this.matrixBufferCount = matrixBufferCount;
+        this.categoryCount = categoryCount;
+
+        this.partialsSize = patternCount * stateCount * categoryCount;
+        this.matrixSize = stateCount * stateCount;
+
+        this.eigenVectors = new double[eigenBufferCount][];
+        this.inverseEigenVectors = new double[eigenBufferCount][];
+        this.eigenValues = new double[eigenBufferCount][];
+
+        this.stateFrequencies = new double[eigenBufferCount][];
+        this.categoryWeights = new double[eigenBufferCount][];
+        this.categoryRates = new double[eigenBufferCount][];
+        Arrays.fill(categoryRates, filledArray(categoryCount, 1.0));
+
+        this.patternWeights = filledArray(patternCount, 1.0);
+
+        this.partials = new double[partialsBufferCount][];
+        this.tipStates = new int[tipCount][];
+        this.matrices = new double[matrixBufferCount][categoryCount * matrixSize];
+        this.scaleFactors = new double[scaleBufferCount][patternCount];
+
+        this.siteLogLikelihoods = new double[patternCount];
+        this.tmpMatrix = new double[matrixSize];
+
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.blockCount = (patternCount + blockSize - 1) / blockSize;
+        this.blockLogLikelihoods = new double[blockCount];
+
+        setCPUThreadCount(threadCount);
+    }
+
+    private static double[] filledArray(int length, double value) {
+        double[] array = new double[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    /**
+     * Part of the Beagle interface, where it releases the native instance. There is nothing to release
+     * here; the workers of the pool are daemon threads which exit once they are idle.
+     */
+    @Override
+    public void finalize() {
+    }
+
+    /**
+     * Sets the number of threads used; zero or a negative number selects the number of available processors
+     * and one runs everything on the calling thread.
+     */
+    @Override
+    public void setCPUThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.threadCount = threadCount;
+        this.pool = (threadCount > 1 && blockCount > 1) ? new ForkJoinPool(threadCount) : null;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    @Override
+    public void setPatternWeights(double[] patternWeights) {
+        System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternCount);
+    }
+
+    @Override
+    public void setPatternPartitions(int partitionCount, int[] patternPartitions) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void setTipStates(int tipIndex, int[] states) {
+        assert (tipIndex >= 0 && tipIndex < tipCount);
+        if (tipStates[tipIndex] == null) {
+            tipStates[tipIndex] = new int[patternCount];
+        }
+        for (int k = 0; k < patternCount; k++) {
+            // any state index outside of the state space is treated as missing/gap
+            tipStates[tipIndex][k] = (states[k] < stateCount ? states[k] : stateCount);
+        }
+        partials[tipIndex] = null;
+    }
+
+    @Override
+    public void getTipStates(int tipIndex, int[] states) {
+        System.arraycopy(tipStates[tipIndex], 0, states, 0, patternCount);
+    }
+
+    @Override
+    public void setTipPartials(int tipIndex, double[] inPartials) {
+        assert (tipIndex >= 0 && tipIndex < tipCount);
+        int n = patternCount * stateCount;
+        double[] buffer = getPartialsBuffer(tipIndex);
+        for (int l = 0; l < categoryCount; l++) {
+            System.arraycopy(inPartials, 0, buffer, l * n, n);
+        }
+        tipStates[tipIndex] = null;
+    }
+
+    @Override
+    public void setRootPrePartials(int[] bufferIndices, int[] stateFrequenciesIndices, int count) {
+        throw new UnsupportedOperationException("Pre-order traversals are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void setPartials(int bufferIndex, double[] inPartials) {
+        System.arraycopy(inPartials, 0, getPartialsBuffer(bufferIndex), 0, partialsSize);
+        if (bufferIndex < tipCount) {
+            tipStates[bufferIndex] = null;
+        }
+    }
+
+    @Override
+    public void getPartials(int bufferIndex, int scaleIndex, double[] outPartials) {
+        System.arraycopy(partials[bufferIndex], 0, outPartials, 0, partialsSize);
+    }
+
+    @Override
+    public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+        System.arraycopy(scaleFactors[scaleIndex], 0, outFactors, 0, patternCount);
+    }
+
+    @Override
+    public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors, double[] inInverseEigenVectors, double[] inEigenValues) {
+        eigenVectors[eigenIndex] = copyInto(eigenVectors[eigenIndex], inEigenVectors);
+        inverseEigenVectors[eigenIndex] = copyInto(inverseEigenVectors[eigenIndex], inInverseEigenVectors);
+        eigenValues[eigenIndex] = copyInto(eigenValues[eigenIndex], inEigenValues);
+    }
+
+    @Override
+    public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+        stateFrequencies[stateFrequenciesIndex] = copyInto(stateFrequencies[stateFrequenciesIndex], inStateFrequencies);
+    }
+
+    @Override
+    public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+        categoryWeights[categoryWeightsIndex] = copyInto(categoryWeights[categoryWeightsIndex], inCategoryWeights);
+    }
+
+    @Override
+    public void setCategoryRates(double[] inCategoryRates) {
+        setCategoryRatesWithIndex(0, inCategoryRates);
+    }
+
+    @Override
+    public void setCategoryRatesWithIndex(int categoryRatesIndex, double[] inCategoryRates) {
+        categoryRates[categoryRatesIndex] = Arrays.copyOf(inCategoryRates, categoryCount);
+    }
+
+    private static double[] copyInto(double[] destination, double[] source) {
+        if (destination == null || destination.length != source.length) {
+            return source.clone();
+        }
+        System.arraycopy(source, 0, destination, 0, source.length);
+        return destination;
+    }
+
+    // **************************************************************
+    // Transition matrices
+    // **************************************************************
+
+    @Override
+    public void convolveTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            if (firstIndices[u] == resultIndices[u] || secondIndices[u] == resultIndices[u]) {
+                throw new IllegalArgumentException("Cannot convolve transition matrices in place");
+            }
+            final double[] first = matrices[firstIndices[u]];
+            final double[] second = matrices[secondIndices[u]];
+            final double[] result = matrices[resultIndices[u]];
+            for (int l = 0; l < categoryCount; l++) {
+                final int offset = l * matrixSize;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        double sum = 0.0;
+                        for (int k = 0; k < stateCount; k++) {
+                            sum += first[offset + i * stateCount + k] * second[offset + k * stateCount + j];
+                        }
+                        result[offset + i * stateCount + j] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            final double[] first = matrices[firstIndices[u]];
+            final double[] second = matrices[secondIndices[u]];
+            final double[] result = matrices[resultIndices[u]];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = first[i] + second[i];
+            }
+        }
+    }
+
+    @Override
+    public void transposeTransitionMatrices(int[] inputIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            final double[] input = matrices[inputIndices[u]];
+            final double[] result = matrices[resultIndices[u]];
+            for (int l = 0; l < categoryCount; l++) {
+                final int offset = l * matrixSize;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        result[offset + j * stateCount + i] = input[offset + i * stateCount + j];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices, int[] firstDerivativeIndices,
+                                         int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+        for (int u = 0; u < count; u++) {
+            updateTransitionMatrix(eigenIndex, 0, probabilityIndices[u],
+                    firstDerivativeIndices == null ? Beagle.NONE : firstDerivativeIndices[u],
+                    secondDerivativeIndices == null ? Beagle.NONE : secondDerivativeIndices[u],
+                    edgeLengths[u]);
+        }
+    }
+
+    @Override
+    public void updateTransitionMatricesWithMultipleModels(int[] eigenIndices, int[] categoryRateIndices,
+                                                           int[] probabilityIndices, int[] firstDerivativeIndices,
+                                                           int[] secondDerivativeIndices, double[] edgeLengths,
+                                                           int count) {
+        for (int u = 0; u < count; u++) {
+            updateTransitionMatrix(eigenIndices[u], categoryRateIndices[u], probabilityIndices[u],
+                    firstDerivativeIndices == null ? Beagle.NONE : firstDerivativeIndices[u],
+                    secondDerivativeIndices == null ? Beagle.NONE : secondDerivativeIndices[u],
+                    edgeLengths[u]);
+        }
+    }
+
+    private void updateTransitionMatrix(int eigenIndex, int categoryRateIndex, int probabilityIndex,
+                                        int firstDerivativeIndex, int secondDerivativeIndex, double edgeLength) {
+
+        final double[] evec = eigenVectors[eigenIndex];
+        final double[] ievc = inverseEigenVectors[eigenIndex];
+        final double[] eval = eigenValues[eigenIndex];
+        final double[] rates = categoryRates[categoryRateIndex];
+
+        final boolean isComplex = eval.length == 2 * stateCount;
+        if (isComplex && (firstDerivativeIndex != Beagle.NONE || secondDerivativeIndex != Beagle.NONE)) {
+            throw new UnsupportedOperationException("Derivatives of complex eigen decompositions are not supported");
+        }
+
+        final double[] matrix = matrices[probabilityIndex];
+        final double[] tmp = this.tmpMatrix;
+
+        for (int l = 0; l < categoryCount; l++) {
+            final double distance = edgeLength * rates[l];
+            final int offset = l * matrixSize;
+
+            fillExponentiatedInverse(ievc, eval, distance, isComplex, 0, tmp);
+            multiplyEigenVectors(evec, tmp, matrix, offset, isComplex ? ABSOLUTE : NON_NEGATIVE);
+
+            if (firstDerivativeIndex != Beagle.NONE) {
+                fillExponentiatedInverse(ievc, eval, distance, false, 1, tmp);
+                multiplyEigenVectors(evec, tmp, matrices[firstDerivativeIndex], offset, UNBOUNDED);
+                scale(matrices[firstDerivativeIndex], offset, rates[l]);
+            }
+
+            if (secondDerivativeIndex != Beagle.NONE) {
+                fillExponentiatedInverse(ievc, eval, distance, false, 2, tmp);
+                multiplyEigenVectors(evec, tmp, matrices[secondDerivativeIndex], offset, UNBOUNDED);
+                scale(matrices[secondDerivativeIndex], offset, rates[l] * rates[l]);
+            }
+        }
+    }
+
+    /**
+     * Fills tmp with diag(lambda^power * exp(lambda * t)) * Ievc, handling complex conjugate blocks as
+     * in ComplexSubstitutionModel.
+     */
+    private void fillExponentiatedInverse(double[] ievc, double[] eval, double distance, boolean isComplex,
+                                          int power, double[] tmp) {
+        for (int i = 0; i < stateCount; i++) {
+            final double imaginary = isComplex ? eval[stateCount + i] : 0.0;
+            if (imaginary == 0.0) {
+                double factor = Math.exp(eval[i] * distance);
+                for (int p = 0; p < power; p++) {
+                    factor *= eval[i];
+                }
+                for (int j = 0; j < stateCount; j++) {
+                    tmp[i * stateCount + j] = ievc[i * stateCount + j] * factor;
+                }
+            } else {
+                // 2x2 conjugate block
+                final int i2 = i + 1;
+                final double expat = Math.exp(distance * eval[i]);
+                final double expatcosbt = expat * Math.cos(distance * imaginary);
+                final double expatsinbt = expat * Math.sin(distance * imaginary);
+                for (int j = 0; j < stateCount; j++) {
+                    tmp[i * stateCount + j] = expatcosbt * ievc[i * stateCount + j] +
+                            expatsinbt * ievc[i2 * stateCount + j];
+                    tmp[i2 * stateCount + j] = expatcosbt * ievc[i2 * stateCount + j] -
+                            expatsinbt * ievc[i * stateCount + j];
+                }
+                i++; // processed two conjugate rows
+            }
+        }
+    }
+
+    private static final int NON_NEGATIVE = 0;
+    private static final int ABSOLUTE = 1;
+    private static final int UNBOUNDED = 2;
+
+    private void multiplyEigenVectors(double[] evec, double[] tmp, double[] matrix, int offset, int bound) {
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < stateCount; k++) {
+                    sum += evec[i * stateCount + k] * tmp[k * stateCount + j];
+                }
+                if (bound == ABSOLUTE) {
+                    sum = Math.abs(sum);
+                } else if (bound == NON_NEGATIVE && sum < 0.0) {
+                    sum = 0.0;
+                }
+                matrix[offset + i * stateCount + j] = sum;
+            }
+        }
+    }
+
+    private void scale(double[] matrix, int offset, double factor) {
+        for (int i = 0; i < matrixSize; i++) {
+            matrix[offset + i] *= factor;
+        }
+    }
+
+    @Override
+    public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+        System.arraycopy(inMatrix, 0, matrices[matrixIndex], 0, categoryCount * matrixSize);
+    }
+
+    @Override
+    public void setDifferentialMatrix(int matrixIndex, double[] inMatrix) {
+        final double[] matrix = matrices[matrixIndex];
+        for (int l = 0; l < categoryCount; l++) {
+            System.arraycopy(inMatrix, 0, matrix, l * matrixSize, matrixSize);
+        }
+    }
+
+    @Override
+    public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+        System.arraycopy(matrices[matrixIndex], 0, outMatrix, 0, categoryCount * matrixSize);
+    }
+
+    // **************************************************************
+    // Partials
+    // **************************************************************
+
+    @Override
+    public void updatePrePartials(int[] operations, int operationCount, int cumulativeScaleIndex) {
+        throw new UnsupportedOperationException("Pre-order traversals are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void calculateEdgeDerivative(int[] postBufferIndices, int[] preBufferIndices, int rootBufferIndex,
+                                        int[] firstDerivativeIndices, int[] secondDerivativeIndices,
+                                        int categoryWeightsIndex, int categoryRatesIndex, int stateFrequenciesIndex,
+                                        int[] cumulativeScaleIndices, int count,
+                                        double[] outFirstDerivative, double[] outDiagonalSecondDerivative) {
+        throw new UnsupportedOperationException("Edge derivatives are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void calculateEdgeDifferentials(int[] postBufferIndices, int[] preBufferIndices,
+                                           int[] derivativeMatrixIndices, int[] categoryWeightsIndices, int count,
+                                           double[] outDerivatives, double[] outSumDerivatives,
+                                           double[] outSumSquaredDerivatives) {
+        throw new UnsupportedOperationException("Edge differentials are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void updatePartials(final int[] operations, final int operationCount, final int cumulativeScaleIndex) {
+
+        for (int op = 0; op < operationCount; op++) {
+            getPartialsBuffer(operations[op * Beagle.OPERATION_TUPLE_SIZE]);
+        }
+
+        forEachBlock((start, end, block) -> {
+            for (int op = 0; op < operationCount; op++) {
+                updatePartialsBlock(operations, op * Beagle.OPERATION_TUPLE_SIZE, cumulativeScaleIndex, start, end);
+            }
+        });
+    }
+
+    private void updatePartialsBlock(final int[] operations, final int x, final int cumulativeScaleIndex,
+                                     final int start, final int end) {
+
+        final double[] destination = partials[operations[x]];
+        final int writeScaleIndex = operations[x + 1];
+        final int readScaleIndex = operations[x + 2];
+        final int child1Index = operations[x + 3];
+        final double[] matrix1 = matrices[operations[x + 4]];
+        final int child2Index = operations[x + 5];
+        final double[] matrix2 = matrices[operations[x + 6]];
+
+        final int[] states1 = child1Index < tipCount ? tipStates[child1Index] : null;
+        final int[] states2 = child2Index < tipCount ? tipStates[child2Index] : null;
+        final double[] partials1 = partials[child1Index];
+        final double[] partials2 = partials[child2Index];
+
+        for (int k = start; k < end; k++) {
+
+            double max = 0.0;
+
+            for (int l = 0; l < categoryCount; l++) {
+                final int w = l * matrixSize;
+                final int v = (l * patternCount + k) * stateCount;
+
+                for (int i = 0; i < stateCount; i++) {
+                    final int row = w + i * stateCount;
+
+                    final double sum1 = states1 != null ?
+                            (states1[k] < stateCount ? matrix1[row + states1[k]] : 1.0) :
+                            dot(matrix1, row, partials1, v);
+
+                    final double sum2 = states2 != null ?
+                            (states2[k] < stateCount ? matrix2[row + states2[k]] : 1.0) :
+                            dot(matrix2, row, partials2, v);
+
+                    final double value = sum1 * sum2;
+                    destination[v + i] = value;
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+
+            if (writeScaleIndex != Beagle.NONE) {
+                double logScale = 0.0;
+                if (max > 0.0) {
+                    logScale = Math.log(max);
+                    rescalePattern(destination, k, 1.0 / max);
+                }
+                scaleFactors[writeScaleIndex][k] = logScale;
+                if (cumulativeScaleIndex != Beagle.NONE) {
+                    scaleFactors[cumulativeScaleIndex][k] += logScale;
+                }
+            } else if (readScaleIndex != Beagle.NONE) {
+                rescalePattern(destination, k, Math.exp(-scaleFactors[readScaleIndex][k]));
+            }
+        }
+    }
+
+    private double dot(final double[] matrix, final int row, final double[] partials, final int v) {
+        double sum = 0.0;
+        for (int j = 0; j < stateCount; j++) {
+            sum += matrix[row + j] * partials[v + j];
+        }
+        return sum;
+    }
+
+    private void rescalePattern(final double[] destination, final int k, final double factor) {
+        for (int l = 0; l < categoryCount; l++) {
+            final int v = (l * patternCount + k) * stateCount;
+            for (int i = 0; i < stateCount; i++) {
+                destination[v + i] *= factor;
+            }
+        }
+    }
+
+    @Override
+    public void updatePartialsByPartition(int[] operations, int operationCount) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    // **************************************************************
+    // Scale factors
+    // **************************************************************
+
+    @Override
+    public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        if (cumulativeScaleIndex == Beagle.NONE) {
+            return;
+        }
+        final double[] cumulative = scaleFactors[cumulativeScaleIndex];
+        for (int i = 0; i < count; i++) {
+            final double[] factors = scaleFactors[scaleIndices[i]];
+            for (int k = 0; k < patternCount; k++) {
+                cumulative[k] += factors[k];
+            }
+        }
+    }
+
+    @Override
+    public void accumulateScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        final double[] cumulative = scaleFactors[cumulativeScaleIndex];
+        for (int i = 0; i < count; i++) {
+            final double[] factors = scaleFactors[scaleIndices[i]];
+            for (int k = 0; k < patternCount; k++) {
+                cumulative[k] -= factors[k];
+            }
+        }
+    }
+
+    @Override
+    public void removeScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+        System.arraycopy(scaleFactors[srcScalingIndex], 0, scaleFactors[destScalingIndex], 0, patternCount);
+    }
+
+    @Override
+    public void resetScaleFactors(int cumulativeScaleIndex) {
+        Arrays.fill(scaleFactors[cumulativeScaleIndex], 0.0);
+    }
+
+    @Override
+    public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    // **************************************************************
+    // Root likelihoods
+    // **************************************************************
+
+    @Override
+    public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices,
+                                           int[] stateFrequenciesIndices, int[] cumulativeScaleIndices,
+                                           int count, double[] outSumLogLikelihood) {
+        if (count != 1) {
+            throw new UnsupportedOperationException("Only a single root buffer is supported by the parallel Java implementation");
+        }
+
+        final double[] rootPartials = partials[bufferIndices[0]];
+        final double[] weights = categoryWeights[categoryWeightsIndices[0]];
+        final double[] frequencies = stateFrequencies[stateFrequenciesIndices[0]];
+        final double[] cumulativeScale = cumulativeScaleIndices[0] != Beagle.NONE ?
+                scaleFactors[cumulativeScaleIndices[0]] : null;
+
+        forEachBlock((start, end, block) -> {
+            double blockLogL = 0.0;
+            for (int k = start; k < end; k++) {
+                double sum = 0.0;
+                for (int l = 0; l < categoryCount; l++) {
+                    final int v = (l * patternCount + k) * stateCount;
+                    double categorySum = 0.0;
+                    for (int i = 0; i < stateCount; i++) {
+                        categorySum += frequencies[i] * rootPartials[v + i];
+                    }
+                    sum += weights[l] * categorySum;
+                }
+                double logL = Math.log(sum);
+                if (cumulativeScale != null) {
+                    logL += cumulativeScale[k];
+                }
+                siteLogLikelihoods[k] = logL;
+                blockLogL += logL * patternWeights[k];
+            }
+            blockLogLikelihoods[block] = blockLogL;
+        });
+
+        // reduce in block order so the sum does not depend on thread scheduling
+        double logL = 0.0;
+        for (int block = 0; block < blockCount; block++) {
+            logL += blockLogLikelihoods[block];
+        }
+        outSumLogLikelihood[0] = logL;
+    }
+
+    @Override
+    public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+                                                       int[] stateFrequenciesIndices, int[] cumulativeScaleIndices,
+                                                       int[] partitionIndices, int partitionCount, int count,
+                                                       double[] outSumLogLikelihoodByPartition,
+                                                       double[] outSumLogLikelihood) {
+        throw new UnsupportedOperationException("Pattern partitions are not supported by the parallel Java implementation");
+    }
+
+    @Override
+    public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+        System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+    }
+
+    @Override
+    public InstanceDetails getDetails() {
+        InstanceDetails details = new InstanceDetails();
+        details.setResourceNumber(0);
+        details.setResourceName("CPU (Java)");
+        details.setImplementationName("ParallelJavaBeagleImpl");
+        details.setFlags(BeagleFlag.PROCESSOR_CPU.getMask() |
+                BeagleFlag.FRAMEWORK_CPU.getMask() |
+                BeagleFlag.PRECISION_DOUBLE.getMask() |
+                BeagleFlag.EIGEN_REAL.getMask() |
+                BeagleFlag.EIGEN_COMPLEX.getMask() |
+                BeagleFlag.SCALING_MANUAL.getMask() |
+                BeagleFlag.SCALERS_LOG.getMask() |
+                BeagleFlag.VECTOR_NONE.getMask() |
+                (threadCount > 1 ? BeagleFlag.THREADING_CPP.getMask() : BeagleFlag.THREADING_NONE.getMask()));
+        return details;
+    }
+
+    // **************************************************************
+    // Block scheduling
+    // **************************************************************
+
+    private interface BlockOperation {
+        void apply(int start, int end, int block);
+    }
+
+    private void forEachBlock(final BlockOperation operation) {
+        if (pool == null) {
+            for (int block = 0; block < blockCount; block++) {
+                applyBlock(operation, block);
+            }
+        } else {
+            pool.invoke(new BlockTask(operation, 0, blockCount));
+        }
+    }
+
+    private void applyBlock(final BlockOperation operation, final int block) {
+        final int start = block * blockSize;
+        operation.apply(start, Math.min(start + blockSize, patternCount), block);
+    }
+
+    private final class BlockTask extends RecursiveAction {
+
+        BlockTask(BlockOperation operation, int fromBlock, int toBlock) {
+            this.operation = operation;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock == 1) {
+                applyBlock(operation, fromBlock);
+            } else {
+                int middle = (fromBlock + toBlock) >>> 1;
+                invokeAll(new BlockTask(operation, fromBlock, middle), new BlockTask(operation, middle, toBlock));
+            }
+        }
+
+        private final BlockOperation operation;
+        private final int fromBlock;
+        private final int toBlock;
+    }
+
+    private double[] getPartialsBuffer(int bufferIndex) {
+        if (partials[bufferIndex] == null) {
+            partials[bufferIndex] = new double[partialsSize];
+        }
+        return partials[bufferIndex];
+    }
+
+    private final int tipCount;
+    private final int partialsBufferCount;
+    private final int stateCount;
+    private final int patternCount;
+    private final int eigenBufferCount;
+    private final int matrixBufferCount;
+    private final int categoryCount;
+
+    private final int partialsSize;
+    private final int matrixSize;
+
+    private final double[][] eigenVectors;
+    private final double[][] inverseEigenVectors;
+    private final double[][] eigenValues;
+
+    private final double[][] stateFrequencies;
+    private final double[][] categoryWeights;
+    private final double[][] categoryRates;
+    private final double[] patternWeights;
+
+    private final double[][] partials;
+    private final int[][] tipStates;
+    private final double[][] matrices;
+    private final double[][] scaleFactors;
+
+    private final double[] siteLogLikelihoods;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final double[] blockLogLikelihoods;
+
+    private final double[] tmpMatrix;
+
+    private int threadCount;
+    private ForkJoinPool pool;
+}
@@ -71,6 +71,8 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
     private Deque<Integer> availableBuffers = new ArrayDeque<Integer>();
 
+    private TransitionMatrixCache matrixCache = null;
+
     /**
      * A class which handles substitution models including epoch models where multiple
      * substitution models on a branch are convolved.
@@ -278,6 +280,10 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                     ed.getEigenVectors(),
                     ed.getInverseEigenVectors(),
                     ed.getEigenValues());
+
+            if (matrixCache != null) {
+                matrixCache.invalidate(eigenBufferHelper.getOffsetIndex(i));
+            }
         }
     }
 
@@ -371,6 +377,11 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
         }
     }
 
+    @Override
+    public void setTransitionMatrixCache(TransitionMatrixCache matrixCache) {
+        this.matrixCache = matrixCache;
+    }
+
     private void computeTransitionMatrices(Beagle beagle, int[][] probabilityIndices, double[][] edgeLengths, int[] counts) {
 
         Timer timer;
@@ -390,7 +401,10 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                     System.out.print(" " + probabilityIndices[i][j] + " (" + edgeLengths[i][j] + ")");
                 }
             }
-            if (counts[i] > 0) {
+            if (counts[i] > 0 && matrixCache != null) {
+                matrixCache.updateTransitionMatrices(beagle, eigenBufferHelper.getOffsetIndex(i),
+                        probabilityIndices[i], edgeLengths[i], counts[i]);
+            } else if (counts[i] > 0) {
                 beagle.updateTransitionMatrices(eigenBufferHelper.getOffsetIndex(i),
                         probabilityIndices[i],
                         null, // firstDerivativeIndices
@@ -0,0 +1,277 @@
+/*
+ * TransitionMatrixCache.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of the transition probability matrices of a BEAGLE instance.
+ * Matrices are keyed on the eigen decomposition buffer they were computed from and the edge length
+ * so a branch with the same length as one already computed (e.g., tips sampled at the same time
+ * under a strict clock) is copied into its buffer rather than exponentiated again. Each entry holds
+ * the matrices for all the rate categories so the whole cache is cleared when the category rates
+ * change and the entries for an eigen buffer are dropped when a new decomposition is put in it.
+ *
+ * Switched on by setting the system property beagle.matrix.cache to the number of matrices to keep.
+ * By default only identical edge lengths share a matrix but beagle.matrix.cache.bits can be used to
+ * give the number of significant bits of the edge length that are used for the key.
+ *
+ * @author agent
+ */
+public final class TransitionMatrixCache implements Loggable {
+
+    public static final String CACHE_SIZE_PROPERTY = "beagle.matrix.cache";
+    public static final String KEY_BITS_PROPERTY = "beagle.matrix.cache.bits";
+
+    private static final int MANTISSA_BITS = 52;
+
+    /**
+     * Creates a cache if one has been asked for with the system properties.
+     * @param stateCount the number of states of the substitution model
+     * @param categoryCount the number of rate categories
+     * @return the cache or null if caching is not switched on
+     */
+    public static TransitionMatrixCache createFromSystemProperties(int stateCount, int categoryCount) {
+        int maxSize = Integer.getInteger(CACHE_SIZE_PROPERTY, 0);
+        if (maxSize <= 0) {
+            return null;
+        }
+        int keyBits = Integer.getInteger(KEY_BITS_PROPERTY, MANTISSA_BITS);
+        return new TransitionMatrixCache(maxSize, keyBits, stateCount * stateCount * categoryCount);
+    }
+
+    /**
+     * @param maxSize the maximum number of matrices to keep
+     * @param keyBits the number of significant bits of the edge length to use for the key (at most 52)
+     * @param matrixSize the size of the matrices for all categories together
+     */
+    public TransitionMatrixCache(int maxSize, int keyBits, int matrixSize) {
+        if (keyBits < 0 || keyBits > MANTISSA_BITS) {
+            throw new IllegalArgumentException("The number of key bits should be between 0 and " + MANTISSA_BITS);
+        }
+        this.maxSize = maxSize;
+        this.keyMask = ~((1L << (MANTISSA_BITS - keyBits)) - 1);
+        this.matrixSize = matrixSize;
+    }
+
+    /**
+     * Tells the cache the category rates that BEAGLE is using. The cache is emptied if these differ
+     * from the ones the matrices were computed with.
+     * @param categoryRates the rates
+     */
+    public void setCategoryRates(double[] categoryRates) {
+        if (!Arrays.equals(categoryRates, this.categoryRates)) {
+            cache.clear();
+            this.categoryRates = categoryRates.clone();
+        }
+    }
+
+    /**
+     * Drops the matrices computed from an eigen buffer (because a new decomposition has been set in it).
+     * @param eigenIndex the eigen buffer index
+     */
+    public void invalidate(int eigenIndex) {
+        Iterator<Key> iterator = cache.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().eigenIndex == eigenIndex) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Does the same as Beagle.updateTransitionMatrices (without derivatives) but only asks BEAGLE to
+     * compute the matrices that aren't in the cache (or repeated within this set of updates).
+     */
+    public void updateTransitionMatrices(Beagle beagle, int eigenIndex, int[] probabilityIndices,
+                                         double[] edgeLengths, int count) {
+
+        int[] computeIndices = new int[count];
+        double[] computeLengths = new double[count];
+        Key[] computeKeys = new Key[count];
+        int computeCount = 0;
+
+        int[] copyIndices = new int[count];
+        int[] copyFrom = new int[count];
+        int copyCount = 0;
+
+        Map<Key, Integer> pending = new HashMap<Key, Integer>();
+
+        for (int i = 0; i < count; i++) {
+            Key key = new Key(eigenIndex, Double.doubleToLongBits(edgeLengths[i]) & keyMask);
+            double[] matrix = cache.get(key);
+            if (matrix != null) {
+                beagle.setTransitionMatrix(probabilityIndices[i], matrix, 1.0);
+                hitCount++;
+            } else {
+                Integer first = pending.get(key);
+                if (first != null) {
+                    copyIndices[copyCount] = probabilityIndices[i];
+                    copyFrom[copyCount] = first;
+                    copyCount++;
+                    hitCount++;
+                } else {
+                    pending.put(key, computeCount);
+                    computeIndices[computeCount] = probabilityIndices[i];
+                    computeLengths[computeCount] = edgeLengths[i];
+                    computeKeys[computeCount] = key;
+                    computeCount++;
+                    missCount++;
+                }
+            }
+        }
+
+        if (computeCount == 0) {
+            return;
+        }
+
+        beagle.updateTransitionMatrices(eigenIndex,
+                computeIndices,
+                null, // firstDerivativeIndices
+                null, // secondDerivativeIndices
+                computeLengths,
+                computeCount);
+
+        double[][] computed = new double[computeCount][];
+        for (int j = 0; j < computeCount; j++) {
+            computed[j] = getSpareMatrix(j);
+            beagle.getTransitionMatrix(computeIndices[j], computed[j]);
+        }
+
+        for (int j = 0; j < copyCount; j++) {
+            beagle.setTransitionMatrix(copyIndices[j], computed[copyFrom[j]], 1.0);
+        }
+
+        for (int j = 0; j < computeCount; j++) {
+            cache.put(computeKeys[j], computed[j]);
+        }
+        // a large set of updates can overfill the cache
+        Iterator<double[]> iterator = cache.values().iterator();
+        while (cache.size() > maxSize) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Makes space for a new matrix, reusing the array of the least recently used one if the cache is full.
+     * @param pendingCount the number of matrices still to be put in the cache
+     */
+    private double[] getSpareMatrix(int pendingCount) {
+        if (!cache.isEmpty() && cache.size() + pendingCount >= maxSize) {
+            Iterator<double[]> iterator = cache.values().iterator();
+            double[] matrix = iterator.next();
+            iterator.remove();
+            return matrix;
+        }
+        return new double[matrixSize];
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    // **************************************************************
+    // Loggable IMPLEMENTATION
+    // **************************************************************
+
+    public LogColumn[] getColumns() {
+        return getColumns("matrixCache");
+    }
+
+    /**
+     * @param prefix a prefix for the column labels (e.g., the id of the likelihood)
+     * @return columns with the numbers of cache hits and misses so far
+     */
+    public LogColumn[] getColumns(String prefix) {
+        return new LogColumn[]{
+                new NumberColumn(prefix + ".hits") {
+                    @Override
+                    public double getDoubleValue() {
+                        return hitCount;
+                    }
+                },
+                new NumberColumn(prefix + ".misses") {
+                    @Override
+                    public double getDoubleValue() {
+                        return missCount;
+                    }
+                }
+        };
+    }
+
+    private static final class Key {
+        Key(int eigenIndex, long lengthBits) {
+            this.eigenIndex = eigenIndex;
+            this.lengthBits = lengthBits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return eigenIndex == key.eigenIndex && lengthBits == key.lengthBits;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * eigenIndex + (int) (lengthBits ^ (lengthBits >>> 32));
+        }
+
+        final int eigenIndex;
+        final long lengthBits;
+    }
+
+    private final int maxSize;
+    private final long keyMask;
+    private final int matrixSize;
+
+    // access ordered so the first entry is the least recently used
+    private final LinkedHashMap<Key, double[]> cache = new LinkedHashMap<Key, double[]>(16, 0.75f, true);
+
+    private double[] categoryRates = null;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+}
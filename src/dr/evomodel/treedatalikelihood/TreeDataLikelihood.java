@@ -29,6 +29,8 @@ import dr.evolution.tree.*;
 import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.branchratemodel.DefaultBranchRateModel;
 import dr.evomodel.tree.TreeChangedEvent;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
 import dr.inference.model.*;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -36,6 +38,7 @@ import dr.xml.Reportable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
@@ -46,7 +49,7 @@ import java.util.logging.Logger;
  * @version $Id$
  */
 
-public final class TreeDataLikelihood extends AbstractModelLikelihood implements TreeTraitProvider, Citable, Profileable, Reportable {
+public final class TreeDataLikelihood extends AbstractModelLikelihood implements TreeTraitProvider, Citable, TraversalProfileable, Reportable, ThreadAwareLikelihood {
 
     private static final boolean COUNT_TOTAL_OPERATIONS = true;
     private static final long MAX_UNDERFLOWS_BEFORE_ERROR = 100;
@@ -122,6 +125,7 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
             if (COUNT_TOTAL_OPERATIONS) {
                 totalCalculateLikelihoodCount++;
             }
+            evaluationCount.increment();
 
             logLikelihood = calculateLogLikelihood();
             likelihoodKnown = true;
@@ -284,6 +288,12 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
                 totalOperationCount += nodeOperations.size();
             }
 
+            if (nodeOperations.size() >= treeModel.getInternalNodeCount()) {
+                fullTraversalCount.increment();
+            } else {
+                partialTraversalCount.increment();
+            }
+
             final NodeRef root = treeModel.getRoot();
 
             try {
@@ -450,6 +460,31 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
         }
     }
 
+    // **************************************************************
+    // Loggable IMPLEMENTATION
+    // **************************************************************
+
+    /**
+     * The likelihood column followed by any columns the delegate provides (e.g., matrix cache counts)
+     */
+    @Override
+    public LogColumn[] getColumns() {
+        LogColumn[] columns = super.getColumns();
+        if (likelihoodDelegate instanceof Loggable) {
+            LogColumn[] delegateColumns = ((Loggable) likelihoodDelegate).getColumns();
+            if (delegateColumns.length > 0) {
+                LogColumn[] allColumns = new LogColumn[columns.length + delegateColumns.length];
+                System.arraycopy(columns, 0, allColumns, 0, columns.length);
+                for (int i = 0; i < delegateColumns.length; i++) {
+                    delegateColumns[i].setLabel(getId() + "." + delegateColumns[i].getLabel());
+                    allColumns[columns.length + i] = delegateColumns[i];
+                }
+                columns = allColumns;
+            }
+        }
+        return columns;
+    }
+
     // **************************************************************
     // INSTANCE PROFILEABLE
     // **************************************************************
@@ -459,6 +494,21 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
         return likelihoodDelegate.getTotalCalculationCount();
     }
 
+    @Override
+    public long getEvaluationCount() {
+        return evaluationCount.sum();
+    }
+
+    @Override
+    public long getFullTraversalCount() {
+        return fullTraversalCount.sum();
+    }
+
+    @Override
+    public long getPartialTraversalCount() {
+        return partialTraversalCount.sum();
+    }
+
     // **************************************************************
     // INSTANCE VARIABLES
     // **************************************************************
@@ -505,4 +555,9 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
     private int totalRateUpdateSingleCount = 0;
     private int totalPostOrderStatistics = 0;
     private int totalCalculatePostOrderStatistics = 0;
+
+    // these may be read by a logger on another thread
+    private final LongAdder evaluationCount = new LongAdder();
+    private final LongAdder fullTraversalCount = new LongAdder();
+    private final LongAdder partialTraversalCount = new LongAdder();
 }
@@ -300,6 +300,21 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
 
     public TreeDataLikelihood getCallbackLikelihood() { return callbackLikelihood; }
 
+    /**
+     * Sets the number of threads used for the tree traversals. Only the safe multivariate integrators
+     * are threaded; the results are the same whatever the number of threads.
+     */
+    public void setThreadCount(int threadCount) {
+        if (cdi instanceof SafeMultivariateIntegrator) {
+            ((SafeMultivariateIntegrator) cdi).setThreadCount(threadCount);
+            Logger.getLogger("dr.evomodel.treedatalikelihood").info("  Using " +
+                    ((SafeMultivariateIntegrator) cdi).getThreadCount() + " thread(s) for the continuous trait traversals");
+        } else if (threadCount != 1) {
+            Logger.getLogger("dr.evomodel.treedatalikelihood").info("  The " + cdi.getClass().getSimpleName() +
+                    " is not threaded, so the traversals will run on a single thread");
+        }
+    }
+
     public PrecisionType getPrecisionType() {
         return precisionType;
     }
@@ -89,6 +89,18 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
         matrixQdjPjp = new DenseMatrix64F(dimTrait, dimTrait);
 
         matrixNiacc = new DenseMatrix64F(dimTrait, 1);
+        matrixQdi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixQdj = new DenseMatrix64F(dimTrait, dimTrait);
+    }
+
+    @Override
+    void allocateWorkerStorage() {
+        super.allocateWorkerStorage();
+        matrixQdiPip = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixQdjPjp = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixNiacc = new DenseMatrix64F(dimTrait, 1);
+        matrixQdi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixQdj = new DenseMatrix64F(dimTrait, dimTrait);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -467,23 +479,23 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
 
     @Override
     void actualizePrecision(DenseMatrix64F Pjp, DenseMatrix64F QjPjp, int jbo, int jmo, int jdo) {
-        final DenseMatrix64F Qdj = wrap(actualizations, jmo, dimTrait, dimTrait);
+        final DenseMatrix64F Qdj = matrixQdj;
+        SmallMatrixKernels.copy(actualizations, jmo, Qdj);
         scalePrecision(Qdj, Pjp, QjPjp, Pjp);
     }
 
     @Override
     void actualizeVariance(DenseMatrix64F Vip, int ibo, int imo, int ido) {
-        final DenseMatrix64F Qdi = wrap(actualizations, imo, dimTrait, dimTrait);
+        final DenseMatrix64F Qdi = matrixQdi;
+        SmallMatrixKernels.copy(actualizations, imo, Qdi);
         final DenseMatrix64F QiVip = matrixQdiPip;
         scaleVariance(Qdi, Vip, QiVip, Vip);
     }
 
     @Override
     void scaleAndDriftMean(int ibo, int imo, int ido) {
-        final DenseMatrix64F Qdi = wrap(actualizations, imo, dimTrait, dimTrait);
-        final DenseMatrix64F ni = wrap(preOrderPartials, ibo, dimTrait, 1);
         final DenseMatrix64F niacc = matrixNiacc;
-        CommonOps.mult(Qdi, ni, niacc);
+        SmallMatrixKernels.multVector(actualizations, imo, preOrderPartials, ibo, niacc.data, 0, dimTrait);
         unwrap(niacc, preOrderPartials, ibo);
 
         for (int g = 0; g < dimTrait; ++g) {
@@ -496,8 +508,10 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
     void computePartialPrecision(int ido, int jdo, int imo, int jmo,
                                  DenseMatrix64F Pip, DenseMatrix64F Pjp, DenseMatrix64F Pk) {
 
-        final DenseMatrix64F Qdi = wrap(actualizations, imo, dimTrait, dimTrait);
-        final DenseMatrix64F Qdj = wrap(actualizations, jmo, dimTrait, dimTrait);
+        final DenseMatrix64F Qdi = matrixQdi;
+        final DenseMatrix64F Qdj = matrixQdj;
+        SmallMatrixKernels.copy(actualizations, imo, Qdi);
+        SmallMatrixKernels.copy(actualizations, jmo, Qdj);
 
         final DenseMatrix64F QdiPip = matrixQdiPip;
         final DenseMatrix64F QdiPipQdi = matrix0;
@@ -507,7 +521,7 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
         final DenseMatrix64F QdjPjp = matrixQdjPjp;
         scalePrecision(Qdj, Pjp, QdjPjp, QdjPjpQdj);
 
-        CommonOps.add(QdiPipQdi, QdjPjpQdj, Pk);
+        SmallMatrixKernels.add(QdiPipQdi, QdjPjpQdj, Pk);
 
 //        forceSymmetric(Pk);
 
@@ -523,16 +537,16 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
 
     private void scalePrecision(DenseMatrix64F Q, DenseMatrix64F P,
                                 DenseMatrix64F QtP, DenseMatrix64F QtPQ) {
-        CommonOps.multTransA(Q, P, QtP);
+        SmallMatrixKernels.multTransA(Q, P, QtP);
 //        symmetricMult(Q, P, QtPQ);
-        CommonOps.mult(QtP, Q, QtPQ);
+        SmallMatrixKernels.mult(QtP, Q, QtPQ);
         forceSymmetric(QtPQ);
     }
 
     private void scaleVariance(DenseMatrix64F Q, DenseMatrix64F P,
                                DenseMatrix64F QtP, DenseMatrix64F QtPQ) {
-        CommonOps.mult(Q, P, QtP);
-        CommonOps.multTransB(QtP, Q, QtPQ);
+        SmallMatrixKernels.mult(Q, P, QtP);
+        SmallMatrixKernels.multTransB(QtP, Q, QtPQ);
     }
 
     @Override
@@ -547,5 +561,7 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
     private DenseMatrix64F matrixQdiPip;
     private DenseMatrix64F matrixQdjPjp;
     private DenseMatrix64F matrixNiacc;
+    private DenseMatrix64F matrixQdi;
+    private DenseMatrix64F matrixQdj;
     private final boolean isActualizationSymmetric;
 }
@@ -2,7 +2,6 @@ package dr.evomodel.treedatalikelihood.continuous.cdi;
 
 import dr.math.matrixAlgebra.missingData.MissingOps;
 import org.ejml.data.DenseMatrix64F;
-import org.ejml.ops.CommonOps;
 
 import java.util.Arrays;
 
@@ -79,6 +78,13 @@ public class SafeMultivariateDiagonalActualizedWithDriftIntegrator extends SafeM
         vectorDiagQdj = new double[dimTrait];
     }
 
+    @Override
+    void allocateWorkerStorage() {
+        super.allocateWorkerStorage();
+        vectorDiagQdi = new double[dimTrait];
+        vectorDiagQdj = new double[dimTrait];
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /// Setting variances, displacement and actualization vectors
     ///////////////////////////////////////////////////////////////////////////
@@ -337,7 +343,7 @@ public class SafeMultivariateDiagonalActualizedWithDriftIntegrator extends SafeM
         final DenseMatrix64F QdjPjpQdj = matrix1;
         diagonalDoubleProduct(Pip, diagQdi, QdiPipQdi);
         diagonalDoubleProduct(Pjp, diagQdj, QdjPjpQdj);
-        CommonOps.add(QdiPipQdi, QdjPjpQdj, Pk);
+        SmallMatrixKernels.add(QdiPipQdi, QdjPjpQdj, Pk);
 
         if (DEBUG) {
             System.err.println("Qdi: " + Arrays.toString(diagQdi));
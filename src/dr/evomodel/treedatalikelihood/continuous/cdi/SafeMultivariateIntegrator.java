@@ -5,15 +5,28 @@ import dr.math.matrixAlgebra.missingData.InversionResult;
 import org.ejml.data.DenseMatrix64F;
 import org.ejml.ops.CommonOps;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
 import static dr.math.matrixAlgebra.missingData.InversionResult.Code.NOT_OBSERVED;
 import static dr.math.matrixAlgebra.missingData.InversionResult.mult;
 import static dr.math.matrixAlgebra.missingData.MissingOps.*;
 
 /**
+ * The traversals can be run on a fork/join pool (see setThreadCount). Each thread has its own worker copy of
+ * the integrator that shares all the partial and branch buffers but has its own scratch matrices. The
+ * post-order operations are grouped into levels of independent subtrees and the operations of a level (and,
+ * when there are fewer of them than threads, blocks of the traits) are run concurrently. Every trait of every
+ * operation is still computed by exactly the same code so the results are identical to the serial traversal.
+ *
  * @author Marc A. Suchard
  */
 
-public class SafeMultivariateIntegrator extends MultivariateIntegrator {
+public class SafeMultivariateIntegrator extends MultivariateIntegrator implements Cloneable {
 
     private static final boolean DEBUG = false;
 
@@ -33,9 +46,78 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         precisions = new double[dimTrait * dimTrait * bufferCount];
         variances = new double[dimTrait * dimTrait * bufferCount];
 
+        allocateBranchStorage();
+    }
+
+    private void allocateBranchStorage() {
         vectorDelta = new double[dimTrait];
         vectorPMk = new double[dimTrait];
         matrixQjPjp = new DenseMatrix64F(dimTrait, dimTrait);
+
+        matrixVdi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixVdj = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPdi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPdj = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixVi = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPkPreOrder = new DenseMatrix64F(dimTrait, dimTrait);
+    }
+
+    /**
+     * Allocates new scratch storage for a worker copy (the partial and branch buffers stay shared).
+     */
+    void allocateWorkerStorage() {
+        vector0 = new double[dimTrait];
+        matrix0 = new DenseMatrix64F(dimTrait, dimTrait);
+        matrix1 = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPip = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPjp = new DenseMatrix64F(dimTrait, dimTrait);
+        matrixPk = new DenseMatrix64F(dimTrait, dimTrait);
+
+        allocateBranchStorage();
+    }
+
+    /**
+     * Sets the number of threads used for the tree traversals; zero or a negative number selects the number of
+     * available processors and one runs everything on the calling thread.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            workers = null;
+        }
+        if (threadCount > 1) {
+            workers = new SafeMultivariateIntegrator[threadCount];
+            workers[0] = this;
+            for (int w = 1; w < threadCount; ++w) {
+                workers[w] = createWorker();
+            }
+            levelOperations = new int[bufferCount];
+            levelStarts = new int[bufferCount + 1];
+            bufferLevels = new int[bufferCount];
+            pool = new ForkJoinPool(threadCount);
+        }
+    }
+
+    public int getThreadCount() {
+        return (workers != null ? workers.length : 1);
+    }
+
+    private SafeMultivariateIntegrator createWorker() {
+        final SafeMultivariateIntegrator worker;
+        try {
+            worker = (SafeMultivariateIntegrator) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        worker.allocateWorkerStorage();
+        worker.workers = null;
+        worker.pool = null;
+        return worker;
     }
 
     private static final boolean TIMING = false;
@@ -160,6 +242,99 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
     /// Tree-traversal functions
     ///////////////////////////////////////////////////////////////////////////
 
+    @Override
+    public void updatePostOrderPartials(final int[] operations, int operationCount, int precisionIndex,
+                                        boolean computeRemainders, boolean incrementOuterProducts) {
+
+        if (pool == null || (operationCount < 2 && numTraits < 2) || incrementOuterProducts) {
+            super.updatePostOrderPartials(operations, operationCount, precisionIndex,
+                    computeRemainders, incrementOuterProducts);
+            return;
+        }
+
+        for (SafeMultivariateIntegrator worker : workers) {
+            worker.updatePrecisionOffsetAndDeterminant(precisionIndex);
+        }
+
+        // Group the operations into levels; an operation only depends on operations in lower levels
+        for (int op = 0; op < operationCount; ++op) {
+            final int offset = op * OPERATION_TUPLE_SIZE;
+            bufferLevels[operations[offset + 1]] = 0;
+            bufferLevels[operations[offset + 3]] = 0;
+        }
+
+        int levelCount = 0;
+        for (int op = 0; op < operationCount; ++op) {
+            final int offset = op * OPERATION_TUPLE_SIZE;
+            final int level = 1 + Math.max(bufferLevels[operations[offset + 1]], bufferLevels[operations[offset + 3]]);
+            bufferLevels[operations[offset]] = level;
+            levelCount = Math.max(levelCount, level);
+        }
+
+        // Counting sort of the operations by level, keeping the traversal order within each level
+        Arrays.fill(levelStarts, 0, levelCount + 1, 0);
+        for (int op = 0; op < operationCount; ++op) {
+            ++levelStarts[bufferLevels[operations[op * OPERATION_TUPLE_SIZE]]];
+        }
+        for (int level = 1; level <= levelCount; ++level) {
+            levelStarts[level] += levelStarts[level - 1];
+        }
+        for (int op = operationCount - 1; op >= 0; --op) {
+            levelOperations[--levelStarts[bufferLevels[operations[op * OPERATION_TUPLE_SIZE]]]] = op;
+        }
+
+        for (int level = 1; level <= levelCount; ++level) {
+            final int start = levelStarts[level];
+            final int end = (level < levelCount ? levelStarts[level + 1] : operationCount);
+            runLevel(operations, start, end, computeRemainders);
+        }
+    }
+
+    private void runLevel(final int[] operations, final int start, final int end, final boolean computeRemainders) {
+
+        final int levelOperationCount = end - start;
+
+        // Split the traits of each operation into enough blocks to keep all the workers busy
+        final int traitBlockCount = Math.min(numTraits,
+                (workers.length + levelOperationCount - 1) / levelOperationCount);
+        final int itemCount = levelOperationCount * traitBlockCount;
+
+        if (itemCount == 1) {
+            final int offset = levelOperations[start] * OPERATION_TUPLE_SIZE;
+            updatePartial(operations[offset], operations[offset + 1], operations[offset + 2],
+                    operations[offset + 3], operations[offset + 4], computeRemainders, false);
+            return;
+        }
+
+        final int taskCount = Math.min(workers.length, itemCount);
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(taskCount);
+        for (int t = 0; t < taskCount; ++t) {
+            final SafeMultivariateIntegrator worker = workers[t];
+            final int fromItem = (int) ((long) itemCount * t / taskCount);
+            final int toItem = (int) ((long) itemCount * (t + 1) / taskCount);
+
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    for (int item = fromItem; item < toItem; ++item) {
+                        final int offset = levelOperations[start + item / traitBlockCount] * OPERATION_TUPLE_SIZE;
+                        final int block = item % traitBlockCount;
+                        worker.updatePartial(operations[offset], operations[offset + 1], operations[offset + 2],
+                                operations[offset + 3], operations[offset + 4], computeRemainders,
+                                numTraits * block / traitBlockCount, numTraits * (block + 1) / traitBlockCount);
+                    }
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+    }
+
     @Override
     public void updatePreOrderPartial(
             final int kBuffer, // parent
@@ -168,10 +343,48 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             final int jBuffer, // sibling
             final int jMatrix) {
 
+        if (pool == null || numTraits < 2) {
+            updatePreOrderPartial(kBuffer, iBuffer, iMatrix, jBuffer, jMatrix, 0, numTraits);
+            return;
+        }
+
+        // The pre-order is visited one node at a time so only the traits are split between the workers
+        final int taskCount = Math.min(workers.length, numTraits);
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(taskCount);
+        for (int t = 0; t < taskCount; ++t) {
+            final SafeMultivariateIntegrator worker = workers[t];
+            final int traitStart = numTraits * t / taskCount;
+            final int traitEnd = numTraits * (t + 1) / taskCount;
+
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    worker.updatePreOrderPartial(kBuffer, iBuffer, iMatrix, jBuffer, jMatrix, traitStart, traitEnd);
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+    }
+
+    private void updatePreOrderPartial(
+            final int kBuffer, // parent
+            final int iBuffer, // node
+            final int iMatrix,
+            final int jBuffer, // sibling
+            final int jMatrix,
+            final int traitStart,
+            final int traitEnd) {
+
         // Determine buffer offsets
-        int kbo = dimPartial * kBuffer;
-        int ibo = dimPartial * iBuffer;
-        int jbo = dimPartial * jBuffer;
+        int kbo = dimPartial * kBuffer + dimPartialForTrait * traitStart;
+        int ibo = dimPartial * iBuffer + dimPartialForTrait * traitStart;
+        int jbo = dimPartial * jBuffer + dimPartialForTrait * traitStart;
 
         // Determine matrix offsets
         final int imo = dimTrait * dimTrait * iMatrix;
@@ -182,11 +395,14 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         final int jdo = dimTrait * jMatrix;
 
         // Read variance increments along descendant branches of k
-        final DenseMatrix64F Vdi = wrap(variances, imo, dimTrait, dimTrait);
-        final DenseMatrix64F Vdj = wrap(variances, jmo, dimTrait, dimTrait);
+        final DenseMatrix64F Vdi = matrixVdi;
+        final DenseMatrix64F Vdj = matrixVdj;
+        SmallMatrixKernels.copy(variances, imo, Vdi);
+        SmallMatrixKernels.copy(variances, jmo, Vdj);
 
 //        final DenseMatrix64F Pdi = wrap(precisions, imo, dimTrait, dimTrait); // TODO Only if needed
-        final DenseMatrix64F Pdj = wrap(precisions, jmo, dimTrait, dimTrait); // TODO Only if needed
+        final DenseMatrix64F Pdj = matrixPdj; // TODO Only if needed
+        SmallMatrixKernels.copy(precisions, jmo, Pdj);
 
 //        final DenseMatrix64F Vd = wrap(inverseDiffusions, precisionOffset, dimTrait, dimTrait);
 
@@ -196,11 +412,12 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             System.err.println("\tVdi: " + Vdi);
         }
 
-        // For each trait // TODO in parallel
-        for (int trait = 0; trait < numTraits; ++trait) {
+        // For each trait
+        for (int trait = traitStart; trait < traitEnd; ++trait) {
 
             // A. Get current precision of k and j
-            final DenseMatrix64F Pk = wrap(preOrderPartials, kbo + dimTrait, dimTrait, dimTrait);
+            final DenseMatrix64F Pk = matrixPkPreOrder;
+            SmallMatrixKernels.copy(preOrderPartials, kbo + dimTrait, Pk);
 //            final DenseMatrix64F Pj = wrap(partials, jbo + dimTrait, dimTrait, dimTrait);
 
 //            final DenseMatrix64F Vk = wrap(preOrderPartials, kbo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
@@ -217,10 +434,10 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
 
             // C. Compute prePartial mean
             final DenseMatrix64F Pip = matrixPip;
-            CommonOps.add(Pk, Pjp, Pip);
+            SmallMatrixKernels.add(Pk, Pjp, Pip);
 
             final DenseMatrix64F Vip = matrix1;
-            safeInvert2(Pip, Vip, false);
+            SmallMatrixKernels.safeInvert(Pip, Vip, false);
 
             final double[] delta = vectorDelta;
             computeDelta(jbo, jdo, delta);
@@ -230,14 +447,14 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
 //                    delta, 0, QjPjp,
 //                    preOrderPartials, ibo, Vip,
 //                    dimTrait, tmp);
-            safeWeightedAverage(
-                    new WrappedVector.Raw(preOrderPartials, kbo, dimTrait),
+            SmallMatrixKernels.safeWeightedAverage(
+                    preOrderPartials, kbo,
                     Pk,
-                    new WrappedVector.Raw(delta, 0, dimTrait),
+                    delta, 0,
                     QjPjp,
-                    new WrappedVector.Raw(preOrderPartials, ibo, dimTrait),
+                    preOrderPartials, ibo,
                     Vip,
-                    dimTrait);
+                    dimTrait, vector0);
 
             scaleAndDriftMean(ibo, imo, ido);
 
@@ -247,7 +464,7 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             inflateBranch(Vdi, Vip, Vi);
 
             final DenseMatrix64F Pi = matrixPk;
-            safeInvert2(Vi, Pi, false);
+            SmallMatrixKernels.safeInvert(Vi, Pi, false);
 
             // X. Store precision results for node
             unwrap(Pi, preOrderPartials, ibo + dimTrait);
@@ -281,7 +498,7 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
     }
 
     private void inflateBranch(DenseMatrix64F Vj, DenseMatrix64F Vdj, DenseMatrix64F Vjp) {
-        CommonOps.add(Vj, Vdj, Vjp);
+        SmallMatrixKernels.add(Vj, Vdj, Vjp);
     }
 
     void actualizePrecision(DenseMatrix64F P, DenseMatrix64F QP, int jbo, int jmo, int jdo) {
@@ -315,14 +532,28 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             throw new RuntimeException("Outer-products are not supported.");
         }
 
+        updatePartial(kBuffer, iBuffer, iMatrix, jBuffer, jMatrix, computeRemainders, 0, numTraits);
+    }
+
+    private void updatePartial(
+            final int kBuffer,
+            final int iBuffer,
+            final int iMatrix,
+            final int jBuffer,
+            final int jMatrix,
+            final boolean computeRemainders,
+            final int traitStart,
+            final int traitEnd
+    ) {
+
         if (TIMING) {
             startTime("total");
         }
 
         // Determine buffer offsets
-        int kbo = dimPartial * kBuffer;
-        int ibo = dimPartial * iBuffer;
-        int jbo = dimPartial * jBuffer;
+        int kbo = dimPartial * kBuffer + dimPartialForTrait * traitStart;
+        int ibo = dimPartial * iBuffer + dimPartialForTrait * traitStart;
+        int jbo = dimPartial * jBuffer + dimPartialForTrait * traitStart;
 
         // Determine matrix offsets
         final int imo = dimTrait * dimTrait * iMatrix;
@@ -333,11 +564,15 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         final int jdo = dimTrait * jMatrix;
 
         // Read variance increments along descendant branches of k
-        final DenseMatrix64F Vdi = wrap(variances, imo, dimTrait, dimTrait);
-        final DenseMatrix64F Vdj = wrap(variances, jmo, dimTrait, dimTrait);
+        final DenseMatrix64F Vdi = matrixVdi;
+        final DenseMatrix64F Vdj = matrixVdj;
+        SmallMatrixKernels.copy(variances, imo, Vdi);
+        SmallMatrixKernels.copy(variances, jmo, Vdj);
 
-        final DenseMatrix64F Pdi = wrap(precisions, imo, dimTrait, dimTrait); // TODO Only if needed
-        final DenseMatrix64F Pdj = wrap(precisions, jmo, dimTrait, dimTrait); // TODO Only if needed
+        final DenseMatrix64F Pdi = matrixPdi; // TODO Only if needed
+        final DenseMatrix64F Pdj = matrixPdj; // TODO Only if needed
+        SmallMatrixKernels.copy(precisions, imo, Pdi);
+        SmallMatrixKernels.copy(precisions, jmo, Pdj);
 
         if (DEBUG) {
             System.err.println("variance diffusion: " + wrap(inverseDiffusions, precisionOffset, dimProcess, dimProcess));
@@ -346,8 +581,8 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             System.err.println("\tVdj: " + Vdj);
         }
 
-        // For each trait // TODO in parallel
-        for (int trait = 0; trait < numTraits; ++trait) {
+        // For each trait
+        for (int trait = traitStart; trait < traitEnd; ++trait) {
 
             // Layout, offset, dim
             // trait, 0, dT
@@ -481,7 +716,8 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         }
 
         // A. Get current precision of i and j
-        final DenseMatrix64F Pi = wrap(partials, ibo + dimTrait, dimTrait, dimTrait);
+        final DenseMatrix64F Pi = matrixPi;
+        SmallMatrixKernels.copy(partials, ibo + dimTrait, Pi);
 
         if (TIMING) {
             endTime("peel1");
@@ -496,25 +732,26 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         if (useVariancei) {
 
             final DenseMatrix64F Vip = matrix0;
-            final DenseMatrix64F Vi = wrap(partials, ibo + dimTrait + dimTrait * dimTrait, dimTrait, dimTrait);
-            CommonOps.add(Vi, Vdi, Vip);
+            final DenseMatrix64F Vi = matrixVi;
+            SmallMatrixKernels.copy(partials, ibo + dimTrait + dimTrait * dimTrait, Vi);
+            SmallMatrixKernels.add(Vi, Vdi, Vip);
             if (allZeroOrInfinite(Vip)) {
                 throw new RuntimeException("Zero-length branch on data is not allowed.");
             }
-            ci = safeInvert2(Vip, Pip, getDeterminant);
+            ci = SmallMatrixKernels.safeInvert(Vip, Pip, getDeterminant);
 
         } else {
 
             final DenseMatrix64F tmp1 = matrix0;
-            CommonOps.add(Pi, Pdi, tmp1);
+            SmallMatrixKernels.add(Pi, Pdi, tmp1);
             final DenseMatrix64F tmp2 = matrix1;
-            safeInvert2(tmp1, tmp2, false);
-            CommonOps.mult(tmp2, Pi, tmp1);
+            SmallMatrixKernels.safeInvert(tmp1, tmp2, false);
+            SmallMatrixKernels.mult(tmp2, Pi, tmp1);
             idMinusA(tmp1);
-            if (getDeterminant) ci = safeDeterminant(tmp1, true);
-            CommonOps.mult(Pi, tmp1, Pip);
+            if (getDeterminant) ci = SmallMatrixKernels.safeDeterminant(tmp1, true);
+            SmallMatrixKernels.mult(Pi, tmp1, Pip);
             if (getDeterminant && getEffectiveDimension(iBuffer) > 0) {
-                InversionResult cP = safeDeterminant(Pi, true);
+                InversionResult cP = SmallMatrixKernels.safeDeterminant(Pi, true);
                 ci = mult(ci, cP);
             }
         }
@@ -527,9 +764,13 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
     }
 
     private static void idMinusA(DenseMatrix64F A) {
-        CommonOps.scale(-1.0, A);
+        final double[] data = A.data;
+        final int length = A.getNumElements();
+        for (int i = 0; i < length; i++) {
+            data[i] = -data[i];
+        }
         for (int i = 0; i < A.numCols; i++) {
-            A.set(i, i, 1.0 + A.get(i, i));
+            data[i * A.numCols + i] += 1.0;
         }
     }
 
@@ -542,7 +783,7 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
 
     void computePartialPrecision(int ido, int jdo, int imo, int jmo,
                                  DenseMatrix64F Pip, DenseMatrix64F Pjp, DenseMatrix64F Pk) {
-        CommonOps.add(Pip, Pjp, Pk);
+        SmallMatrixKernels.add(Pip, Pjp, Pk);
     }
 
     void partialMean(int ibo, int jbo, int kbo,
@@ -554,11 +795,7 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         final double[] tmp = vectorPMk;
         weightedSum(partials, ibo, matrixPip, partials, jbo, matrixPjp, dimTrait, tmp);
 
-
-        final WrappedVector kPartials = new WrappedVector.Raw(partials, kbo, dimTrait);
-        final WrappedVector wrapTmp = new WrappedVector.Raw(tmp, 0, dimTrait);
-
-        safeSolve(matrixPk, wrapTmp, kPartials, false);
+        SmallMatrixKernels.safeSolve(matrixPk, tmp, 0, partials, kbo);
 
         if (TIMING) {
             endTime("peel4");
@@ -703,7 +940,20 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
 
     private final int effectiveDimensionOffset;
 
+    private ForkJoinPool pool = null;
+    private SafeMultivariateIntegrator[] workers = null;
+    private int[] levelOperations;
+    private int[] levelStarts;
+    private int[] bufferLevels;
+
     private DenseMatrix64F matrixQjPjp;
+    private DenseMatrix64F matrixVdi;
+    private DenseMatrix64F matrixVdj;
+    private DenseMatrix64F matrixPdi;
+    private DenseMatrix64F matrixPdj;
+    private DenseMatrix64F matrixPi;
+    private DenseMatrix64F matrixVi;
+    private DenseMatrix64F matrixPkPreOrder;
     private double[] vectorDelta;
     double[] vectorPMk;
 }
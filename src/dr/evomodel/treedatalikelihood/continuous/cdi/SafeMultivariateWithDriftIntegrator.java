@@ -1,6 +1,5 @@
 package dr.evomodel.treedatalikelihood.continuous.cdi;
 
-import dr.math.matrixAlgebra.WrappedVector;
 import org.ejml.data.DenseMatrix64F;
 
 import static dr.math.matrixAlgebra.missingData.MissingOps.*;
@@ -66,6 +65,13 @@ public class SafeMultivariateWithDriftIntegrator extends SafeMultivariateIntegra
         vectorDispj = new double[dimTrait];
     }
 
+    @Override
+    void allocateWorkerStorage() {
+        super.allocateWorkerStorage();
+        vectorDispi = new double[dimTrait];
+        vectorDispj = new double[dimTrait];
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /// Setting variances, displacement and actualization vectors
     ///////////////////////////////////////////////////////////////////////////
@@ -153,10 +159,7 @@ public class SafeMultivariateWithDriftIntegrator extends SafeMultivariateIntegra
 
         computeWeightedSum(displacementi, displacementj, dimTrait, tmp);
 
-        final WrappedVector kPartials = new WrappedVector.Raw(partials, kbo, dimTrait);
-        final WrappedVector wrapTmp = new WrappedVector.Raw(tmp, 0, dimTrait);
-
-        safeSolve(matrixPk, wrapTmp, kPartials, false);
+        SmallMatrixKernels.safeSolve(matrixPk, tmp, 0, partials, kbo);
 
         if (TIMING) {
             endTime("peel4");
@@ -0,0 +1,500 @@
+package dr.evomodel.treedatalikelihood.continuous.cdi;
+
+import dr.math.matrixAlgebra.WrappedVector;
+import dr.math.matrixAlgebra.missingData.InversionResult;
+import dr.math.matrixAlgebra.missingData.MissingOps;
+import org.ejml.UtilEjml;
+import org.ejml.data.DenseMatrix64F;
+
+import static dr.math.matrixAlgebra.missingData.InversionResult.Code.FULLY_OBSERVED;
+
+/**
+ * Allocation-free kernels for the small (dimTrait x dimTrait) matrices of the continuous diffusion integrators.
+ * The kernels work in place on flat row-major arrays and are unrolled for one, two and three dimensions (the
+ * common cases, e.g. latitude / longitude); larger matrices use plain loops.
+ * <p>
+ * The safe versions only take the closed-form path for fully observed matrices that are far enough from singular
+ * for the SVD-based MissingOps versions to keep every singular value; anything else (infinite or zero diagonals,
+ * near-singular or larger matrices) falls back to MissingOps so the handling of missing data is unchanged.
+ *
+ * @author agent
+ */
+
+public final class SmallMatrixKernels {
+
+    private SmallMatrixKernels() {
+        // static methods only
+    }
+
+    public static final int MAX_UNROLLED_DIMENSION = 3;
+
+    // Relative tolerances used by MissingOps.safeDeterminant (SingularOps.singularThreshold) and MissingOps.safeSolve
+    private static final double DETERMINANT_TOLERANCE = UtilEjml.EPS;
+    private static final double SOLVE_TOLERANCE = 1e-8;
+
+    // Head-room for the round-off in the determinant and singular values
+    private static final double SAFETY_FACTOR = 100.0;
+
+    public static void copy(final double[] source, final int offset, final DenseMatrix64F destination) {
+        System.arraycopy(source, offset, destination.data, 0, destination.getNumElements());
+    }
+
+    public static void add(final DenseMatrix64F a, final DenseMatrix64F b, final DenseMatrix64F c) {
+        final double[] ad = a.data;
+        final double[] bd = b.data;
+        final double[] cd = c.data;
+        final int length = a.getNumElements();
+        for (int i = 0; i < length; ++i) {
+            cd[i] = ad[i] + bd[i];
+        }
+    }
+
+    public static void mult(final DenseMatrix64F a, final DenseMatrix64F b, final DenseMatrix64F c) {
+        mult(a.data, 0, b.data, 0, c.data, 0, a.numRows);
+    }
+
+    public static void multTransA(final DenseMatrix64F a, final DenseMatrix64F b, final DenseMatrix64F c) {
+        multTransA(a.data, 0, b.data, 0, c.data, 0, a.numRows);
+    }
+
+    public static void multTransB(final DenseMatrix64F a, final DenseMatrix64F b, final DenseMatrix64F c) {
+        multTransB(a.data, 0, b.data, 0, c.data, 0, a.numRows);
+    }
+
+    /**
+     * c = a * b for square matrices; c must not overlap a or b.
+     */
+    public static void mult(final double[] a, final int ao,
+                            final double[] b, final int bo,
+                            final double[] c, final int co,
+                            final int dim) {
+        switch (dim) {
+            case 1:
+                c[co] = a[ao] * b[bo];
+                break;
+            case 2: {
+                final double a00 = a[ao], a01 = a[ao + 1], a10 = a[ao + 2], a11 = a[ao + 3];
+                final double b00 = b[bo], b01 = b[bo + 1], b10 = b[bo + 2], b11 = b[bo + 3];
+                c[co] = a00 * b00 + a01 * b10;
+                c[co + 1] = a00 * b01 + a01 * b11;
+                c[co + 2] = a10 * b00 + a11 * b10;
+                c[co + 3] = a10 * b01 + a11 * b11;
+                break;
+            }
+            case 3: {
+                final double a00 = a[ao], a01 = a[ao + 1], a02 = a[ao + 2];
+                final double a10 = a[ao + 3], a11 = a[ao + 4], a12 = a[ao + 5];
+                final double a20 = a[ao + 6], a21 = a[ao + 7], a22 = a[ao + 8];
+                final double b00 = b[bo], b01 = b[bo + 1], b02 = b[bo + 2];
+                final double b10 = b[bo + 3], b11 = b[bo + 4], b12 = b[bo + 5];
+                final double b20 = b[bo + 6], b21 = b[bo + 7], b22 = b[bo + 8];
+                c[co] = a00 * b00 + a01 * b10 + a02 * b20;
+                c[co + 1] = a00 * b01 + a01 * b11 + a02 * b21;
+                c[co + 2] = a00 * b02 + a01 * b12 + a02 * b22;
+                c[co + 3] = a10 * b00 + a11 * b10 + a12 * b20;
+                c[co + 4] = a10 * b01 + a11 * b11 + a12 * b21;
+                c[co + 5] = a10 * b02 + a11 * b12 + a12 * b22;
+                c[co + 6] = a20 * b00 + a21 * b10 + a22 * b20;
+                c[co + 7] = a20 * b01 + a21 * b11 + a22 * b21;
+                c[co + 8] = a20 * b02 + a21 * b12 + a22 * b22;
+                break;
+            }
+            default:
+                for (int i = 0; i < dim; ++i) {
+                    for (int j = 0; j < dim; ++j) {
+                        double sum = 0.0;
+                        for (int k = 0; k < dim; ++k) {
+                            sum += a[ao + i * dim + k] * b[bo + k * dim + j];
+                        }
+                        c[co + i * dim + j] = sum;
+                    }
+                }
+        }
+    }
+
+    /**
+     * c = a^t * b for square matrices; c must not overlap a or b.
+     */
+    public static void multTransA(final double[] a, final int ao,
+                                  final double[] b, final int bo,
+                                  final double[] c, final int co,
+                                  final int dim) {
+        switch (dim) {
+            case 1:
+                c[co] = a[ao] * b[bo];
+                break;
+            case 2: {
+                final double a00 = a[ao], a01 = a[ao + 1], a10 = a[ao + 2], a11 = a[ao + 3];
+                final double b00 = b[bo], b01 = b[bo + 1], b10 = b[bo + 2], b11 = b[bo + 3];
+                c[co] = a00 * b00 + a10 * b10;
+                c[co + 1] = a00 * b01 + a10 * b11;
+                c[co + 2] = a01 * b00 + a11 * b10;
+                c[co + 3] = a01 * b01 + a11 * b11;
+                break;
+            }
+            case 3: {
+                final double a00 = a[ao], a01 = a[ao + 1], a02 = a[ao + 2];
+                final double a10 = a[ao + 3], a11 = a[ao + 4], a12 = a[ao + 5];
+                final double a20 = a[ao + 6], a21 = a[ao + 7], a22 = a[ao + 8];
+                final double b00 = b[bo], b01 = b[bo + 1], b02 = b[bo + 2];
+                final double b10 = b[bo + 3], b11 = b[bo + 4], b12 = b[bo + 5];
+                final double b20 = b[bo + 6], b21 = b[bo + 7], b22 = b[bo + 8];
+                c[co] = a00 * b00 + a10 * b10 + a20 * b20;
+                c[co + 1] = a00 * b01 + a10 * b11 + a20 * b21;
+                c[co + 2] = a00 * b02 + a10 * b12 + a20 * b22;
+                c[co + 3] = a01 * b00 + a11 * b10 + a21 * b20;
+                c[co + 4] = a01 * b01 + a11 * b11 + a21 * b21;
+                c[co + 5] = a01 * b02 + a11 * b12 + a21 * b22;
+                c[co + 6] = a02 * b00 + a12 * b10 + a22 * b20;
+                c[co + 7] = a02 * b01 + a12 * b11 + a22 * b21;
+                c[co + 8] = a02 * b02 + a12 * b12 + a22 * b22;
+                break;
+            }
+            default:
+                for (int i = 0; i < dim; ++i) {
+                    for (int j = 0; j < dim; ++j) {
+                        double sum = 0.0;
+                        for (int k = 0; k < dim; ++k) {
+                            sum += a[ao + k * dim + i] * b[bo + k * dim + j];
+                        }
+                        c[co + i * dim + j] = sum;
+                    }
+                }
+        }
+    }
+
+    /**
+     * c = a * b^t for square matrices; c must not overlap a or b.
+     */
+    public static void multTransB(final double[] a, final int ao,
+                                  final double[] b, final int bo,
+                                  final double[] c, final int co,
+                                  final int dim) {
+        switch (dim) {
+            case 1:
+                c[co] = a[ao] * b[bo];
+                break;
+            case 2: {
+                final double a00 = a[ao], a01 = a[ao + 1], a10 = a[ao + 2], a11 = a[ao + 3];
+                final double b00 = b[bo], b01 = b[bo + 1], b10 = b[bo + 2], b11 = b[bo + 3];
+                c[co] = a00 * b00 + a01 * b01;
+                c[co + 1] = a00 * b10 + a01 * b11;
+                c[co + 2] = a10 * b00 + a11 * b01;
+                c[co + 3] = a10 * b10 + a11 * b11;
+                break;
+            }
+            case 3: {
+                final double a00 = a[ao], a01 = a[ao + 1], a02 = a[ao + 2];
+                final double a10 = a[ao + 3], a11 = a[ao + 4], a12 = a[ao + 5];
+                final double a20 = a[ao + 6], a21 = a[ao + 7], a22 = a[ao + 8];
+                final double b00 = b[bo], b01 = b[bo + 1], b02 = b[bo + 2];
+                final double b10 = b[bo + 3], b11 = b[bo + 4], b12 = b[bo + 5];
+                final double b20 = b[bo + 6], b21 = b[bo + 7], b22 = b[bo + 8];
+                c[co] = a00 * b00 + a01 * b01 + a02 * b02;
+                c[co + 1] = a00 * b10 + a01 * b11 + a02 * b12;
+                c[co + 2] = a00 * b20 + a01 * b21 + a02 * b22;
+                c[co + 3] = a10 * b00 + a11 * b01 + a12 * b02;
+                c[co + 4] = a10 * b10 + a11 * b11 + a12 * b12;
+                c[co + 5] = a10 * b20 + a11 * b21 + a12 * b22;
+                c[co + 6] = a20 * b00 + a21 * b01 + a22 * b02;
+                c[co + 7] = a20 * b10 + a21 * b11 + a22 * b12;
+                c[co + 8] = a20 * b20 + a21 * b21 + a22 * b22;
+                break;
+            }
+            default:
+                for (int i = 0; i < dim; ++i) {
+                    for (int j = 0; j < dim; ++j) {
+                        double sum = 0.0;
+                        for (int k = 0; k < dim; ++k) {
+                            sum += a[ao + i * dim + k] * b[bo + j * dim + k];
+                        }
+                        c[co + i * dim + j] = sum;
+                    }
+                }
+        }
+    }
+
+    /**
+     * y = a * x; y must not overlap x.
+     */
+    public static void multVector(final double[] a, final int ao,
+                                  final double[] x, final int xo,
+                                  final double[] y, final int yo,
+                                  final int dim) {
+        for (int i = 0; i < dim; ++i) {
+            double sum = 0.0;
+            for (int k = 0; k < dim; ++k) {
+                sum += a[ao + i * dim + k] * x[xo + k];
+            }
+            y[yo + i] = sum;
+        }
+    }
+
+    public static double determinant(final double[] a, final int ao, final int dim) {
+        switch (dim) {
+            case 1:
+                return a[ao];
+            case 2:
+                return a[ao] * a[ao + 3] - a[ao + 1] * a[ao + 2];
+            case 3:
+                return a[ao] * (a[ao + 4] * a[ao + 8] - a[ao + 5] * a[ao + 7])
+                        - a[ao + 1] * (a[ao + 3] * a[ao + 8] - a[ao + 5] * a[ao + 6])
+                        + a[ao + 2] * (a[ao + 3] * a[ao + 7] - a[ao + 4] * a[ao + 6]);
+            default:
+                throw new IllegalArgumentException("Closed-form determinants only for dimensions <= "
+                        + MAX_UNROLLED_DIMENSION);
+        }
+    }
+
+    /**
+     * Closed-form (adjugate) inverse; inv must not overlap a.
+     *
+     * @return the determinant of a
+     */
+    public static double invert(final double[] a, final int ao,
+                                final double[] inv, final int io,
+                                final int dim) {
+        switch (dim) {
+            case 1: {
+                final double det = a[ao];
+                inv[io] = 1.0 / det;
+                return det;
+            }
+            case 2: {
+                final double a00 = a[ao], a01 = a[ao + 1], a10 = a[ao + 2], a11 = a[ao + 3];
+                final double det = a00 * a11 - a01 * a10;
+                final double scale = 1.0 / det;
+                inv[io] = a11 * scale;
+                inv[io + 1] = -a01 * scale;
+                inv[io + 2] = -a10 * scale;
+                inv[io + 3] = a00 * scale;
+                return det;
+            }
+            case 3: {
+                final double a00 = a[ao], a01 = a[ao + 1], a02 = a[ao + 2];
+                final double a10 = a[ao + 3], a11 = a[ao + 4], a12 = a[ao + 5];
+                final double a20 = a[ao + 6], a21 = a[ao + 7], a22 = a[ao + 8];
+                final double c00 = a11 * a22 - a12 * a21;
+                final double c01 = a12 * a20 - a10 * a22;
+                final double c02 = a10 * a21 - a11 * a20;
+                final double det = a00 * c00 + a01 * c01 + a02 * c02;
+                final double scale = 1.0 / det;
+                inv[io] = c00 * scale;
+                inv[io + 1] = (a02 * a21 - a01 * a22) * scale;
+                inv[io + 2] = (a01 * a12 - a02 * a11) * scale;
+                inv[io + 3] = c01 * scale;
+                inv[io + 4] = (a00 * a22 - a02 * a20) * scale;
+                inv[io + 5] = (a02 * a10 - a00 * a12) * scale;
+                inv[io + 6] = c02 * scale;
+                inv[io + 7] = (a01 * a20 - a00 * a21) * scale;
+                inv[io + 8] = (a00 * a11 - a01 * a10) * scale;
+                return det;
+            }
+            default:
+                throw new IllegalArgumentException("Closed-form inverses only for dimensions <= "
+                        + MAX_UNROLLED_DIMENSION);
+        }
+    }
+
+    /**
+     * x = a^{-1} b in closed form; b may overlap x.
+     *
+     * @return the determinant of a
+     */
+    public static double solve(final double[] a, final int ao,
+                               final double[] b, final int bo,
+                               final double[] x, final int xo,
+                               final int dim) {
+        switch (dim) {
+            case 1: {
+                final double det = a[ao];
+                x[xo] = b[bo] / det;
+                return det;
+            }
+            case 2: {
+                final double a00 = a[ao], a01 = a[ao + 1], a10 = a[ao + 2], a11 = a[ao + 3];
+                final double b0 = b[bo], b1 = b[bo + 1];
+                final double det = a00 * a11 - a01 * a10;
+                final double scale = 1.0 / det;
+                x[xo] = (a11 * b0 - a01 * b1) * scale;
+                x[xo + 1] = (a00 * b1 - a10 * b0) * scale;
+                return det;
+            }
+            case 3: {
+                final double a00 = a[ao], a01 = a[ao + 1], a02 = a[ao + 2];
+                final double a10 = a[ao + 3], a11 = a[ao + 4], a12 = a[ao + 5];
+                final double a20 = a[ao + 6], a21 = a[ao + 7], a22 = a[ao + 8];
+                final double b0 = b[bo], b1 = b[bo + 1], b2 = b[bo + 2];
+                final double c00 = a11 * a22 - a12 * a21;
+                final double c01 = a12 * a20 - a10 * a22;
+                final double c02 = a10 * a21 - a11 * a20;
+                final double det = a00 * c00 + a01 * c01 + a02 * c02;
+                final double scale = 1.0 / det;
+                x[xo] = (c00 * b0 + (a02 * a21 - a01 * a22) * b1 + (a01 * a12 - a02 * a11) * b2) * scale;
+                x[xo + 1] = (c01 * b0 + (a00 * a22 - a02 * a20) * b1 + (a02 * a10 - a00 * a12) * b2) * scale;
+                x[xo + 2] = (c02 * b0 + (a01 * a20 - a00 * a21) * b1 + (a00 * a11 - a01 * a10) * b2) * scale;
+                return det;
+            }
+            default:
+                throw new IllegalArgumentException("Closed-form solves only for dimensions <= "
+                        + MAX_UNROLLED_DIMENSION);
+        }
+    }
+
+    /**
+     * Same results as MissingOps.safeInvert2, using the closed-form inverse for small fully observed matrices.
+     */
+    public static InversionResult safeInvert(final DenseMatrix64F source, final DenseMatrix64F destination,
+                                             final boolean getLogDeterminant) {
+        final int dim = source.numCols;
+        final double[] data = source.data;
+
+        if (dim <= MAX_UNROLLED_DIMENSION && allDiagonalsFiniteAndNonZero(data, dim)) {
+            final double det = invert(data, 0, destination.data, 0, dim);
+            if (Math.abs(det) >= Double.MIN_NORMAL && allFinite(destination.data, dim)) {
+                return new InversionResult(FULLY_OBSERVED, dim, getLogDeterminant ? Math.log(det) : 0.0);
+            }
+        }
+
+        return MissingOps.safeInvert2(source, destination, getLogDeterminant);
+    }
+
+    /**
+     * Same results as MissingOps.safeDeterminant, without an SVD for small well-conditioned matrices.
+     */
+    public static InversionResult safeDeterminant(final DenseMatrix64F source, final boolean invert) {
+        final int dim = source.numCols;
+        final double[] data = source.data;
+
+        if (dim <= MAX_UNROLLED_DIMENSION && anyDiagonalFiniteAndNonZero(data, dim) && allFinite(data, dim)) {
+            final double det = determinant(data, 0, dim);
+            if (isWellConditioned(data, dim, det, DETERMINANT_TOLERANCE)) {
+                final double logDet = Math.log(Math.abs(det));
+                return new InversionResult(FULLY_OBSERVED, dim, invert ? -logDet : logDet);
+            }
+        }
+
+        return MissingOps.safeDeterminant(source, invert);
+    }
+
+    /**
+     * Same results as MissingOps.safeSolve, without a pseudo-inverse for small well-conditioned matrices.
+     */
+    public static void safeSolve(final DenseMatrix64F A,
+                                 final double[] b, final int bo,
+                                 final double[] x, final int xo) {
+        final int dim = A.numCols;
+        final double[] data = A.data;
+
+        if (dim <= MAX_UNROLLED_DIMENSION && anyDiagonalFiniteAndNonZero(data, dim) && allFinite(data, dim)) {
+            final double det = determinant(data, 0, dim);
+            if (isWellConditioned(data, dim, det, SOLVE_TOLERANCE)) {
+                solve(data, 0, b, bo, x, xo, dim);
+                return;
+            }
+        }
+
+        MissingOps.safeSolve(A, new WrappedVector.Raw(b, bo, dim), new WrappedVector.Raw(x, xo, dim), false);
+    }
+
+    /**
+     * Same results as MissingOps.safeWeightedAverage, using the supplied scratch vector tmp.
+     */
+    public static void safeWeightedAverage(final double[] mi, final int mio,
+                                           final DenseMatrix64F Pi,
+                                           final double[] mj, final int mjo,
+                                           final DenseMatrix64F Pj,
+                                           final double[] mk, final int mko,
+                                           final DenseMatrix64F Vk,
+                                           final int dim,
+                                           final double[] tmp) {
+        final double[] pi = Pi.data;
+        final double[] pj = Pj.data;
+        final double[] vk = Vk.data;
+
+        for (int g = 0; g < dim; ++g) {
+            final boolean iInf = Double.isInfinite(pi[g * dim + g]);
+            final boolean jInf = Double.isInfinite(pj[g * dim + g]);
+            double sum = 0.0;
+            if (iInf && jInf) {
+                throw new IllegalArgumentException("Both precision matrices are infinite in dimension " + g);
+            } else if (iInf) {
+                sum = mi[mio + g];
+            } else if (jInf) {
+                sum = mj[mjo + g];
+            } else {
+                for (int h = 0; h < dim; ++h) {
+                    sum += pi[g * dim + h] * mi[mio + h];
+                    sum += pj[g * dim + h] * mj[mjo + h];
+                }
+            }
+            tmp[g] = sum;
+        }
+
+        for (int g = 0; g < dim; ++g) {
+            double sum = 0.0;
+            if (vk[g * dim + g] == 0.0) {
+                sum = tmp[g];
+            } else {
+                for (int h = 0; h < dim; ++h) {
+                    sum += vk[g * dim + h] * tmp[h];
+                }
+            }
+            mk[mko + g] = sum;
+        }
+    }
+
+    /**
+     * The smallest singular value is at least |det| / ||A||_F^(dim - 1) and the largest at most ||A||_F, so this
+     * guarantees that no singular value falls below relativeTolerance * dim * (largest singular value).
+     */
+    public static boolean isWellConditioned(final double[] a, final int dim, final double det,
+                                            final double relativeTolerance) {
+        if (!(Math.abs(det) >= Double.MIN_NORMAL)) {
+            return false;
+        }
+
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < dim * dim; ++i) {
+            sumOfSquares += a[i] * a[i];
+        }
+        final double norm = Math.sqrt(sumOfSquares);
+
+        double normPower = norm;
+        for (int i = 1; i < dim; ++i) {
+            normPower *= norm;
+        }
+
+        return normPower > 0.0 && !Double.isInfinite(normPower)
+                && Math.abs(det) / normPower > SAFETY_FACTOR * relativeTolerance * dim;
+    }
+
+    private static boolean allFinite(final double[] a, final int dim) {
+        for (int i = 0; i < dim * dim; ++i) {
+            if (!Double.isFinite(a[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean allDiagonalsFiniteAndNonZero(final double[] a, final int dim) {
+        for (int i = 0; i < dim; ++i) {
+            final double d = a[i * dim + i];
+            if (!Double.isFinite(d) || d == 0.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyDiagonalFiniteAndNonZero(final double[] a, final int dim) {
+        for (int i = 0; i < dim; ++i) {
+            final double d = a[i * dim + i];
+            if (Double.isFinite(d) && d != 0.0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
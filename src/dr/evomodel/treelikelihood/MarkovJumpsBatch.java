@@ -0,0 +1,351 @@
+/*
+ * MarkovJumpsBatch.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evomodel.substmodel.EigenDecomposition;
+import dr.evomodel.substmodel.MarkovJumpsSubstitutionModel;
+import dr.inference.markovjumps.MarkovJumpsCore;
+import dr.inference.markovjumps.MarkovJumpsType;
+import dr.util.TaskPool;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the conditional expected Markov jumps (or rewards) of all the branches of a tree in one batch.
+ * <p/>
+ * The branches are recorded during the ancestral state traversal and evaluated afterwards, possibly on several
+ * threads. Registers that share an eigen decomposition share the integrals over its eigenvalues for each branch and
+ * rate category, and only the entries of the conditional expectation that the sampled parent and child states pick
+ * out are computed, instead of the full stateCount x stateCount matrix. Every entry is summed in the same order as
+ * MarkovJumpsCore.computeCondStatMarkovJumpsPrecompute, so the results are identical.
+ *
+ * @author agent
+ */
+public class MarkovJumpsBatch {
+
+    public MarkovJumpsBatch(int stateCount, int patternCount, int categoryCount, int maxBranchCount) {
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.categoryCount = categoryCount;
+
+        childNumbers = new int[maxBranchCount];
+        modelNumbers = new int[maxBranchCount];
+        branchRates = new double[maxBranchCount];
+        substTimes = new double[maxBranchCount];
+        parentStates = new int[maxBranchCount][];
+        childStates = new int[maxBranchCount][];
+        rateCategories = new int[maxBranchCount][];
+        transitionProbabilities = new double[maxBranchCount][patternCount];
+
+        setThreadCount(1);
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.threadCount = threadCount;
+        this.pool = null;
+        this.scratch = new Scratch[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            scratch[t] = new Scratch(stateCount, categoryCount);
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void clear() {
+        branchCount = 0;
+    }
+
+    /**
+     * Record a branch; the state arrays are kept by reference and must not change until computeExpectedJumps.
+     *
+     * @param probabilities the transition probabilities of the branch for all rate categories
+     */
+    public void addBranch(int childNumber, int modelNumber, double branchRate, double substTime,
+                          int[] parentStates, int[] childStates, double[] probabilities, int[] rateCategory) {
+        final int b = branchCount;
+        childNumbers[b] = childNumber;
+        modelNumbers[b] = modelNumber;
+        branchRates[b] = branchRate;
+        substTimes[b] = substTime;
+        this.parentStates[b] = parentStates;
+        this.childStates[b] = childStates;
+        rateCategories[b] = rateCategory;
+
+        final double[] probs = transitionProbabilities[b];
+        for (int j = 0; j < patternCount; j++) {
+            final int category = rateCategory == null ? 0 : rateCategory[j];
+            probs[j] = probabilities[category * stateCount * stateCount + parentStates[j] * stateCount + childStates[j]];
+        }
+        branchCount++;
+    }
+
+    /**
+     * Fill in the expected jumps of every recorded branch and register.
+     *
+     * @param registers     the Markov jumps model of each register
+     * @param registerModel the branch model (substitution model) number of each register
+     * @param scaleByTime   whether each register is divided by the rate of the branch
+     * @param categoryRates the rate of each rate category
+     * @param expectedJumps the [node][pattern] results of each register
+     */
+    public void computeExpectedJumps(List<MarkovJumpsSubstitutionModel> registers,
+                                     List<Integer> registerModel,
+                                     boolean[] scaleByTime,
+                                     double[] categoryRates,
+                                     List<double[][]> expectedJumps) {
+
+        setupRegisters(registers, registerModel, scaleByTime, expectedJumps);
+        this.categoryRates = categoryRates;
+
+        if (threadCount == 1 || branchCount < 2) {
+            for (int b = 0; b < branchCount; b++) {
+                computeBranch(b, scratch[0]);
+            }
+        } else {
+            if (pool == null || pool.getNumTaxon() != branchCount) {
+                pool = new TaskPool(branchCount, threadCount);
+            }
+            pool.fork(new TaskPool.TaskCallable() {
+                public void execute(int task, int thread) {
+                    computeBranch(task, scratch[thread]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetch the eigen decompositions and precomputed rate registration matrices on the calling thread, so that the
+     * substitution models are only read by the workers.
+     */
+    private void setupRegisters(List<MarkovJumpsSubstitutionModel> registers,
+                                List<Integer> registerModel,
+                                boolean[] scaleByTime,
+                                List<double[][]> expectedJumps) {
+
+        final int count = registers.size();
+        if (this.registerModel == null || this.registerModel.length != count) {
+            this.registerModel = new int[count];
+            registerRewards = new boolean[count];
+            registerScaleByTime = new boolean[count];
+            ievcRateRegEvec = new double[count][];
+            this.expectedJumps = new double[count][][];
+            groupEigen = new EigenDecomposition[count];
+            groupEvec = new double[count][];
+            groupIevc = new double[count][];
+            groupEval = new double[count][];
+            groupFirstRegister = new int[count];
+            nextInGroup = new int[count];
+        }
+
+        groupCount = 0;
+        for (int r = 0; r < count; r++) {
+            MarkovJumpsSubstitutionModel markovJumps = registers.get(r);
+            EigenDecomposition eigen = markovJumps.getEigenDecomposition();
+            ievcRateRegEvec[r] = markovJumps.getIevcRateRegEvec();
+            this.registerModel[r] = registerModel.get(r);
+            registerRewards[r] = markovJumps.getType() == MarkovJumpsType.REWARDS;
+            registerScaleByTime[r] = scaleByTime[r];
+            this.expectedJumps[r] = expectedJumps.get(r);
+            nextInGroup[r] = -1;
+
+            int g = 0;
+            while (g < groupCount && groupEigen[g] != eigen) {
+                g++;
+            }
+            if (g == groupCount) {
+                groupEigen[g] = eigen;
+                groupEvec[g] = eigen.getEigenVectors();
+                groupIevc[g] = eigen.getInverseEigenVectors();
+                groupEval[g] = eigen.getEigenValues();
+                groupFirstRegister[g] = r;
+                groupCount++;
+            } else {
+                int last = groupFirstRegister[g];
+                while (nextInGroup[last] != -1) {
+                    last = nextInGroup[last];
+                }
+                nextInGroup[last] = r;
+            }
+        }
+        Arrays.fill(groupEigen, null);
+    }
+
+    private void computeBranch(final int b, final Scratch s) {
+
+        final int childNum = childNumbers[b];
+        final int modelNumber = modelNumbers[b];
+        final double branchRate = branchRates[b];
+        final double substTime = substTimes[b];
+        final int[] parents = parentStates[b];
+        final int[] children = childStates[b];
+        final int[] categories = rateCategories[b];
+        final double[] probs = transitionProbabilities[b];
+
+        Arrays.fill(s.categoryUsed, false);
+        for (int j = 0; j < patternCount; j++) {
+            s.categoryUsed[categories == null ? 0 : categories[j]] = true;
+        }
+
+        for (int r = 0; r < registerModel.length; r++) {
+            if (registerModel[r] != modelNumber) {
+                Arrays.fill(expectedJumps[r][childNum], 0.0);
+            }
+        }
+
+        for (int g = 0; g < groupCount; g++) {
+
+            final double[] evec = groupEvec[g];
+            final double[] ievc = groupIevc[g];
+
+            for (int c = 0; c < categoryCount; c++) {
+                if (!s.categoryUsed[c]) {
+                    continue;
+                }
+
+                final double rate = categoryRates[c];
+                boolean auxIntKnown = false;
+
+                for (int r = groupFirstRegister[g]; r != -1; r = nextInGroup[r]) {
+                    if (registerModel[r] != modelNumber) {
+                        continue;
+                    }
+
+                    final double[] result = expectedJumps[r][childNum];
+
+                    if (rate > 0) {
+
+                        if (!auxIntKnown) {
+                            MarkovJumpsCore.populateAuxInt(groupEval[g], substTime * branchRate * rate, stateCount,
+                                    s.expEvalScalar, s.auxInt);
+                            auxIntKnown = true;
+                        }
+
+                        final double[] ievcRateRegEvc = ievcRateRegEvec[r];
+                        final boolean scale = registerScaleByTime[r];
+                        final int stamp = ++s.stamp;
+
+                        for (int j = 0; j < patternCount; j++) {
+                            if ((categories == null ? 0 : categories[j]) != c) {
+                                continue;
+                            }
+                            final int from = parents[j];
+                            final int to = children[j];
+                            final int entry = from * stateCount + to;
+
+                            if (s.entryStamp[entry] != stamp) {
+                                if (s.columnStamp[to] != stamp) {
+                                    MarkovJumpsCore.computeJointStatColumnPrecompute(ievc, ievcRateRegEvc, s.auxInt,
+                                            to, stateCount, s.columns, to * stateCount);
+                                    s.columnStamp[to] = stamp;
+                                }
+                                double value = MarkovJumpsCore.computeJointStatEntry(evec, from, s.columns,
+                                        to * stateCount, stateCount);
+                                value /= probs[j];
+                                if (scale) {
+                                    value /= branchRate * rate;
+                                }
+                                s.entries[entry] = value;
+                                s.entryStamp[entry] = stamp;
+                            }
+                            result[j] = s.entries[entry];
+                        }
+
+                    } else {
+
+                        final boolean reward = registerRewards[r] && registerScaleByTime[r];
+                        for (int j = 0; j < patternCount; j++) {
+                            if ((categories == null ? 0 : categories[j]) != c) {
+                                continue;
+                            }
+                            result[j] = (reward && parents[j] == children[j]) ? substTime : 0.0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Scratch {
+
+        Scratch(int stateCount, int categoryCount) {
+            auxInt = new double[stateCount * stateCount];
+            expEvalScalar = new double[stateCount];
+            columns = new double[stateCount * stateCount];
+            columnStamp = new int[stateCount];
+            entries = new double[stateCount * stateCount];
+            entryStamp = new int[stateCount * stateCount];
+            categoryUsed = new boolean[categoryCount];
+        }
+
+        final double[] auxInt;
+        final double[] expEvalScalar;
+        final double[] columns;
+        final int[] columnStamp;
+        final double[] entries;
+        final int[] entryStamp;
+        final boolean[] categoryUsed;
+        int stamp;
+    }
+
+    private final int stateCount;
+    private final int patternCount;
+    private final int categoryCount;
+
+    private int branchCount;
+    private final int[] childNumbers;
+    private final int[] modelNumbers;
+    private final double[] branchRates;
+    private final double[] substTimes;
+    private final int[][] parentStates;
+    private final int[][] childStates;
+    private final int[][] rateCategories;
+    private final double[][] transitionProbabilities;
+
+    private int[] registerModel;
+    private boolean[] registerRewards;
+    private boolean[] registerScaleByTime;
+    private double[][] ievcRateRegEvec;
+    private double[][][] expectedJumps;
+    private double[] categoryRates;
+
+    private int groupCount;
+    private EigenDecomposition[] groupEigen;
+    private double[][] groupEvec;
+    private double[][] groupIevc;
+    private double[][] groupEval;
+    private int[] groupFirstRegister;
+    private int[] nextInGroup;
+
+    private int threadCount;
+    private TaskPool pool;
+    private Scratch[] scratch;
+}
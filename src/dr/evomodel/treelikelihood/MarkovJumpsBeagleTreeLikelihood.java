@@ -97,7 +97,23 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 //        storedExpectedJumps = new ArrayList<double[][]>();
 
         tmpProbabilities = new double[stateCount * stateCount * categoryCount];
-        condJumps = new double[categoryCount][stateCount * stateCount];
+
+        if (!useUniformization) {
+            integratedBatch = new MarkovJumpsBatch(stateCount, patternCount, categoryCount, treeModel.getNodeCount());
+            categoryRates = new double[categoryCount];
+        } else {
+            integratedBatch = null;
+        }
+    }
+
+    /**
+     * Set the number of threads over which the branches are spread when computing the integrated (not sampled)
+     * Markov jumps; a value <= 0 uses all the available processors.
+     */
+    public void setThreadCount(int threadCount) {
+        if (integratedBatch != null) {
+            integratedBatch.setThreadCount(threadCount);
+        }
     }
 
     public MarkovJumpsBeagleTreeLikelihood(PatternList patternList, TreeModel treeModel,
@@ -405,6 +421,22 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         super.handleVariableChangedEvent(variable, index, type);
     }
 
+    public void redrawAncestralStates() {
+        if (integratedBatch == null) {
+            super.redrawAncestralStates();
+            return;
+        }
+
+        // The branches are recorded by hookCalculation during the traversal and computed together afterwards
+        integratedBatch.clear();
+        super.redrawAncestralStates();
+
+        for (int i = 0; i < categoryCount; i++) {
+            categoryRates[i] = siteRateModel.getRateForCategory(i);
+        }
+        integratedBatch.computeExpectedJumps(markovjumps, branchModelNumber, scaleByTime, categoryRates, expectedJumps);
+    }
+
     protected void hookCalculation(Tree tree, NodeRef parentNode, NodeRef childNode,
                                    int[] parentStates, int[] childStates,
                                    double[] inProbabilities, int[] rateCategory) {
@@ -422,6 +454,13 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         final double childTime = tree.getNodeHeight(childNode);
         final double substTime = parentTime - childTime;
 
+        if (integratedBatch != null) {
+            // @todo as below, this takes the most tipward model of an epoch
+            integratedBatch.addBranch(childNum, branchModel.getBranchModelMapping(childNode).getOrder()[0],
+                    branchRate, substTime, parentStates, childStates, probabilities, rateCategory);
+            return;
+        }
+
         for (int r = 0; r < markovjumps.size(); r++) {
             MarkovJumpsSubstitutionModel thisMarkovJumps = markovjumps.get(r);
 
@@ -434,16 +473,11 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
             BranchModel.Mapping mapping = branchModel.getBranchModelMapping(childNode);
 
             if (modelNumberFromrRegistry == mapping.getOrder()[0]) {
-                if (useUniformization) {
-                    computeSampledMarkovJumpsForBranch(((UniformizedSubstitutionModel) thisMarkovJumps), substTime,
-                            branchRate, childNum, parentStates, childStates, parentTime, childTime, probabilities, scaleByTime[r],
-                            expectedJumps.get(r), rateCategory,
-                            (branchModel instanceof EpochBranchModel) || r == historyRegisterNumber
-                    );
-                } else {
-                    computeIntegratedMarkovJumpsForBranch(thisMarkovJumps, substTime, branchRate, childNum, parentStates,
-                            childStates, probabilities, condJumps, scaleByTime[r], expectedJumps.get(r), rateCategory);
-                }
+                computeSampledMarkovJumpsForBranch(((UniformizedSubstitutionModel) thisMarkovJumps), substTime,
+                        branchRate, childNum, parentStates, childStates, parentTime, childTime, probabilities, scaleByTime[r],
+                        expectedJumps.get(r), rateCategory,
+                        (branchModel instanceof EpochBranchModel) || r == historyRegisterNumber
+                );
             } else {
                 // Fill with zeros
                 double[] result = expectedJumps.get(r)[childNum];
@@ -489,62 +523,6 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         }
     }
 
-    private void computeIntegratedMarkovJumpsForBranch(MarkovJumpsSubstitutionModel thisMarkovJumps,
-                                                       double substTime,
-                                                       double branchRate,
-                                                       int childNum,
-                                                       int[] parentStates,
-                                                       int[] childStates,
-                                                       double[] probabilities,
-                                                       double[][] condJumps,
-                                                       boolean scaleByTime,
-                                                       double[][] thisExpectedJumps,
-                                                       int[] rateCategory) {
-
-        // Fill condJumps with conditional mean values for this branch
-        for (int i = 0; i < categoryCount; i++) {
-
-            double rate = siteRateModel.getRateForCategory(i);
-            if (rate > 0) {
-
-                if (categoryCount == 1) {
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            probabilities,
-                            condJumps[i]);
-                } else {
-
-                    System.arraycopy(probabilities, i * stateCount * stateCount, tmpProbabilities, 0,
-                            stateCount * stateCount);
-
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            tmpProbabilities,
-                            condJumps[i]);
-                }
-
-                if (scaleByTime) {
-                    double scalar = branchRate * rate;
-                    for (int j = 0; j < condJumps[i].length; j++) {
-                        condJumps[i][j] /= scalar;
-                    }
-                }
-            } else {
-                Arrays.fill(condJumps[i], 0.0);
-                if (thisMarkovJumps.getType() == MarkovJumpsType.REWARDS && scaleByTime) {
-                    for (int j = 0; j < stateCount; j++) {
-                        condJumps[i][j * stateCount + j] = substTime;
-                    }
-                }
-            }
-        }
-
-        for (int j = 0; j < patternCount; j++) { // Pick out values given parent and child states
-            int category = rateCategory == null ? 0 : rateCategory[j];
-            thisExpectedJumps[childNum][j] = condJumps[category][parentStates[j] * stateCount + childStates[j]];
-        }
-    }
-
 //    public void storeState() {
 //
 //        super.storeState();
@@ -691,7 +669,8 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
     private String[][] histories = null;
     private boolean[] scaleByTime;
     private double[] tmpProbabilities;
-    private double[][] condJumps;
+    private final MarkovJumpsBatch integratedBatch;
+    private double[] categoryRates;
     private int numRegisters;
     private int historyRegisterNumber = -1;
     private final boolean useUniformization;
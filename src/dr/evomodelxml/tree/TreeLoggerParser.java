@@ -355,6 +355,8 @@ public class TreeLoggerParser extends LoggerParser {
             logger.setTitle(title);
         }
 
+        setAsynchronous(xo, logger);
+
         return logger;
     }
 
@@ -381,6 +383,10 @@ public class TreeLoggerParser extends LoggerParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(LOG_EVERY, true),
             AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+            AttributeRule.newBooleanRule(ASYNC, true,
+                    "Format and write the trees on a background thread"),
+            AttributeRule.newIntegerRule(BUFFER_SIZE, true,
+                    "The number of trees that can be waiting to be written before the chain blocks"),
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
@@ -65,6 +65,7 @@ public class ContinuousDataLikelihoodParser extends AbstractXMLObjectParser {
     private static final String RECONSTRUCT_TRAITS = "reconstructTraits";
     private static final String FORCE_COMPLETELY_MISSING = "forceCompletelyMissing";
     private static final String ALLOW_SINGULAR = "allowSingular";
+    private static final String THREADS = "threads";
     private static final String FORCE_FULL_PRECISION = "forceFullPrecision";
     private static final String FORCE_DRIFT = "forceDrift";
     private static final String FORCE_OU = "forceOU";
@@ -201,6 +202,10 @@ public class ContinuousDataLikelihoodParser extends AbstractXMLObjectParser {
         ContinuousDataLikelihoodDelegate delegate = new ContinuousDataLikelihoodDelegate(treeModel,
                 diffusionProcessDelegate, dataModel, rootPrior, rateTransformation, rateModel, allowSingular);
 
+        if (xo.hasAttribute(THREADS)) {
+            delegate.setThreadCount(xo.getIntegerAttribute(THREADS));
+        }
+
         if (dataModel instanceof IntegratedFactorAnalysisLikelihood) {
             ((IntegratedFactorAnalysisLikelihood)dataModel).setLikelihoodDelegate(delegate);
         }
@@ -295,6 +300,7 @@ public class ContinuousDataLikelihoodParser extends AbstractXMLObjectParser {
             AttributeRule.newBooleanRule(RECONSTRUCT_TRAITS, true),
             AttributeRule.newBooleanRule(FORCE_COMPLETELY_MISSING, true),
             AttributeRule.newBooleanRule(ALLOW_SINGULAR, true),
+            AttributeRule.newIntegerRule(THREADS, true),
             AttributeRule.newBooleanRule(FORCE_FULL_PRECISION, true),
             AttributeRule.newBooleanRule(FORCE_DRIFT, true),
             AttributeRule.newBooleanRule(FORCE_OU, true),
@@ -38,6 +38,7 @@ import dr.evomodel.substmodel.SubstitutionModel;
 import dr.evomodel.tipstatesmodel.TipStatesModel;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.PreOrderSettings;
 import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.MultiPartitionDataLikelihoodDelegate;
@@ -66,6 +67,7 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
     public static final String USE_AMBIGUITIES = "useAmbiguities";
     public static final String INSTANCE_COUNT = "instanceCount";
     public static final String PREFER_GPU = "preferGPU";
+    public static final String USE_JAVA = "useJava";
     public static final String SCALING_SCHEME = "scalingScheme";
     public static final String DELAY_SCALING = "delayScaling";
     public static final String USE_PREORDER = "usePreOrder";
@@ -88,7 +90,9 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
                                                   boolean preferGPU,
                                                   PartialsRescalingScheme scalingScheme,
                                                   boolean delayRescalingUntilUnderflow,
-                                                  PreOrderSettings settings) throws XMLParseException {
+                                                  PreOrderSettings settings,
+                                                  boolean useJavaDelegate,
+                                                  int javaThreadCount) throws XMLParseException {
 
         if (tipStatesModel != null) {
             throw new XMLParseException("Tip State Error models are not supported yet with TreeDataLikelihood");
@@ -139,7 +143,7 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
             }
         }
 
-        if ( useBeagle3MultiPartition && !useJava) {
+        if ( useBeagle3MultiPartition && !useJava && !useJavaDelegate) {
 
             if (beagleThreadCount == -1 && threadCount >= 0) {
                 System.setProperty(BEAGLE_THREAD_COUNT, Integer.toString(threadCount));
@@ -176,16 +180,30 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
         for (int i = 0; i < patternLists.size(); i++) {
 
-            DataLikelihoodDelegate dataLikelihoodDelegate = new BeagleDataLikelihoodDelegate(
-                    treeModel,
-                    patternLists.get(i),
-                    branchModels.get(i),
-                    siteRateModels.get(i),
-                    useAmbiguities,
-                    preferGPU,
-                    scalingScheme,
-                    delayRescalingUntilUnderflow,
-                    settings);
+            DataLikelihoodDelegate dataLikelihoodDelegate;
+
+            if (useJavaDelegate) {
+                dataLikelihoodDelegate = new JavaDataLikelihoodDelegate(
+                        treeModel,
+                        patternLists.get(i),
+                        branchModels.get(i),
+                        siteRateModels.get(i),
+                        useAmbiguities,
+                        scalingScheme,
+                        delayRescalingUntilUnderflow,
+                        javaThreadCount);
+            } else {
+                dataLikelihoodDelegate = new BeagleDataLikelihoodDelegate(
+                        treeModel,
+                        patternLists.get(i),
+                        branchModels.get(i),
+                        siteRateModels.get(i),
+                        useAmbiguities,
+                        preferGPU,
+                        scalingScheme,
+                        delayRescalingUntilUnderflow,
+                        settings);
+            }
 
             treeDataLikelihoods.add(
                     new TreeDataLikelihood(
@@ -319,6 +337,16 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
         final boolean delayScaling = xo.getAttribute(DELAY_SCALING, true);
 
+        // the pure-Java delegate runs without the native BEAGLE library and threads across site patterns
+        final boolean useJavaDelegate = xo.getAttribute(USE_JAVA, false);
+        if (useJavaDelegate && usePreOrder) {
+            throw new XMLParseException("Pre-order traversals are not supported by the Java likelihood delegate");
+        }
+        int javaThreadCount = xo.getAttribute(THREADS, -1);
+        if (System.getProperty(THREAD_COUNT) != null && !xo.hasAttribute(THREADS)) {
+            javaThreadCount = Integer.parseInt(System.getProperty(THREAD_COUNT));
+        }
+
         if (tipStatesModel != null) {
             throw new XMLParseException("BEAGLE_INSTANCES option cannot be used with a TipStateModel (i.e., a sequence error model).");
         }
@@ -334,7 +362,9 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
                 preferGPU,
                 scalingScheme,
                 delayScaling,
-                settings);
+                settings,
+                useJavaDelegate,
+                javaThreadCount);
     }
 
     //************************************************************************
@@ -353,6 +383,8 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
             AttributeRule.newBooleanRule(USE_AMBIGUITIES, true),
             AttributeRule.newBooleanRule(PREFER_GPU, true),
             AttributeRule.newStringRule(SCALING_SCHEME,true),
+            AttributeRule.newBooleanRule(USE_JAVA, true),
+            AttributeRule.newIntegerRule(THREADS, true),
 
             // really it should be this set of elements or the PARTITION elements
             new OrRule(new AndRule(new XMLSyntaxRule[]{
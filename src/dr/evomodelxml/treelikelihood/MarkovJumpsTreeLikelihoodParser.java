@@ -64,6 +64,7 @@ public class MarkovJumpsTreeLikelihoodParser extends AncestralStateTreeLikelihoo
     public static final String COMPACT_HISTORY = "compactHistory";
     public static final String NUMBER_OF_SIMULANTS = "numberOfSimulants";
     public static final String REPORT_UNCONDITIONED_COLUMNS = "reportUnconditionedValues";
+    public static final String THREADS = "threads";
 
 
     public String getParserName() {
@@ -165,6 +166,10 @@ public class MarkovJumpsTreeLikelihoodParser extends AncestralStateTreeLikelihoo
             treeLikelihood.addRegister(allCounts, MarkovJumpsType.HISTORY, false);
         }
 
+        if (xo.hasAttribute(THREADS)) {
+            treeLikelihood.setThreadCount(xo.getIntegerAttribute(THREADS));
+        }
+
         return treeLikelihood;
     }
 
@@ -225,6 +230,7 @@ public class MarkovJumpsTreeLikelihoodParser extends AncestralStateTreeLikelihoo
                     AttributeRule.newBooleanRule(USE_UNIFORMIZATION,true),
                     AttributeRule.newBooleanRule(REPORT_UNCONDITIONED_COLUMNS, true),
                     AttributeRule.newIntegerRule(NUMBER_OF_SIMULANTS,true),
+                    AttributeRule.newIntegerRule(THREADS, true),
                     AttributeRule.newBooleanRule(SAVE_HISTORY, true),
                     AttributeRule.newBooleanRule(LOG_HISTORY, true),
                     AttributeRule.newBooleanRule(COMPACT_HISTORY, true),
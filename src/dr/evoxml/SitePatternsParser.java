@@ -50,6 +50,7 @@ public class SitePatternsParser extends AbstractXMLObjectParser {
     public static final String STRIP = "strip";
     public static final String UNIQUE = "unique";
     public static final String CONSTANT_PATTERNS = "constantPatterns";
+    public static final String THREADS = "threads";
 
 
     public String getParserName() {
@@ -69,6 +70,9 @@ public class SitePatternsParser extends AbstractXMLObjectParser {
 
         boolean unique = xo.getAttribute(UNIQUE, true);
 
+        int threadCount = xo.getAttribute(THREADS, 1);
+        if (threadCount <= 0) throw new XMLParseException("illegal 'threads' attribute in patterns element");
+
         if (xo.hasAttribute(FROM)) {
             from = xo.getIntegerAttribute(FROM) - 1;
             if (from < 0)
@@ -109,7 +113,7 @@ public class SitePatternsParser extends AbstractXMLObjectParser {
             throw new XMLParseException("illegal 'to' attribute in patterns element (selected attribute = " + to + " vs. actual site count = " + alignment.getSiteCount() + ")");
         }
 
-        SitePatterns patterns = new SitePatterns(alignment, taxa, from, to, every, strip, unique, constantPatternCounts);
+        SitePatterns patterns = new SitePatterns(alignment, taxa, from, to, every, strip, unique, constantPatternCounts, threadCount);
 
         int f = from + 1;
         int t = to + 1; // fixed a *display* error by adding + 1 for consistency with f = from + 1
@@ -149,6 +153,7 @@ public class SitePatternsParser extends AbstractXMLObjectParser {
             new ElementRule(Alignment.class),
             AttributeRule.newBooleanRule(STRIP, true, "Strip out completely ambiguous sites"),
             AttributeRule.newBooleanRule(UNIQUE, true, "Return a weight list of unique patterns"),
+            AttributeRule.newIntegerRule(THREADS, true, "The number of threads used to find the unique patterns, default is 1"),
     };
 
     public String getParserDescription() {
@@ -0,0 +1,154 @@
+/*
+ * AsyncLogWriter.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background writer for loggers. The MCMC thread submits records that hold a snapshot of the
+ * values to be logged and a single writer thread formats and writes them in submission order.
+ * The queue is bounded so that the chain blocks (rather than buffering without limit) if the
+ * writer falls behind.
+ *
+ * Records are expected to be pooled by the logger: a record is handed back through
+ * {@link Record#write()} and can be reused as soon as that returns.
+ *
+ * @author agent
+ */
+public class AsyncLogWriter {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    /**
+     * A unit of logging work which is executed on the writer thread.
+     */
+    public interface Record {
+        void write();
+    }
+
+    public AsyncLogWriter(String name, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Log buffer size should be at least 1");
+        }
+        queue = new ArrayBlockingQueue<Record>(bufferSize);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "log-writer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a record for writing. Blocks while the buffer is full.
+     * @param record the record
+     */
+    public void submit(Record record) {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Logger has been closed");
+        }
+        try {
+            // if the writer thread has failed then nothing will drain the queue
+            while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to write to log", e);
+        }
+    }
+
+    /**
+     * Blocks until all records submitted so far have been written.
+     */
+    public void flush() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        submit(new Record() {
+            @Override
+            public void write() {
+                latch.countDown();
+            }
+        });
+        try {
+            while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for log to flush", e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes all outstanding records and stops the writer thread.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            while (true) {
+                Record record = queue.take();
+                record.write();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Error writing log: " + failure.getMessage(), failure);
+        }
+    }
+
+    private final BlockingQueue<Record> queue;
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+}
@@ -34,7 +34,9 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A class for a general purpose logger.
@@ -45,6 +47,8 @@ import java.util.Set;
  */
 public class MCLogger implements Logger {
 
+    public static final String ASYNC_LOGGING = "log.async";
+
     /**
      * Output performance stats in this log
      */
@@ -119,6 +123,31 @@ public class MCLogger implements Logger {
         this.logEvery = logEvery;
     }
 
+    /**
+     * Switch on asynchronous logging. The chain thread will only capture the values to be logged
+     * and formatting and writing will be done on a background thread. Must be called before
+     * startLogging().
+     *
+     * @param bufferSize the maximum number of log entries waiting to be written before the chain blocks
+     */
+    public void setAsynchronous(int bufferSize) {
+        if (asyncWriter != null) {
+            throw new IllegalStateException("Asynchronous logging has already been started");
+        }
+        asyncBufferSize = bufferSize;
+    }
+
+    public boolean isAsynchronous() {
+        return asyncBufferSize > 0;
+    }
+
+    /**
+     * @return the background writer when logging asynchronously, or null
+     */
+    protected AsyncLogWriter getAsyncWriter() {
+        return asyncWriter;
+    }
+
     public final void addFormatter(LogFormatter formatter) {
 
         formatters.add(formatter);
@@ -168,32 +197,101 @@ public class MCLogger implements Logger {
         return columns.get(index).getFormatted();
     }
 
-    protected void logHeading(String heading) {
+    protected void logHeading(final String heading) {
+        if (asyncWriter != null) {
+            asyncWriter.submit(new AsyncLogWriter.Record() {
+                public void write() {
+                    writeHeading(heading);
+                }
+            });
+        } else {
+            writeHeading(heading);
+        }
+    }
+
+    protected void logLine(final String line) {
+        if (asyncWriter != null) {
+            asyncWriter.submit(new AsyncLogWriter.Record() {
+                public void write() {
+                    writeLine(line);
+                }
+            });
+        } else {
+            writeLine(line);
+        }
+    }
+
+    protected void logLabels(final String[] labels) {
+        if (asyncWriter != null) {
+            asyncWriter.submit(new AsyncLogWriter.Record() {
+                public void write() {
+                    writeLabels(labels);
+                }
+            });
+        } else {
+            writeLabels(labels);
+        }
+    }
+
+    protected void logValues(final String[] values) {
+        if (asyncWriter != null) {
+            asyncWriter.submit(new AsyncLogWriter.Record() {
+                public void write() {
+                    writeValues(values);
+                }
+            });
+        } else {
+            writeValues(values);
+        }
+    }
+
+    protected final void writeHeading(String heading) {
         for (LogFormatter formatter : formatters) {
             formatter.logHeading(heading);
         }
     }
 
-    protected void logLine(String line) {
+    protected final void writeLine(String line) {
         for (LogFormatter formatter : formatters) {
             formatter.logLine(line);
         }
     }
 
-    protected void logLabels(String[] labels) {
+    protected final void writeLabels(String[] labels) {
         for (LogFormatter formatter : formatters) {
             formatter.logLabels(labels);
         }
     }
 
-    protected void logValues(String[] values) {
+    protected final void writeValues(String[] values) {
         for (LogFormatter formatter : formatters) {
             formatter.logValues(values);
         }
     }
 
+    /**
+     * Starts the background writer if asynchronous logging has been requested. Subclasses that
+     * override startLogging() should call this first.
+     */
+    protected void startAsynchronousWriter() {
+        if (asyncBufferSize > 0 && asyncWriter == null) {
+            asyncWriter = new AsyncLogWriter(title != null ? title.split("\n")[0] : "log", asyncBufferSize);
+
+            // columns whose value can be captured as a double and formatted later by the writer
+            numberColumns = new NumberColumn[columns.size()];
+            for (int i = 0; i < numberColumns.length; i++) {
+                LogColumn column = columns.get(i);
+                if (column instanceof NumberColumn && ((NumberColumn) column).isFormattedFromDoubleValue()) {
+                    numberColumns[i] = (NumberColumn) column;
+                }
+            }
+        }
+    }
+
     public void startLogging() {
 
+        startAsynchronousWriter();
+
         for (LogFormatter formatter : formatters) {
             formatter.startLogging(title);
         }
@@ -241,56 +339,133 @@ public class MCLogger implements Logger {
 
             final int columnCount = getColumnCount();
 
-            String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
+            String performanceValue = (performanceReport ? getPerformanceValue(state) : null);
 
-            values[0] = Long.toString(state);
+            if (asyncWriter != null) {
+                ValuesRecord record = valuesRecordPool.poll();
+                if (record == null || record.numbers.length != columnCount) {
+                    record = new ValuesRecord(columnCount);
+                }
 
-            for (int i = 0; i < columnCount; i++) {
-                values[i + 1] = getColumnFormatted(i);
+                record.state = state;
+                for (int i = 0; i < columnCount; i++) {
+                    if (numberColumns[i] != null) {
+                        record.numbers[i] = numberColumns[i].getDoubleValue();
+                    } else {
+                        record.strings[i] = getColumnFormatted(i);
+                    }
+                }
+                record.performance = performanceValue;
+
+                asyncWriter.submit(record);
+            } else {
+                String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
+
+                values[0] = Long.toString(state);
+
+                for (int i = 0; i < columnCount; i++) {
+                    values[i + 1] = getColumnFormatted(i);
+                }
+
+                if (performanceReport) {
+                    values[columnCount + 1] = performanceValue;
+                }
+
+                logValues(values);
             }
+        }
 
-            if (performanceReport) {
-                if (performanceReportStarted) {
+        if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
+            performanceReportStarted = true;
+        }
 
-                    long time = System.currentTimeMillis();
+    }
 
-                    double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+    private String getPerformanceValue(long state) {
+        if (performanceReportStarted) {
 
-                    String timePerMillion = formatter.format(hoursPerMillionStates);
-                    String units = " hours/million states";
-                    if (hoursPerMillionStates < 0.1) {
-                        double minutesPerMillionStates = hoursPerMillionStates * 60;
-                        timePerMillion = formatter.format(minutesPerMillionStates);
-                        units = " minutes/million states";
-                        if (minutesPerMillionStates < 0.1) {
-                            double secondsPerMillionStates = minutesPerMillionStates * 60;
-                            timePerMillion = formatter.format(secondsPerMillionStates);
-                            units = " seconds/million states";
-                        }
-                    }
-                    values[columnCount + 1] = timePerMillion + units;
+            long time = System.currentTimeMillis();
 
-                } else {
-                    values[columnCount + 1] = "-";
+            double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+
+            String timePerMillion = formatter.format(hoursPerMillionStates);
+            String units = " hours/million states";
+            if (hoursPerMillionStates < 0.1) {
+                double minutesPerMillionStates = hoursPerMillionStates * 60;
+                timePerMillion = formatter.format(minutesPerMillionStates);
+                units = " minutes/million states";
+                if (minutesPerMillionStates < 0.1) {
+                    double secondsPerMillionStates = minutesPerMillionStates * 60;
+                    timePerMillion = formatter.format(secondsPerMillionStates);
+                    units = " seconds/million states";
                 }
             }
+            return timePerMillion + units;
 
-            logValues(values);
+        } else {
+            return "-";
         }
+    }
 
-        if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
-            performanceReportStarted = true;
+    /**
+     * A pooled snapshot of one line of the log. Numerical columns are captured as doubles and
+     * formatted on the writer thread; other columns are formatted when captured.
+     */
+    private class ValuesRecord implements AsyncLogWriter.Record {
+        ValuesRecord(int columnCount) {
+            numbers = new double[columnCount];
+            strings = new String[columnCount];
+        }
+
+        public void write() {
+            final int columnCount = numbers.length;
+            String[] values = new String[columnCount + (performance != null ? 2 : 1)];
+
+            values[0] = Long.toString(state);
+
+            for (int i = 0; i < columnCount; i++) {
+                values[i + 1] = (numberColumns[i] != null ? numberColumns[i].getFormatted(numbers[i]) : strings[i]);
+                strings[i] = null;
+            }
+
+            if (performance != null) {
+                values[columnCount + 1] = performance;
+            }
+
+            writeValues(values);
+
+            valuesRecordPool.offer(this);
         }
 
+        long state;
+        final double[] numbers;
+        final String[] strings;
+        String performance;
     }
 
     public void stopLogging() {
 
+        if (asyncWriter != null) {
+            // write everything still queued before the formatters are closed
+            asyncWriter.close();
+            asyncWriter = null;
+        }
+
         for (LogFormatter formatter : formatters) {
             formatter.stopLogging();
         }
     }
 
+    /**
+     * Blocks until everything logged so far has been written (the formatters write each
+     * line as it is logged so this only matters when logging asynchronously).
+     */
+    public void flush() {
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+    }
+
     private String title = null;
 
     private Set<String> keywords = new HashSet<String>();
@@ -315,4 +490,9 @@ public class MCLogger implements Logger {
 
     private final NumberFormat formatter = NumberFormat.getNumberInstance();
 
+    private int asyncBufferSize = 0;
+    private AsyncLogWriter asyncWriter = null;
+    private NumberColumn[] numberColumns = null;
+    private final Queue<ValuesRecord> valuesRecordPool = new ConcurrentLinkedQueue<ValuesRecord>();
+
 }
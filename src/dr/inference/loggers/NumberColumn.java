@@ -101,7 +101,40 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	public int getDecimalPlaces() { return dp; }
 	
 
-    public String formatValue(double value) {
+    /**
+     * Formats a value with this column's formatting and padding, as getFormatted() does for the current value.
+     * This allows the value to be captured on one thread and formatted on another.
+     */
+    public synchronized String getFormatted(double value) {
+        StringBuffer buffer = new StringBuffer(formatValue(value));
+
+        if (getMinimumWidth() > 0) {
+            while (buffer.length() < getMinimumWidth()) {
+                buffer.append(' ');
+            }
+        }
+
+        return buffer.toString();
+    }
+
+    /**
+     * @return true if this column's formatted value is formatValue(getDoubleValue()), i.e., the
+     * subclass does not override getFormattedValue().
+     */
+    public boolean isFormattedFromDoubleValue() {
+        Class<?> type = getClass();
+        while (type != NumberColumn.class) {
+            try {
+                type.getDeclaredMethod("getFormattedValue");
+                return false;
+            } catch (NoSuchMethodException nsme) {
+                type = type.getSuperclass();
+            }
+        }
+        return true;
+    }
+
+    public synchronized String formatValue(double value) {
        if (dp < 0 && sf < 0) {
 			// return it at full precision
 			return Double.toString(value);
@@ -73,6 +73,8 @@ public final class MarkovChain implements Serializable {
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    private MarkovChainProfiler profiler = null;
+
 
     public MarkovChain(Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
@@ -217,6 +219,8 @@ public final class MarkovChain implements Serializable {
             // The new model is proposed
             // assert Profiler.startProfile("Operate");
 
+            long profileTime = (profiler != null ? System.nanoTime() : 0);
+
             if (DEBUG) {
                 System.out.println("\n>> Iteration: " + currentState);
                 System.out.println("\n&& Operator: " + mcmcOperator.getOperatorName());
@@ -229,6 +233,12 @@ public final class MarkovChain implements Serializable {
             }
 
             // assert Profiler.stopProfile("Operate");
+            if (profiler != null) {
+                long time = System.nanoTime();
+                profiler.recordProposal(op, time - profileTime);
+                profileTime = time;
+            }
+
             if (hastingsRatio == Double.NEGATIVE_INFINITY) {
                 // Should the evaluation be short-cutted?
                 // Previously this was set to false if OperatorFailedException was thrown.
@@ -261,6 +271,12 @@ public final class MarkovChain implements Serializable {
                 // The new model is evaluated
                 score = evaluate(likelihood);
 
+                if (profiler != null) {
+                    long time = System.nanoTime();
+                    profiler.recordEvaluation(op, time - profileTime);
+                    profileTime = time;
+                }
+
                 if (PROFILE) {
                     long duration = System.currentTimeMillis() - elapsedTime;
                     mcmcOperator.addEvaluationTime(duration);
@@ -386,10 +402,18 @@ public final class MarkovChain implements Serializable {
                             + ", old score = " + oldScore);
                 }
 
+                if (profiler != null) {
+                    profileTime = System.nanoTime();
+                }
+
                 mcmcOperator.accept(deviation);
                 currentModel.acceptModelState();
                 currentScore = score;
 
+                if (profiler != null) {
+                    profiler.recordAccept(op, System.nanoTime() - profileTime);
+                }
+
             } else {
                 if (DEBUG) {
                     System.out.println("** Move rejected: new score = " + score
@@ -400,8 +424,16 @@ public final class MarkovChain implements Serializable {
 
                 // assert Profiler.startProfile("Restore");
 
+                if (profiler != null) {
+                    profileTime = System.nanoTime();
+                }
+
                 currentModel.restoreModelState();
 
+                if (profiler != null) {
+                    profiler.recordReject(op, System.nanoTime() - profileTime);
+                }
+
                 if (usingFullEvaluation) {
                     // This is a test that the state is correctly restored. The
                     // restored state is fully evaluated and the likelihood compared with
@@ -489,6 +521,22 @@ public final class MarkovChain implements Serializable {
         return schedule;
     }
 
+    /**
+     * Attaches a profiler to record the time spent by each operator. The profiler is also
+     * added as a listener so it can write out its summary periodically.
+     */
+    public void setProfiler(MarkovChainProfiler profiler) {
+        if (profiler.getOperatorSchedule() != schedule) {
+            throw new IllegalArgumentException("The profiler is for a different operator schedule");
+        }
+        this.profiler = profiler;
+        addMarkovChainListener(profiler);
+    }
+
+    public MarkovChainProfiler getProfiler() {
+        return profiler;
+    }
+
     public Acceptor getAcceptor() {
         return acceptor;
     }
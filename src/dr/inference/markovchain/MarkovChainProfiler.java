@@ -0,0 +1,309 @@
+/*
+ * MarkovChainProfiler.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.TraversalProfileable;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.util.LatencyHistogram;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Records the time spent by each operator of a Markov chain proposing a new state, evaluating
+ * it and then accepting or rejecting it, along with the number of evaluations (and whether
+ * these were full or partial traversals of the tree) of each likelihood that can report these.
+ *
+ * The timings are kept in lock-free histograms so they can be read while the chain is running:
+ * the profiler provides log columns (times in microseconds) and can write a JSON summary, with
+ * percentiles, to a file at regular intervals.
+ *
+ * @author agent
+ */
+public class MarkovChainProfiler implements Loggable, MarkovChainListener {
+
+    /**
+     * @param schedule the operator schedule of the Markov chain
+     * @param likelihood the likelihood of the Markov chain (any of its components that can report
+     *                   their evaluations will be profiled)
+     * @param file a file to write the JSON summary to (or null)
+     * @param writeEvery the number of states between writing the summary
+     */
+    public MarkovChainProfiler(OperatorSchedule schedule, Likelihood likelihood, File file, long writeEvery) {
+        this.schedule = schedule;
+        this.file = file;
+        this.writeEvery = writeEvery;
+
+        operatorProfiles = new OperatorProfile[schedule.getOperatorCount()];
+        for (int i = 0; i < operatorProfiles.length; i++) {
+            operatorProfiles[i] = new OperatorProfile(schedule.getOperator(i));
+        }
+
+        Set<Likelihood> likelihoodSet = new HashSet<Likelihood>(likelihood.getLikelihoodSet());
+        likelihoodSet.add(likelihood);
+        for (Likelihood l : likelihoodSet) {
+            if (l instanceof TraversalProfileable) {
+                likelihoods.add(l);
+            }
+        }
+        Collections.sort(likelihoods, new Comparator<Likelihood>() {
+            @Override
+            public int compare(Likelihood l1, Likelihood l2) {
+                return getName(l1).compareTo(getName(l2));
+            }
+        });
+    }
+
+    public OperatorSchedule getOperatorSchedule() {
+        return schedule;
+    }
+
+    void recordProposal(int operatorIndex, long nanos) {
+        operatorProfiles[operatorIndex].proposal.record(nanos);
+    }
+
+    void recordEvaluation(int operatorIndex, long nanos) {
+        operatorProfiles[operatorIndex].evaluation.record(nanos);
+    }
+
+    void recordAccept(int operatorIndex, long nanos) {
+        operatorProfiles[operatorIndex].accept.record(nanos);
+    }
+
+    void recordReject(int operatorIndex, long nanos) {
+        operatorProfiles[operatorIndex].reject.record(nanos);
+    }
+
+    // **************************************************************
+    // MarkovChainListener IMPLEMENTATION
+    // **************************************************************
+
+    @Override
+    public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+        if (file != null && writeEvery > 0 && state > 0 && state % writeEvery == 0) {
+            writeProfile(state);
+        }
+    }
+
+    @Override
+    public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+        // do nothing
+    }
+
+    @Override
+    public void finished(long chainLength, MarkovChain markovChain) {
+        if (file != null) {
+            writeProfile(chainLength);
+        }
+    }
+
+    /**
+     * Writes the profile as JSON. It is written to a temporary file which then replaces the
+     * previous one so a reader will never see a partial file.
+     */
+    private void writeProfile(long state) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(JsonGenerator.PRETTY_PRINTING, true);
+        try {
+            try (Writer writer = new FileWriter(tempFile);
+                 JsonGenerator generator = Json.createGeneratorFactory(config).createGenerator(writer)) {
+                writeProfile(generator, state);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | JsonException e) {
+            java.util.logging.Logger.getLogger("dr.inference").warning(
+                    "Unable to write the profile file, " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void writeProfile(JsonGenerator generator, long state) {
+        generator.writeStartObject()
+                .write("state", state)
+                .write("elapsedSeconds", (System.nanoTime() - startTime) / 1.0E9)
+                .write("timeUnits", "microseconds");
+
+        long totalTime = getTotalTime();
+
+        generator.writeStartArray("operators");
+        for (OperatorProfile profile : operatorProfiles) {
+            generator.writeStartObject()
+                    .write("name", profile.operator.getOperatorName())
+                    .write("accepted", profile.accept.getCount())
+                    .write("rejected", profile.reject.getCount())
+                    .write("timeShare", totalTime > 0 ? (double) profile.getTotalTime() / totalTime : 0.0);
+            writeHistogram(generator, "propose", profile.proposal);
+            writeHistogram(generator, "evaluate", profile.evaluation);
+            writeHistogram(generator, "accept", profile.accept);
+            writeHistogram(generator, "reject", profile.reject);
+            generator.writeEnd();
+        }
+        generator.writeEnd();
+
+        generator.writeStartArray("likelihoods");
+        for (Likelihood likelihood : likelihoods) {
+            TraversalProfileable profileable = (TraversalProfileable) likelihood;
+            generator.writeStartObject()
+                    .write("id", getName(likelihood))
+                    .write("evaluations", profileable.getEvaluationCount())
+                    .write("fullTraversals", profileable.getFullTraversalCount())
+                    .write("partialTraversals", profileable.getPartialTraversalCount())
+                    .writeEnd();
+        }
+        generator.writeEnd();
+
+        generator.writeEnd();
+    }
+
+    private static void writeHistogram(JsonGenerator generator, String name, LatencyHistogram histogram) {
+        generator.writeStartObject(name)
+                .write("count", histogram.getCount())
+                .write("total", toMicroseconds(histogram.getTotal()))
+                .write("mean", toMicroseconds(histogram.getMean()))
+                .write("p50", toMicroseconds(histogram.getValueAtPercentile(50)))
+                .write("p90", toMicroseconds(histogram.getValueAtPercentile(90)))
+                .write("p99", toMicroseconds(histogram.getValueAtPercentile(99)))
+                .write("max", toMicroseconds(histogram.getMax()))
+                .writeEnd();
+    }
+
+    // **************************************************************
+    // Loggable IMPLEMENTATION
+    // **************************************************************
+
+    @Override
+    public LogColumn[] getColumns() {
+        List<LogColumn> columns = new ArrayList<LogColumn>();
+        for (final OperatorProfile profile : operatorProfiles) {
+            String name = profile.operator.getOperatorName();
+            columns.add(new HistogramColumn(name + ".propose", profile.proposal, false));
+            columns.add(new HistogramColumn(name + ".evaluate", profile.evaluation, false));
+            columns.add(new HistogramColumn(name + ".evaluate.p99", profile.evaluation, true));
+            columns.add(new HistogramColumn(name + ".accept", profile.accept, false));
+            columns.add(new HistogramColumn(name + ".reject", profile.reject, false));
+            columns.add(new NumberColumn(name + ".share") {
+                @Override
+                public double getDoubleValue() {
+                    long totalTime = getTotalTime();
+                    return totalTime > 0 ? (double) profile.getTotalTime() / totalTime : 0.0;
+                }
+            });
+        }
+        for (Likelihood likelihood : likelihoods) {
+            final TraversalProfileable profileable = (TraversalProfileable) likelihood;
+            String name = getName(likelihood);
+            columns.add(new NumberColumn(name + ".evaluations") {
+                @Override
+                public double getDoubleValue() {
+                    return profileable.getEvaluationCount();
+                }
+            });
+            columns.add(new NumberColumn(name + ".fullTraversals") {
+                @Override
+                public double getDoubleValue() {
+                    return profileable.getFullTraversalCount();
+                }
+            });
+            columns.add(new NumberColumn(name + ".partialTraversals") {
+                @Override
+                public double getDoubleValue() {
+                    return profileable.getPartialTraversalCount();
+                }
+            });
+        }
+        return columns.toArray(new LogColumn[0]);
+    }
+
+    private long getTotalTime() {
+        long totalTime = 0;
+        for (OperatorProfile profile : operatorProfiles) {
+            totalTime += profile.getTotalTime();
+        }
+        return totalTime;
+    }
+
+    private static String getName(Likelihood likelihood) {
+        return likelihood.getId() != null ? likelihood.getId() : likelihood.prettyName();
+    }
+
+    private static double toMicroseconds(double nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static class HistogramColumn extends NumberColumn {
+        HistogramColumn(String label, LatencyHistogram histogram, boolean percentile) {
+            super(label);
+            this.histogram = histogram;
+            this.percentile = percentile;
+        }
+
+        @Override
+        public double getDoubleValue() {
+            return toMicroseconds(percentile ? histogram.getValueAtPercentile(99) : histogram.getMean());
+        }
+
+        private final LatencyHistogram histogram;
+        private final boolean percentile;
+    }
+
+    private static class OperatorProfile {
+        OperatorProfile(MCMCOperator operator) {
+            this.operator = operator;
+        }
+
+        long getTotalTime() {
+            return proposal.getTotal() + evaluation.getTotal() + accept.getTotal() + reject.getTotal();
+        }
+
+        final MCMCOperator operator;
+        final LatencyHistogram proposal = new LatencyHistogram();
+        final LatencyHistogram evaluation = new LatencyHistogram();
+        final LatencyHistogram accept = new LatencyHistogram();
+        final LatencyHistogram reject = new LatencyHistogram();
+    }
+
+    private final OperatorSchedule schedule;
+    private final File file;
+    private final long writeEvery;
+
+    private final OperatorProfile[] operatorProfiles;
+    private final List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+    private final long startTime = System.nanoTime();
+}
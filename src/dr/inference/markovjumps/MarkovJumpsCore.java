@@ -80,6 +80,14 @@ public class MarkovJumpsCore {
 //}
 
     private void populateAuxInt(double[] eval, double scalar, double[] auxInt) {
+        populateAuxInt(eval, scalar, stateCount, expEvalScalar, auxInt);
+    }
+
+    /**
+     * Equation (37) from Minin and Suchard; expEvalScalar is scratch of length stateCount.
+     */
+    public static void populateAuxInt(double[] eval, double scalar, int stateCount,
+                                      double[] expEvalScalar, double[] auxInt) {
 
         for (int i = 0; i < stateCount; i++) {
             expEvalScalar[i] = Math.exp(eval[i] * scalar);
@@ -218,6 +226,45 @@ public class MarkovJumpsCore {
         matrixMultiply(evec, tmp1, stateCount, countMatrix);
     }
 
+    /**
+     * Computes a single column of (auxInt * ievcRateRegEvc) %*% ievc, i.e. the intermediate of
+     * computeJointStatMarkovJumpsPrecompute that is needed for the end state 'to'.
+     * The terms are summed in the same order as matrixMultiply, so the result is identical.
+     */
+    public static void computeJointStatColumnPrecompute(final double[] ievc,
+                                                        final double[] ievcRateRegEvc,
+                                                        final double[] auxInt,
+                                                        final int to,
+                                                        final int stateCount,
+                                                        final double[] column,
+                                                        final int offset) {
+        for (int k = 0; k < stateCount; k++) {
+            final int row = k * stateCount;
+            double sum = 0;
+            for (int l = 0; l < stateCount; l++) {
+                sum += (auxInt[row + l] * ievcRateRegEvc[row + l]) * ievc[l * stateCount + to];
+            }
+            column[offset + k] = sum;
+        }
+    }
+
+    /**
+     * Computes the (from, to) entry of computeJointStatMarkovJumpsPrecompute given the column for 'to'
+     * from computeJointStatColumnPrecompute.
+     */
+    public static double computeJointStatEntry(final double[] evec,
+                                               final int from,
+                                               final double[] column,
+                                               final int offset,
+                                               final int stateCount) {
+        final int row = from * stateCount;
+        double sum = 0;
+        for (int k = 0; k < stateCount; k++) {
+            sum += evec[row + k] * column[offset + k];
+        }
+        return sum;
+    }
+
     // Computes C = A %*% B for square matrices A and B
     public static void matrixMultiply(final double[] A,
                                       final double[] B,
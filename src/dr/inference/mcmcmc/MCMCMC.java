@@ -39,7 +39,6 @@ import dr.inference.operators.AdaptableMCMCOperator;
 import dr.inference.operators.MCMCOperator;
 import dr.inference.operators.OperatorAnalysisPrinter;
 import dr.inference.operators.OperatorSchedule;
-import dr.math.MathUtils;
 import dr.util.NumberFormatter;
 
 import java.util.Collections;
@@ -118,7 +117,7 @@ public class MCMCMC implements Runnable {
 //        }
 
         MCLogger[] coldChainLoggers = mcLoggers[coldChain];
-        List<LogFormatter>[] logFormatters = new List[coldChainLoggers.length];
+        logFormatters = new List[coldChainLoggers.length];
 
         for (int i = 0; i < coldChainLoggers.length; i++) {
             // Start the logging for the cold chain
@@ -139,68 +138,107 @@ public class MCMCMC implements Runnable {
 
         chains[coldChain].addMarkovChainListener(chainListener);
 
-        MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
+        // each chain runs on its own thread and swaps with its neighbours in the
+        // temperature ladder through the coordinator without waiting for the others
+        coordinator = new ReplicaExchangeCoordinator(replicas, mcmcmcOptions);
+
+        final MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
+        final Throwable[] failure = new Throwable[1];
+        Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                synchronized (failure) {
+                    if (failure[0] == null) {
+                        failure[0] = throwable;
+                    }
+                }
+                // stop the other chains rather than leave them waiting for this one
+                for (MCMCMCRunner runner : threads) {
+                    if (runner != thread) {
+                        runner.interrupt();
+                    }
+                }
+            }
+        };
+
         for (int i = 0; i < chains.length; i++) {
-            threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false);
-            threads[i].start();
+            threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false,
+                    coordinator, i);
+            threads[i].setUncaughtExceptionHandler(handler);
+        }
+        for (MCMCMCRunner thread : threads) {
+            thread.start();
         }
 
-        while (chains[coldChain].getCurrentLength() < getChainLength()) {
-
-            // wait for all the threads to complete their alloted chain length
-            boolean allDone;
-            do {
+        // wait for all the chains to finish
+        for (MCMCMCRunner thread : threads) {
+            while (thread.isAlive()) {
                 try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    //
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
                 }
+            }
+        }
 
-                allDone = true;
-                for (int i = 0; i < chains.length; i++) {
-                    if (!threads[i].isChainDone()) {
-                        allDone = false;
-                    }
-                }
-            } while (!allDone);
+        if (failure[0] != null) {
+            throw new RuntimeException("A chain failed: " + failure[0].getMessage(), failure[0]);
+        }
 
-            if (chains[coldChain].getCurrentLength() < getChainLength()) {
-                int oldColdChain = coldChain;
+        // log the final state of the cold chain (as MCMC does)
+        currentState = chains[coldChain].getCurrentLength();
 
-                // attempt to swap two chains' temperatures
-                coldChain = swapChainTemperatures();
+        finish();
 
-                // if the cold chain was involved in a swap then we need to change the
-                // listener that does the logging and the destinations for the coldChainLoggers.
-                if (coldChain != oldColdChain) {
+        timer.stop();
+    }
 
-                    chains[oldColdChain].removeMarkovChainListener(chainListener);
+    private final ReplicaExchangeCoordinator.Replicas replicas = new ReplicaExchangeCoordinator.Replicas() {
+        public int getReplicaCount() {
+            return chains.length;
+        }
 
-                    // Set the new cold chain's loggers with the formatters (destinations) of
-                    // the original cold chain
-                    for (int i = 0; i < mcLoggers[coldChain].length; i++) {
-                        mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
-                    }
+        public double getScore(int replica) {
+            return chains[replica].getCurrentScore();
+        }
 
-                    // Set the old cold chain to have null log formatters...
-                    for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
-                        mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
-                    }
+        public double getTemperature(int replica) {
+            return ((MCMCCriterion) chains[replica].getAcceptor()).getTemperature();
+        }
 
-                    chains[coldChain].addMarkovChainListener(chainListener);
+        public void setTemperature(int replica, double temperature) {
+            ((MCMCCriterion) chains[replica].getAcceptor()).setTemperature(temperature);
+        }
 
-                }
+        public void swapOperatorTuning(int replica1, int replica2) {
+            MCMCMC.swapOperatorTuning(schedules[replica1], schedules[replica2]);
+        }
 
-                for (int i = 0; i < chains.length; i++) {
-                    threads[i].continueChain();
-                }
-            }
+        public void coldReplicaChanged(int oldColdReplica, int newColdReplica) {
+            coldChainChanged(oldColdReplica, newColdReplica);
+        }
+    };
+
+    /**
+     * Called by the coordinator when the cold chain has swapped with the one in the next slot
+     * (while neither chain is running) to hand the logging over to the new cold chain.
+     */
+    private void coldChainChanged(int oldColdChain, int newColdChain) {
+        chains[oldColdChain].removeMarkovChainListener(chainListener);
 
+        // Set the new cold chain's loggers with the formatters (destinations) of
+        // the original cold chain
+        for (int i = 0; i < mcLoggers[newColdChain].length; i++) {
+            mcLoggers[newColdChain][i].setFormatters(logFormatters[i]);
         }
 
-        finish();
+        // Set the old cold chain to have null log formatters...
+        for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
+            mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
+        }
 
-        timer.stop();
+        coldChain = newColdChain;
+
+        chains[newColdChain].addMarkovChainListener(chainListener);
     }
 
     private void runChains(long length, boolean disableCoerce) {
@@ -225,85 +263,6 @@ public class MCMCMC implements Runnable {
         }
     }
 
-    private int swapChainTemperatures() {
-
-        if(DEBUG){
-            System.out.print("Current scores: ");
-            for(int i=0; i<chains.length; i++){
-                System.out.print("\t");
-                if(i==coldChain){
-                    System.out.print("[");
-                }
-                System.out.print(chains[i].getCurrentScore());
-                if(i==coldChain){
-                    System.out.print("]");
-                }
-            }
-            System.out.println();
-        }
-
-        int newColdChain = coldChain;
-
-        int index1 = MathUtils.nextInt(chains.length);
-        int index2 = MathUtils.nextInt(chains.length);
-        while (index1 == index2) {
-            index2 = MathUtils.nextInt(chains.length);
-        }
-
-        double score1 = chains[index1].getCurrentScore();
-        MCMCCriterion acceptor1 = ((MCMCCriterion) chains[index1].getAcceptor());
-        double temperature1 = acceptor1.getTemperature();
-        double score2 = chains[index2].getCurrentScore();
-        MCMCCriterion acceptor2 = ((MCMCCriterion) chains[index2].getAcceptor());
-        double temperature2 = acceptor2.getTemperature();
-
-        double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
-        boolean swap = (Math.log(MathUtils.nextDouble()) < logRatio);
-
-        if (swap) {
-            if(DEBUG){
-                System.out.println("Swapping chain "+index1+" and chain "+index2);
-            }
-
-            acceptor1.setTemperature(temperature2);
-            acceptor2.setTemperature(temperature1);
-
-            OperatorSchedule schedule1 = schedules[index1];
-            OperatorSchedule schedule2 = schedules[index2];
-
-            for (int i = 0; i < schedule1.getOperatorCount(); i++) {
-                MCMCOperator operator1 = schedule1.getOperator(i);
-                MCMCOperator operator2 = schedule2.getOperator(i);
-
-                long tmp = operator1.getAcceptCount();
-                operator1.setAcceptCount(operator2.getAcceptCount());
-                operator2.setAcceptCount(tmp);
-
-                tmp = operator1.getRejectCount();
-                operator1.setRejectCount(operator2.getRejectCount());
-                operator2.setRejectCount(tmp);
-
-                double tmp2 = operator1.getSumDeviation();
-                operator1.setSumDeviation(operator2.getSumDeviation());
-                operator2.setSumDeviation(tmp2);
-
-                if (operator1 instanceof AdaptableMCMCOperator) {
-                    tmp2 = ((AdaptableMCMCOperator) operator1).getAdaptableParameter();
-                    ((AdaptableMCMCOperator) operator1).setAdaptableParameter(((AdaptableMCMCOperator) operator2).getAdaptableParameter());
-                    ((AdaptableMCMCOperator) operator2).setAdaptableParameter(tmp2);
-                }
-            }
-
-            if (index1 == coldChain) {
-                newColdChain = index2;
-            } else if (index2 == coldChain) {
-                newColdChain = index1;
-            }
-        }
-
-        return newColdChain;
-    }
-
     private void resetChains() {
 
         for (MarkovChain chain : chains) {
@@ -339,6 +298,48 @@ public class MCMCMC implements Runnable {
             OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedules[coldChain], mcmcOptions.useAdaptation());
             System.out.println();
         }
+
+        showSwapAnalysis(formatter);
+    }
+
+    /**
+     * Reports the swap acceptance rate between each pair of neighbouring temperatures and the
+     * number of round trips (from the cold temperature to the hottest and back) each chain made.
+     */
+    private void showSwapAnalysis(NumberFormatter formatter) {
+        if (coordinator == null) {
+            return;
+        }
+        coordinator.showSwapAnalysis(System.out, formatter, getChainLength() / mcmcmcOptions.getSwapChainsEvery());
+    }
+
+    /**
+     * Swaps the operator tuning (acceptance counts and adaptable parameters) between the
+     * operator schedules of two chains along with their temperatures.
+     */
+    static void swapOperatorTuning(OperatorSchedule schedule1, OperatorSchedule schedule2) {
+        for (int i = 0; i < schedule1.getOperatorCount(); i++) {
+            MCMCOperator operator1 = schedule1.getOperator(i);
+            MCMCOperator operator2 = schedule2.getOperator(i);
+
+            long tmp = operator1.getAcceptCount();
+            operator1.setAcceptCount(operator2.getAcceptCount());
+            operator2.setAcceptCount(tmp);
+
+            tmp = operator1.getRejectCount();
+            operator1.setRejectCount(operator2.getRejectCount());
+            operator2.setRejectCount(tmp);
+
+            double tmp2 = operator1.getSumDeviation();
+            operator1.setSumDeviation(operator2.getSumDeviation());
+            operator2.setSumDeviation(tmp2);
+
+            if (operator1 instanceof AdaptableMCMCOperator) {
+                tmp2 = ((AdaptableMCMCOperator) operator1).getAdaptableParameter();
+                ((AdaptableMCMCOperator) operator1).setAdaptableParameter(((AdaptableMCMCOperator) operator2).getAdaptableParameter());
+                ((AdaptableMCMCOperator) operator2).setAdaptableParameter(tmp2);
+            }
+        }
     }
 
     private final MarkovChainListener chainListener = new MarkovChainListener() {
@@ -459,6 +460,9 @@ public class MCMCMC implements Runnable {
     private final MarkovChain[] chains;
     private final MCLogger[][] mcLoggers;
     private final OperatorSchedule[] schedules;
-    private int coldChain;
+    private volatile int coldChain;
+
+    private List<LogFormatter>[] logFormatters;
+    private ReplicaExchangeCoordinator coordinator = null;
 }
 
@@ -38,9 +38,27 @@ package dr.inference.mcmcmc;
  */
 public class MCMCMCOptions {
 
+    /**
+     * How the neighbouring pairs of chains in the temperature ladder are chosen for a swap.
+     * With STOCHASTIC the even or the odd pairs are picked at random for each round (a
+     * reversible scheme); with DETERMINISTIC they alternate, which is non-reversible and lets
+     * chains move through the whole ladder more quickly.
+     */
+    public enum SwapSchedule {
+        STOCHASTIC,
+        DETERMINISTIC
+    }
+
     public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery) {
+        this(temperatures, swapChainsEvery, SwapSchedule.STOCHASTIC, false);
+    }
+
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery, final SwapSchedule swapSchedule,
+                         final boolean adaptTemperatures) {
         this.temperatures = temperatures;
         this.swapChainsEvery = swapChainsEvery;
+        this.swapSchedule = swapSchedule;
+        this.adaptTemperatures = adaptTemperatures;
     }
 
 
@@ -52,6 +70,20 @@ public class MCMCMCOptions {
         return swapChainsEvery;
     }
 
+    public SwapSchedule getSwapSchedule() {
+        return swapSchedule;
+    }
+
+    /**
+     * @return whether the temperatures of the hot chains are adapted towards an equal swap
+     * acceptance rate between each neighbouring pair
+     */
+    public boolean adaptTemperatures() {
+        return adaptTemperatures;
+    }
+
     private final double[] temperatures;
     private final int swapChainsEvery;
+    private final SwapSchedule swapSchedule;
+    private final boolean adaptTemperatures;
 }
@@ -35,55 +35,49 @@ import dr.inference.markovchain.MarkovChain;
 public class MCMCMCRunner extends Thread {
 
     public MCMCMCRunner(MarkovChain markovChain, long length, long totalLength, boolean disableCoerce) {
+        this(markovChain, length, totalLength, disableCoerce, null, -1);
+    }
+
+    /**
+     * @param coordinator the coordinator to swap temperatures with the other chains after
+     *                    each length steps (or null to just run the chain)
+     * @param chainIndex  the index of this chain in the coordinator
+     */
+    MCMCMCRunner(MarkovChain markovChain, long length, long totalLength, boolean disableCoerce,
+                 ReplicaExchangeCoordinator coordinator, int chainIndex) {
 
         this.markovChain = markovChain;
         this.length = length;
         this.totalLength = totalLength;
         this.disableCoerce = disableCoerce;
+        this.coordinator = coordinator;
+        this.chainIndex = chainIndex;
     }
 
 	public void run() {
         long i = 0;
+        long round = 0;
         while (i < totalLength) {
             markovChain.runChain(length, disableCoerce/*, 0*/);
 
             i += length;
 
-	        chainDone();
-
-	        if (i < totalLength) {
-		        while (isChainDone()) {
-			        try {
-				        synchronized(this) {
-					        wait();
-				        }
-			        } catch (InterruptedException e) {
-				        // continue...
-			        }
+	        if (i < totalLength && coordinator != null) {
+		        try {
+			        coordinator.exchange(chainIndex, round);
+		        } catch (InterruptedException e) {
+			        // another chain has failed so stop
+			        return;
 		        }
 	        }
+	        round++;
         }
 	}
 
-	private synchronized void chainDone() {
-		chainDone = true;
-	}
-
-	public synchronized boolean isChainDone() {
-		return chainDone;
-	}
-
-    public synchronized void continueChain() {
-        this.chainDone = false;
-	    notify();
-    }
-
-
 	private final MarkovChain markovChain;
 	private final long length;
     private final long totalLength;
     private final boolean disableCoerce;
-
-	private boolean chainDone;
+    private final ReplicaExchangeCoordinator coordinator;
+    private final int chainIndex;
 }
-
@@ -0,0 +1,723 @@
+/*
+ * MultiProcessMCMCMC.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.inference.mcmcmc;
+
+import dr.util.NumberFormatter;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+
+/**
+ * Runs the chains of an MCMCMC analysis (or a set of independent chains) in separate BEAST
+ * processes on this machine. Each worker process parses the same XML and runs a single chain
+ * (see ReplicaWorker); this process swaps the temperatures between them through a
+ * ReplicaExchangeCoordinator, talking to each worker over a local socket. Unlike MCMCMC the
+ * chains don't share a JVM heap or garbage collector and a crashed worker doesn't take the
+ * whole analysis with it.
+ *
+ * The workers save their state every so many rounds. If a worker fails all the workers are
+ * restarted from the last state every worker saved (at most MAX_RESTARTS times). When the
+ * analysis finishes the log files written by the workers are combined into the files the XML
+ * names: for MCMCMC the cold chain's states from all the workers, and for independent chains
+ * one file per chain.
+ *
+ * @author agent
+ */
+public class MultiProcessMCMCMC {
+
+    public static final int MAX_RESTARTS = 3;
+
+    // the number of rounds between checkpoints if no other frequency is given
+    public static final int DEFAULT_CHECKPOINT_ROUNDS = 1000;
+
+    // how long to wait for a connection before checking the workers are still running (ms)
+    private static final int ACCEPT_TIMEOUT = 1000;
+    private static final int HELLO_TIMEOUT = 60000;
+
+    /**
+     * @param mainClass       the class to run in each worker process (which should run a
+     *                        ReplicaWorker if the WORKER_PROPERTY is set)
+     * @param arguments       the arguments to give each worker
+     * @param workerCount     the number of chains
+     * @param options         the MCMCMC options or null to run independent chains
+     * @param roundLength     the number of steps between swaps
+     * @param checkpointEvery the number of steps between checkpoints (0 for the default)
+     * @param checkpointStem  the stem of the names of the checkpoint files
+     * @param allowOverwrite  whether the combined log files can overwrite existing files
+     */
+    public MultiProcessMCMCMC(String mainClass, List<String> arguments, int workerCount, MCMCMCOptions options,
+                              int roundLength, long checkpointEvery, String checkpointStem, boolean allowOverwrite) {
+        if (options != null && options.getChainTemperatures().length != workerCount) {
+            throw new IllegalArgumentException("The number of chain temperatures should match the number of workers");
+        }
+        this.mainClass = mainClass;
+        this.arguments = new ArrayList<String>(arguments);
+        this.workerCount = workerCount;
+        this.options = options;
+        this.roundLength = roundLength;
+        this.checkpointRounds = (int) Math.max(1, (checkpointEvery > 0 ?
+                checkpointEvery / roundLength : DEFAULT_CHECKPOINT_ROUNDS));
+        this.checkpointStem = checkpointStem;
+        this.allowOverwrite = allowOverwrite;
+    }
+
+    public void run() throws IOException {
+        timer.start();
+
+        ServerSocket server = new ServerSocket(0, workerCount, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(ACCEPT_TIMEOUT);
+        try {
+            Checkpoint restart = null;
+            while (true) {
+                Generation generation = new Generation(generations.size(), restart);
+                generations.add(generation);
+                generation.start(server);
+
+                if (generation.await()) {
+                    generation.finish();
+                    break;
+                }
+
+                generation.stop();
+                if (generations.size() > MAX_RESTARTS) {
+                    throw new RuntimeException("Worker " + generation.failedWorker + " failed (" +
+                            generation.failure + ") and the workers have already been restarted " +
+                            MAX_RESTARTS + " times");
+                }
+
+                synchronized (this) {
+                    pendingCheckpoints.clear();
+                    restart = lastCheckpoint;
+                }
+                System.err.println("Worker " + generation.failedWorker + " failed (" + generation.failure +
+                        "): restarting all the workers from state " + (restart != null ? restart.state : 0));
+            }
+        } finally {
+            server.close();
+        }
+
+        combineLogs();
+        deleteCheckpoints();
+
+        timer.stop();
+
+        System.out.println();
+        System.out.println("Time taken: " + timer.toString());
+        if (options != null) {
+            Generation last = generations.get(generations.size() - 1);
+            System.out.println();
+            last.coordinator.showSwapAnalysis(System.out, new NumberFormatter(8), last.chainLength / roundLength);
+        }
+    }
+
+    /**
+     * @return the command to start another JVM like this one (with the same class path and
+     * JVM options)
+     */
+    private static List<String> getJavaCommand() {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-D" + ReplicaWorker.WORKER_PROPERTY + "=")) {
+                command.add(argument);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        return command;
+    }
+
+    // **************************************************************
+    // Checkpoints
+    // **************************************************************
+
+    private synchronized void checkpointSaved(Generation generation, int worker, long round, long state) {
+        savedCheckpointRounds.add(round);
+        if (generation.stopping) {
+            return;
+        }
+
+        Checkpoint checkpoint = pendingCheckpoints.get(round);
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint(round, state);
+            pendingCheckpoints.put(round, checkpoint);
+        }
+        checkpoint.slots[worker] = (generation.coordinator != null ? generation.coordinator.getSlot(worker) : worker);
+        if (generation.coordinator != null) {
+            for (int k = 0; k < workerCount; k++) {
+                checkpoint.ladder[k] = generation.coordinator.getTemperature(k);
+            }
+        }
+        checkpoint.count++;
+
+        if (checkpoint.count == workerCount) {
+            // every worker has saved this round so it can be restarted from
+            pendingCheckpoints.remove(round);
+            if (lastCheckpoint != null) {
+                deleteCheckpoint(lastCheckpoint.round);
+            }
+            lastCheckpoint = checkpoint;
+        }
+    }
+
+    private void deleteCheckpoint(long round) {
+        for (int i = 0; i < workerCount; i++) {
+            File file = ReplicaProtocol.getCheckpointFile(checkpointStem, i, round);
+            if (file.exists() && !file.delete()) {
+                System.err.println("Unable to delete checkpoint file: " + file);
+            }
+        }
+        savedCheckpointRounds.remove(round);
+    }
+
+    private synchronized void deleteCheckpoints() {
+        for (Long round : new ArrayList<Long>(savedCheckpointRounds)) {
+            deleteCheckpoint(round);
+        }
+    }
+
+    private final class Checkpoint {
+        Checkpoint(long round, long state) {
+            this.round = round;
+            this.state = state;
+            slots = new int[workerCount];
+            ladder = (options != null ? options.getChainTemperatures().clone() : null);
+        }
+
+        final long round;
+        final long state;
+        final int[] slots;
+        final double[] ladder;
+        int count = 0;
+    }
+
+    // **************************************************************
+    // Combining the logs
+    // **************************************************************
+
+    /**
+     * Combines each log file written by the workers of every generation into a single file.
+     * Generation g contributes the states from the one it started at up to the one the next
+     * generation started at.
+     */
+    private void combineLogs() throws IOException {
+        int fileCount = generations.get(0).workers[0].logFiles.size();
+        for (Generation generation : generations) {
+            for (Worker worker : generation.workers) {
+                if (worker.logFiles.size() != fileCount) {
+                    throw new IOException("The workers didn't all write the same log files");
+                }
+            }
+        }
+
+        for (int j = 0; j < fileCount; j++) {
+            if (options != null) {
+                int[] workers = new int[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    workers[i] = i;
+                }
+                File file = generations.get(0).workers[0].logFiles.get(j);
+                combineLog(j, workers, renameLogFile(file, ReplicaWorker.getFilePostfix(0, 0), ""));
+            } else {
+                for (int i = 0; i < workerCount; i++) {
+                    File file = generations.get(0).workers[i].logFiles.get(j);
+                    combineLog(j, new int[]{i}, renameLogFile(file, ReplicaWorker.getFilePostfix(i, 0), "_chain" + (i + 1)));
+                }
+            }
+        }
+    }
+
+    private static File renameLogFile(File file, String postfix, String newPostfix) {
+        String name = file.getName();
+        int index = name.lastIndexOf(postfix);
+        name = name.substring(0, index) + newPostfix + name.substring(index + postfix.length());
+        return new File(file.getParentFile(), name);
+    }
+
+    private void combineLog(int file, int[] workers, File target) throws IOException {
+        if (target.exists() && !allowOverwrite) {
+            System.err.println("The log file " + target + " already exists so the logs of the workers have been left as they are");
+            return;
+        }
+
+        List<List<File>> sourceFiles = new ArrayList<List<File>>();
+        long[] startStates = new long[generations.size()];
+        for (int g = 0; g < generations.size(); g++) {
+            List<File> files = new ArrayList<File>();
+            for (int worker : workers) {
+                files.add(generations.get(g).workers[worker].logFiles.get(file));
+            }
+            sourceFiles.add(files);
+            startStates[g] = generations.get(g).startState;
+        }
+
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(target)));
+        mergeLogFiles(sourceFiles, startStates, writer);
+        writer.close();
+        if (writer.checkError()) {
+            throw new IOException("Error writing log file " + target);
+        }
+
+        for (List<File> files : sourceFiles) {
+            for (File sourceFile : files) {
+                if (!sourceFile.delete()) {
+                    System.err.println("Unable to delete worker log file: " + sourceFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the log files written by the workers into one file in order of state. The files of
+     * generation g give the states from startStates[g] up to (but not including) startStates[g + 1],
+     * so the states a restarted generation logs again replace those logged after its checkpoint.
+     * The header is that of the first generation and the trailer that of the last file with states.
+     *
+     * @param files       the log files of each generation
+     * @param startStates the state each generation started from
+     * @param writer      the writer for the merged log
+     */
+    public static void mergeLogFiles(List<List<File>> files, long[] startStates, PrintWriter writer) throws IOException {
+        List<String> trailer = null;
+
+        for (int g = 0; g < files.size(); g++) {
+            long from = startStates[g];
+            long to = (g + 1 < files.size() ? startStates[g + 1] : Long.MAX_VALUE);
+
+            List<File> generationFiles = files.get(g);
+            LogSource[] sources = new LogSource[generationFiles.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = new LogSource(generationFiles.get(i));
+            }
+
+            if (g == 0) {
+                for (LogSource source : sources) {
+                    if (source.line != null) {
+                        for (String line : source.header) {
+                            writer.println(line);
+                        }
+                        break;
+                    }
+                }
+            }
+
+            // the lines of each file are in order of state so merge them
+            while (true) {
+                LogSource next = null;
+                for (LogSource source : sources) {
+                    if (source.line != null && (next == null || source.state < next.state)) {
+                        next = source;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                if (next.state >= from && next.state < to) {
+                    writer.println(next.line);
+                }
+                next.advance();
+            }
+
+            for (LogSource source : sources) {
+                if (source.hasData) {
+                    trailer = source.trailer;
+                }
+                source.reader.close();
+            }
+        }
+
+        if (trailer != null) {
+            for (String line : trailer) {
+                writer.println(line);
+            }
+        }
+    }
+
+    /**
+     * Reads a log file as a header, the logged states and a trailer (e.g., the End; of a trees
+     * file).
+     */
+    private static final class LogSource {
+        LogSource(File file) throws IOException {
+            reader = new BufferedReader(new FileReader(file));
+            advance();
+        }
+
+        void advance() throws IOException {
+            line = null;
+            String next;
+            while ((next = reader.readLine()) != null) {
+                long nextState = getState(next);
+                if (nextState >= 0) {
+                    line = next;
+                    state = nextState;
+                    hasData = true;
+                    trailer.clear();
+                    return;
+                }
+                if (hasData) {
+                    trailer.add(next);
+                } else {
+                    header.add(next);
+                }
+            }
+        }
+
+        /**
+         * @return the state of a log line (or tree), or -1 if it isn't one
+         */
+        private static long getState(String line) {
+            int start = 0;
+            if (line.startsWith("tree STATE_")) {
+                start = "tree STATE_".length();
+            }
+            int end = start;
+            while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                end++;
+            }
+            if (end == start || end - start > 18 ||
+                    (start == 0 && end < line.length() && !Character.isWhitespace(line.charAt(end)))) {
+                return -1;
+            }
+            return Long.parseLong(line.substring(start, end));
+        }
+
+        final BufferedReader reader;
+        final List<String> header = new ArrayList<String>();
+        final List<String> trailer = new ArrayList<String>();
+        String line;
+        long state;
+        boolean hasData = false;
+    }
+
+    // **************************************************************
+    // Workers
+    // **************************************************************
+
+    private static final class Worker {
+        Process process;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        List<File> logFiles;
+        Thread handler;
+        boolean done = false;
+
+        // only accessed by the handler of this worker or while it is waiting at the coordinator
+        double score;
+        double temperature;
+        ReplicaProtocol.OperatorTuning tuning;
+    }
+
+    /**
+     * One set of worker processes. The first generation starts from the beginning and each
+     * subsequent one from the last complete checkpoint.
+     */
+    private final class Generation implements ReplicaExchangeCoordinator.Replicas {
+
+        Generation(int number, Checkpoint restart) {
+            this.number = number;
+            this.restart = restart;
+            this.startState = (restart != null ? restart.state : 0);
+            workers = new Worker[workerCount];
+
+            if (options != null) {
+                MCMCMCOptions generationOptions = options;
+                int[] slots = null;
+                if (restart != null) {
+                    generationOptions = new MCMCMCOptions(restart.ladder, options.getSwapChainsEvery(),
+                            options.getSwapSchedule(), options.adaptTemperatures());
+                    slots = restart.slots;
+                }
+                coordinator = new ReplicaExchangeCoordinator(this, generationOptions, slots);
+                for (int i = 0; i < workerCount; i++) {
+                    if (coordinator.getSlot(i) == 0) {
+                        coldWorker = i;
+                    }
+                }
+                if (number > 0) {
+                    coordinator.addStatistics(generations.get(number - 1).coordinator);
+                }
+            } else {
+                coordinator = null;
+            }
+        }
+
+        void start(ServerSocket server) throws IOException {
+            Process[] processes = new Process[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                List<String> command = getJavaCommand();
+                command.add("-D" + ReplicaWorker.WORKER_PROPERTY + "=" + server.getLocalPort() + ":" + i + ":" + number);
+                command.add(mainClass);
+                command.addAll(arguments);
+                processes[i] = new ProcessBuilder(command).inheritIO().start();
+            }
+
+            int connected = 0;
+            while (connected < workerCount) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException ste) {
+                    for (Process process : processes) {
+                        if (!process.isAlive()) {
+                            for (Process other : processes) {
+                                other.destroyForcibly();
+                            }
+                            throw new RuntimeException("A worker process exited before it started its chain (exit value " +
+                                    process.exitValue() + ")");
+                        }
+                    }
+                    continue;
+                }
+
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HELLO_TIMEOUT);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                ReplicaProtocol.expect(in, ReplicaProtocol.HELLO);
+                ReplicaProtocol.Hello hello = new ReplicaProtocol.Hello(in);
+                int index = hello.index;
+                if (hello.generation != number || index < 0 || index >= workerCount || workers[index] != null) {
+                    // left over from a previous generation
+                    socket.close();
+                    continue;
+                }
+
+                Worker worker = new Worker();
+                worker.process = processes[index];
+                worker.socket = socket;
+                worker.in = in;
+                worker.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                chainLength = hello.chainLength;
+                worker.logFiles = hello.logFiles;
+                socket.setSoTimeout(0);
+
+                workers[index] = worker;
+                connected++;
+            }
+
+            for (int i = 0; i < workerCount; i++) {
+                Worker worker = workers[i];
+                worker.temperature = (coordinator != null ? coordinator.getTemperature(coordinator.getSlot(i)) : 1.0);
+
+                new ReplicaProtocol.Config(worker.temperature, isCold(i), roundLength,
+                        (restart != null ? restart.round + 1 : 0), checkpointRounds, checkpointStem,
+                        (restart != null ? ReplicaProtocol.getCheckpointFile(checkpointStem, i, restart.round).getPath() : "")
+                ).write(worker.out);
+                worker.out.flush();
+            }
+
+            for (int i = 0; i < workerCount; i++) {
+                final int index = i;
+                workers[i].handler = new Thread("MC3 worker " + i) {
+                    public void run() {
+                        handle(index);
+                    }
+                };
+                workers[i].handler.start();
+            }
+        }
+
+        private void handle(int index) {
+            Worker worker = workers[index];
+            try {
+                while (true) {
+                    int message = ReplicaProtocol.readType(worker.in);
+                    switch (message) {
+                        case ReplicaProtocol.ROUND:
+                            ReplicaProtocol.Round round = new ReplicaProtocol.Round(worker.in);
+                            worker.score = round.score;
+                            worker.tuning = round.tuning;
+
+                            if (coordinator != null) {
+                                coordinator.exchange(index, round.round);
+                            }
+
+                            new ReplicaProtocol.Reply(worker.temperature, isCold(index), worker.tuning).write(worker.out);
+                            worker.out.flush();
+                            break;
+                        case ReplicaProtocol.CHECKPOINT:
+                            ReplicaProtocol.Checkpoint checkpoint = new ReplicaProtocol.Checkpoint(worker.in);
+                            checkpointSaved(this, index, checkpoint.round, checkpoint.state);
+                            break;
+                        case ReplicaProtocol.DONE:
+                            new ReplicaProtocol.Done(worker.in);
+                            synchronized (this) {
+                                worker.done = true;
+                                doneCount++;
+                                notifyAll();
+                            }
+                            return;
+                        default:
+                            throw new IOException("Unexpected message " + message);
+                    }
+                }
+            } catch (IOException ioe) {
+                failed(index, ioe.getMessage() != null ? ioe.getMessage() : ioe.toString());
+            } catch (InterruptedException ie) {
+                // the generation is being stopped
+            }
+        }
+
+        private synchronized void failed(int index, String message) {
+            if (!stopping && failedWorker == -1) {
+                failedWorker = index;
+                failure = message;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for all the workers to finish or one to fail.
+         *
+         * @return true if they all finished
+         */
+        synchronized boolean await() {
+            while (doneCount < workerCount && failedWorker == -1) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
+                }
+            }
+            return failedWorker == -1;
+        }
+
+        void finish() throws IOException {
+            for (Worker worker : workers) {
+                join(worker.handler);
+                worker.socket.close();
+                waitFor(worker.process);
+            }
+        }
+
+        void stop() throws IOException {
+            synchronized (MultiProcessMCMCMC.this) {
+                // no more checkpoints from this generation
+                stopping = true;
+            }
+            for (Worker worker : workers) {
+                worker.process.destroyForcibly();
+                worker.socket.close();
+                worker.handler.interrupt();
+            }
+            for (Worker worker : workers) {
+                join(worker.handler);
+                waitFor(worker.process);
+            }
+        }
+
+        private boolean isCold(int index) {
+            return coordinator == null || index == coldWorker;
+        }
+
+        // ReplicaExchangeCoordinator.Replicas
+
+        public int getReplicaCount() {
+            return workerCount;
+        }
+
+        public double getScore(int replica) {
+            return workers[replica].score;
+        }
+
+        public double getTemperature(int replica) {
+            return workers[replica].temperature;
+        }
+
+        public void setTemperature(int replica, double temperature) {
+            workers[replica].temperature = temperature;
+        }
+
+        public void swapOperatorTuning(int replica1, int replica2) {
+            ReplicaProtocol.OperatorTuning tuning = workers[replica1].tuning;
+            workers[replica1].tuning = workers[replica2].tuning;
+            workers[replica2].tuning = tuning;
+        }
+
+        public void coldReplicaChanged(int oldColdReplica, int newColdReplica) {
+            coldWorker = newColdReplica;
+        }
+
+        final int number;
+        final Checkpoint restart;
+        final long startState;
+        final Worker[] workers;
+        final ReplicaExchangeCoordinator coordinator;
+        long chainLength;
+
+        private volatile int coldWorker = 0;
+        private int doneCount = 0;
+        private volatile boolean stopping = false;
+        int failedWorker = -1;
+        String failure = null;
+    }
+
+    private static void join(Thread thread) {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                // DO NOTHING
+            }
+        }
+    }
+
+    private static void waitFor(Process process) {
+        while (true) {
+            try {
+                process.waitFor();
+                return;
+            } catch (InterruptedException ie) {
+                // DO NOTHING
+            }
+        }
+    }
+
+    private final String mainClass;
+    private final List<String> arguments;
+    private final int workerCount;
+    private final MCMCMCOptions options;
+    private final int roundLength;
+    private final int checkpointRounds;
+    private final String checkpointStem;
+    private final boolean allowOverwrite;
+
+    private final List<Generation> generations = new ArrayList<Generation>();
+
+    // checkpoints not yet saved by every worker, by round
+    private final Map<Long, Checkpoint> pendingCheckpoints = new HashMap<Long, Checkpoint>();
+    private final Set<Long> savedCheckpointRounds = new TreeSet<Long>();
+    private Checkpoint lastCheckpoint = null;
+
+    private final dr.util.Timer timer = new dr.util.Timer();
+}
@@ -0,0 +1,372 @@
+/*
+ * ReplicaExchangeCoordinator.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmcmc;
+
+import dr.math.MathUtils;
+import dr.util.NumberFormatter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coordinates the swaps of temperatures between the chains of an MCMCMC analysis without a
+ * barrier across all the chains. The temperatures form a ladder of slots (slot 0 is cold) and
+ * only neighbouring slots are swapped. After each round of swapChainsEvery steps each chain
+ * works out which neighbour (if any) it is paired with and the two meet at the Exchanger for
+ * that pair; other pairs, and unpaired chains, carry on without waiting. Which pairs are tried
+ * in each round is fixed by the round number so the two chains of a pair always agree.
+ *
+ * Of each pair the chain in the lower slot decides whether to swap and, while the other chain
+ * is still waiting, swaps the temperatures and operator tuning and hands the logging over to
+ * the new cold chain.
+ *
+ * The chains themselves are reached through the Replicas interface so they can either be
+ * running in this JVM (MCMCMC) or in other processes (MultiProcessMCMCMC).
+ *
+ * @author agent
+ */
+public class ReplicaExchangeCoordinator {
+
+    /**
+     * The chains being coordinated. The methods are only called for chains that are waiting
+     * at the end of a round.
+     */
+    public interface Replicas {
+        int getReplicaCount();
+
+        double getScore(int replica);
+
+        double getTemperature(int replica);
+
+        void setTemperature(int replica, double temperature);
+
+        void swapOperatorTuning(int replica1, int replica2);
+
+        void coldReplicaChanged(int oldColdReplica, int newColdReplica);
+    }
+
+    // Robbins-Monro step size exponent and target acceptance used to adapt the ladder
+    private static final double ADAPTATION_EXPONENT = 0.6;
+    private static final double TARGET_SWAP_RATE = 0.234;
+
+    // the last end of the ladder each chain has been to (0 if neither)
+    private static final int UP = 1;
+    private static final int DOWN = 2;
+
+    public ReplicaExchangeCoordinator(Replicas replicas, MCMCMCOptions options) {
+        this(replicas, options, null);
+    }
+
+    /**
+     * @param options      the options (the chain temperatures give the ladder by slot)
+     * @param initialSlots the starting slot of each chain (or null for chain i in slot i)
+     */
+    public ReplicaExchangeCoordinator(Replicas replicas, MCMCMCOptions options, int[] initialSlots) {
+        this.replicas = replicas;
+        this.swapSchedule = options.getSwapSchedule();
+        this.adaptTemperatures = options.adaptTemperatures();
+        this.scheduleSeed = MathUtils.nextLong();
+
+        chainCount = replicas.getReplicaCount();
+        ladder = options.getChainTemperatures().clone();
+        logSpacings = new double[chainCount - 1];
+        for (int k = 0; k < chainCount - 1; k++) {
+            double spacing = (1.0 / ladder[k + 1]) - (1.0 / ladder[k]);
+            if (adaptTemperatures && spacing <= 0.0) {
+                throw new IllegalArgumentException("The chain temperatures must decrease to be adapted");
+            }
+            logSpacings[k] = Math.log(spacing);
+        }
+
+        slotOfChain = new int[chainCount];
+        direction = new int[chainCount];
+        roundTrips = new long[chainCount];
+        for (int i = 0; i < chainCount; i++) {
+            slotOfChain[i] = (initialSlots != null ? initialSlots[i] : i);
+            if (slotOfChain[i] == 0) {
+                direction[i] = UP;
+            } else if (slotOfChain[i] == chainCount - 1) {
+                direction[i] = DOWN;
+            }
+        }
+
+        exchangers = new ArrayList<Exchanger<SwapProposal>>();
+        for (int k = 0; k < chainCount - 1; k++) {
+            exchangers.add(new Exchanger<SwapProposal>());
+        }
+        swapAttempts = new AtomicLongArray(chainCount - 1);
+        swapAccepts = new AtomicLongArray(chainCount - 1);
+    }
+
+    /**
+     * Called by the thread running a chain at the end of each round. Attempts a swap with the
+     * chain in the neighbouring slot if that pair is tried in this round, otherwise returns
+     * straight away.
+     *
+     * @param chain the index of the chain
+     * @param round the number of rounds the chain has completed
+     */
+    public void exchange(int chain, long round) throws InterruptedException {
+        int slot = slotOfChain[chain];
+        int partnerSlot = getPartnerSlot(slot, round);
+
+        if (partnerSlot == -1) {
+            if (adaptTemperatures) {
+                // pick up any change to the temperature of its slot
+                setTemperature(chain);
+            }
+            return;
+        }
+
+        boolean lower = slot < partnerSlot;
+        Exchanger<SwapProposal> exchanger = exchangers.get(Math.min(slot, partnerSlot));
+
+        SwapProposal proposal = new SwapProposal(chain, replicas.getScore(chain), replicas.getTemperature(chain),
+                (lower ? MathUtils.nextDouble() : 0.0));
+        SwapProposal partner = exchanger.exchange(proposal);
+
+        if (lower) {
+            attemptSwap(slot, proposal, partner);
+        }
+
+        // the lower chain releases the upper one once the swap is complete
+        exchanger.exchange(null);
+
+        updateDirection(chain);
+    }
+
+    private int getPartnerSlot(int slot, long round) {
+        int parity;
+        if (swapSchedule == MCMCMCOptions.SwapSchedule.DETERMINISTIC) {
+            parity = (int) (round & 1);
+        } else {
+            parity = (int) (mix(scheduleSeed + round) >>> 63);
+        }
+
+        int partnerSlot = ((slot & 1) == parity ? slot + 1 : slot - 1);
+        return (partnerSlot >= 0 && partnerSlot < chainCount ? partnerSlot : -1);
+    }
+
+    private void attemptSwap(int slot, SwapProposal proposal1, SwapProposal proposal2) {
+        int index1 = proposal1.chain;
+        int index2 = proposal2.chain;
+
+        double temperature1 = proposal1.temperature;
+        double temperature2 = proposal2.temperature;
+        double score1 = proposal1.score;
+        double score2 = proposal2.score;
+
+        double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
+        boolean swap = (Math.log(proposal1.uniform) < logRatio);
+
+        long attempts = swapAttempts.incrementAndGet(slot);
+        if (swap) {
+            swapAccepts.incrementAndGet(slot);
+        }
+        if (adaptTemperatures) {
+            adaptLadder(slot, attempts, Math.min(1.0, Math.exp(logRatio)));
+        }
+
+        if (swap) {
+            if (MCMCMC.DEBUG) {
+                System.out.println("Swapping chain " + index1 + " and chain " + index2);
+            }
+
+            slotOfChain[index1] = slot + 1;
+            slotOfChain[index2] = slot;
+
+            replicas.swapOperatorTuning(index1, index2);
+
+            if (slot == 0) {
+                replicas.coldReplicaChanged(index1, index2);
+            }
+        }
+
+        setTemperature(index1);
+        setTemperature(index2);
+    }
+
+    /**
+     * Adapts the spacing between a pair of slots (as the log of the difference of the inverse
+     * temperatures) towards the target acceptance rate with a diminishing step size. The
+     * temperatures of the hotter slots are moved with it.
+     */
+    private void adaptLadder(int slot, long attempts, double acceptance) {
+        synchronized (ladder) {
+            logSpacings[slot] += Math.pow(attempts, -ADAPTATION_EXPONENT) * (acceptance - TARGET_SWAP_RATE);
+            for (int k = slot; k < logSpacings.length; k++) {
+                ladder[k + 1] = 1.0 / ((1.0 / ladder[k]) + Math.exp(logSpacings[k]));
+            }
+        }
+    }
+
+    /**
+     * Sets the temperature of a chain (which must not be running) to that of its slot.
+     */
+    private void setTemperature(int chain) {
+        double temperature;
+        synchronized (ladder) {
+            temperature = ladder[slotOfChain[chain]];
+        }
+        replicas.setTemperature(chain, temperature);
+    }
+
+    /**
+     * Counts a round trip each time a chain gets back to the cold slot having been to the
+     * hottest one since it was last cold.
+     */
+    private void updateDirection(int chain) {
+        int slot = slotOfChain[chain];
+        if (slot == 0) {
+            if (direction[chain] == DOWN) {
+                roundTrips[chain]++;
+            }
+            direction[chain] = UP;
+        } else if (slot == chainCount - 1) {
+            if (direction[chain] == UP) {
+                direction[chain] = DOWN;
+            }
+        }
+    }
+
+    public int getSlot(int chain) {
+        return slotOfChain[chain];
+    }
+
+    public double getTemperature(int slot) {
+        synchronized (ladder) {
+            return ladder[slot];
+        }
+    }
+
+    public long getRoundTrips(int chain) {
+        return roundTrips[chain];
+    }
+
+    public long getSwapAttempts(int slot) {
+        return swapAttempts.get(slot);
+    }
+
+    public long getSwapAccepts(int slot) {
+        return swapAccepts.get(slot);
+    }
+
+    /**
+     * Adds the swap and round trip counts of a previous coordinator of the same chains (when
+     * an analysis is restarted from a checkpoint).
+     */
+    void addStatistics(ReplicaExchangeCoordinator previous) {
+        for (int k = 0; k < chainCount - 1; k++) {
+            swapAttempts.addAndGet(k, previous.getSwapAttempts(k));
+            swapAccepts.addAndGet(k, previous.getSwapAccepts(k));
+        }
+        for (int i = 0; i < chainCount; i++) {
+            roundTrips[i] += previous.getRoundTrips(i);
+        }
+    }
+
+    /**
+     * Reports the swap acceptance rate between each pair of neighbouring temperatures and the
+     * number of round trips (from the cold temperature to the hottest and back) each chain made.
+     */
+    void showSwapAnalysis(PrintStream out, NumberFormatter formatter, long rounds) {
+        out.println("Chain swap analysis (" + swapSchedule.toString().toLowerCase() + " schedule)");
+        out.println(
+                formatter.formatToFieldWidth("Temperatures", 30) +
+                        formatter.formatToFieldWidth("Swaps", 11) +
+                        formatter.formatToFieldWidth("Pr(accept)", 11));
+        for (int k = 0; k < chainCount - 1; k++) {
+            long attempts = getSwapAttempts(k);
+            double rate = (attempts > 0 ? (double) getSwapAccepts(k) / attempts : 0.0);
+            String temperatures = formatter.format(getTemperature(k)) + " <-> " +
+                    formatter.format(getTemperature(k + 1)) + " ";
+            out.println(
+                    formatter.formatToFieldWidth(temperatures, 30) +
+                            formatter.formatToFieldWidth(Long.toString(attempts), 11) +
+                            formatter.formatToFieldWidth(formatter.format(rate), 11));
+        }
+        out.println();
+
+        out.println(
+                formatter.formatToFieldWidth("Chain", 30) +
+                        formatter.formatToFieldWidth("Trips", 11) +
+                        formatter.formatToFieldWidth("Per 1000", 11));
+        for (int i = 0; i < chainCount; i++) {
+            long trips = getRoundTrips(i);
+            double rate = (rounds > 0 ? 1000.0 * trips / rounds : 0.0);
+            out.println(
+                    formatter.formatToFieldWidth(Integer.toString(i) + (slotOfChain[i] == 0 ? " (cold)" : ""), 30) +
+                            formatter.formatToFieldWidth(Long.toString(trips), 11) +
+                            formatter.formatToFieldWidth(formatter.format(rate), 11));
+        }
+        out.println();
+    }
+
+    /**
+     * A 64 bit mix function (from SplitMix64) used to pick the pairs for each round.
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class SwapProposal {
+        SwapProposal(int chain, double score, double temperature, double uniform) {
+            this.chain = chain;
+            this.score = score;
+            this.temperature = temperature;
+            this.uniform = uniform;
+        }
+
+        final int chain;
+        final double score;
+        final double temperature;
+        final double uniform;
+    }
+
+    private final Replicas replicas;
+    private final int chainCount;
+    private final MCMCMCOptions.SwapSchedule swapSchedule;
+    private final boolean adaptTemperatures;
+    private final long scheduleSeed;
+
+    private final double[] ladder;
+    private final double[] logSpacings;
+
+    // each chain's slot is only changed while both chains of a pair are at the exchanger
+    private final int[] slotOfChain;
+    private final int[] direction;
+    private final long[] roundTrips;
+
+    private final List<Exchanger<SwapProposal>> exchangers;
+    private final AtomicLongArray swapAttempts;
+    private final AtomicLongArray swapAccepts;
+}
@@ -0,0 +1,313 @@
+/*
+ * ReplicaProtocol.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.inference.mcmcmc;
+
+import dr.inference.operators.AdaptableMCMCOperator;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages passed over the local socket between the MultiProcessMCMCMC coordinator and
+ * each ReplicaWorker process. Each message is an int type followed by its fields:
+ *
+ * HELLO (worker): index, generation, chain length, the number of log files and their paths
+ * CONFIG (coordinator): temperature, cold, swap every, first round, checkpoint every (rounds,
+ * 0 for never), checkpoint stem, state file to load (empty for none)
+ * ROUND (worker): round, score, operator tuning
+ * REPLY (coordinator): temperature, cold, operator tuning
+ * CHECKPOINT (worker): round, state
+ * DONE (worker): state
+ *
+ * Each message class writes its type and fields and is read back from its fields once the
+ * type has been read (with readType or expect).
+ *
+ * @author agent
+ */
+public final class ReplicaProtocol {
+
+    public static final int HELLO = 1;
+    public static final int CONFIG = 2;
+    public static final int ROUND = 3;
+    public static final int REPLY = 4;
+    public static final int CHECKPOINT = 5;
+    public static final int DONE = 6;
+
+    private ReplicaProtocol() {
+        // no instances
+    }
+
+    public static int readType(DataInputStream in) throws IOException {
+        return in.readInt();
+    }
+
+    public static void expect(DataInputStream in, int message) throws IOException {
+        int received = in.readInt();
+        if (received != message) {
+            throw new IOException("Expected message " + message + " but received " + received);
+        }
+    }
+
+    public static File getCheckpointFile(String stem, int index, long round) {
+        return new File(stem + "." + index + "." + round);
+    }
+
+    public static final class Hello {
+        public Hello(int index, int generation, long chainLength, List<File> logFiles) {
+            this.index = index;
+            this.generation = generation;
+            this.chainLength = chainLength;
+            this.logFiles = logFiles;
+        }
+
+        public Hello(DataInputStream in) throws IOException {
+            index = in.readInt();
+            generation = in.readInt();
+            chainLength = in.readLong();
+            int fileCount = in.readInt();
+            logFiles = new ArrayList<File>();
+            for (int j = 0; j < fileCount; j++) {
+                logFiles.add(new File(in.readUTF()));
+            }
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(HELLO);
+            out.writeInt(index);
+            out.writeInt(generation);
+            out.writeLong(chainLength);
+            out.writeInt(logFiles.size());
+            for (File file : logFiles) {
+                out.writeUTF(file.getAbsolutePath());
+            }
+        }
+
+        public final int index;
+        public final int generation;
+        public final long chainLength;
+        public final List<File> logFiles;
+    }
+
+    public static final class Config {
+        public Config(double temperature, boolean cold, int swapEvery, long firstRound, int checkpointEvery,
+                      String checkpointStem, String loadStateFile) {
+            this.temperature = temperature;
+            this.cold = cold;
+            this.swapEvery = swapEvery;
+            this.firstRound = firstRound;
+            this.checkpointEvery = checkpointEvery;
+            this.checkpointStem = checkpointStem;
+            this.loadStateFile = loadStateFile;
+        }
+
+        public Config(DataInputStream in) throws IOException {
+            temperature = in.readDouble();
+            cold = in.readBoolean();
+            swapEvery = in.readInt();
+            firstRound = in.readLong();
+            checkpointEvery = in.readInt();
+            checkpointStem = in.readUTF();
+            loadStateFile = in.readUTF();
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(CONFIG);
+            out.writeDouble(temperature);
+            out.writeBoolean(cold);
+            out.writeInt(swapEvery);
+            out.writeLong(firstRound);
+            out.writeInt(checkpointEvery);
+            out.writeUTF(checkpointStem);
+            out.writeUTF(loadStateFile);
+        }
+
+        public final double temperature;
+        public final boolean cold;
+        public final int swapEvery;
+        public final long firstRound;
+        public final int checkpointEvery;
+        public final String checkpointStem;
+        public final String loadStateFile;
+    }
+
+    public static final class Round {
+        public Round(long round, double score, OperatorTuning tuning) {
+            this.round = round;
+            this.score = score;
+            this.tuning = tuning;
+        }
+
+        public Round(DataInputStream in) throws IOException {
+            round = in.readLong();
+            score = in.readDouble();
+            tuning = new OperatorTuning(in);
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(ROUND);
+            out.writeLong(round);
+            out.writeDouble(score);
+            tuning.write(out);
+        }
+
+        public final long round;
+        public final double score;
+        public final OperatorTuning tuning;
+    }
+
+    public static final class Reply {
+        public Reply(double temperature, boolean cold, OperatorTuning tuning) {
+            this.temperature = temperature;
+            this.cold = cold;
+            this.tuning = tuning;
+        }
+
+        public Reply(DataInputStream in) throws IOException {
+            temperature = in.readDouble();
+            cold = in.readBoolean();
+            tuning = new OperatorTuning(in);
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(REPLY);
+            out.writeDouble(temperature);
+            out.writeBoolean(cold);
+            tuning.write(out);
+        }
+
+        public final double temperature;
+        public final boolean cold;
+        public final OperatorTuning tuning;
+    }
+
+    public static final class Checkpoint {
+        public Checkpoint(long round, long state) {
+            this.round = round;
+            this.state = state;
+        }
+
+        public Checkpoint(DataInputStream in) throws IOException {
+            round = in.readLong();
+            state = in.readLong();
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(CHECKPOINT);
+            out.writeLong(round);
+            out.writeLong(state);
+        }
+
+        public final long round;
+        public final long state;
+    }
+
+    public static final class Done {
+        public Done(long state) {
+            this.state = state;
+        }
+
+        public Done(DataInputStream in) throws IOException {
+            state = in.readLong();
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(DONE);
+            out.writeLong(state);
+        }
+
+        public final long state;
+    }
+
+    /**
+     * The tuning of a chain's operators, which moves with the temperature when chains swap.
+     */
+    public static final class OperatorTuning {
+
+        public OperatorTuning(OperatorSchedule schedule) {
+            int count = schedule.getOperatorCount();
+            acceptCounts = new long[count];
+            rejectCounts = new long[count];
+            sumDeviations = new double[count];
+            adaptableParameters = new double[count];
+            for (int i = 0; i < count; i++) {
+                MCMCOperator operator = schedule.getOperator(i);
+                acceptCounts[i] = operator.getAcceptCount();
+                rejectCounts[i] = operator.getRejectCount();
+                sumDeviations[i] = operator.getSumDeviation();
+                adaptableParameters[i] = (operator instanceof AdaptableMCMCOperator ?
+                        ((AdaptableMCMCOperator) operator).getAdaptableParameter() : Double.NaN);
+            }
+        }
+
+        public OperatorTuning(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            acceptCounts = new long[count];
+            rejectCounts = new long[count];
+            sumDeviations = new double[count];
+            adaptableParameters = new double[count];
+            for (int i = 0; i < count; i++) {
+                acceptCounts[i] = in.readLong();
+                rejectCounts[i] = in.readLong();
+                sumDeviations[i] = in.readDouble();
+                adaptableParameters[i] = in.readDouble();
+            }
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(acceptCounts.length);
+            for (int i = 0; i < acceptCounts.length; i++) {
+                out.writeLong(acceptCounts[i]);
+                out.writeLong(rejectCounts[i]);
+                out.writeDouble(sumDeviations[i]);
+                out.writeDouble(adaptableParameters[i]);
+            }
+        }
+
+        public void applyTo(OperatorSchedule schedule) {
+            for (int i = 0; i < schedule.getOperatorCount(); i++) {
+                MCMCOperator operator = schedule.getOperator(i);
+                operator.setAcceptCount(acceptCounts[i]);
+                operator.setRejectCount(rejectCounts[i]);
+                operator.setSumDeviation(sumDeviations[i]);
+                if (operator instanceof AdaptableMCMCOperator) {
+                    ((AdaptableMCMCOperator) operator).setAdaptableParameter(adaptableParameters[i]);
+                }
+            }
+        }
+
+        private final long[] acceptCounts;
+        private final long[] rejectCounts;
+        private final double[] sumDeviations;
+        private final double[] adaptableParameters;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ReplicaWorker.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.inference.mcmcmc;
+
+import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.Model;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.state.Factory;
+import dr.xml.XMLParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Runs one chain of a MultiProcessMCMCMC analysis in its own BEAST process. The chain is run
+ * in rounds of swapEvery steps and at the end of each round its score and operator tuning are
+ * sent to the coordinator, which replies with the temperature (and tuning) to use for the next
+ * round and whether this chain is now the cold one. Only the cold chain logs. Every so many
+ * rounds the state is saved so the analysis can be restarted if a worker fails.
+ *
+ * @author agent
+ */
+public class ReplicaWorker {
+
+    /**
+     * The system property giving the coordinator's port, this worker's index and the generation
+     * (the number of times the workers have been restarted) as port:index:generation.
+     */
+    public static final String WORKER_PROPERTY = "mc3.worker";
+
+    public ReplicaWorker(String workerSpecification) {
+        String[] fields = workerSpecification.split(":");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("The worker specification should be port:index:generation");
+        }
+        port = Integer.parseInt(fields[0]);
+        index = Integer.parseInt(fields[1]);
+        generation = Integer.parseInt(fields[2]);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the postfix added to the names of this worker's log files
+     */
+    public String getFilePostfix() {
+        return getFilePostfix(index, generation);
+    }
+
+    static String getFilePostfix(int index, int generation) {
+        return ".worker" + index + "_" + generation;
+    }
+
+    public void run(MCMC mcmc) throws IOException {
+        final MarkovChain chain = mcmc.getMarkovChain();
+        final OperatorSchedule schedule = mcmc.getOperatorSchedule();
+        final Logger[] loggers = mcmc.getLoggers();
+        long chainLength = mcmc.getChainLength();
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        new ReplicaProtocol.Hello(index, generation, chainLength, XMLParser.getPostfixedLogFiles()).write(out);
+        out.flush();
+
+        ReplicaProtocol.expect(in, ReplicaProtocol.CONFIG);
+        ReplicaProtocol.Config config = new ReplicaProtocol.Config(in);
+        double temperature = config.temperature;
+        cold = config.cold;
+        int swapEvery = config.swapEvery;
+        long round = config.firstRound;
+        int checkpointEvery = config.checkpointEvery;
+        String checkpointStem = config.checkpointStem;
+        String loadStateFile = config.loadStateFile;
+
+        if (loadStateFile.length() > 0) {
+            double[] savedLnL = new double[1];
+            long state = Factory.INSTANCE.getStateLoaderSaver(new File(loadStateFile), null).loadState(chain, savedLnL);
+            chain.setCurrentLength(state);
+            chain.evaluate();
+        }
+
+        ((MCMCCriterion) chain.getAcceptor()).setTemperature(temperature);
+
+        for (Logger logger : loggers) {
+            logger.startLogging();
+        }
+        chain.addMarkovChainListener(new MarkovChainListener() {
+            public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+                if (cold) {
+                    for (Logger logger : loggers) {
+                        logger.log(state);
+                    }
+                }
+            }
+
+            public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+            }
+
+            public void finished(long chainLength, MarkovChain markovChain) {
+            }
+        });
+
+        long state = chain.getCurrentLength();
+        while (state < chainLength) {
+            state = chain.runChain(Math.min(swapEvery, chainLength - state), false);
+
+            if (state < chainLength) {
+                new ReplicaProtocol.Round(round, chain.getCurrentScore(), new ReplicaProtocol.OperatorTuning(schedule)).write(out);
+                out.flush();
+
+                ReplicaProtocol.expect(in, ReplicaProtocol.REPLY);
+                ReplicaProtocol.Reply reply = new ReplicaProtocol.Reply(in);
+                ((MCMCCriterion) chain.getAcceptor()).setTemperature(reply.temperature);
+                cold = reply.cold;
+                reply.tuning.applyTo(schedule);
+
+                if (checkpointEvery > 0 && (round + 1) % checkpointEvery == 0) {
+                    File file = ReplicaProtocol.getCheckpointFile(checkpointStem, index, round);
+                    Factory.INSTANCE.getStateLoaderSaver(null, file).saveState(chain, state, chain.getCurrentScore());
+
+                    // make sure everything logged before the checkpoint is on disk
+                    for (Logger logger : loggers) {
+                        if (logger instanceof MCLogger) {
+                            ((MCLogger) logger).flush();
+                        }
+                    }
+
+                    new ReplicaProtocol.Checkpoint(round, state).write(out);
+                    out.flush();
+                }
+            }
+            round++;
+        }
+
+        // log the final state (as MCMC does)
+        for (Logger logger : loggers) {
+            if (cold) {
+                logger.log(state);
+            }
+            logger.stopLogging();
+        }
+
+        new ReplicaProtocol.Done(state).write(out);
+        out.flush();
+        socket.close();
+    }
+
+    private final int port;
+    private final int index;
+    private final int generation;
+
+    // only changed between rounds
+    private volatile boolean cold;
+}
@@ -31,6 +31,7 @@ import dr.xml.Reportable;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A likelihood function which is simply the product of a set of likelihood functions.
@@ -47,6 +48,10 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     public final long[] evaluationTimes;
     public final int[] evaluationCounts;
 
+    // likelihoods that are expected to take less than this (in nanoseconds) are computed on the
+    // calling thread rather than being passed to the thread pool
+    public final static long INLINE_EVALUATION_TIME = 50000;
+
     public CompoundLikelihood(int threads, Collection<Likelihood> likelihoods) {
 
         int i = 0;
@@ -67,7 +72,8 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         }
 
         if (threadCount > 0) {
-            pool = Executors.newFixedThreadPool(threadCount);
+            // the calling thread takes a share of the work so idle threads steal what is left
+            pool = Executors.newWorkStealingPool(threadCount);
         } else if (threadCount < 0) {
             // create a cached thread pool which should create one thread per likelihood...
             pool = Executors.newCachedThreadPool();
@@ -127,6 +133,10 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
             if (!likelihoods.contains(likelihood)) {
 
+                // callers are indexed by the position of the likelihood in the list so that the
+                // timings line up with the likelihoods
+                LikelihoodCaller caller = new LikelihoodCaller(likelihood, likelihoods.size());
+
                 likelihoods.add(likelihood);
                 if (likelihood.getModel() != null) {
                     compoundModel.addModel(likelihood.getModel());
@@ -134,15 +144,16 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
                 if (likelihood.evaluateEarly()) {
 
-                    earlyLikelihoods.add(likelihood);
+                    earlyLikelihoods.add(caller);
 
                 } else {
 
                     // late likelihood list is used to evaluate them if the thread pool is not being used...
-                    lateLikelihoods.add(likelihood);
+                    caller.listIndex = lateLikelihoods.size();
+                    lateLikelihoods.add(caller);
 
                     if (addToPool) {
-                        likelihoodCallers.add(new LikelihoodCaller(likelihood, index));
+                        likelihoodCallers.add(caller);
                     }
                 }
 
@@ -202,20 +213,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             // Single threaded
             logLikelihood += evaluateLikelihoods(lateLikelihoods);
         } else {
-
-            try {
-                List<Future<Double>> results = pool.invokeAll(likelihoodCallers);
-
-                for (Future<Double> result : results) {
-                    double logL = result.get();
-                    logLikelihood += logL;
-                }
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-            }
+            logLikelihood += evaluateLikelihoodsInParallel(lateLikelihoods);
         }
 
 //        if( DEBUG > 0 ) {
@@ -230,37 +228,119 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         return logLikelihood;
     }
 
-    private double evaluateLikelihoods(ArrayList<Likelihood> likelihoods) {
+    private double evaluateLikelihoods(ArrayList<LikelihoodCaller> callers) {
         double logLikelihood = 0.0;
-        int i = 0;
-        for (Likelihood likelihood : likelihoods) {
-            if (EVALUATION_TIMERS) {
-                // this code is only compiled if EVALUATION_TIMERS is true
-                long time = System.nanoTime();
-                double l = likelihood.getLogLikelihood();
-                evaluationTimes[i] += System.nanoTime() - time;
-                evaluationCounts[i] ++;
+        for (LikelihoodCaller caller : callers) {
+            final double l = caller.call();
+            // if the likelihood is zero then short cut the rest of the likelihoods
+            // This means that expensive likelihoods such as TreeLikelihoods should
+            // be put after cheap ones such as BooleanLikelihoods
+            if( l == Double.NEGATIVE_INFINITY )
+                return Double.NEGATIVE_INFINITY;
+            logLikelihood += l;
+        }
 
-                if( l == Double.NEGATIVE_INFINITY )
-                    return Double.NEGATIVE_INFINITY;
+        return logLikelihood;
+    }
 
-                logLikelihood += l;
+    /**
+     * Evaluates the likelihoods using the thread pool. Likelihoods that are known (or are expected
+     * to be cheap, going by their recent evaluation times) are computed on the calling thread. The
+     * rest are handed out longest first to the calling thread and up to threadCount - 1 pool
+     * threads, each taking the next likelihood as it finishes the last. If only one likelihood
+     * needs computing then the pool isn't used at all.
+     *
+     * The results are summed in the order of the likelihoods so the total doesn't depend on the
+     * scheduling.
+     */
+    private double evaluateLikelihoodsInParallel(ArrayList<LikelihoodCaller> callers) {
+        final int count = callers.size();
+        if (results == null || results.length != count) {
+            results = new double[count];
+            scheduled = new LikelihoodCaller[count];
+        }
 
-                i++;
-            } else {
-                final double l = likelihood.getLogLikelihood();
-                // if the likelihood is zero then short cut the rest of the likelihoods
-                // This means that expensive likelihoods such as TreeLikelihoods should
-                // be put after cheap ones such as BooleanLikelihoods
-                if( l == Double.NEGATIVE_INFINITY )
-                    return Double.NEGATIVE_INFINITY;
-                logLikelihood += l;
+        int scheduledCount = 0;
+        for (LikelihoodCaller caller : callers) {
+            caller.scheduled = !caller.isLikelihoodKnown() && caller.getExpectedTime() >= INLINE_EVALUATION_TIME;
+            if (caller.scheduled) {
+                scheduled[scheduledCount] = caller;
+                scheduledCount++;
+            }
+        }
+
+        List<Future<?>> workers = null;
+        if (scheduledCount > 1) {
+            sortByExpectedTime(scheduled, scheduledCount);
+            scheduledNext.set(0);
+            scheduledTotal = scheduledCount;
+
+            int workerCount = Math.min(threadCount, scheduledCount) - 1;
+            workers = new ArrayList<Future<?>>(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(pool.submit(scheduledWorker));
+            }
+        }
+
+        // the cheap ones are done while the pool is busy
+        for (int i = 0; i < count; i++) {
+            LikelihoodCaller caller = callers.get(i);
+            if (workers == null || !caller.scheduled) {
+                results[i] = caller.call();
+            }
+        }
+
+        if (workers != null) {
+            scheduledWorker.run();
+
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while computing likelihoods", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error computing likelihood: " + e.getCause().getMessage(), e.getCause());
+            }
+
+            for (int i = 0; i < scheduledCount; i++) {
+                results[scheduled[i].listIndex] = scheduled[i].result;
             }
         }
 
+        double logLikelihood = 0.0;
+        for (int i = 0; i < count; i++) {
+            logLikelihood += results[i];
+        }
         return logLikelihood;
     }
 
+    private static void sortByExpectedTime(LikelihoodCaller[] callers, int count) {
+        // insertion sort, longest first - there are only ever a few of these
+        for (int i = 1; i < count; i++) {
+            LikelihoodCaller caller = callers[i];
+            int j = i - 1;
+            while (j >= 0 && callers[j].getExpectedTime() < caller.getExpectedTime()) {
+                callers[j + 1] = callers[j];
+                j--;
+            }
+            callers[j + 1] = caller;
+        }
+    }
+
+    private final Runnable scheduledWorker = new Runnable() {
+        @Override
+        public void run() {
+            int i = scheduledNext.getAndIncrement();
+            while (i < scheduledTotal) {
+                LikelihoodCaller caller = scheduled[i];
+                caller.result = caller.call();
+                i = scheduledNext.getAndIncrement();
+            }
+        }
+    };
+
     public void makeDirty() {
         for( Likelihood likelihood : likelihoods ) {
             likelihood.makeDirty();
@@ -383,9 +463,34 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
      * @return the log columns.
      */
     public dr.inference.loggers.LogColumn[] getColumns() {
-        return new dr.inference.loggers.LogColumn[]{
-                new LikelihoodColumn(getId() == null ? "likelihood" : getId())
-        };
+        String label = getId() == null ? "likelihood" : getId();
+        if (!timingColumns || !EVALUATION_TIMERS) {
+            return new dr.inference.loggers.LogColumn[]{
+                    new LikelihoodColumn(label)
+            };
+        }
+
+        List<dr.inference.loggers.LogColumn> columns = new ArrayList<dr.inference.loggers.LogColumn>();
+        columns.add(new LikelihoodColumn(label));
+        for (List<LikelihoodCaller> callers : Arrays.asList(earlyLikelihoods, lateLikelihoods)) {
+            for (LikelihoodCaller caller : callers) {
+                String id = caller.likelihood.getId();
+                if (id == null) {
+                    id = label + "." + (caller.index + 1);
+                }
+                columns.add(new TimingColumn(id + ".time", caller));
+            }
+        }
+        return columns.toArray(new dr.inference.loggers.LogColumn[columns.size()]);
+    }
+
+    /**
+     * Adds a column for each component likelihood with the average time (in milliseconds) it takes
+     * to recompute it.
+     * @param timingColumns
+     */
+    public void setTimingColumns(boolean timingColumns) {
+        this.timingColumns = timingColumns;
     }
 
     @Override
@@ -527,11 +632,19 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
 
-    private final ArrayList<Likelihood> earlyLikelihoods = new ArrayList<Likelihood>();
-    private final ArrayList<Likelihood> lateLikelihoods = new ArrayList<Likelihood>();
+    private final ArrayList<LikelihoodCaller> earlyLikelihoods = new ArrayList<LikelihoodCaller>();
+    private final ArrayList<LikelihoodCaller> lateLikelihoods = new ArrayList<LikelihoodCaller>();
 
     private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
 
+    // working storage for evaluateLikelihoodsInParallel()
+    private double[] results = null;
+    private LikelihoodCaller[] scheduled = null;
+    private int scheduledTotal = 0;
+    private final AtomicInteger scheduledNext = new AtomicInteger();
+
+    private boolean timingColumns = false;
+
     class LikelihoodCaller implements Callable<Double> {
 
         public LikelihoodCaller(Likelihood likelihood, int index) {
@@ -539,22 +652,63 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             this.index = index;
         }
 
-        public Double call() throws Exception {
+        public Double call() {
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + index + " for " + likelihood.getId() + ": ");
             }
             if (EVALUATION_TIMERS) {
+                boolean known = isLikelihoodKnown();
                 long time = System.nanoTime();
                 double logL = likelihood.getLogLikelihood();
-                evaluationTimes[index] += System.nanoTime() - time;
+                time = System.nanoTime() - time;
+                evaluationTimes[index] += time;
                 evaluationCounts[index] ++;
+
+                if (!known) {
+                    // a running average of the time actually spent computing the likelihood
+                    expectedTime = (expectedTime < 0 ? time : expectedTime + (time - expectedTime) / 10);
+                }
                 return logL;
             }
             return likelihood.getLogLikelihood();
         }
 
+        /**
+         * @return true if the likelihood is known not to need recomputing
+         */
+        boolean isLikelihoodKnown() {
+            return likelihood instanceof ThreadAwareLikelihood && ((ThreadAwareLikelihood) likelihood).isLikelihoodKnown();
+        }
+
+        /**
+         * @return the expected time to compute the likelihood in nanoseconds (or Long.MAX_VALUE
+         * if it hasn't been computed yet so it is treated as expensive).
+         */
+        long getExpectedTime() {
+            return expectedTime < 0 ? Long.MAX_VALUE : expectedTime;
+        }
+
         private final Likelihood likelihood;
         private final int index;
+
+        private int listIndex = -1;
+        private volatile long expectedTime = -1;
+        private boolean scheduled = false;
+        private double result;
+    }
+
+    private class TimingColumn extends dr.inference.loggers.NumberColumn {
+        public TimingColumn(String label, LikelihoodCaller caller) {
+            super(label);
+            this.caller = caller;
+        }
+
+        public double getDoubleValue() {
+            // in milliseconds
+            return caller.expectedTime < 0 ? 0.0 : caller.expectedTime / 1.0E6;
+        }
+
+        private final LikelihoodCaller caller;
     }
 
     public static final boolean DEBUG_PARALLEL_EVALUATION = false;
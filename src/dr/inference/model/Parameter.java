@@ -667,6 +667,9 @@ public interface Parameter extends Statistic, Variable<Double> {
                 newValues[i] = values[0];
             }
             values = newValues;
+            if (journal != null) {
+                journal.recordAll();
+            }
 
             if (bounds != null) {
                 //assert oldDim < dim :  "Can't decrease dimension when bounds are set";
@@ -696,6 +699,9 @@ public interface Parameter extends Statistic, Variable<Double> {
             newValues[index] = value;
             System.arraycopy(values, index, newValues, index + 1, n - index);
             values = newValues;
+            if (journal != null) {
+                journal.recordAll();
+            }
             fireParameterChangedEvent(index, Parameter.ChangeType.ADDED);
         }
 
@@ -715,6 +721,9 @@ public interface Parameter extends Statistic, Variable<Double> {
             System.arraycopy(values, 0, newValues, 0, index);
             System.arraycopy(values, index, newValues, index - 1, n - index);
             values = newValues;
+            if (journal != null) {
+                journal.recordAll();
+            }
             fireParameterChangedEvent(index, Parameter.ChangeType.REMOVED);
             return value;
         }
@@ -722,6 +731,9 @@ public interface Parameter extends Statistic, Variable<Double> {
 
         public void setParameterValue(int i, double val) {
             values[i] = val;
+            if (journal != null) {
+                journal.record(i);
+            }
             fireParameterChangedEvent(i, Parameter.ChangeType.VALUE_CHANGED);
         }
 
@@ -733,6 +745,9 @@ public interface Parameter extends Statistic, Variable<Double> {
          */
         public void setParameterValueQuietly(int dim, double value) {
             values[dim] = value;
+            if (journal != null) {
+                journal.record(dim);
+            }
         }
 
 
@@ -744,6 +759,9 @@ public interface Parameter extends Statistic, Variable<Double> {
          */
         public void setParameterValueNotifyChangedAll(int i, double val) {
             values[i] = val;
+            if (journal != null) {
+                journal.record(i);
+            }
             fireParameterChangedEvent(-1, Parameter.ChangeType.ALL_VALUES_CHANGED);
         }
 
@@ -752,13 +770,44 @@ public interface Parameter extends Statistic, Variable<Double> {
             //hasBeenStored = true;
             if (storedValues == null || storedValues.length != values.length) {
                 storedValues = new double[values.length];
+                if (values.length < StoreJournal.MINIMUM_SIZE) {
+                    journal = null;
+                } else if (journal != null) {
+                    journal.resize(values.length);
+                    journal.recordAll();
+                } else if (StoreJournal.isIncrementalStoreEnabled()) {
+                    // from now on changes are recorded so only those values need copying
+                    journal = new StoreJournal(values.length);
+                    journal.recordAll();
+                }
+            }
+            if (journal == null || journal.isAllChanged()) {
+                System.arraycopy(values, 0, storedValues, 0, storedValues.length);
+            } else {
+                // storedValues only differs from values where they have been set since
+                for (int i = 0, n = journal.getCount(); i < n; i++) {
+                    final int index = journal.getIndex(i);
+                    storedValues[index] = values[index];
+                }
+            }
+            if (journal != null) {
+                journal.clear();
             }
-            System.arraycopy(values, 0, storedValues, 0, storedValues.length);
         }
 
         protected final void restoreValues() {
 
-            //swap the arrays
+            if (journal != null && !journal.isAllChanged()) {
+                // put back just the values that have been set since the store
+                for (int i = 0, n = journal.getCount(); i < n; i++) {
+                    final int index = journal.getIndex(i);
+                    values[index] = storedValues[index];
+                }
+                journal.clear();
+                return;
+            }
+
+            //swap the arrays (storedValues is then out of date so the journal is left as all changed)
             double[] temp = storedValues;
             storedValues = values;
             values = temp;
@@ -784,12 +833,19 @@ public interface Parameter extends Statistic, Variable<Double> {
             for (int i = 0, n = getDimension(); i < n; i++) {
                 values[i] = source.getParameterValue(i);
             }
+            if (journal != null) {
+                journal.recordAll();
+            }
         }
 
         private double[] values;
 
         private double[] storedValues;
 
+        // the values set since storedValues was last brought up to date (only used if incremental
+        // store is turned on)
+        private StoreJournal journal = null;
+
         // same as !storedValues && !bounds
         //private boolean hasBeenStored = false;
         private Bounds<Double> bounds = null;
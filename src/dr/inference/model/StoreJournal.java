@@ -0,0 +1,138 @@
+/*
+ * StoreJournal.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+/**
+ * A record of which elements of a stored state have changed since the stored copy was last
+ * brought up to date. This allows store and restore to copy only the elements that have
+ * changed rather than the whole state. If more than a fraction of the elements change then
+ * the journal stops recording individual elements and reports that everything has changed,
+ * in which case the whole state should be copied.
+ *
+ * @author agent
+ */
+public class StoreJournal {
+
+    /**
+     * The system property that turns on incremental store and restore for parameters and trees.
+     */
+    public static final String INCREMENTAL_STORE = "store.incremental";
+
+    /**
+     * Below this number of elements copying the whole state is no slower than keeping a journal.
+     */
+    public static final int MINIMUM_SIZE = 16;
+
+    public static boolean isIncrementalStoreEnabled() {
+        return Boolean.getBoolean(INCREMENTAL_STORE);
+    }
+
+    public StoreJournal(int size) {
+        resize(size);
+    }
+
+    /**
+     * Record that an element has changed.
+     * @param index the element
+     */
+    public final void record(int index) {
+        if (!allChanged && !changed[index]) {
+            if (count == limit) {
+                allChanged = true;
+                return;
+            }
+            changed[index] = true;
+            indices[count] = index;
+            count++;
+        }
+    }
+
+    /**
+     * Record that all the elements have (or may have) changed.
+     */
+    public final void recordAll() {
+        allChanged = true;
+    }
+
+    public final boolean isAllChanged() {
+        return allChanged;
+    }
+
+    /**
+     * @return the number of elements recorded (only valid if isAllChanged() is false)
+     */
+    public final int getCount() {
+        return count;
+    }
+
+    /**
+     * @param i the i'th recorded change
+     * @return the index of the element changed
+     */
+    public final int getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Forget all the changes.
+     */
+    public final void clear() {
+        if (allChanged) {
+            java.util.Arrays.fill(changed, false);
+        } else {
+            for (int i = 0; i < count; i++) {
+                changed[indices[i]] = false;
+            }
+        }
+        count = 0;
+        allChanged = false;
+    }
+
+    /**
+     * Change the number of elements, forgetting all the changes.
+     * @param size the new number of elements
+     */
+    public final void resize(int size) {
+        if (changed == null || changed.length != size) {
+            changed = new boolean[size];
+            // copying more than a quarter of the elements one by one is slower than copying them all
+            limit = Math.max(1, size / 4);
+            indices = new int[limit];
+        }
+        count = 0;
+        allChanged = false;
+    }
+
+    public final int getSize() {
+        return changed.length;
+    }
+
+    private boolean[] changed;
+    private int[] indices;
+    private int limit;
+    private int count;
+    private boolean allChanged;
+}
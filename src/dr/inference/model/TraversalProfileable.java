@@ -0,0 +1,27 @@
+package dr.inference.model;
+
+/**
+ * An interface for likelihoods computed by a traversal of a tree to report how many times they
+ * have been recomputed and whether this needed the whole tree or only part of it.
+ * The counts should be safe to read on a different thread to the one doing the calculations.
+ * @author agent
+ * @version $Id$
+ */
+public interface TraversalProfileable extends Profileable {
+
+    /**
+     * @return the cumulative number of times the likelihood has been recomputed
+     */
+    long getEvaluationCount();
+
+    /**
+     * @return the cumulative number of recomputations that visited every internal node
+     */
+    long getFullTraversalCount();
+
+    /**
+     * @return the cumulative number of recomputations that only visited the nodes that changed
+     */
+    long getPartialTraversalCount();
+
+}
@@ -31,9 +31,13 @@ import java.util.List;
 
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.linalg.SingularValueDecomposition;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
 import dr.inference.model.CompoundParameter;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
+import dr.math.AdaptableCovarianceFactor;
 import dr.math.MathUtils;
 import dr.math.matrixAlgebra.CholeskyDecomposition;
 import dr.math.matrixAlgebra.IllegalDimension;
@@ -54,7 +58,7 @@ import dr.xml.XMLSyntaxRule;
  * @author Guy Baele
  * @author Marc A. Suchard
  */
-public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptableOperator implements Citable {
+public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptableOperator implements Citable, Loggable {
 
     public static final String AVMVN_OPERATOR = "adaptableVarianceMultivariateNormalOperator";
     public static final String SCALE_FACTOR = "scaleFactor";
@@ -65,6 +69,12 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     public static final String FORM_XTX = "formXtXInverse";
     public static final String COEFFICIENT = "coefficient";
     public static final String SKIP_RANK_CHECK = "skipRankCheck";
+    public static final String COVARIANCE_UPDATE = "covarianceUpdate";
+    public static final String DENSE = "dense";
+    public static final String INCREMENTAL = "incremental";
+    public static final String LOW_RANK = "lowRank";
+    public static final String RANK = "rank";
+    public static final int DEFAULT_RANK = 50;
 
     public static final String TRANSFORM = "transform";
     public static final String TYPE = "type";
@@ -91,8 +101,23 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     private double[] epsilon;
     private double[][] proposal;
 
+    // when not null, the empirical covariance is kept as a factor that is updated in O(dim^2) or less per update,
+    // and proposals are drawn as the sum of independent draws from the empirical and initial covariances
+    private final AdaptableCovarianceFactor covarianceFactor;
+    private double[] initialFactor; // square roots of the diagonal, or the Cholesky factor packed by column
+    private boolean initialFactorIsDiagonal;
+    private boolean adapted = false;
+
+    private long adaptationTime = 0;
+
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor, double[][] inMatrix,
                                                        double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVarianceMatrix, boolean skipRankCheck) {
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, inMatrix, weight, beta, initial, burnin, every, mode, isVarianceMatrix, skipRankCheck, null);
+    }
+
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor, double[][] inMatrix,
+                                                       double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVarianceMatrix, boolean skipRankCheck,
+                                                       AdaptableCovarianceFactor covarianceFactor) {
 
         super(mode);
         this.scaleFactor = scaleFactor;
@@ -109,12 +134,17 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
         this.initial = initial;
         this.burnin = burnin;
         this.every = every;
-        this.empirical = new double[dim][dim];
+        this.covarianceFactor = covarianceFactor;
         this.oldMeans = new double[dim];
         this.newMeans = new double[dim];
 
-        this.epsilon = new double[dim];
-        this.proposal = new double[dim][dim];
+        if (covarianceFactor == null) {
+            this.empirical = new double[dim][dim];
+            this.epsilon = new double[dim];
+            this.proposal = new double[dim][dim];
+        } else if (covarianceFactor.getDimension() != dim) {
+            throw new RuntimeException("Covariance factor and parameter have differing dimensions in AdaptableVarianceMultivariateNormalOperator");
+        }
 
         if (!skipRankCheck) {
             SingularValueDecomposition svd = new SingularValueDecomposition(new DenseDoubleMatrix2D(inMatrix));
@@ -137,16 +167,79 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             System.err.println();
         }*/
 
-        try {
-            cholesky = (new CholeskyDecomposition(matrix)).getL();
-        } catch (IllegalDimension illegalDimension) {
-            throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+        if (covarianceFactor != null) {
+            setupInitialFactor();
+        } else {
+            try {
+                cholesky = (new CholeskyDecomposition(matrix)).getL();
+            } catch (IllegalDimension illegalDimension) {
+                throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+            }
         }
     }
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor,
                                                        MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVariance, boolean skipRankCheck) {
-        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck);
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, null);
+    }
+
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor,
+                                                       MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVariance, boolean skipRankCheck,
+                                                       AdaptableCovarianceFactor covarianceFactor) {
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, covarianceFactor);
+    }
+
+    private void setupInitialFactor() {
+        initialFactorIsDiagonal = true;
+        for (int i = 0; i < dim && initialFactorIsDiagonal; i++) {
+            for (int j = 0; j < dim; j++) {
+                if (i != j && matrix[i][j] != 0.0) {
+                    initialFactorIsDiagonal = false;
+                    break;
+                }
+            }
+        }
+
+        if (initialFactorIsDiagonal) {
+            initialFactor = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                initialFactor[i] = Math.sqrt(matrix[i][i]);
+            }
+        } else {
+            double[][] lower;
+            try {
+                lower = (new CholeskyDecomposition(matrix)).getL();
+            } catch (IllegalDimension illegalDimension) {
+                throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+            }
+            initialFactor = new double[dim * (dim + 1) / 2];
+            int index = 0;
+            for (int k = 0; k < dim; k++) {
+                for (int i = k; i < dim; i++) {
+                    initialFactor[index++] = lower[i][k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a draw from N(0, scale^2 * matrix) to x.
+     */
+    private void addInitialDraw(double scale, double[] x) {
+        if (initialFactorIsDiagonal) {
+            for (int i = 0; i < dim; i++) {
+                x[i] += scale * initialFactor[i] * MathUtils.nextGaussian();
+            }
+        } else {
+            int offset = 0;
+            for (int k = 0; k < dim; k++) {
+                final double epsilon = scale * MathUtils.nextGaussian();
+                for (int i = k; i < dim; i++) {
+                    x[i] += initialFactor[offset + i - k] * epsilon;
+                }
+                offset += dim - k;
+            }
+        }
     }
 
     private double[][] formXtXInverse(double[][] X) {
@@ -247,7 +340,15 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
             if (iterations > (burnin+1)) {
 
-                if (iterations % every == 0) {
+                if (iterations % every == 0 && covarianceFactor != null) {
+
+                    updates++;
+
+                    final long start = System.nanoTime();
+                    covarianceFactor.update(transformedX);
+                    adaptationTime += System.nanoTime() - start;
+
+                } else if (iterations % every == 0) {
 
                     updates++;
 
@@ -255,6 +356,8 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                         System.err.println("updates = " + updates);
                     }
 
+                    final long start = System.nanoTime();
+
                     //first recalculate the means using recursion
                     for (int i = 0; i < dim; i++) {
                         newMeans[i] = ((oldMeans[i] * (updates - 1)) + transformedX[i]) / updates;
@@ -270,6 +373,8 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                         }
                     }
 
+                    adaptationTime += System.nanoTime() - start;
+
                     if (DEBUG) {
                         System.err.println("Old means:");
                         for (int i = 0; i < dim; i++) {
@@ -307,9 +412,13 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                     newMeans[i] = 0.0;
                 }
 
-                for (int i = 0; i < dim; i++) {
-                    for (int j = 0; j < dim; j++) {
-                        empirical[i][j] = 0.0;
+                if (covarianceFactor != null) {
+                    covarianceFactor.reset();
+                } else {
+                    for (int i = 0; i < dim; i++) {
+                        for (int j = 0; j < dim; j++) {
+                            empirical[i][j] = 0.0;
+                        }
                     }
                 }
 
@@ -332,20 +441,26 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 newMeans[i] = 0.0;
             }
 
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    empirical[i][j] = 0.0;
-                    proposal[i][j] = matrix[i][j];
+            if (covarianceFactor != null) {
+                covarianceFactor.reset();
+            } else {
+                for (int i = 0; i < dim; i++) {
+                    for (int j = 0; j < dim; j++) {
+                        empirical[i][j] = 0.0;
+                        proposal[i][j] = matrix[i][j];
+                    }
                 }
             }
 
         }
 
-        for (int i = 0; i < dim; i++) {
-            epsilon[i] = scaleFactor * MathUtils.nextGaussian();
+        if (covarianceFactor == null) {
+            for (int i = 0; i < dim; i++) {
+                epsilon[i] = scaleFactor * MathUtils.nextGaussian();
+            }
         }
 
-        if (iterations > initial) {
+        if (iterations > initial && covarianceFactor == null) {
 
             if (DEBUG) {
                 System.err.println("  iterations > initial");
@@ -353,7 +468,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
             if (iterations % every == 0) {
                 // TODO: For speed, it may not be necessary to update decomposition each and every iteration
-                //double start = System.nanoTime();
+                final long start = System.nanoTime();
 
                 // double[][] proposal = new double[dim][dim];
                 for (int i = 0; i < dim; i++) {
@@ -369,6 +484,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 } catch (IllegalDimension illegalDimension) {
                     throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
                 }
+                adaptationTime += System.nanoTime() - start;
 
                 //double end = System.nanoTime();
                 //double baseResult = end - start;
@@ -377,6 +493,23 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
         }
 
+        if (covarianceFactor != null) {
+
+            if (iterations > initial && iterations % every == 0) {
+                adapted = true;
+            }
+
+            // proposal covariance (1 - beta) * empirical + beta * matrix, as the sum of two independent draws
+            if (adapted) {
+                covarianceFactor.addScaledDraw(scaleFactor * Math.sqrt(1.0 - beta), transformedX);
+                if (beta > 0.0) {
+                    addInitialDraw(scaleFactor * Math.sqrt(beta), transformedX);
+                }
+            } else {
+                addInitialDraw(scaleFactor, transformedX);
+            }
+        }
+
         if (DEBUG) {
             System.err.println("  Drawing new values");
         }
@@ -400,10 +533,12 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             logJacobian += transformations[i].getLogJacobian(x[i]) - transformations[i].getLogJacobian(parameter.getParameterValue(i));
         }*/
 
-        for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
+        if (covarianceFactor == null) {
+            for (int i = 0; i < dim; i++) {
+                for (int j = i; j < dim; j++) {
+                    transformedX[i] += cholesky[j][i] * epsilon[j];
+                    // caution: decomposition returns lower triangular
+                }
             }
         }
 
@@ -522,6 +657,17 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             this.iterations = lowestNumberOfSamples;
             this.updates = lowestNumberOfSamples;
             this.beta = 0.0;
+            if (covarianceFactor != null) {
+                covarianceFactor.reset();
+                double[] sample = new double[dim];
+                for (int k = 0; k < lowestNumberOfSamples; k++) {
+                    for (int i = 0; i < dim; i++) {
+                        sample[i] = transformations[i].transform(parameterSamples.get(i).get(k));
+                    }
+                    covarianceFactor.update(sample);
+                }
+                return;
+            }
             //set means based on provided samples, but take into account transformation(s)
             for (int i = 0; i < parameterSamples.size(); i++) {
                 for (int j = 0; j < lowestNumberOfSamples; j++) {
@@ -562,7 +708,21 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     //MCMCOperator INTERFACE
     public final String getOperatorName() {
         String output = "adaptableVarianceMultivariateNormal(" + parameter.getParameterName() + ")";
-        if (PRINT_FULL_MATRIX) {
+        if (PRINT_FULL_MATRIX && covarianceFactor != null) {
+            output += "\nMeans:\n";
+            double[] means = covarianceFactor.getMean();
+            for (int i = 0; i < dim; i++) {
+                output += means[i] + " ";
+            }
+            output += "\nVariance-covariance matrix:\n";
+            double[] covariance = covarianceFactor.getCovariance();
+            for (int i = 0; i < dim; i++) {
+                for (int j = 0; j < dim; j++) {
+                    output += covariance[i * dim + j] + " ";
+                }
+                output += "\n";
+            }
+        } else if (PRINT_FULL_MATRIX) {
             output += "\nMeans:\n";
             for (int i = 0; i < dim; i++) {
                 output += newMeans[i] + " ";
@@ -599,6 +759,25 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
         return "scaleFactor";
     }
 
+    /**
+     * @return the total time in milliseconds spent updating the empirical covariance and its decomposition
+     */
+    public double getAdaptationTime() {
+        return adaptationTime / 1E6;
+    }
+
+    @Override
+    public LogColumn[] getColumns() {
+        return new LogColumn[]{
+                new NumberColumn(parameter.getParameterName() + ".adaptationTime") {
+                    @Override
+                    public double getDoubleValue() {
+                        return getAdaptationTime();
+                    }
+                }
+        };
+    }
+
     public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
 
         public String getParserName() {
@@ -847,8 +1026,25 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
             boolean skipRankCheck = xo.getAttribute(SKIP_RANK_CHECK, false);
 
+            AdaptableCovarianceFactor covarianceFactor;
+            String covarianceUpdate = xo.getAttribute(COVARIANCE_UPDATE, DENSE);
+            if (covarianceUpdate.equalsIgnoreCase(DENSE)) {
+                covarianceFactor = null;
+            } else if (covarianceUpdate.equalsIgnoreCase(INCREMENTAL)) {
+                covarianceFactor = new AdaptableCovarianceFactor.Cholesky(dim);
+            } else if (covarianceUpdate.equalsIgnoreCase(LOW_RANK)) {
+                int rank = xo.getAttribute(RANK, DEFAULT_RANK);
+                if (rank < 1) {
+                    throw new XMLParseException("The rank of the covariance approximation must be at least 1.");
+                }
+                covarianceFactor = new AdaptableCovarianceFactor.LowRankPlusDiagonal(dim, rank);
+            } else {
+                throw new XMLParseException("Unknown covariance update '" + covarianceUpdate + "', should be one of "
+                        + DENSE + ", " + INCREMENTAL + " or " + LOW_RANK);
+            }
+
             return new AdaptableVarianceMultivariateNormalOperator(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix, weight, beta, initial, burnin, every,
-                    mode, !formXtXInverse, skipRankCheck);
+                    mode, !formXtXInverse, skipRankCheck, covarianceFactor);
         }
 
         //************************************************************************
@@ -878,6 +1074,8 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 AttributeRule.newBooleanRule(AUTO_OPTIMIZE, true),
                 AttributeRule.newBooleanRule(FORM_XTX, true),
                 AttributeRule.newBooleanRule(SKIP_RANK_CHECK, true),
+                AttributeRule.newStringRule(COVARIANCE_UPDATE, true),
+                AttributeRule.newIntegerRule(RANK, true),
                 new ElementRule(Parameter.class, 0, Integer.MAX_VALUE),
                 new ElementRule(Transform.ParsedTransform.class, 0, Integer.MAX_VALUE)
         };
@@ -26,6 +26,9 @@
 package dr.inference.operators.hmc;
 
 import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Parameter;
 import dr.inference.operators.AdaptationMode;
@@ -38,11 +41,19 @@ import dr.util.Transform;
 import java.util.Arrays;
 
 /**
+ * When cacheGradient is set, each leapfrog step evaluates the gradient (and then the log density, which the
+ * gradient evaluation leaves computed) only once at its end point. The gradient is kept with the trajectory
+ * ends and the sample, so leaps from an existing point and the start of the next iteration (if the parameter
+ * and the log density haven't changed since) re-use it instead of evaluating it again.
+ *
+ * The tree depth, whether the trajectory diverged and the number of gradient evaluations of the last
+ * iteration can be logged.
+ *
  * @author Marc A. Suchard
  * @author Zhenyu Zhang
  */
 
-public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements GeneralOperator, GibbsOperator {
+public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements GeneralOperator, GibbsOperator, Loggable {
 
     private final int dim = gradientProvider.getDimension();
 
@@ -58,7 +69,16 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
                            Parameter parameter, Transform transform, Parameter mask,
                            HamiltonianMonteCarloOperator.Options runtimeOptions,
                            MassPreconditioner.Type preconditioningType) {
+        this(mode, weight, gradientProvider, parameter, transform, mask, runtimeOptions, preconditioningType, false);
+    }
+
+    public NoUTurnOperator(AdaptationMode mode, double weight, GradientWrtParameterProvider gradientProvider,
+                           Parameter parameter, Transform transform, Parameter mask,
+                           HamiltonianMonteCarloOperator.Options runtimeOptions,
+                           MassPreconditioner.Type preconditioningType,
+                           boolean cacheGradient) {
         super(mode, weight, gradientProvider, parameter, transform, mask, runtimeOptions, preconditioningType);
+        this.cacheGradient = cacheGradient;
     }
 
     @Override
@@ -80,6 +100,9 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
             checkGradient(likelihood);
         }
 
+        gradientEvaluations = 0;
+        divergent = false;
+
         final double[] initialPosition = leapFrogEngine.getInitialPosition();
 
         if (stepSizeInformation == null) {
@@ -89,9 +112,24 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
         double[] position = takeOneStep(getCount() + 1, initialPosition);
         leapFrogEngine.setParameter(position);
 
+        if (cacheGradient) {
+            cachedParameterValues = parameter.getParameterValues();
+        }
+
+        lastGradientEvaluations = gradientEvaluations;
+        lastDivergent = divergent;
+
         return 0.0;
     }
 
+    private double[] getInitialGradient(double logLikelihood) {
+        if (cachedGradient != null && logLikelihood == cachedLogLikelihood
+                && Arrays.equals(parameter.getParameterValues(), cachedParameterValues)) {
+            return cachedGradient;
+        }
+        return evaluateGradient();
+    }
+
     private double[] takeOneStep(long m, double[] initialPosition) {
 
         double[] endPosition = Arrays.copyOf(initialPosition, initialPosition.length);
@@ -100,18 +138,28 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
 
         final double initialJointDensity = getJointProbability(gradientProvider, initialMomentum);
 
+        double[] endGradient = null;
+        double endLogLikelihood = 0.0;
+        if (cacheGradient) {
+            endLogLikelihood = gradientProvider.getLikelihood().getLogLikelihood();
+            endGradient = getInitialGradient(endLogLikelihood);
+        }
+
         double logSliceU = Math.log(MathUtils.nextDouble()) + initialJointDensity;
 
-        TreeState trajectoryTree = new TreeState(initialPosition, initialMomentum.getBuffer(), 1, true);
+        TreeState trajectoryTree = new TreeState(initialPosition, initialMomentum.getBuffer(),
+                endGradient, endLogLikelihood, 1, true);
             // Trajectory of Hamiltonian dynamics endowed with a binary tree structure.
 
         int height = 0;
 
         while (trajectoryTree.flagContinue) {
 
-            double[] tmp = updateTrajectoryTree(trajectoryTree, height, logSliceU, initialJointDensity);
+            TreeState tmp = updateTrajectoryTree(trajectoryTree, height, logSliceU, initialJointDensity);
             if (tmp != null) {
-                endPosition = tmp;
+                endPosition = tmp.getSample();
+                endGradient = tmp.getSampleGradient();
+                endLogLikelihood = tmp.sampleLogLikelihood;
             }
 
             height++;
@@ -123,41 +171,49 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
 
         stepSizeInformation.update(m, trajectoryTree.cumAcceptProb, trajectoryTree.numAcceptProbStates);
 
+        lastTreeDepth = height;
+
+        if (cacheGradient) {
+            cachedGradient = endGradient;
+            cachedLogLikelihood = endLogLikelihood;
+        }
+
         return endPosition;
     }
 
-    private double[] updateTrajectoryTree(TreeState trajectoryTree, int depth, double logSliceU, double initialJointDensity) {
+    private TreeState updateTrajectoryTree(TreeState trajectoryTree, int depth, double logSliceU, double initialJointDensity) {
 
-        double[] endPosition = null;
+        TreeState acceptedTree = null;
 
         final double uniform1 = MathUtils.nextDouble();
         int direction = (uniform1 < 0.5) ? -1 : 1;
 
         TreeState nextTrajectoryTree = buildTree(
                 trajectoryTree.getPosition(direction), trajectoryTree.getMomentum(direction),
-                direction, logSliceU, depth, stepSizeInformation.getStepSize(), initialJointDensity);
+                trajectoryTree.getGradient(direction), direction, logSliceU, depth, stepSizeInformation.getStepSize(), initialJointDensity);
 
         if (nextTrajectoryTree.flagContinue) {
 
             final double uniform = MathUtils.nextDouble();
             final double acceptProb = (double) nextTrajectoryTree.numNodes / (double) trajectoryTree.numNodes;
             if (uniform < acceptProb) {
-                endPosition = nextTrajectoryTree.getSample();
+                acceptedTree = nextTrajectoryTree;
             }
         }
 
         trajectoryTree.mergeNextTree(nextTrajectoryTree, direction);
 
-        return endPosition;
+        return acceptedTree;
     }
 
-    private TreeState buildTree(double[] position, double[] momentum, int direction,
+    private TreeState buildTree(double[] position, double[] momentum, double[] gradient, int direction,
                                 double logSliceU, int height, double stepSize, double initialJointDensity) {
 
         if (height == 0) {
-            return buildBaseCase(position, momentum, direction, logSliceU, stepSize, initialJointDensity);
+            return buildBaseCase(position, momentum, gradient, direction, logSliceU, stepSize, initialJointDensity);
         } else {
-            return buildRecursiveCase(position, momentum, direction, logSliceU, height, stepSize, initialJointDensity);
+            return buildRecursiveCase(position, momentum, gradient, direction, logSliceU, height, stepSize,
+                    initialJointDensity);
         }
     }
 
@@ -165,7 +221,7 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
         throw new RuntimeException("Numerical instability; need to handle"); // TODO
     }
 
-    private TreeState buildBaseCase(double[] inPosition, double[] inMomentum, int direction,
+    private TreeState buildBaseCase(double[] inPosition, double[] inMomentum, double[] inGradient, int direction,
                                     double logSliceU, double stepSize, double initialJointDensity) {
 
         // Make deep copy of position and momentum
@@ -175,17 +231,22 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
         leapFrogEngine.setParameter(position);
 
         // "one frog jump!"
+        double[] gradient = null;
         try {
-            doLeap(position, momentum, direction * stepSize);
+            gradient = doLeap(position, momentum, inGradient, direction * stepSize);
         } catch (NumericInstabilityException e) {
             handleInstability();
         }
 
         double logJointProbAfter = getJointProbability(gradientProvider, momentum);
+        double logLikelihood = (cacheGradient ? gradientProvider.getLikelihood().getLogLikelihood() : 0.0);
 
         final int numNodes = (logSliceU <= logJointProbAfter ? 1 : 0);
 
         final boolean flagContinue = (logSliceU < options.logProbErrorTol + logJointProbAfter);
+        if (!flagContinue) {
+            divergent = true;
+        }
 
         // Values for dual-averaging
         final double acceptProb = Math.min(1.0, Math.exp(logJointProbAfter - initialJointDensity));
@@ -193,19 +254,21 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
 
         leapFrogEngine.setParameter(inPosition);
 
-        return new TreeState(position, momentum.getBuffer(), numNodes, flagContinue, acceptProb, numAcceptProbStates);
+        return new TreeState(position, momentum.getBuffer(), gradient, logLikelihood,
+                numNodes, flagContinue, acceptProb, numAcceptProbStates);
     }
 
-    private TreeState buildRecursiveCase(double[] inPosition, double[] inMomentum, int direction,
+    private TreeState buildRecursiveCase(double[] inPosition, double[] inMomentum, double[] inGradient, int direction,
                                          double logSliceU, int height, double stepSize, double initialJointDensity) {
 
-        TreeState subtree = buildTree(inPosition, inMomentum, direction, logSliceU,
+        TreeState subtree = buildTree(inPosition, inMomentum, inGradient, direction, logSliceU,
                 height - 1, // Recursion
                 stepSize, initialJointDensity);
 
         if (subtree.flagContinue) {
 
-            TreeState nextSubtree = buildTree(subtree.getPosition(direction), subtree.getMomentum(direction), direction,
+            TreeState nextSubtree = buildTree(subtree.getPosition(direction), subtree.getMomentum(direction),
+                    subtree.getGradient(direction), direction,
                     logSliceU, height - 1, stepSizeInformation.getStepSize(), initialJointDensity);
 
             subtree.mergeNextTree(nextSubtree, direction);
@@ -214,14 +277,34 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
         return subtree;
     }
 
-    private void doLeap(final double[] position,
-                        final WrappedVector momentum,
-                        final double stepSize) throws NumericInstabilityException {
+    /**
+     * @param gradient the gradient at the starting position if it is known (only used with cacheGradient)
+     * @return the gradient at the end position
+     */
+    private double[] doLeap(final double[] position,
+                            final WrappedVector momentum,
+                            final double[] gradient,
+                            final double stepSize) throws NumericInstabilityException {
+        final double[] startGradient = (cacheGradient && gradient != null ? gradient : evaluateGradient());
         leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+                maskGradient(startGradient), stepSize / 2);
         leapFrogEngine.updatePosition(position, momentum, stepSize);
+        final double[] endGradient = evaluateGradient();
         leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+                maskGradient(endGradient), stepSize / 2);
+        return endGradient;
+    }
+
+    private double[] evaluateGradient() {
+        gradientEvaluations++;
+        double[] gradient = gradientProvider.getGradientLogDensity();
+        // the provider may re-use its buffer so keep a copy of anything that is cached
+        return (cacheGradient ? Arrays.copyOf(gradient, gradient.length) : gradient);
+    }
+
+    private double[] maskGradient(double[] gradient) {
+        // the leapfrog engine may transform the gradient in place
+        return mask(cacheGradient ? Arrays.copyOf(gradient, gradient.length) : gradient, mask);
     }
 
     private StepSize findReasonableStepSize(double[] initialPosition, double forcedInitialStepSize) {
@@ -238,8 +321,9 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
 
             double probBefore = getJointProbability(gradientProvider, momentum);
 
+            double[] gradient = null;
             try {
-                doLeap(position, momentum, stepSize);
+                gradient = doLeap(position, momentum, null, stepSize);
             } catch (NumericInstabilityException e) {
                 handleInstability();
             }
@@ -255,7 +339,7 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
                 probBefore = probAfter;
                 //"one frog jump!"
                 try {
-                    doLeap(position, momentum, stepSize);
+                    gradient = doLeap(position, momentum, gradient, stepSize);
                 } catch (NumericInstabilityException e) {
                     handleInstability();
                 }
@@ -327,23 +411,65 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
                 - leapFrogEngine.getParameterLogJacobian();
     }
 
+    @Override
+    public LogColumn[] getColumns() {
+        String name = parameter.getParameterName();
+        return new LogColumn[]{
+                new NumberColumn(name + ".treeDepth") {
+                    @Override
+                    public double getDoubleValue() {
+                        return lastTreeDepth;
+                    }
+                },
+                new NumberColumn(name + ".divergent") {
+                    @Override
+                    public double getDoubleValue() {
+                        return lastDivergent ? 1 : 0;
+                    }
+                },
+                new NumberColumn(name + ".gradientEvaluations") {
+                    @Override
+                    public double getDoubleValue() {
+                        return lastGradientEvaluations;
+                    }
+                }
+        };
+    }
+
+    private final boolean cacheGradient;
+
+    // the gradient at the end of the last iteration and the state it was computed for
+    private double[] cachedGradient = null;
+    private double[] cachedParameterValues = null;
+    private double cachedLogLikelihood;
+
+    private int gradientEvaluations;
+    private boolean divergent;
+
+    private int lastTreeDepth = 0;
+    private boolean lastDivergent = false;
+    private int lastGradientEvaluations = 0;
+
     private class TreeState {
 
-        private TreeState(double[] position, double[] moment,
+        private TreeState(double[] position, double[] moment, double[] gradient, double logLikelihood,
                          int numNodes, boolean flagContinue) {
-            this(position, moment, numNodes, flagContinue, 0.0, 0);
+            this(position, moment, gradient, logLikelihood, numNodes, flagContinue, 0.0, 0);
         }
 
-        private TreeState(double[] position, double[] moment,
+        private TreeState(double[] position, double[] moment, double[] gradient, double logLikelihood,
                          int numNodes, boolean flagContinue,
                          double cumAcceptProb, int numAcceptProbStates) {
             this.position = new double[3][];
             this.momentum = new double[3][];
+            this.gradient = new double[3][];
 
             for (int i = 0; i < 3; ++i) {
                 this.position[i] = position;
                 this.momentum[i] = moment;
+                this.gradient[i] = gradient;
             }
+            this.sampleLogLikelihood = logLikelihood;
 
             // Recursion variables
             this.numNodes = numNodes;
@@ -362,6 +488,14 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
             return momentum[getIndex(direction)];
         }
 
+        private double[] getGradient(int direction) {
+            return gradient[getIndex(direction)];
+        }
+
+        private double[] getSampleGradient() {
+            return gradient[getIndex(0)];
+        }
+
         private double[] getSample() {
             /*
             Returns a state chosen uniformly from the acceptable states along a hamiltonian dynamics trajectory tree.
@@ -378,7 +512,11 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
             this.momentum[getIndex(direction)] = momentum;
         }
 
-        private void setSample(double[] position) { setPosition(0, position); }
+        private void setSample(TreeState tree) {
+            setPosition(0, tree.getSample());
+            gradient[getIndex(0)] = tree.getSampleGradient();
+            sampleLogLikelihood = tree.sampleLogLikelihood;
+        }
 
         private int getIndex(int direction) { // valid directions: -1, 0, +1
             assert (direction >= -1 && direction <= 1);
@@ -389,6 +527,7 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
 
             setPosition(direction, nextTree.getPosition(direction));
             setMomentum(direction, nextTree.getMomentum(direction));
+            gradient[getIndex(direction)] = nextTree.getGradient(direction);
 
             updateSample(nextTree);
 
@@ -403,12 +542,14 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
             double uniform = MathUtils.nextDouble();
             if (nextTree.numNodes > 0
                     && uniform < ((double) nextTree.numNodes / (double) (numNodes + nextTree.numNodes))) {
-                setSample(nextTree.getSample());
+                setSample(nextTree);
             }
         }
 
         final private double[][] position;
         final private double[][] momentum;
+        final private double[][] gradient;
+        private double sampleLogLikelihood;
 
         private int numNodes;
         private boolean flagContinue;
@@ -0,0 +1,717 @@
+/*
+ * ColumnarLogFile.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A column oriented copy of a tab-delimited log file, kept in a sidecar file next to the log
+ * (or in the temporary directory if that can't be written to). The sidecar is built by a single
+ * pass over the memory mapped log file and is then reused as long as the log file is unchanged.
+ *
+ * The values are stored as doubles in blocks of rows: within each block the values of each
+ * column are contiguous so a column can be read from the memory mapped sidecar without reading
+ * any of the other columns. The state number and the offset in the log file of every row are
+ * also kept. Categorical columns are stored as indices into a list of category labels.
+ *
+ * The types of the columns are detected in the same way as {@link LogFileTraces} does.
+ *
+ * @author agent
+ */
+public class ColumnarLogFile {
+
+    public static final String SIDECAR_SUFFIX = ".columns";
+
+    private static final int MAGIC = 0x42434c46; // "BCLF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    // the number of values buffered while building the sidecar
+    private static final int BUFFER_VALUES = 1 << 22;
+    private static final int MAX_BLOCK_ROWS = 4096;
+
+    // the largest region of a file mapped at once
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private ColumnarLogFile(File logFile, File sidecarFile) {
+        this.logFile = logFile;
+        this.sidecarFile = sidecarFile;
+    }
+
+    /**
+     * Opens the columnar copy of a log file, building it first if it doesn't exist or the log
+     * file has changed since it was built.
+     * @param logFile the log file
+     * @return the columnar log file
+     * @throws IOException if the sidecar can't be read or written
+     * @throws TraceException if the log file is not in the right format
+     */
+    public static ColumnarLogFile open(File logFile) throws IOException, TraceException {
+        File sidecarFile = getSidecarFile(logFile);
+
+        ColumnarLogFile columns = new ColumnarLogFile(logFile, sidecarFile);
+        if (sidecarFile.exists()) {
+            try {
+                if (columns.readSidecar()) {
+                    return columns;
+                }
+            } catch (IOException ioe) {
+                // an unreadable sidecar is just rebuilt
+            }
+        }
+
+        System.out.println("Indexing columns of log " + logFile.getName() + " ...");
+        columns.build();
+        if (!columns.readSidecar()) {
+            throw new IOException("Unable to read the sidecar file, " + sidecarFile);
+        }
+        return columns;
+    }
+
+    private static File getSidecarFile(File logFile) {
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        if (dir != null && dir.canWrite()) {
+            return new File(dir, logFile.getName() + SIDECAR_SUFFIX);
+        }
+        String name = logFile.getName() + "." + Integer.toHexString(logFile.getAbsolutePath().hashCode());
+        return new File(System.getProperty("java.io.tmpdir"), name + SIDECAR_SUFFIX);
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return the column labels (not including the state column)
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public int getRowCount() {
+        return states.length;
+    }
+
+    /**
+     * @return the state number of a row as it appears in the file
+     */
+    public long getState(int row) {
+        return states[row];
+    }
+
+    /**
+     * @return the line number (starting at 1) of a row in the log file
+     */
+    public int getLineNumber(int row) {
+        return firstLineNumber + row;
+    }
+
+    /**
+     * @return the offset of the start of a row in the log file
+     */
+    public long getLineOffset(int row) {
+        return lineOffsets[row];
+    }
+
+    public TraceType getTraceType(int column) {
+        return traceTypes[column];
+    }
+
+    /**
+     * @return the labels of the categories of a categorical column, indexed by the values
+     * read for the column (or null if the column is not categorical)
+     */
+    public String[] getCategoryLabels(int column) {
+        return categoryLabels[column];
+    }
+
+    /**
+     * Reads a line of the log file.
+     * @param row the row
+     * @return the line, trimmed
+     * @throws IOException
+     */
+    public String readLine(int row) throws IOException {
+        long start = lineOffsets[row];
+        long end = (row + 1 < lineOffsets.length ? lineOffsets[row + 1] : logLength);
+        byte[] bytes = new byte[(int) (end - start)];
+
+        RandomAccessFile file = new RandomAccessFile(logFile, "r");
+        try {
+            file.seek(start);
+            file.readFully(bytes);
+        } finally {
+            file.close();
+        }
+        return new String(bytes, CHARSET).trim();
+    }
+
+    /**
+     * @return all the values of a column
+     */
+    public double[] readColumn(int column) {
+        return readColumn(column, 0, getRowCount(), 1);
+    }
+
+    /**
+     * Reads the values of a column for a range of rows, taking every thin'th row. This
+     * allows a burnin and thinning to be applied without reading the rows that are left out.
+     * @param column the column
+     * @param fromRow the first row (inclusive)
+     * @param toRow the last row (exclusive)
+     * @param thin the step between the rows read
+     * @return the values
+     */
+    public double[] readColumn(int column, int fromRow, int toRow, int thin) {
+        if (column < 0 || column >= labels.length) {
+            throw new IndexOutOfBoundsException("Invalid column: " + column);
+        }
+        if (fromRow < 0 || toRow > getRowCount() || fromRow > toRow || thin < 1) {
+            throw new IllegalArgumentException("Invalid rows: fromRow = " + fromRow + "; toRow = " + toRow + "; thin = " + thin);
+        }
+
+        double[] values = new double[(toRow - fromRow + thin - 1) / thin];
+        int k = 0;
+        int row = fromRow;
+        while (row < toRow) {
+            int block = row / blockRows;
+            int blockEnd = Math.min((block + 1) * blockRows, toRow);
+
+            DoubleBuffer buffer = getBlock(block, column);
+            if (thin == 1) {
+                buffer.position(row % blockRows);
+                buffer.get(values, k, blockEnd - row);
+                k += blockEnd - row;
+                row = blockEnd;
+            } else {
+                while (row < blockEnd) {
+                    values[k] = buffer.get(row % blockRows);
+                    k++;
+                    row += thin;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return a view of the values of a column in a block of rows
+     */
+    private DoubleBuffer getBlock(int block, int column) {
+        int segment = block / blocksPerSegment;
+        long offset = (long) (block % blocksPerSegment) * blockBytes + (long) column * blockRows * 8;
+
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position((int) offset);
+        buffer.limit((int) offset + blockRows * 8);
+        return buffer.slice().asDoubleBuffer();
+    }
+
+    // **************************************************************
+    // Reading the sidecar
+    // **************************************************************
+
+    /**
+     * @return false if the sidecar was made from a different version of the log file
+     */
+    private boolean readSidecar() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(sidecarFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return false;
+            }
+            logLength = header.getLong();
+            long lastModified = header.getLong();
+            if (logLength != logFile.length() || lastModified != logFile.lastModified()) {
+                return false;
+            }
+
+            int columnCount = header.getInt();
+            int rowCount = header.getInt();
+            blockRows = header.getInt();
+            firstLineNumber = header.getInt();
+            long dataOffset = header.getLong();
+            long footerOffset = header.getLong();
+
+            // the states, line offsets and column descriptions are in the footer
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(footerOffset))));
+
+            states = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                states[i] = in.readLong();
+            }
+            lineOffsets = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                lineOffsets[i] = in.readLong();
+            }
+
+            labels = new String[columnCount];
+            traceTypes = new TraceType[columnCount];
+            categoryLabels = new String[columnCount][];
+            for (int i = 0; i < columnCount; i++) {
+                labels[i] = in.readUTF();
+                traceTypes[i] = TraceType.values()[in.readByte()];
+                int categoryCount = in.readInt();
+                if (categoryCount >= 0) {
+                    categoryLabels[i] = new String[categoryCount];
+                    for (int j = 0; j < categoryCount; j++) {
+                        categoryLabels[i][j] = in.readUTF();
+                    }
+                }
+            }
+
+            blockBytes = (long) blockRows * columnCount * 8;
+            int blockCount = (rowCount + blockRows - 1) / blockRows;
+            blocksPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, blockBytes));
+            int segmentCount = (blockCount + blocksPerSegment - 1) / blocksPerSegment;
+
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = dataOffset + (long) i * blocksPerSegment * blockBytes;
+                long size = Math.min(blocksPerSegment, blockCount - (long) i * blocksPerSegment) * blockBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        } finally {
+            file.close();
+        }
+        return true;
+    }
+
+    // **************************************************************
+    // Building the sidecar
+    // **************************************************************
+
+    private void build() throws IOException, TraceException {
+        long lastModified = logFile.lastModified();
+
+        LineScanner scanner = new LineScanner(logFile);
+        try {
+            String line = scanner.nextLine();
+            if (line == null) {
+                throw new TraceException("Trace file is empty.");
+            }
+            StringTokenizer tokens = new StringTokenizer(line, "\t");
+
+            // read over empty lines and lines starting with [ or # (comments in MrBayes, Migrate or BEAST files)
+            String token = null;
+            while (token == null || token.startsWith("[") || token.startsWith("#")) {
+                while (!tokens.hasMoreTokens()) {
+                    line = scanner.nextLine();
+                    if (line == null) {
+                        throw new TraceException("Incorrect file format, no sample is found !");
+                    }
+                    tokens = new StringTokenizer(line, "\t");
+                }
+                token = tokens.nextToken();
+                if (token.startsWith("[") || token.startsWith("#")) {
+                    tokens = new StringTokenizer("", "\t");
+                }
+            }
+
+            String[] labels = new String[tokens.countTokens()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = tokens.nextToken();
+            }
+
+            File tempFile = new File(sidecarFile.getPath() + ".tmp");
+            ColumnWriter writer = new ColumnWriter(tempFile, labels, scanner.getLineNumber() + 1);
+            try {
+                line = scanner.nextLine();
+                tokens = (line != null ? new StringTokenizer(line, "\t") : null);
+                while (tokens != null && tokens.hasMoreTokens()) {
+                    String stateString = tokens.nextToken();
+                    long state;
+                    try {
+                        // LAMARC uses scientific notation for the state number
+                        state = (long) Double.parseDouble(stateString);
+                    } catch (NumberFormatException nfe) {
+                        throw new TraceException("Unable to parse state number in column 1 (Line " +
+                                scanner.getLineNumber() + ")");
+                    }
+
+                    writer.startRow(state, scanner.getLineOffset());
+                    for (int i = 0; i < labels.length; i++) {
+                        if (tokens.hasMoreTokens()) {
+                            writer.addValue(i, tokens.nextToken().trim());
+                        } else {
+                            throw new TraceException("State " + state + ": missing values at line " + scanner.getLineNumber());
+                        }
+                    }
+
+                    line = scanner.nextLine();
+                    tokens = (line != null ? new StringTokenizer(line, "\t") : null);
+                }
+
+                if (writer.getRowCount() == 0) {
+                    throw new TraceException("Incorrect file format, no sample is found !");
+                }
+
+                writer.finish(logFile.length(), lastModified);
+            } catch (TraceException te) {
+                writer.abandon();
+                throw te;
+            } catch (IOException ioe) {
+                writer.abandon();
+                throw ioe;
+            }
+
+            if (sidecarFile.exists() && !sidecarFile.delete()) {
+                throw new IOException("Unable to replace the sidecar file, " + sidecarFile);
+            }
+            if (!tempFile.renameTo(sidecarFile)) {
+                throw new IOException("Unable to write the sidecar file, " + sidecarFile);
+            }
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * Writes the sidecar, detecting the type of each column as it goes.
+     */
+    private static class ColumnWriter {
+
+        ColumnWriter(File file, String[] labels, int firstLineNumber) throws IOException {
+            this.file = file;
+            this.labels = labels;
+            this.firstLineNumber = firstLineNumber;
+
+            columnCount = labels.length;
+            blockRows = Math.max(1, Math.min(MAX_BLOCK_ROWS, BUFFER_VALUES / Math.max(1, columnCount)));
+            block = ByteBuffer.allocate(blockRows * columnCount * 8);
+            values = block.asDoubleBuffer();
+
+            // start by assuming integer, as LogFileTraces does
+            traceTypes = new TraceType[columnCount];
+            Arrays.fill(traceTypes, TraceType.INTEGER);
+            categories = new ArrayList<List<String>>(Collections.<List<String>>nCopies(columnCount, null));
+            categoryIndices = new ArrayList<Map<String, Integer>>(Collections.<Map<String, Integer>>nCopies(columnCount, null));
+            categoricalFromRow = new int[columnCount];
+
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+            channel = randomAccessFile.getChannel();
+            channel.position(HEADER_SIZE);
+        }
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        void startRow(long state, long lineOffset) throws IOException {
+            if (rowCount > 0 && rowCount % blockRows == 0) {
+                writeBlock();
+            }
+            states = grow(states, rowCount);
+            lineOffsets = grow(lineOffsets, rowCount);
+            states[rowCount] = state;
+            lineOffsets[rowCount] = lineOffset;
+            rowCount++;
+        }
+
+        void addValue(int column, String value) {
+            double x;
+
+            if (traceTypes[column] != TraceType.CATEGORICAL && !NumberUtils.isNumber(value)) {
+                // once categorical, always categorical
+                traceTypes[column] = TraceType.CATEGORICAL;
+                categories.set(column, new ArrayList<String>());
+                categoryIndices.set(column, new HashMap<String, Integer>());
+                categoricalFromRow[column] = rowCount - 1;
+            }
+
+            if (traceTypes[column] == TraceType.CATEGORICAL) {
+                Integer index = categoryIndices.get(column).get(value);
+                if (index == null) {
+                    index = categories.get(column).size();
+                    categories.get(column).add(value);
+                    categoryIndices.get(column).put(value, index);
+                }
+                x = index;
+            } else {
+                if (traceTypes[column] != TraceType.REAL && NumberUtils.hasDecimalPoint(value)) {
+                    // once real, always real
+                    traceTypes[column] = TraceType.REAL;
+                }
+                x = Double.parseDouble(value);
+            }
+
+            values.put(column * blockRows + (rowCount - 1) % blockRows, x);
+        }
+
+        void finish(long logLength, long lastModified) throws IOException {
+            writeBlock();
+
+            // categorical columns that started out numeric have the earlier values as categories
+            // in the order they first appear (as LogFileTraces.changeTraceType does)
+            for (int i = 0; i < columnCount; i++) {
+                if (traceTypes[i] == TraceType.CATEGORICAL && categoricalFromRow[i] > 0) {
+                    relabelColumn(i);
+                }
+            }
+
+            long footerOffset = channel.size();
+            channel.position(footerOffset);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (int i = 0; i < rowCount; i++) {
+                out.writeLong(states[i]);
+            }
+            for (int i = 0; i < rowCount; i++) {
+                out.writeLong(lineOffsets[i]);
+            }
+            for (int i = 0; i < columnCount; i++) {
+                out.writeUTF(labels[i]);
+                out.writeByte(traceTypes[i].ordinal());
+                if (categories.get(i) != null) {
+                    out.writeInt(categories.get(i).size());
+                    for (String category : categories.get(i)) {
+                        out.writeUTF(category);
+                    }
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(logLength);
+            header.putLong(lastModified);
+            header.putInt(columnCount);
+            header.putInt(rowCount);
+            header.putInt(blockRows);
+            header.putInt(firstLineNumber);
+            header.putLong(HEADER_SIZE);
+            header.putLong(footerOffset);
+            header.rewind();
+            channel.write(header, 0);
+
+            channel.force(false);
+            randomAccessFile.close();
+        }
+
+        void abandon() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+            file.delete();
+        }
+
+        private void writeBlock() throws IOException {
+            block.clear();
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            // clear the values so a partial final block is padded with zeros
+            Arrays.fill(block.array(), (byte) 0);
+            values.clear();
+        }
+
+        private void relabelColumn(int column) throws IOException {
+            int fromRow = categoricalFromRow[column];
+            List<String> provisional = categories.get(column);
+            List<String> relabelled = new ArrayList<String>();
+            Map<String, Integer> indices = new HashMap<String, Integer>();
+
+            long blockBytes = (long) blockRows * columnCount * 8;
+            ByteBuffer buffer = ByteBuffer.allocate(blockRows * 8);
+
+            for (int start = 0; start < rowCount; start += blockRows) {
+                long position = HEADER_SIZE + (start / blockRows) * blockBytes + (long) column * blockRows * 8;
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                DoubleBuffer columnValues = ((ByteBuffer) buffer.flip()).asDoubleBuffer();
+
+                int end = Math.min(start + blockRows, rowCount);
+                for (int row = start; row < end; row++) {
+                    double x = columnValues.get(row - start);
+                    String label = (row < fromRow ? Double.toString(x) : provisional.get((int) x));
+                    Integer index = indices.get(label);
+                    if (index == null) {
+                        index = relabelled.size();
+                        relabelled.add(label);
+                        indices.put(label, index);
+                    }
+                    columnValues.put(row - start, index);
+                }
+
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            }
+
+            categories.set(column, relabelled);
+        }
+
+        private static long[] grow(long[] array, int size) {
+            if (size < array.length) {
+                return array;
+            }
+            return Arrays.copyOf(array, Math.max(1024, array.length * 2));
+        }
+
+        private final File file;
+        private final String[] labels;
+        private final int firstLineNumber;
+        private final int columnCount;
+        private final int blockRows;
+
+        private final ByteBuffer block;
+        private final DoubleBuffer values;
+
+        private final TraceType[] traceTypes;
+        private final List<List<String>> categories;
+        private final List<Map<String, Integer>> categoryIndices;
+        private final int[] categoricalFromRow;
+
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+
+        private int rowCount = 0;
+        private long[] states = new long[0];
+        private long[] lineOffsets = new long[0];
+    }
+
+    /**
+     * Reads the lines of a file through a memory mapped window that is moved along the file.
+     */
+    private static class LineScanner {
+
+        LineScanner(File file) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            length = channel.size();
+        }
+
+        /**
+         * @return the next line, trimmed, or null at the end of the file
+         */
+        String nextLine() throws IOException {
+            if (position >= length) {
+                return null;
+            }
+            lineOffset = position;
+            lineNumber++;
+
+            int lineLength = 0;
+            while (position < length) {
+                if (window == null || position >= windowStart + window.limit()) {
+                    mapWindow(position);
+                }
+                byte b = window.get((int) (position - windowStart));
+                position++;
+                if (b == '\n') {
+                    break;
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength] = b;
+                lineLength++;
+            }
+            return new String(line, 0, lineLength, CHARSET).trim();
+        }
+
+        private void mapWindow(long start) throws IOException {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_SEGMENT_SIZE, length - start));
+        }
+
+        long getLineOffset() {
+            return lineOffset;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        void close() throws IOException {
+            randomAccessFile.close();
+        }
+
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final long length;
+
+        private MappedByteBuffer window = null;
+        private long windowStart = 0;
+        private long position = 0;
+
+        private byte[] line = new byte[8192];
+        private long lineOffset = 0;
+        private int lineNumber = 0;
+    }
+
+    // log files are read with the default character set, as LogFileTraces does
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final File logFile;
+    private final File sidecarFile;
+
+    private long logLength;
+    private int blockRows;
+    private long blockBytes;
+    private int blocksPerSegment;
+    private int firstLineNumber;
+
+    private String[] labels;
+    private TraceType[] traceTypes;
+    private String[][] categoryLabels;
+    private long[] states;
+    private long[] lineOffsets;
+
+    private MappedByteBuffer[] segments;
+}
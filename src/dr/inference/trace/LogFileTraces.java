@@ -39,6 +39,10 @@ import java.util.StringTokenizer;
 
 public class LogFileTraces extends AbstractTraceList {
 
+    // log files at least this big are read through a columnar sidecar file (see ColumnarLogFile)
+    // unless the trace.columnar property is set to true or false
+    public static final long COLUMNAR_FILE_SIZE = 64L * 1024 * 1024;
+
     public LogFileTraces(String name, File file) {
         this.name = name;
         this.file = file;
@@ -113,8 +117,7 @@ public class LogFileTraces extends AbstractTraceList {
      */
     public int getTraceIndex(String name) {
         for (int i = 0; i < traces.size(); i++) {
-            Trace trace = getTrace(i);
-            if (name.equals(trace.getName())) {
+            if (name.equals(getTraceName(i))) {
                 return i;
             }
         }
@@ -125,7 +128,12 @@ public class LogFileTraces extends AbstractTraceList {
      * @return the name of the trace with the given index
      */
     public String getTraceName(int index) {
-        return getTrace(index).getName();
+        Trace trace = traces.get(index);
+        if (trace == null) {
+            // not read from the columns yet
+            return columns.getLabels()[index];
+        }
+        return trace.getName();
     }
 
     /**
@@ -133,13 +141,20 @@ public class LogFileTraces extends AbstractTraceList {
      * @return the trace for a given index
      */
     public Trace getTrace(int index) {
-        return traces.get(index);
+        Trace trace = traces.get(index);
+        if (trace == null) {
+            trace = readTrace(index);
+            traces.set(index, trace);
+        }
+        return trace;
     }
 
     public void setBurnIn(long burnin) {
         this.burnIn = burnin;
         for (Trace trace : traces) {
-            trace.setTraceStatistics(null);
+            if (trace != null) {
+                trace.setTraceStatistics(null);
+            }
         }
     }
 
@@ -209,6 +224,20 @@ public class LogFileTraces extends AbstractTraceList {
      * @throws IOException
      */
     public void loadTraces(File file) throws TraceException, IOException {
+        if (isColumnar(file)) {
+            ColumnarLogFile columns = null;
+            try {
+                columns = ColumnarLogFile.open(file);
+            } catch (IOException ioe) {
+                System.err.println("Unable to index the columns of " + file.getName() + " (" + ioe.getMessage() +
+                        "), reading it into memory instead");
+            }
+            if (columns != null) {
+                loadTraces(columns);
+                return;
+            }
+        }
+
         final Reader reader = new FileReader(file);
         loadTraces(reader);
         reader.close();
@@ -349,6 +378,75 @@ public class LogFileTraces extends AbstractTraceList {
         validateTraceType(tokens);
         validateUniqueValues();
     }
+
+    private static boolean isColumnar(File file) {
+        String columnar = System.getProperty("trace.columnar");
+        if (columnar != null) {
+            return Boolean.parseBoolean(columnar);
+        }
+        return file.length() >= COLUMNAR_FILE_SIZE;
+    }
+
+    /**
+     * Set up the traces to be read from a columnar log file as they are needed.
+     * The states are checked and the burnin set exactly as when reading the log file itself.
+     *
+     * @param columns the columnar log file
+     * @throws TraceException
+     */
+    private void loadTraces(ColumnarLogFile columns) throws TraceException {
+        this.columns = columns;
+
+        for (int i = 0; i < columns.getColumnCount(); i++) {
+            traces.add(null);
+        }
+
+        for (int row = 0; row < columns.getRowCount(); row++) {
+            long state = columns.getState(row);
+            if (row == 0) {
+                // MrBayes puts 1 as the first state, BEAST puts 0
+                if (state == 1) state = 0;
+            }
+            if (!addState(state, row + 1)) {
+                throw new TraceException("State " + state + " is not consistent with previous spacing (Line " +
+                        columns.getLineNumber(row) + ")");
+            }
+        }
+
+        burnIn =  lastState / 10;
+
+        if (lastState < 0)
+            lastState = firstState;
+        if (stepSize < 0 && lastState > 0)
+            stepSize = lastState;
+
+        // The types were found for every value when the columns were indexed so there is no need to
+        // validate them against the last line. The unique values of a Trace are capped below
+        // MAX_UNIQUE_VALUE so validateUniqueValues() would not change any types either.
+    }
+
+    /**
+     * Read a trace from the columnar log file
+     *
+     * @param index the trace index
+     * @return the trace
+     */
+    private Trace readTrace(int index) {
+        String name = columns.getLabels()[index];
+        TraceType traceType = columns.getTraceType(index);
+
+        if (traceType == TraceType.CATEGORICAL) {
+            // categorical traces keep their labels so are read in to memory
+            String[] labels = columns.getCategoryLabels(index);
+            Trace trace = new Trace(name, traceType);
+            for (double value : columns.readColumn(index)) {
+                trace.add(labels[(int) value]);
+            }
+            return trace;
+        }
+        return new MappedTrace(name, traceType, columns, index);
+    }
+
     public static final int MIN_SAMPLE = 5; // used in StatisticsModel
 
     private final int MAX_UNIQUE_VALUE = 200;
@@ -552,6 +650,10 @@ public class LogFileTraces extends AbstractTraceList {
 
     private final List<Trace> traces = new ArrayList<Trace>();
 
+    // if the traces are read from a columnar log file then the entries
+    // in traces are null until each is read
+    private ColumnarLogFile columns = null;
+
     private long burnIn = -1;
     private long firstState = -1;
     private long secondState = -1;
@@ -0,0 +1,96 @@
+/*
+ * MappedTrace.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.lang.ref.SoftReference;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A numeric trace whose values are read from a column of a {@link ColumnarLogFile}. The values
+ * are held in a primitive array which is only softly referenced, so if memory runs short it can be
+ * dropped and is then read again from the file when next needed.
+ *
+ * @author agent
+ */
+class MappedTrace extends Trace {
+
+    MappedTrace(String name, TraceType traceType, ColumnarLogFile columns, int column) {
+        super(name, traceType);
+        this.columns = columns;
+        this.column = column;
+
+        double[] values = columns.readColumn(column);
+        for (double value : values) {
+            addToSummary(value);
+        }
+        valueList = new SoftReference<List<Double>>(new DoubleArrayList(values));
+    }
+
+    @Override
+    public void add(Double value) {
+        throw new UnsupportedOperationException("Values cannot be added to a mapped trace");
+    }
+
+    @Override
+    public void add(Integer value) {
+        throw new UnsupportedOperationException("Values cannot be added to a mapped trace");
+    }
+
+    @Override
+    protected synchronized List<Double> getValueList() {
+        List<Double> values = valueList.get();
+        if (values == null) {
+            values = new DoubleArrayList(columns.readColumn(column));
+            valueList = new SoftReference<List<Double>>(values);
+        }
+        return values;
+    }
+
+    private static class DoubleArrayList extends AbstractList<Double> implements RandomAccess {
+        DoubleArrayList(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        private final double[] values;
+    }
+
+    private final ColumnarLogFile columns;
+    private final int column;
+
+    private SoftReference<List<Double>> valueList;
+}
@@ -73,18 +73,7 @@ public class Trace {
      * @param value the valued to be added
      */
     public void add(Double value) {
-        if (uniqueValues.size() < MAX_UNIQUE_VALUES) {
-            // unique values are treated as integers
-            uniqueValues.add(value.intValue());
-        }
-
-        // check if the trace is still constant
-        if (isConstant && value != constantValue) {
-            isConstant = false;
-        } else if (Double.isNaN(constantValue)) {
-            constantValue = value;
-        }
-
+        addToSummary(value);
         values.add(value);
     }
 
@@ -101,21 +90,35 @@ public class Trace {
      * @param value the valued to be added
      */
     public void add(Integer value) {
+        double d = value.doubleValue();
+        addToSummary(d);
+        values.add(d);
+    }
+
+    /**
+     * Updates the unique values and whether the trace is constant for a value being added
+     * @param value the value
+     */
+    protected void addToSummary(double value) {
         if (uniqueValues.size() < MAX_UNIQUE_VALUES) {
             // unique values are treated as integers
-            uniqueValues.add(value);
+            uniqueValues.add((int) value);
         }
 
-        double d = value.doubleValue();
-
         // check if the trace is still constant
-        if (isConstant && d != constantValue) {
+        if (isConstant && value != constantValue) {
             isConstant = false;
         } else if (Double.isNaN(constantValue)) {
-            constantValue = d;
+            constantValue = value;
         }
+    }
 
-        values.add(d);
+    /**
+     * @return the values of the trace. Subclasses may override this to provide the values
+     * from elsewhere.
+     */
+    protected List<Double> getValueList() {
+        return values;
     }
 
     /**
@@ -202,7 +205,7 @@ public class Trace {
 
 
     public int getValueCount() {
-        return values.size();
+        return getValueList().size();
     }
 
     public int getUniqueValueCount() {
@@ -210,11 +213,11 @@ public class Trace {
     }
 
     public double getValue(int index) {
-        return values.get(index);
+        return getValueList().get(index);
     }
 
     public int getCategory(int index) {
-        return values.get(index).intValue();
+        return getValueList().get(index).intValue();
     }
 
     public String getCategoryLabel(int index) {
@@ -233,7 +236,7 @@ public class Trace {
 
             Double min = Double.MAX_VALUE;
             Double max = Double.MIN_VALUE;
-            for (Double value : values) {
+            for (Double value : getValueList()) {
                 if ( value < min) {
                     min = value;
                 } else if (value > max) {
@@ -262,8 +265,9 @@ public class Trace {
         }
 
         if (filtered == null || filtered.length < 1) {
-            return values.subList(fromIndex, toIndex);
+            return getValueList().subList(fromIndex, toIndex);
         } else {
+            List<Double> values = getValueList();
             List<Double> valuesList = new ArrayList<Double>();
             for (int i = fromIndex; i < toIndex; i++) {
                 if (!filtered[i])
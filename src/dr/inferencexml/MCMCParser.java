@@ -27,6 +27,7 @@ package dr.inferencexml;
 
 import dr.inference.loggers.Logger;
 import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainProfiler;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmc.MCMCOptions;
 import dr.inference.model.CompoundLikelihood;
@@ -38,6 +39,7 @@ import dr.inference.smc.SMC;
 import dr.inference.smc.SMCOptions;
 import dr.inference.state.Factory;
 import dr.inference.state.StateLoaderSaver;
+import dr.inferencexml.loggers.MarkovChainProfilerParser;
 import dr.xml.*;
 
 import java.io.File;
@@ -174,6 +176,14 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
 
         MarkovChain mc = mcmc.getMarkovChain();
+
+        MarkovChainProfiler profiler = (MarkovChainProfiler) xo.getChild(MarkovChainProfiler.class);
+        if (profiler != null) {
+            if (profiler.getOperatorSchedule() != opsched) {
+                throw new XMLParseException("The " + MarkovChainProfilerParser.PROFILER + " element should use the same operators as the " + MCMC + " element");
+            }
+            mc.setProfiler(profiler);
+        }
         double initialScore = mc.getCurrentScore();
 
         if (initialScore == Double.NEGATIVE_INFINITY) {
@@ -295,6 +305,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
+            new ElementRule(MarkovChainProfiler.class, true),
     };
 
     public static final String ADAPTATION = "adaptation";
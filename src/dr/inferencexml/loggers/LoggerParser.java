@@ -56,6 +56,8 @@ public class LoggerParser extends AbstractXMLObjectParser {
     public static final String PRETTY = "pretty";
     public static final String LOG_EVERY = "logEvery";
     public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+    public static final String ASYNC = "async";
+    public static final String BUFFER_SIZE = "bufferSize";
 
     public static final String COLUMNS = "columns";
     public static final String COLUMN = "column";
@@ -115,6 +117,8 @@ public class LoggerParser extends AbstractXMLObjectParser {
 
         logger.setTitle(title);
 
+        setAsynchronous(xo, logger);
+
         for (int i = 0; i < xo.getChildCount(); i++) {
 
             final Object child = xo.getChild(i);
@@ -142,6 +146,22 @@ public class LoggerParser extends AbstractXMLObjectParser {
         return logger;
     }
 
+    /**
+     * Switches on asynchronous logging if requested by the async attribute. File logs default to
+     * the value of the log.async system property.
+     */
+    public static void setAsynchronous(XMLObject xo, MCLogger logger) throws XMLParseException {
+        boolean async = xo.getAttribute(ASYNC,
+                xo.hasAttribute(FILE_NAME) && Boolean.parseBoolean(System.getProperty(MCLogger.ASYNC_LOGGING, "false")));
+        if (async) {
+            int bufferSize = xo.getAttribute(BUFFER_SIZE, AsyncLogWriter.DEFAULT_BUFFER_SIZE);
+            if (bufferSize < 1) {
+                throw new XMLParseException("The " + BUFFER_SIZE + " attribute of " + xo.getName() + " should be at least 1");
+            }
+            logger.setAsynchronous(bufferSize);
+        }
+    }
+
     public static PrintWriter getLogFile(XMLObject xo, String parserName) throws XMLParseException {
         return XMLParser.getFilePrintWriter(xo, parserName);
     }
@@ -157,6 +177,10 @@ public class LoggerParser extends AbstractXMLObjectParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(LOG_EVERY),
             AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+            AttributeRule.newBooleanRule(ASYNC, true,
+                    "Format and write the log on a background thread"),
+            AttributeRule.newIntegerRule(BUFFER_SIZE, true,
+                    "The number of log entries that can be waiting to be written before the chain blocks"),
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
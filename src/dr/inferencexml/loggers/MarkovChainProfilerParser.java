@@ -0,0 +1,96 @@
+/*
+ * MarkovChainProfilerParser.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.loggers;
+
+import dr.inference.markovchain.MarkovChainProfiler;
+import dr.inference.model.Likelihood;
+import dr.inference.operators.OperatorSchedule;
+import dr.xml.*;
+
+import java.io.File;
+
+/**
+ * Parses a profiler for the operators and likelihoods of an MCMC run. This should be given as
+ * a child of the mcmc element (before any log that refers to it).
+ *
+ * @author agent
+ */
+public class MarkovChainProfilerParser extends AbstractXMLObjectParser {
+
+    public static final String PROFILER = "markovChainProfiler";
+    public static final String FILE_NAME = "fileName";
+    public static final String WRITE_EVERY = "writeEvery";
+
+    public static final long DEFAULT_WRITE_EVERY = 100000;
+
+    public String getParserName() {
+        return PROFILER;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        OperatorSchedule schedule = (OperatorSchedule) xo.getChild(OperatorSchedule.class);
+        Likelihood likelihood = (Likelihood) xo.getChild(Likelihood.class);
+
+        File file = null;
+        if (xo.hasAttribute(FILE_NAME)) {
+            file = XMLParser.getLogFile(xo, FILE_NAME);
+        }
+
+        long writeEvery = xo.getAttribute(WRITE_EVERY, DEFAULT_WRITE_EVERY);
+        if (writeEvery < 1) {
+            throw new XMLParseException("The " + WRITE_EVERY + " attribute of " + PROFILER + " should be at least 1");
+        }
+
+        return new MarkovChainProfiler(schedule, likelihood, file, writeEvery);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            new StringAttributeRule(FILE_NAME,
+                    "The name of a file to write a JSON summary of the profile to", true),
+            AttributeRule.newLongIntegerRule(WRITE_EVERY, true,
+                    "The number of states between writing the summary (default " + DEFAULT_WRITE_EVERY + ")"),
+            new ElementRule(OperatorSchedule.class),
+            new ElementRule(Likelihood.class)
+    };
+
+    public String getParserDescription() {
+        return "Records the time spent by each operator proposing, evaluating and accepting or rejecting " +
+                "states, and the evaluation counts of the tree likelihoods, for logging.";
+    }
+
+    public Class getReturnType() {
+        return MarkovChainProfiler.class;
+    }
+}
@@ -38,6 +38,7 @@ import java.util.logging.Logger;
 public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
     public static final String COMPOUND_LIKELIHOOD = "compoundLikelihood";
     public static final String THREADS = "threads";
+    public static final String LOG_EVALUATION_TIMES = "logEvaluationTimes";
     @Deprecated public static final String POSTERIOR = "posterior"; // replaced with JOINT
     public static final String JOINT = "joint";
     public static final String PRIOR = "prior";
@@ -111,6 +112,8 @@ public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
             compoundLikelihood = new CompoundLikelihood(likelihoods);
         }
 
+        compoundLikelihood.setTimingColumns(xo.getAttribute(LOG_EVALUATION_TIMES, false));
+
 
 //		TODO
 //        System.err.println("CompundLikelihood consists of " + compoundLikelihood.getLikelihoodCount() + " likelihood element(s)");
@@ -132,6 +135,8 @@ public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
 
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(THREADS, true),
+            AttributeRule.newBooleanRule(LOG_EVALUATION_TIMES, true,
+                    "Log the average time taken to compute each component likelihood (in milliseconds)"),
             new ElementRule(Likelihood.class, -1, Integer.MAX_VALUE)
     };
 
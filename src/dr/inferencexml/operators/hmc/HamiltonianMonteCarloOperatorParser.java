@@ -63,6 +63,9 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
     private final static String REDUCTION_FACTOR = "checkStepSizeReductionFactor";
     private final static String TARGET_ACCEPTANCE_PROBABILITY = "targetAcceptanceProbability";
     private final static String MASK = "mask";
+    private final static String CACHE_GRADIENT = "cacheGradient";
+
+    private boolean cacheGradient;
 
     @Override
     public String getParserName() {
@@ -91,6 +94,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
         int nSteps = xo.getAttribute(N_STEPS, 10);
         double stepSize = xo.getDoubleAttribute(STEP_SIZE);
         int runMode = parseRunMode(xo);
+        cacheGradient = xo.getAttribute(CACHE_GRADIENT, false);
 
         MassPreconditioner.Type preconditioningType = parsePreconditioning(xo);
 
@@ -172,7 +176,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
         } else {
             return new NoUTurnOperator(adaptationMode, weight, derivative,
                     parameter,transform, mask,
-                    runtimeOptions, preconditioningType);
+                    runtimeOptions, preconditioningType, cacheGradient);
         }
 
     }
@@ -191,6 +195,7 @@ public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser
             AttributeRule.newStringRule(MODE, true),
             AttributeRule.newDoubleRule(RANDOM_STEP_FRACTION, true),
             AttributeRule.newDoubleRule(TARGET_ACCEPTANCE_PROBABILITY, true),
+            AttributeRule.newBooleanRule(CACHE_GRADIENT, true),
             new ElementRule(Parameter.class, true),
             new ElementRule(Transform.MultivariableTransformWithParameter.class, true),
             new ElementRule(GradientWrtParameterProvider.class),
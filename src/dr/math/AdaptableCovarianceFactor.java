@@ -0,0 +1,363 @@
+/*
+ * AdaptableCovarianceFactor.java
+ *
+ * Copyright (c) 2002-2018 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.math;
+
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.EigenvalueDecomposition;
+
+/**
+ * A running (Welford) estimate of the mean and sample covariance of a stream of vectors that keeps a factor F of the
+ * covariance, F F^t, instead of the covariance itself, so that multivariate normal draws need no decomposition.
+ * <p/>
+ * Each update adds a rank-one term to the sum of squares S = (n - 1) * covariance, so the factor is updated in
+ * O(dim^2) (Cholesky) or amortised O(rank^2 * dim) (low-rank plus diagonal) time. The dim-sized storage is flat and
+ * allocated once.
+ *
+ * @author agent
+ */
+public abstract class AdaptableCovarianceFactor {
+
+    protected final int dim;
+    private final double[] mean;
+    private final double[] delta;
+    private int updates;
+
+    protected AdaptableCovarianceFactor(int dim) {
+        this.dim = dim;
+        this.mean = new double[dim];
+        this.delta = new double[dim];
+    }
+
+    public int getDimension() {
+        return dim;
+    }
+
+    public int getUpdateCount() {
+        return updates;
+    }
+
+    public double[] getMean() {
+        return mean;
+    }
+
+    public void reset() {
+        updates = 0;
+        for (int i = 0; i < dim; i++) {
+            mean[i] = 0.0;
+        }
+        clear();
+    }
+
+    public void update(double[] x) {
+        updates++;
+        for (int i = 0; i < dim; i++) {
+            final double d = x[i] - mean[i];
+            mean[i] += d / updates;
+            delta[i] = d;
+        }
+        if (updates > 1) {
+            // S_n = S_{n-1} + (x - m_{n-1})(x - m_n)^t = S_{n-1} + (n - 1) / n * delta delta^t
+            final double w = Math.sqrt((updates - 1.0) / updates);
+            for (int i = 0; i < dim; i++) {
+                delta[i] *= w;
+            }
+            rankOneUpdate(delta);
+        }
+    }
+
+    /**
+     * Adds scale * F * epsilon to out, with epsilon standard normal, i.e. a draw from N(0, scale^2 * covariance).
+     * Nothing is added before there are two updates.
+     */
+    public void addScaledDraw(double scale, double[] out) {
+        if (updates > 1) {
+            addFactorDraw(scale / Math.sqrt(updates - 1.0), out);
+        }
+    }
+
+    /**
+     * @return the dim x dim (row-major) covariance represented by the factor; for diagnostics, this is not cheap
+     */
+    public double[] getCovariance() {
+        double[] covariance = new double[dim * dim];
+        if (updates > 1) {
+            addSumOfSquares(covariance);
+            final double scale = 1.0 / (updates - 1);
+            for (int i = 0; i < covariance.length; i++) {
+                covariance[i] *= scale;
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * S += v v^t; v may be overwritten
+     */
+    protected abstract void rankOneUpdate(double[] v);
+
+    /**
+     * out += scale * F * epsilon, where F F^t = S
+     */
+    protected abstract void addFactorDraw(double scale, double[] out);
+
+    protected abstract void addSumOfSquares(double[] matrix);
+
+    protected abstract void clear();
+
+    /**
+     * The lower triangular Cholesky factor of S, stored packed by column.
+     */
+    public static class Cholesky extends AdaptableCovarianceFactor {
+
+        private final double[] lower;
+
+        public Cholesky(int dim) {
+            super(dim);
+            this.lower = new double[dim * (dim + 1) / 2];
+        }
+
+        /**
+         * L L^t + v v^t by a sequence of Givens rotations; this is well defined while S is only semi-definite (before
+         * dim + 1 updates), as a zero column is left untouched until v has a component along it.
+         */
+        protected void rankOneUpdate(double[] v) {
+            int offset = 0;
+            for (int k = 0; k < dim; k++) {
+                final int length = dim - k;
+                final double vk = v[k];
+                if (vk != 0.0) {
+                    final double lkk = lower[offset];
+                    final double r = Math.sqrt(lkk * lkk + vk * vk);
+                    final double c = lkk / r;
+                    final double s = vk / r;
+                    lower[offset] = r;
+                    for (int i = 1; i < length; i++) {
+                        final double lik = lower[offset + i];
+                        final double vi = v[k + i];
+                        lower[offset + i] = c * lik + s * vi;
+                        v[k + i] = c * vi - s * lik;
+                    }
+                }
+                offset += length;
+            }
+        }
+
+        protected void addFactorDraw(double scale, double[] out) {
+            int offset = 0;
+            for (int k = 0; k < dim; k++) {
+                final int length = dim - k;
+                final double epsilon = scale * MathUtils.nextGaussian();
+                for (int i = 0; i < length; i++) {
+                    out[k + i] += lower[offset + i] * epsilon;
+                }
+                offset += length;
+            }
+        }
+
+        protected void addSumOfSquares(double[] matrix) {
+            for (int j = 0; j < dim; j++) {
+                int offsetK = 0;
+                for (int k = 0; k <= j; k++) {
+                    final double ljk = lower[offsetK + j - k];
+                    for (int i = j; i < dim; i++) {
+                        matrix[i * dim + j] += lower[offsetK + i - k] * ljk;
+                    }
+                    offsetK += dim - k;
+                }
+                for (int i = j + 1; i < dim; i++) {
+                    matrix[j * dim + i] = matrix[i * dim + j];
+                }
+            }
+        }
+
+        protected void clear() {
+            for (int i = 0; i < lower.length; i++) {
+                lower[i] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * S ~ B^t B + D, where B is a rank x dim frequent directions sketch of the deviations (Liberty 2013) and D is the
+     * diagonal that makes the variances exact; for very high dimensions, where a dense factor is too large.
+     */
+    public static class LowRankPlusDiagonal extends AdaptableCovarianceFactor {
+
+        private final int rank;
+        private final double[] sketch;      // 2 * rank rows of length dim
+        private final double[] sumOfSquares;
+        private final double[] sketchDiagonal;
+        private final double[] gram;
+        private final double[] rotated;
+        private int rows;
+
+        public LowRankPlusDiagonal(int dim, int rank) {
+            super(dim);
+            if (rank < 1) {
+                throw new IllegalArgumentException("Rank must be at least 1");
+            }
+            this.rank = rank;
+            this.sketch = new double[2 * rank * dim];
+            this.sumOfSquares = new double[dim];
+            this.sketchDiagonal = new double[dim];
+            this.gram = new double[4 * rank * rank];
+            this.rotated = new double[2 * rank * dim];
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        protected void rankOneUpdate(double[] v) {
+            if (rows == 2 * rank) {
+                shrink();
+            }
+            final int offset = rows * dim;
+            for (int i = 0; i < dim; i++) {
+                final double vi = v[i];
+                sketch[offset + i] = vi;
+                sumOfSquares[i] += vi * vi;
+                sketchDiagonal[i] += vi * vi;
+            }
+            rows++;
+        }
+
+        /**
+         * Rotate the sketch onto its right singular vectors and shrink all the squared singular values by the
+         * (rank + 1)-th largest, which leaves at most rank non-zero rows.
+         */
+        private void shrink() {
+            for (int r = 0; r < rows; r++) {
+                for (int s = r; s < rows; s++) {
+                    double sum = 0.0;
+                    for (int i = 0; i < dim; i++) {
+                        sum += sketch[r * dim + i] * sketch[s * dim + i];
+                    }
+                    gram[r * rows + s] = gram[s * rows + r] = sum;
+                }
+            }
+
+            DenseDoubleMatrix2D matrix = new DenseDoubleMatrix2D(rows, rows);
+            for (int r = 0; r < rows; r++) {
+                for (int s = 0; s < rows; s++) {
+                    matrix.setQuick(r, s, gram[r * rows + s]);
+                }
+            }
+            EigenvalueDecomposition eigen = new EigenvalueDecomposition(matrix);
+            double[] values = eigen.getRealEigenvalues().toArray();
+            double[][] vectors = eigen.getV().toArray();
+
+            // order the eigenvalues decreasingly
+            int[] order = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                order[r] = r;
+            }
+            for (int r = 1; r < rows; r++) {
+                final int index = order[r];
+                int s = r - 1;
+                while (s >= 0 && values[order[s]] < values[index]) {
+                    order[s + 1] = order[s];
+                    s--;
+                }
+                order[s + 1] = index;
+            }
+            final double threshold = Math.max(values[order[rank]], 0.0);
+
+            for (int i = 0; i < dim; i++) {
+                sketchDiagonal[i] = 0.0;
+            }
+            int kept = 0;
+            for (int r = 0; r < rank; r++) {
+                final int index = order[r];
+                final double value = values[index];
+                if (value <= threshold) {
+                    break;
+                }
+                // row = sqrt(1 - threshold / value) * u^t B, where u^t B has squared norm value
+                final double scale = Math.sqrt((value - threshold) / value);
+                final int offset = kept * dim;
+                for (int i = 0; i < dim; i++) {
+                    rotated[offset + i] = 0.0;
+                }
+                for (int s = 0; s < rows; s++) {
+                    final double u = scale * vectors[s][index];
+                    final int sketchOffset = s * dim;
+                    for (int i = 0; i < dim; i++) {
+                        rotated[offset + i] += u * sketch[sketchOffset + i];
+                    }
+                }
+                for (int i = 0; i < dim; i++) {
+                    sketchDiagonal[i] += rotated[offset + i] * rotated[offset + i];
+                }
+                kept++;
+            }
+            System.arraycopy(rotated, 0, sketch, 0, kept * dim);
+            rows = kept;
+        }
+
+        protected void addFactorDraw(double scale, double[] out) {
+            for (int r = 0; r < rows; r++) {
+                final double epsilon = scale * MathUtils.nextGaussian();
+                final int offset = r * dim;
+                for (int i = 0; i < dim; i++) {
+                    out[i] += sketch[offset + i] * epsilon;
+                }
+            }
+            for (int i = 0; i < dim; i++) {
+                final double residual = sumOfSquares[i] - sketchDiagonal[i];
+                if (residual > 0.0) {
+                    out[i] += scale * Math.sqrt(residual) * MathUtils.nextGaussian();
+                }
+            }
+        }
+
+        protected void addSumOfSquares(double[] matrix) {
+            for (int r = 0; r < rows; r++) {
+                final int offset = r * dim;
+                for (int i = 0; i < dim; i++) {
+                    final double bi = sketch[offset + i];
+                    for (int j = 0; j < dim; j++) {
+                        matrix[i * dim + j] += bi * sketch[offset + j];
+                    }
+                }
+            }
+            for (int i = 0; i < dim; i++) {
+                final double residual = sumOfSquares[i] - sketchDiagonal[i];
+                if (residual > 0.0) {
+                    matrix[i * dim + i] += residual;
+                }
+            }
+        }
+
+        protected void clear() {
+            rows = 0;
+            for (int i = 0; i < dim; i++) {
+                sumOfSquares[i] = 0.0;
+                sketchDiagonal[i] = 0.0;
+            }
+        }
+    }
+}
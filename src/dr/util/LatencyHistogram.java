@@ -0,0 +1,189 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (in nanoseconds) with log-linear buckets, in the style of
+ * HdrHistogram: each power of two is split into 16 buckets so any recorded value is
+ * reported to within about 3%.
+ *
+ * Values are recorded without locks: each recording thread has its own set of counts
+ * which only it writes to (so no compare-and-set is needed) and the counts of all the
+ * threads are summed when read. Reads can happen on any thread (i.e., a logger) while
+ * recording is going on and will see all but the most recent values.
+ *
+ * @author agent
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    // values up to Long.MAX_VALUE
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    private static final int COUNT = BUCKET_COUNT;
+    private static final int TOTAL = BUCKET_COUNT + 1;
+    private static final int MAX = BUCKET_COUNT + 2;
+
+    /**
+     * Records a duration. This should only be called by the thread doing the work being timed.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        AtomicLongArray counts = localCounts.get();
+
+        // only this thread writes to these counts so an ordered write is enough
+        int index = getBucketIndex(nanos);
+        counts.lazySet(index, counts.get(index) + 1);
+        counts.lazySet(COUNT, counts.get(COUNT) + 1);
+        counts.lazySet(TOTAL, counts.get(TOTAL) + nanos);
+        if (nanos > counts.get(MAX)) {
+            counts.lazySet(MAX, nanos);
+        }
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (AtomicLongArray counts : allCounts) {
+            count += counts.get(COUNT);
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the values recorded in nanoseconds
+     */
+    public long getTotal() {
+        long total = 0;
+        for (AtomicLongArray counts : allCounts) {
+            total += counts.get(TOTAL);
+        }
+        return total;
+    }
+
+    /**
+     * @return the mean of the values recorded in nanoseconds (0 if none have been)
+     */
+    public double getMean() {
+        long count = 0;
+        long total = 0;
+        for (AtomicLongArray counts : allCounts) {
+            count += counts.get(COUNT);
+            total += counts.get(TOTAL);
+        }
+        return count > 0 ? (double) total / count : 0.0;
+    }
+
+    /**
+     * @return the largest value recorded in nanoseconds
+     */
+    public long getMax() {
+        long max = 0;
+        for (AtomicLongArray counts : allCounts) {
+            max = Math.max(max, counts.get(MAX));
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile the percentile (0 to 100)
+     * @return the value (in nanoseconds) below which the given percentage of values lie (0 if
+     * no values have been recorded)
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (AtomicLongArray counts : allCounts) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long n = counts.get(i);
+                buckets[i] += n;
+                count += n;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets[i];
+            if (cumulative >= target) {
+                return Math.min(getBucketMidpoint(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return subBucket << shift;
+    }
+
+    private static long getBucketMidpoint(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        return getBucketLowerBound(index) + ((1L << shift) >>> 1);
+    }
+
+    private final List<AtomicLongArray> allCounts = new CopyOnWriteArrayList<AtomicLongArray>();
+
+    private final ThreadLocal<AtomicLongArray> localCounts = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT + 3);
+            allCounts.add(counts);
+            return counts;
+        }
+    };
+}
@@ -0,0 +1,159 @@
+/*
+ * LazyXMLObjectParser.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.xml;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for a parser that has not been loaded yet. The element names it parses are known in
+ * advance (from a parser index written when BEAST is built) so it can be registered with the
+ * XMLParser without loading the class. The real parser is created the first time it is used.
+ *
+ * @author agent
+ */
+public class LazyXMLObjectParser implements XMLObjectParser {
+
+    /**
+     * @param className the name of the parser class, or of a class with a static parser field
+     * @param fieldName the name of the static field holding the parser (or null if the class is the parser)
+     * @param parserName the name of the parser
+     * @param parserNames the element names parsed by the parser
+     */
+    public LazyXMLObjectParser(String className, String fieldName, String parserName, String[] parserNames) {
+        this.className = className;
+        this.fieldName = fieldName;
+        this.parserName = parserName;
+        this.parserNames = parserNames;
+    }
+
+    /**
+     * @return the name of the class (and static field if there is one) providing the parser
+     */
+    public String getSourceName() {
+        return className + (fieldName != null ? "." + fieldName : "");
+    }
+
+    /**
+     * @return true if the real parser has been created
+     */
+    public synchronized boolean isLoaded() {
+        return parser != null;
+    }
+
+    /**
+     * @return the real parser, creating it if this is the first use.
+     */
+    public synchronized XMLObjectParser getParser() {
+        if (parser == null) {
+            parser = loadParser();
+        }
+        return parser;
+    }
+
+    private XMLObjectParser loadParser() {
+        XMLObjectParser loaded;
+        try {
+            Class parserClass = Class.forName(className);
+            if (fieldName == null) {
+                loaded = (XMLObjectParser) parserClass.newInstance();
+            } else {
+                Field field = parserClass.getDeclaredField(fieldName);
+                loaded = (XMLObjectParser) field.get(null);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load parser, " + getSourceName() + ": " + e.getMessage(), e);
+        }
+
+        List<String> loadedNames = Arrays.asList(loaded.getParserNames());
+        if (!loadedNames.containsAll(Arrays.asList(parserNames))) {
+            throw new RuntimeException("The parser index is out of date: " + getSourceName() + " parses " +
+                    loadedNames + " but was indexed as " + Arrays.toString(parserNames) + ". Rebuild BEAST.");
+        }
+        return loaded;
+    }
+
+    public String getParserName() {
+        return parserName;
+    }
+
+    public String[] getParserNames() {
+        return parserNames;
+    }
+
+    public Class getReturnType() {
+        return getParser().getReturnType();
+    }
+
+    public Object parseXMLObject(XMLObject xo, String id, Map<String, XMLObject> store, boolean strictXML) throws XMLParseException {
+        return getParser().parseXMLObject(xo, id, store, strictXML);
+    }
+
+    public String getParserDescription() {
+        return getParser().getParserDescription();
+    }
+
+    public boolean hasExample() {
+        return getParser().hasExample();
+    }
+
+    public String getExample() {
+        return getParser().getExample();
+    }
+
+    public String toHTML(XMLDocumentationHandler handler) {
+        return getParser().toHTML(handler);
+    }
+
+    public String toWiki(XMLDocumentationHandler handler) {
+        return getParser().toWiki(handler);
+    }
+
+    public String toMarkdown(XMLDocumentationHandler handler) {
+        return getParser().toMarkdown(handler);
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return getParser().getSyntaxRules();
+    }
+
+    public boolean isAllowed(String elementName) {
+        return getParser().isAllowed(elementName);
+    }
+
+    public boolean hasSyntaxRules() {
+        return getParser().hasSyntaxRules();
+    }
+
+    private final String className;
+    private final String fieldName;
+    private final String parserName;
+    private final String[] parserNames;
+
+    private XMLObjectParser parser = null;
+}
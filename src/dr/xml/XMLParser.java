@@ -486,10 +486,26 @@ public class XMLParser {
                     "\nBEAST or select the option in the Run Options dialog box as appropriate.");
         }
 
+        final String fileRankPostfix = System.getProperty("mpi.rank.postfix");
+        if (fileRankPostfix != null && logFile.getName().contains(fileRankPostfix)) {
+            synchronized (postfixedLogFiles) {
+                postfixedLogFiles.add(logFile);
+            }
+        }
 
         return logFile;
     }
 
+    /**
+     * @return the log files that have been given the rank postfix (so a process coordinating
+     * several runs can find and combine them)
+     */
+    public static List<File> getPostfixedLogFiles() {
+        synchronized (postfixedLogFiles) {
+            return new ArrayList<File>(postfixedLogFiles);
+        }
+    }
+
     public Map<String, XMLObject> getObjectStore() {
         return objectStore;
     }
@@ -601,6 +617,8 @@ public class XMLParser {
 
     private boolean verbose = false;
 
+    private static final List<File> postfixedLogFiles = new ArrayList<File>();
+
     public static class Utils {
 
         /**
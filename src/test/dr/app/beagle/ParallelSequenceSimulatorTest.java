@@ -0,0 +1,142 @@
+/*
+ * ParallelSequenceSimulatorTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package test.dr.app.beagle;
+
+import dr.app.beagle.tools.ParallelSequenceSimulator;
+import dr.app.beagle.tools.Partition;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.inference.model.Parameter;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author agent
+ */
+public class ParallelSequenceSimulatorTest extends TraceCorrelationAssert {
+
+    private static final int SITE_COUNT = 100000;
+
+    public ParallelSequenceSimulatorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(new double[]{0.1, 0.2, 0.3, 0.4}));
+        hky = new HKY(new Parameter.Default(5.0), f);
+        siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+        siteRateModel.setSubstitutionModel(hky);
+
+        partitions = new ArrayList<Partition>();
+        partitions.add(new Partition(treeModel, new HomogeneousBranchModel(hky), siteRateModel,
+                new DefaultBranchRateModel(), f, 0, SITE_COUNT - 1, 1));
+    }
+
+    public void testThreadCountDoesNotChangeResult() throws Exception {
+        byte[] expected = simulate(1, SimpleAlignment.OutputType.FASTA);
+        assertTrue(Arrays.equals(expected, simulate(4, SimpleAlignment.OutputType.FASTA)));
+    }
+
+    public void testDistances() throws Exception {
+        Map<String, String> sequences = new LinkedHashMap<String, String>();
+        String[] lines = new String(simulate(3, SimpleAlignment.OutputType.FASTA), "US-ASCII").split("\n");
+        for (int i = 0; i < lines.length; i += 2) {
+            sequences.put(lines[i].substring(1).trim(), lines[i + 1]);
+        }
+        assertEquals(6, sequences.size());
+        for (String sequence : sequences.values()) {
+            assertEquals(SITE_COUNT, sequence.length());
+        }
+
+        assertEquals(getExpectedDifference(2 * 0.010772),
+                getDifference(sequences.get("chimp"), sequences.get("bonobo")), 0.005);
+        assertEquals(getExpectedDifference(2 * 0.099582),
+                getDifference(sequences.get("human"), sequences.get("siamang")), 0.01);
+    }
+
+    public void testNexus() throws Exception {
+        String nexus = new String(simulate(2, SimpleAlignment.OutputType.NEXUS), "US-ASCII");
+        assertTrue(nexus.startsWith("#NEXUS\nbegin data;\n\tdimensions ntax=6 nchar=" + SITE_COUNT + ";"));
+        assertTrue(nexus.endsWith(";\nend;"));
+    }
+
+    private byte[] simulate(int threadCount, SimpleAlignment.OutputType outputType) throws Exception {
+        File file = File.createTempFile("simulated", ".txt");
+        try {
+            new ParallelSequenceSimulator(partitions, threadCount, 1000, 666).simulate(file, outputType);
+            return Files.readAllBytes(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private double getExpectedDifference(double distance) {
+        double[] rates = siteRateModel.getCategoryRates();
+        double[] proportions = siteRateModel.getCategoryProportions();
+        double[] frequencies = hky.getFrequencyModel().getFrequencies();
+        double[] matrix = new double[16];
+        double same = 0.0;
+        for (int c = 0; c < rates.length; c++) {
+            hky.getTransitionProbabilities(distance * rates[c], matrix);
+            for (int i = 0; i < 4; i++) {
+                same += proportions[c] * frequencies[i] * matrix[i * 4 + i];
+            }
+        }
+        return 1.0 - same;
+    }
+
+    private static double getDifference(String sequence1, String sequence2) {
+        int count = 0;
+        for (int i = 0; i < sequence1.length(); i++) {
+            if (sequence1.charAt(i) != sequence2.charAt(i)) {
+                count++;
+            }
+        }
+        return (double) count / sequence1.length();
+    }
+
+    private HKY hky;
+    private GammaSiteRateModel siteRateModel;
+    private List<Partition> partitions;
+}
@@ -0,0 +1,262 @@
+package test.dr.app.beast;
+
+import dr.app.beast.ParserIndex;
+import dr.xml.*;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+/**
+ * Loads small parser lists through BeastParser with and without a parser index and checks that
+ * every element maps to the same parser either way, including element name collisions and the
+ * replacement of parsers by the list given with -Dparsers. An index which is missing or out of
+ * date must be ignored.
+ *
+ * BeastParser reads its lists as resources relative to its own class so each load is done in a
+ * new class loader which finds the lists written by the test before the rest of the class path.
+ *
+ * @author agent
+ */
+public class ParserIndexTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        directory = File.createTempFile("parsers", "");
+        directory.delete();
+        resourceDirectory = new File(directory, "dr/app/beast");
+        resourceDirectory.mkdirs();
+
+        releaseFile = new File(resourceDirectory, "release_parsers.properties");
+        releaseIndexFile = new File(resourceDirectory, "release_parsers.index");
+        extraFile = new File(resourceDirectory, "extra_parsers.properties");
+        extraIndexFile = new File(resourceDirectory, "extra_parsers.index");
+
+        writeFile(new File(resourceDirectory, "beast.properties"), "parsers=release\n");
+        writeFile(releaseFile, "# test parsers\n" +
+                AlphaParser.class.getName() + "\n" +
+                // collides with alpha on the element 'first'
+                BetaParser.class.getName() + "\n" +
+                // not a parser itself but holds one in a static field
+                ParserHolder.class.getName() + "\n" +
+                // cannot be loaded (or indexed)
+                "test.dr.app.beast.NoSuchParser\n");
+        // replaces alpha when loaded with -Dparsers=extra
+        writeFile(extraFile, GammaParser.class.getName() + "\n");
+    }
+
+    public void tearDown() throws Exception {
+        System.clearProperty("parsers");
+        delete(directory);
+        super.tearDown();
+    }
+
+    public void testIndexRoundTrip() throws Exception {
+        Map<String, Object> eager = loadParsers();
+        assertFalse(isLazy(eager.get("alpha")));
+
+        assertEquals(1, ParserIndex.write(releaseFile, releaseIndexFile));
+        Map<String, Object> indexed = loadParsers();
+        assertTrue(isLazy(indexed.get("alpha")));
+        assertTrue(isLazy(indexed.get("holder")));
+        // unlike alpha, which is loaded to report its collision with beta, holder is not loaded until used
+        assertFalse(isLoaded(indexed.get("holder")));
+
+        assertEquals(getParserClasses(eager), getParserClasses(indexed));
+
+        Map<String, String> classes = getParserClasses(indexed);
+        assertEquals(AlphaParser.class.getName(), classes.get("alpha"));
+        assertEquals(AlphaParser.class.getName(), classes.get("first"));
+        assertEquals(BetaParser.class.getName(), classes.get("beta"));
+        assertEquals(ParserHolder.PARSER.getClass().getName(), classes.get("holder"));
+        assertFalse(classes.containsKey("gamma"));
+    }
+
+    public void testParsersPropertyReplaces() throws Exception {
+        System.setProperty("parsers", "extra");
+        Map<String, String> eager = getParserClasses(loadParsers());
+
+        ParserIndex.write(releaseFile, releaseIndexFile);
+        assertEquals(0, ParserIndex.write(extraFile, extraIndexFile));
+        Map<String, Object> indexed = loadParsers();
+        assertTrue(isLazy(indexed.get("gamma")));
+
+        assertEquals(eager, getParserClasses(indexed));
+        assertEquals(GammaParser.class.getName(), eager.get("alpha"));
+        assertEquals(GammaParser.class.getName(), eager.get("gamma"));
+        assertEquals(AlphaParser.class.getName(), eager.get("first"));
+    }
+
+    public void testStaleIndex() throws Exception {
+        ParserIndex.write(releaseFile, releaseIndexFile);
+        writeFile(releaseFile, AlphaParser.class.getName() + "\n" + GammaParser.class.getName() + "\n");
+
+        Map<String, Object> parsers = loadParsers();
+        assertFalse(isLazy(parsers.get("first")));
+        assertFalse(isLazy(parsers.get("gamma")));
+        assertFalse(parsers.containsKey("beta"));
+    }
+
+    public void testMissingIndex() throws Exception {
+        ParserIndex.write(releaseFile, releaseIndexFile);
+        assertTrue(releaseIndexFile.delete());
+
+        Map<String, Object> parsers = loadParsers();
+        assertFalse(isLazy(parsers.get("alpha")));
+        assertFalse(isLazy(parsers.get("holder")));
+    }
+
+    public void testOutOfDateParser() {
+        LazyXMLObjectParser parser = new LazyXMLObjectParser(AlphaParser.class.getName(), null, "alpha",
+                new String[]{"alpha", "first"});
+        assertFalse(parser.isLoaded());
+        assertEquals("alpha", parser.getParserName());
+        assertTrue(parser.getParser() instanceof AlphaParser);
+        assertTrue(parser.isLoaded());
+
+        parser = new LazyXMLObjectParser(ParserHolder.class.getName(), "PARSER", "holder", new String[]{"holder"});
+        assertSame(ParserHolder.PARSER, parser.getParser());
+
+        parser = new LazyXMLObjectParser(AlphaParser.class.getName(), null, "alpha",
+                new String[]{"alpha", "omega"});
+        try {
+            parser.getParser();
+            fail("expected the index to be out of date");
+        } catch (RuntimeException re) {
+            assertTrue(re.getMessage().contains("index is out of date"));
+        }
+    }
+
+    /**
+     * Creates a BeastParser in a new class loader which finds the test parser lists first.
+     * @return the parsers registered for each element name
+     */
+    private Map<String, Object> loadParsers() throws Exception {
+        List<URL> urls = new ArrayList<URL>();
+        urls.add(directory.toURI().toURL());
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(new File(path).toURI().toURL());
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]),
+                ClassLoader.getSystemClassLoader().getParent());
+
+        Class<?> parserClass = loader.loadClass("dr.app.beast.BeastParser");
+        Object beastParser = parserClass.getConstructor(String[].class, List.class, boolean.class, boolean.class,
+                boolean.class, loader.loadClass("dr.util.Version"))
+                .newInstance(new String[0], null, false, false, true, null);
+
+        Method getParser = parserClass.getMethod("getParser", String.class);
+        Map<String, Object> parsers = new HashMap<String, Object>();
+        Iterator names = (Iterator) parserClass.getMethod("getParserNames").invoke(beastParser);
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            parsers.put(name, getParser.invoke(beastParser, name));
+        }
+        return parsers;
+    }
+
+    private Map<String, String> getParserClasses(Map<String, Object> parsers) throws Exception {
+        Map<String, String> classes = new HashMap<String, String>();
+        for (Map.Entry<String, Object> entry : parsers.entrySet()) {
+            Object parser = entry.getValue();
+            if (isLazy(parser)) {
+                parser = parser.getClass().getMethod("getParser").invoke(parser);
+            }
+            classes.put(entry.getKey(), parser.getClass().getName());
+        }
+        return classes;
+    }
+
+    private boolean isLazy(Object parser) {
+        return parser.getClass().getName().equals(LazyXMLObjectParser.class.getName());
+    }
+
+    private boolean isLoaded(Object parser) throws Exception {
+        return (Boolean) parser.getClass().getMethod("isLoaded").invoke(parser);
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        Writer writer = new FileWriter(file);
+        writer.write(contents);
+        writer.close();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static class AlphaParser extends TestParser {
+        public AlphaParser() {
+            super("alpha", "first");
+        }
+    }
+
+    public static class BetaParser extends TestParser {
+        public BetaParser() {
+            super("beta", "first");
+        }
+    }
+
+    public static class GammaParser extends TestParser {
+        public GammaParser() {
+            super("gamma", "alpha");
+        }
+    }
+
+    public static class ParserHolder {
+        public static final XMLObjectParser PARSER = new TestParser("holder") {
+        };
+    }
+
+    private static class TestParser extends AbstractXMLObjectParser {
+        TestParser(String... names) {
+            this.names = names;
+        }
+
+        public String getParserName() {
+            return names[0];
+        }
+
+        public String[] getParserNames() {
+            return names;
+        }
+
+        public Object parseXMLObject(XMLObject xo) {
+            return getParserName();
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return new XMLSyntaxRule[0];
+        }
+
+        public String getParserDescription() {
+            return "A parser for testing the parser index";
+        }
+
+        public Class getReturnType() {
+            return String.class;
+        }
+
+        private final String[] names;
+    }
+
+    private File directory;
+    private File resourceDirectory;
+    private File releaseFile;
+    private File releaseIndexFile;
+    private File extraFile;
+    private File extraIndexFile;
+}
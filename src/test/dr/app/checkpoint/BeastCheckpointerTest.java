@@ -0,0 +1,72 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.demographicmodel.ConstantPopulationModel;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.state.Factory;
+import dr.inference.state.StateLoaderSaver;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+/**
+ * Checks a text checkpoint of a model without any trees, which ends straight after the
+ * operators, reads back.
+ *
+ * @author agent
+ */
+public class BeastCheckpointerTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testModelWithoutTrees() throws Exception {
+        Parameter popSize = new Parameter.Default("checkpoint.popSize", 2.0);
+        ConstantPopulationModel model = new ConstantPopulationModel(popSize, Units.Type.YEARS);
+
+        ScaleOperator operator = new ScaleOperator(popSize, 0.5);
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(operator);
+        MarkovChain markovChain = new MarkovChain(new DummyLikelihood(model), schedule, null, 0, 0, 0.0,
+                false, false);
+
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+
+        new BeastCheckpointer();
+        StateLoaderSaver checkpointer = Factory.INSTANCE.getStateLoaderSaver(file, file);
+
+        operator.setAcceptCount(7);
+        operator.setRejectCount(3);
+        assertTrue(checkpointer.saveState(markovChain, 1000, -12.5));
+
+        String lastLine = null;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lastLine = line;
+        }
+        reader.close();
+        assertTrue(lastLine.startsWith("operator\t"));
+
+        popSize.setParameterValue(0, 5.0);
+        operator.setAcceptCount(0);
+        operator.setRejectCount(0);
+
+        double[] lnL = new double[1];
+        assertEquals(1000, checkpointer.loadState(markovChain, lnL));
+        assertEquals(-12.5, lnL[0]);
+        assertEquals(2.0, popSize.getParameterValue(0));
+        assertEquals(7, operator.getAcceptCount());
+        assertEquals(3, operator.getRejectCount());
+    }
+}
@@ -0,0 +1,215 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.BinaryCheckpoint;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @author agent
+ */
+public class BinaryCheckpointTest extends TestCase {
+
+    public void testFullRoundTrip() throws Exception {
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+
+        BinaryCheckpoint.Snapshot snapshot = createSnapshot(1000, 1.0);
+        new BinaryCheckpoint.Writer(1).write(file, snapshot);
+
+        assertTrue(BinaryCheckpoint.isBinaryCheckpoint(file));
+        assertSnapshotEquals(snapshot, BinaryCheckpoint.read(file));
+    }
+
+    public void testIncrementalRoundTrip() throws Exception {
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+        File base = baseFile(file, 1);
+
+        BinaryCheckpoint.Writer writer = new BinaryCheckpoint.Writer(3);
+
+        writer.write(file, createSnapshot(1000, 1.0));
+        long fullLength = base.length();
+
+        BinaryCheckpoint.Snapshot snapshot = createSnapshot(2000, 1.0);
+        snapshot.parameters.get(1).values[7] = Math.PI;
+        writer.write(file, snapshot);
+
+        assertTrue(file.length() < fullLength);
+        assertSnapshotEquals(snapshot, BinaryCheckpoint.read(file));
+
+        snapshot = createSnapshot(3000, 2.0);
+        writer.write(file, snapshot);
+        assertSnapshotEquals(snapshot, BinaryCheckpoint.read(file));
+
+        // the fourth save writes a new full base snapshot and then drops the old one
+        snapshot = createSnapshot(4000, 3.0);
+        writer.write(file, snapshot);
+        assertSnapshotEquals(snapshot, BinaryCheckpoint.read(file));
+        assertEquals(4000, BinaryCheckpoint.read(baseFile(file, 4)).state);
+        assertFalse(base.exists());
+    }
+
+    public void testFailureBetweenBaseAndCheckpoint() throws Exception {
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+
+        FailingWriter writer = new FailingWriter(2);
+        BinaryCheckpoint.Snapshot first = createSnapshot(1000, 1.0);
+        writer.write(file, first);
+        BinaryCheckpoint.Snapshot second = createSnapshot(2000, 2.0);
+        writer.write(file, second);
+
+        // the third save writes a new base and then fails before the checkpoint is replaced
+        writer.failCheckpoint = true;
+        try {
+            writer.write(file, createSnapshot(3000, 3.0));
+            fail("expected the checkpoint write to fail");
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertTrue(baseFile(file, 3).exists());
+        assertSnapshotEquals(second, BinaryCheckpoint.read(file));
+
+        // the next save uses the new base and only then deletes the one the old checkpoint used
+        writer.failCheckpoint = false;
+        BinaryCheckpoint.Snapshot fourth = createSnapshot(4000, 3.0);
+        writer.write(file, fourth);
+        assertSnapshotEquals(fourth, BinaryCheckpoint.read(file));
+        assertFalse(baseFile(file, 1).exists());
+    }
+
+    public void testResumeKeepsBase() throws Exception {
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+
+        BinaryCheckpoint.Writer writer = new BinaryCheckpoint.Writer(3);
+        writer.write(file, createSnapshot(1000, 1.0));
+        writer.write(file, createSnapshot(2000, 2.0));
+
+        // a resumed run starts a new writer which must not overwrite the base still in use
+        FailingWriter resumed = new FailingWriter(3);
+        resumed.failCheckpoint = true;
+        try {
+            resumed.write(file, createSnapshot(3000, 3.0));
+            fail("expected the checkpoint write to fail");
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertEquals(2000, BinaryCheckpoint.read(file).state);
+
+        resumed.failCheckpoint = false;
+        resumed.write(file, createSnapshot(4000, 3.0));
+        assertEquals(4000, BinaryCheckpoint.read(file).state);
+        assertFalse(baseFile(file, 1).exists());
+    }
+
+    /**
+     * Fails when writing the checkpoint file itself, after any new base snapshot has been written.
+     */
+    private static class FailingWriter extends BinaryCheckpoint.Writer {
+        FailingWriter(int fullSnapshotEvery) {
+            super(fullSnapshotEvery);
+        }
+
+        protected void writeFile(File file, byte[] contents) throws IOException {
+            if (failCheckpoint && !file.getName().contains(BinaryCheckpoint.BASE_FILE_SUFFIX)) {
+                throw new IOException("simulated failure");
+            }
+            super.writeFile(file, contents);
+        }
+
+        boolean failCheckpoint = false;
+    }
+
+    private static File baseFile(File file, int sequence) {
+        File base = new File(file.getPath() + BinaryCheckpoint.BASE_FILE_SUFFIX + "." + sequence);
+        base.deleteOnExit();
+        return base;
+    }
+
+    public void testTextRendering() throws Exception {
+        File file = File.createTempFile("checkpoint", ".state");
+        file.deleteOnExit();
+
+        new BinaryCheckpoint.Writer(1).write(file, createSnapshot(1000, 1.0));
+
+        BufferedReader in = BinaryCheckpoint.openAsText(file);
+        assertEquals("rng\t1\t2\t3", in.readLine());
+        assertEquals("state\t1000", in.readLine());
+        assertEquals("lnL\t-1234.5", in.readLine());
+        assertTrue(in.readLine().startsWith("parameter\tkappa\t1\t"));
+        in.close();
+    }
+
+    private BinaryCheckpoint.Snapshot createSnapshot(long state, double scale) {
+        BinaryCheckpoint.Snapshot snapshot = new BinaryCheckpoint.Snapshot();
+        snapshot.state = state;
+        snapshot.lnL = -1234.5;
+        snapshot.rngState = new int[] { 1, 2, 3 };
+
+        snapshot.parameters.add(new BinaryCheckpoint.ParameterState("kappa", new double[] { 2.0 * scale }));
+        double[] rates = new double[20];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = 0.1 * i;
+        }
+        snapshot.parameters.add(new BinaryCheckpoint.ParameterState("rates", rates));
+
+        BinaryCheckpoint.OperatorState operator = new BinaryCheckpoint.OperatorState();
+        operator.name = "scale(kappa)";
+        operator.acceptCount = state / 4;
+        operator.rejectCount = state - operator.acceptCount;
+        operator.adaptable = true;
+        operator.adaptableParameter = 0.75;
+        operator.adaptationCount = state;
+        snapshot.operators.add(operator);
+
+        BinaryCheckpoint.TreeState tree = new BinaryCheckpoint.TreeState();
+        tree.name = "treeModel";
+        tree.nodeHeights = new double[] { 0.0, 0.0, 0.0, 1.0 * scale, 2.0 * scale };
+        tree.taxa = new String[] { "A", "B", "C" };
+        tree.parents = new int[] { 3, 3, 4, 4, -1 };
+        tree.childOrder = new int[] { 0, 1, 0, 1, -1 };
+        tree.traitValues = new double[][] { { 1, 2, 3, 4, 0 } };
+        snapshot.trees.add(tree);
+
+        return snapshot;
+    }
+
+    private void assertSnapshotEquals(BinaryCheckpoint.Snapshot expected, BinaryCheckpoint.Snapshot actual) {
+        assertEquals(expected.state, actual.state);
+        assertEquals(expected.lnL, actual.lnL);
+        assertTrue(java.util.Arrays.equals(expected.rngState, actual.rngState));
+
+        assertEquals(expected.parameters.size(), actual.parameters.size());
+        for (int i = 0; i < expected.parameters.size(); i++) {
+            assertEquals(expected.parameters.get(i).name, actual.parameters.get(i).name);
+            assertTrue(java.util.Arrays.equals(expected.parameters.get(i).values, actual.parameters.get(i).values));
+        }
+
+        assertEquals(expected.operators.size(), actual.operators.size());
+        for (int i = 0; i < expected.operators.size(); i++) {
+            BinaryCheckpoint.OperatorState e = expected.operators.get(i);
+            BinaryCheckpoint.OperatorState a = actual.operators.get(i);
+            assertEquals(e.name, a.name);
+            assertEquals(e.acceptCount, a.acceptCount);
+            assertEquals(e.rejectCount, a.rejectCount);
+            assertEquals(e.adaptableParameter, a.adaptableParameter);
+            assertEquals(e.adaptationCount, a.adaptationCount);
+        }
+
+        assertEquals(expected.trees.size(), actual.trees.size());
+        for (int i = 0; i < expected.trees.size(); i++) {
+            BinaryCheckpoint.TreeState e = expected.trees.get(i);
+            BinaryCheckpoint.TreeState a = actual.trees.get(i);
+            assertEquals(e.name, a.name);
+            assertTrue(java.util.Arrays.equals(e.nodeHeights, a.nodeHeights));
+            assertTrue(java.util.Arrays.equals(e.taxa, a.taxa));
+            assertTrue(java.util.Arrays.equals(e.parents, a.parents));
+            assertTrue(java.util.Arrays.equals(e.childOrder, a.childOrder));
+            assertTrue(java.util.Arrays.deepEquals(e.traitValues, a.traitValues));
+        }
+    }
+}
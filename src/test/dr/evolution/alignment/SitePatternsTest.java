@@ -0,0 +1,123 @@
+package test.dr.evolution.alignment;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the hash indexed (and multithreaded) compression of sites into patterns gives the same
+ * patterns, in the same order and with the same weights, as comparing each site with every pattern.
+ *
+ * @author agent
+ */
+public class SitePatternsTest extends TestCase {
+
+    private static final String STATES = "ACGT-NR";
+
+    public SitePatternsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Random random = new Random(1234);
+        alignment = new SimpleAlignment();
+        for (int i = 0; i < 12; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 5000; j++) {
+                // mostly invariant columns so there are plenty of repeated patterns
+                if (random.nextDouble() < 0.9) {
+                    sb.append(STATES.charAt(j % STATES.length()));
+                } else {
+                    sb.append(STATES.charAt(random.nextInt(STATES.length())));
+                }
+            }
+            Sequence sequence = new Sequence(new Taxon("taxon" + i), sb.toString());
+            sequence.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(sequence);
+        }
+    }
+
+    public void testSequentialPatterns() {
+        checkPatterns(new SitePatterns(alignment, null, 0, -1, 1, true, true, null, 1), true);
+        checkPatterns(new SitePatterns(alignment, null, 0, -1, 1, false, true, null, 1), false);
+    }
+
+    public void testParallelPatterns() {
+        checkPatterns(new SitePatterns(alignment, null, 0, -1, 1, true, true, null, 4), true);
+        checkPatterns(new SitePatterns(alignment, null, 0, -1, 1, false, true, null, 3), false);
+    }
+
+    public void testConstantSiteCounts() {
+        int[] constantSiteCounts = new int[] { 10, 20, 30, 40 };
+        SitePatterns sequential = new SitePatterns(alignment, null, 0, -1, 1, true, true, constantSiteCounts, 1);
+        SitePatterns parallel = new SitePatterns(alignment, null, 0, -1, 1, true, true, constantSiteCounts, 4);
+
+        assertEquals(sequential.getPatternCount(), parallel.getPatternCount());
+        assertEquals(sequential.getInvariantCount(), parallel.getInvariantCount());
+        for (int i = 0; i < sequential.getPatternCount(); i++) {
+            assertTrue(Arrays.equals(sequential.getPattern(i), parallel.getPattern(i)));
+            assertEquals(sequential.getPatternWeight(i), parallel.getPatternWeight(i), 0.0);
+        }
+        for (int i = 0; i < sequential.getSiteCount(); i++) {
+            assertEquals(sequential.getPatternIndex(i), parallel.getPatternIndex(i));
+        }
+    }
+
+    private void checkPatterns(SitePatterns patterns, boolean strip) {
+        List<int[]> expectedPatterns = new ArrayList<int[]>();
+        List<Double> expectedWeights = new ArrayList<Double>();
+
+        for (int i = 0; i < alignment.getSiteCount(); i++) {
+            int[] pattern = alignment.getSitePattern(i);
+            int index = -1;
+            if (!strip || !isStripped(pattern)) {
+                index = indexOf(expectedPatterns, pattern);
+                if (index == -1) {
+                    index = expectedPatterns.size();
+                    expectedPatterns.add(pattern);
+                    expectedWeights.add(0.0);
+                }
+                expectedWeights.set(index, expectedWeights.get(index) + 1.0);
+            }
+            assertEquals(index, patterns.getPatternIndex(i));
+        }
+
+        assertEquals(expectedPatterns.size(), patterns.getPatternCount());
+        for (int i = 0; i < expectedPatterns.size(); i++) {
+            assertTrue(Arrays.equals(expectedPatterns.get(i), patterns.getPattern(i)));
+            assertEquals(expectedWeights.get(i), patterns.getPatternWeight(i), 0.0);
+        }
+    }
+
+    private boolean isStripped(int[] pattern) {
+        for (int state : pattern) {
+            if (state != pattern[0]) {
+                return false;
+            }
+        }
+        return Nucleotides.INSTANCE.isAmbiguousState(pattern[0]) ||
+                Nucleotides.INSTANCE.isGapState(pattern[0]) ||
+                Nucleotides.INSTANCE.isUnknownState(pattern[0]);
+    }
+
+    private static int indexOf(List<int[]> patterns, int[] pattern) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (Arrays.equals(patterns.get(i), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private SimpleAlignment alignment;
+}
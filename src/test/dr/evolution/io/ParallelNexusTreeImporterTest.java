@@ -0,0 +1,190 @@
+package test.dr.evolution.io;
+
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelNexusTreeImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Checks that trees read on several threads are the same, and in the same order, as those
+ * read by the NexusImporter.
+ *
+ * @author agent
+ */
+public class ParallelNexusTreeImporterTest extends TestCase {
+
+    public void testSameTrees() throws Exception {
+        String nexus = createTreeFile(101);
+
+        for (boolean ignoreMetaComments : new boolean[] { true, false }) {
+            TreeImporter expected = new NexusImporter(new StringReader(nexus), ignoreMetaComments);
+            TreeImporter actual = new ParallelNexusTreeImporter(new StringReader(nexus), ignoreMetaComments, 3, 4);
+
+            assertEquals(101, compareTrees(expected, actual));
+        }
+    }
+
+    public void testAnnotatedTrees() throws Exception {
+        // untranslated and quoted taxa, labels, polytomies, tree comments, weights and a root branch
+        String nexus = "#NEXUS\n\nBegin trees;\n" +
+                "tree TREE1 [&lnP=-123.5,posterior=-130.25] = [&W 0.5] ((A[&height=1.0]:1.0,'B c'[&height=1.0]:1.0)0.95:0.5[&rate=2.0],C:1.5,D:1.5)[&set={1,2}]:0.0[&length=0.0];\n" +
+                "tree TREE2 = [&R] [a comment] ((C:0.25,A:0.25):1.0[&rate=0.5][&colour=red],('B c':0.75,D:-0.1):0.5);\n" +
+                "End;\n";
+
+        for (boolean ignoreMetaComments : new boolean[] { true, false }) {
+            TreeImporter expected = new NexusImporter(new StringReader(nexus), ignoreMetaComments);
+            TreeImporter actual = new ParallelNexusTreeImporter(new StringReader(nexus), ignoreMetaComments, 2, 1);
+            assertEquals(2, compareTrees(expected, actual));
+        }
+    }
+
+    public void testCommentAfterStatement() throws Exception {
+        checkSameTrees("#NEXUS\nBegin trees;\n" +
+                "tree t1 = ((A:1,B:1):1,C:2); [c]\n" +
+                "tree t2 = ((A:1,C:1):1,B:2);\n" +
+                "End;\n", 2);
+    }
+
+    public void testStatementsOnOneLine() throws Exception {
+        checkSameTrees("#NEXUS\nBegin trees;\n" +
+                "tree t1 = ((A:1,B:1):1,C:2); tree t2 = ((A:1,C:1):1,B:2);tree t3 = ((B:1,C:1):1,A:2);\n" +
+                "End;\n", 3);
+    }
+
+    public void testBeginTreesWithTab() throws Exception {
+        checkSameTrees("#NEXUS\nbegin\ttrees;\n" +
+                "\ttree t1 = ((A:1,B:1):1,C:2);\n" +
+                "\ttree t2 = ((A:1,C:1):1,B:2);\n" +
+                "end;\n", 2);
+        checkSameTrees("#NEXUS\nBEGIN  TREES ;\n" +
+                "\tTREE t1 = ((A:1,B:1):1,C:2);\n" +
+                "END;\n", 1);
+    }
+
+    public void testSemicolonsAtLineEndsInValues() throws Exception {
+        // a line ending in ';' inside a meta-comment, a quoted taxon and a nested comment
+        checkSameTrees("#NEXUS\nBegin trees;\n" +
+                "tree t1 = [&note=\"a;\nb\"] ((A[&x=1;\n]:1,'B;\nC':1):1,D:2);\n" +
+                "tree t2 = ((A:1,'it''s;':1):1,D:2) [outer [inner;\n] comment;\n];\n" +
+                "tree t3 = ((A:1,D:1):1,'B;\nC':2);\n" +
+                "End;\n", 3);
+    }
+
+    private void checkSameTrees(String nexus, int treeCount) throws Exception {
+        for (boolean ignoreMetaComments : new boolean[] { true, false }) {
+            for (int blockSize : new int[] { 1, 64 }) {
+                TreeImporter expected = new NexusImporter(new StringReader(nexus), ignoreMetaComments);
+                TreeImporter actual = new ParallelNexusTreeImporter(new StringReader(nexus), ignoreMetaComments, 2, blockSize);
+                assertEquals(treeCount, compareTrees(expected, actual));
+            }
+        }
+    }
+
+    private int compareTrees(TreeImporter expected, TreeImporter actual) throws Exception {
+        int count = 0;
+        while (expected.hasTree()) {
+            assertTrue(actual.hasTree());
+            Tree tree1 = expected.importNextTree();
+            Tree tree2 = actual.importNextTree();
+
+            assertEquals(tree1.getId(), tree2.getId());
+            assertEquals(TreeUtils.newick(tree1), TreeUtils.newick(tree2));
+            assertEquals(getAttributes(tree1.getAttributeNames(), tree1), getAttributes(tree2.getAttributeNames(), tree2));
+            assertEquals(tree1.getRoot().getNumber(), tree2.getRoot().getNumber());
+            for (int i = 0; i < tree1.getNodeCount(); i++) {
+                NodeRef node1 = tree1.getNode(i);
+                NodeRef node2 = tree2.getNode(i);
+                assertEquals(tree1.getNodeTaxon(node1), tree2.getNodeTaxon(node2));
+                assertEquals(tree1.getNodeHeight(node1), tree2.getNodeHeight(node2), 0.0);
+                assertEquals(getNodeAttributes(tree1, node1), getNodeAttributes(tree2, node2));
+                if (!tree1.isRoot(node1)) {
+                    assertEquals(tree1.getParent(node1).getNumber(), tree2.getParent(node2).getNumber());
+                }
+            }
+            count++;
+        }
+        assertFalse(actual.hasTree());
+        return count;
+    }
+
+    private static Map<String, String> getNodeAttributes(Tree tree, NodeRef node) {
+        Map<String, String> attributes = new TreeMap<String, String>();
+        Iterator names = tree.getNodeAttributeNames(node);
+        if (names != null) {
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                attributes.put(name, toString(tree.getNodeAttribute(node, name)));
+            }
+        }
+        return attributes;
+    }
+
+    private static Map<String, String> getAttributes(Iterator<String> names, Tree tree) {
+        Map<String, String> attributes = new TreeMap<String, String>();
+        if (names != null) {
+            while (names.hasNext()) {
+                String name = names.next();
+                attributes.put(name, toString(tree.getAttribute(name)));
+            }
+        }
+        return attributes;
+    }
+
+    private static String toString(Object value) {
+        return (value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+    }
+
+    public void testNoTrees() throws Exception {
+        String nexus = "#NEXUS\n\nBegin trees;\nEnd;\n";
+        TreeImporter importer = new ParallelNexusTreeImporter(new StringReader(nexus), true, 2);
+        assertFalse(importer.hasTree());
+        assertNull(importer.importNextTree());
+    }
+
+    private String createTreeFile(int treeCount) {
+        Random random = new Random(42);
+        String[] taxa = { "A", "B", "C", "D", "E", "F" };
+
+        StringBuilder sb = new StringBuilder("#NEXUS\n\nBegin taxa;\n\tDimensions ntax=6;\n\tTaxlabels\n");
+        for (String taxon : taxa) {
+            sb.append("\t\t").append(taxon).append("\n");
+        }
+        sb.append("\t\t;\nEnd;\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < taxa.length; i++) {
+            sb.append("\t\t").append(i + 1).append(" ").append(taxa[i]).append(i < taxa.length - 1 ? ",\n" : "\n");
+        }
+        sb.append("\t\t;\n");
+
+        for (int k = 0; k < treeCount; k++) {
+            String subtree = Integer.toString(random.nextInt(taxa.length) + 1);
+            double height = 0.0;
+            boolean[] used = new boolean[taxa.length];
+            used[Integer.parseInt(subtree) - 1] = true;
+            for (int j = 1; j < taxa.length; j++) {
+                int tip;
+                do {
+                    tip = random.nextInt(taxa.length);
+                } while (used[tip]);
+                used[tip] = true;
+                double length = random.nextDouble();
+                subtree = "(" + subtree + ":" + (length) + "," + (tip + 1) + ":" + (height + length) + ")" +
+                        "[&rate=" + random.nextDouble() + "]";
+                height += length;
+            }
+            sb.append("tree STATE_").append(k * 1000).append(" = [&R] ").append(subtree).append(";\n");
+            if (k == 50) {
+                // a statement over several lines
+                sb.append("tree STATE_extra = [&R] ((1:1.0,2:1.0):1.0,\n(3:1.5,(4:1.0,(5:0.5,6:0.5):0.5):0.5):0.5);\n");
+                k++;
+            }
+        }
+        sb.append("End;\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package test.dr.evolution.sequence;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.AminoAcids;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import junit.framework.TestCase;
+
+/**
+ * Checks packed sequences give the same characters and states as unpacked ones and can
+ * still be changed.
+ *
+ * @author agent
+ */
+public class SequenceTest extends TestCase {
+
+    public SequenceTest(String name) {
+        super(name);
+    }
+
+    public void testPackedNucleotides() {
+        checkPacked("ACGTTGCAACGTACGT", Nucleotides.INSTANCE);
+        checkPacked("ACGT-NRYU?ACGTKM", Nucleotides.INSTANCE);
+    }
+
+    public void testPackedAminoAcids() {
+        checkPacked("ACDEFGHIKLMNPQRSTVWYBZX-?", AminoAcids.INSTANCE);
+    }
+
+    public void testChangingPackedSequence() {
+        Sequence sequence = new Sequence(new Taxon("taxon"), "ACGTACGT");
+        sequence.setDataType(Nucleotides.INSTANCE);
+        sequence.pack();
+        assertTrue(sequence.isPacked());
+
+        sequence.setState(1, Nucleotides.GAP_STATE);
+        sequence.appendSequenceString("NN");
+        assertFalse(sequence.isPacked());
+        assertEquals("A-GTACGTNN", sequence.getSequenceString());
+
+        sequence.pack();
+        assertEquals("A-GTACGTNN", sequence.getSequenceString());
+        assertEquals(Nucleotides.INSTANCE.getState('N'), sequence.getState(9));
+    }
+
+    public void testSubclassesAreNotPacked() {
+        // subclasses may read the protected sequenceString so it must stay in place
+        Sequence sequence = new Sequence(new Taxon("taxon"), "ACGTACGT") {
+            public String getSequenceString() {
+                return sequenceString.toString();
+            }
+        };
+        sequence.setDataType(Nucleotides.INSTANCE);
+        sequence.pack();
+        assertFalse(sequence.isPacked());
+        assertEquals("ACGTACGT", sequence.getSequenceString());
+    }
+
+    public void testAlignmentPacksSequences() {
+        SimpleAlignment alignment = new SimpleAlignment();
+        Sequence sequence1 = new Sequence(new Taxon("taxon1"), "ACGTACGT");
+        Sequence sequence2 = new Sequence(new Taxon("taxon2"), "ACGTA");
+        alignment.addSequence(sequence1);
+        alignment.addSequence(sequence2);
+
+        assertTrue(sequence1.isPacked());
+        assertTrue(sequence2.isPacked());
+
+        int[][] patterns = new int[3][2];
+        alignment.getSitePatterns(2, 2, patterns, 3);
+        for (int i = 0; i < 3; i++) {
+            int[] pattern = alignment.getSitePattern(2 + (i * 2));
+            assertEquals(pattern[0], patterns[i][0]);
+            assertEquals(pattern[1], patterns[i][1]);
+        }
+        assertEquals(Nucleotides.GAP_STATE, patterns[2][1]);
+    }
+
+    private void checkPacked(String string, DataType dataType) {
+        Sequence unpacked = new Sequence(new Taxon("taxon"), string);
+        unpacked.setDataType(dataType);
+        Sequence packed = new Sequence(new Taxon("taxon"), string);
+        packed.setDataType(dataType);
+        packed.pack();
+
+        assertTrue(packed.isPacked());
+        assertEquals(unpacked.getLength(), packed.getLength());
+        assertEquals(unpacked.getSequenceString(), packed.getSequenceString());
+        for (int i = 0; i < unpacked.getLength(); i++) {
+            assertEquals(unpacked.getChar(i), packed.getChar(i));
+            assertEquals(unpacked.getState(i), packed.getState(i));
+        }
+        assertEquals(unpacked.getInvalidChar(), packed.getInvalidChar());
+    }
+}
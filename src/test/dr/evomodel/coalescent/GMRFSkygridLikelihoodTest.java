@@ -0,0 +1,161 @@
+/*
+ * GMRFSkygridLikelihoodTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.coalescent.IntervalList;
+import dr.evolution.io.NewickImporter;
+import dr.evomodel.coalescent.GMRFSkygridLikelihood;
+import dr.evomodel.coalescent.TreeIntervals;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.inference.model.MatrixParameter;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author agent
+ */
+public class GMRFSkygridLikelihoodTest extends TestCase {
+
+    private static final int FIELD_LENGTH = 5;
+
+    private Parameter popSizes;
+    private Parameter precision;
+    private Parameter lambda;
+    private Parameter beta;
+    private MatrixParameter covariate;
+    private GMRFSkygridLikelihood skygrid;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NewickImporter importer = new NewickImporter("((A:1.0,B:1.0):1.0,(C:0.5,(D:0.25,E:0.25):0.25):1.5);");
+        DefaultTreeModel tree = new DefaultTreeModel(importer.importTree(null));
+        List<IntervalList> intervalsList = new ArrayList<IntervalList>();
+        intervalsList.add(new TreeIntervals(tree, null, null));
+
+        popSizes = new Parameter.Default(new double[]{0.3, -0.2, 0.5, 1.1, 0.7});
+        precision = new Parameter.Default(1.7);
+        lambda = new Parameter.Default(1.0);
+        beta = new Parameter.Default(new double[]{0.4, -0.8});
+
+        Parameter[] columns = new Parameter[FIELD_LENGTH];
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            columns[i] = new Parameter.Default(new double[]{0.1 * i, Math.sin(i)});
+        }
+        covariate = new MatrixParameter("covariate", columns);
+
+        List<MatrixParameter> covariates = new ArrayList<MatrixParameter>();
+        covariates.add(covariate);
+        List<Parameter> betaList = new ArrayList<Parameter>();
+        betaList.add(beta);
+
+        skygrid = new GMRFSkygridLikelihood(intervalsList, popSizes, null, precision, lambda,
+                null, null, false, new Parameter.Default(new double[]{0.5, 1.0, 1.5, 2.5}),
+                covariates, new Parameter.Default(1.0), null, null, null, null, null, null, betaList);
+    }
+
+    public void testFieldDensity() {
+        checkFieldDensityDifference();
+
+        // a change to a covariate rather than a coefficient
+        covariate.setParameterValue(1, 3, 0.9);
+        checkFieldDensityDifference();
+
+        lambda.setParameterValue(0, 0.6);
+        checkFieldDensityDifference();
+    }
+
+    /**
+     * The coalescent part doesn't depend on the coefficients so changes in the log likelihood as they
+     * change should match the field density computed from the MTJ weight matrix.
+     */
+    private void checkFieldDensityDifference() {
+        double[] before = beta.getParameterValues();
+        double logLikelihoodBefore = skygrid.getLogLikelihood();
+
+        for (int step = 0; step < 5; step++) {
+            beta.setParameterValue(step % 2, beta.getParameterValue(step % 2) + 0.37);
+            double difference = skygrid.getLogLikelihood() - logLikelihoodBefore;
+            double expected = getFieldDensity(beta.getParameterValues()) - getFieldDensity(before);
+            assertEquals(expected, difference, 1E-10);
+        }
+    }
+
+    private double getFieldDensity(double[] coefficients) {
+        DenseVector x = new DenseVector(FIELD_LENGTH);
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            double effect = 0.0;
+            for (int j = 0; j < coefficients.length; j++) {
+                effect += covariate.getParameterValue(j, i) * coefficients[j];
+            }
+            x.set(i, popSizes.getParameterValue(i) - effect);
+        }
+        SymmTridiagMatrix Q = skygrid.getScaledWeightMatrix(precision.getParameterValue(0), lambda.getParameterValue(0));
+        DenseVector Qx = new DenseVector(FIELD_LENGTH);
+        Q.mult(x, Qx);
+        return -0.5 * x.dot(Qx);
+    }
+
+    public void testGradientAndHessian() {
+        final double h = 1E-5;
+
+        double[] gradient = skygrid.getGradientLogDensity();
+        double[] diagonal = skygrid.getDiagonalHessianLogDensity();
+        double[][] hessian = skygrid.getHessianLogDensity();
+
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            double value = popSizes.getParameterValue(i);
+
+            popSizes.setParameterValue(i, value + h);
+            double logLikelihoodPlus = skygrid.getLogLikelihood();
+            double gradientPlus = skygrid.getGradientLogDensity()[i];
+            popSizes.setParameterValue(i, value - h);
+            double logLikelihoodMinus = skygrid.getLogLikelihood();
+            double gradientMinus = skygrid.getGradientLogDensity()[i];
+            popSizes.setParameterValue(i, value);
+
+            assertEquals((logLikelihoodPlus - logLikelihoodMinus) / (2 * h), gradient[i], 1E-6);
+            assertEquals((gradientPlus - gradientMinus) / (2 * h), diagonal[i], 1E-6);
+            assertEquals(diagonal[i], hessian[i][i], 0.0);
+        }
+
+        double[] v = new double[]{1.0, -2.0, 0.5, 3.0, -1.5};
+        double[] product = new double[FIELD_LENGTH];
+        skygrid.getHessianVectorProduct(v, product);
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            double expected = 0.0;
+            for (int j = 0; j < FIELD_LENGTH; j++) {
+                expected += hessian[i][j] * v[j];
+            }
+            assertEquals(expected, product[i], 1E-12);
+        }
+    }
+}
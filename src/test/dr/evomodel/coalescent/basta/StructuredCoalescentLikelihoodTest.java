@@ -0,0 +1,194 @@
+package test.dr.evomodel.coalescent.basta;
+
+import dr.evolution.alignment.SimpleSiteList;
+import dr.evolution.datatype.GeneralDataType;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.coalescent.basta.StructuredCoalescentLikelihood;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.NodeHeightOperator;
+import dr.evomodel.operators.SubtreeLeapOperator;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SVSComplexSubstitutionModel;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Runs the structured coalescent likelihood through random tree, population size, migration rate and clock
+ * rate moves, accepted or restored at random, and checks its incremental log likelihood and MAP ancestral
+ * states against those of a second likelihood which is made dirty and computed from scratch each time.
+ *
+ * @author agent
+ */
+public class StructuredCoalescentLikelihoodTest extends TestCase {
+
+    private static final int ITERATIONS = 1000;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+        Logger.getLogger("dr").setUseParentHandlers(false);
+    }
+
+    public void testIncrementalLikelihood() throws Exception {
+        checkIncrementalLikelihood(6, 2);
+        checkIncrementalLikelihood(24, 3);
+        checkIncrementalLikelihood(80, 4);
+    }
+
+    private void checkIncrementalLikelihood(int tipCount, int demeCount) throws Exception {
+        List<String> demes = new ArrayList<String>();
+        for (int i = 0; i < demeCount; i++) {
+            demes.add("deme" + i);
+        }
+        GeneralDataType dataType = new GeneralDataType(demes);
+
+        TreeModel tree = new DefaultTreeModel(new NewickImporter(randomNewick(tipCount)).importTree(null));
+
+        Taxa taxa = new Taxa();
+        int[] pattern = new int[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            taxa.addTaxon(new Taxon("t" + i));
+            pattern[i] = MathUtils.nextInt(demeCount);
+        }
+        SimpleSiteList patterns = new SimpleSiteList(dataType, taxa);
+        patterns.addPattern(pattern);
+
+        Parameter popSizes = new Parameter.Default("popSizes", demeCount, 1.0);
+        Parameter rates = new Parameter.Default("rates", demeCount * (demeCount - 1), 1.0);
+        Parameter clockRate = new Parameter.Default("clock.rate", 1.0);
+        StructuredCoalescentLikelihood likelihood = createLikelihood(tree, patterns, dataType, popSizes, rates, clockRate);
+        // stored and restored alongside, so its migration model follows the rates, but computed from scratch
+        StructuredCoalescentLikelihood reference = createLikelihood(tree, patterns, dataType, popSizes, rates, clockRate);
+
+        SimpleMCMCOperator[] operators = {
+                new SubtreeLeapOperator(tree, 1.0, 0.5, SubtreeLeapOperator.DistanceKernelType.NORMAL,
+                        AdaptationMode.ADAPTATION_OFF, 0.2),
+                new NodeHeightOperator(tree, 1.0, 1.0, NodeHeightOperator.OperatorType.UNIFORM,
+                        AdaptationMode.ADAPTATION_OFF, 0.25),
+                new NodeHeightOperator(tree, 1.0, 0.75, NodeHeightOperator.OperatorType.SCALEROOT,
+                        AdaptationMode.ADAPTATION_OFF, 0.25),
+                new ExchangeOperator(ExchangeOperator.NARROW, tree, 1.0)
+        };
+
+        check(likelihood, reference, tree, -1);
+
+        int accepted = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            likelihood.storeModelState();
+            reference.storeModelState();
+
+            int move = MathUtils.nextInt(operators.length + 3);
+            if (move < operators.length) {
+                operators[move].doOperation();
+            } else if (move == operators.length) {
+                scale(popSizes, MathUtils.nextInt(demeCount));
+            } else if (move == operators.length + 1) {
+                scale(rates, MathUtils.nextInt(rates.getDimension()));
+            } else {
+                scale(clockRate, 0);
+            }
+
+            check(likelihood, reference, tree, i);
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.acceptModelState();
+                reference.acceptModelState();
+                accepted++;
+            } else {
+                likelihood.restoreModelState();
+                reference.restoreModelState();
+                check(likelihood, reference, tree, i);
+            }
+        }
+        assertTrue(accepted > 0 && accepted < ITERATIONS);
+    }
+
+    private void check(StructuredCoalescentLikelihood likelihood, StructuredCoalescentLikelihood reference,
+                       TreeModel tree, int iteration) {
+        reference.makeDirty();
+        double expected = reference.getLogLikelihood();
+        double actual = likelihood.getLogLikelihood();
+        assertFalse(Double.isNaN(expected));
+        assertEquals("iteration " + iteration, expected, actual, 1E-10 * Math.max(1.0, Math.abs(expected)));
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            assertTrue("iteration " + iteration, Arrays.equals(reference.getStatesForNode(tree, node), likelihood.getStatesForNode(tree, node)));
+        }
+    }
+
+    private StructuredCoalescentLikelihood createLikelihood(TreeModel tree, SimpleSiteList patterns,
+                                                            GeneralDataType dataType, Parameter popSizes,
+                                                            Parameter rates, Parameter clockRate) throws Exception {
+        double[] frequencies = new double[dataType.getStateCount()];
+        Arrays.fill(frequencies, 1.0 / frequencies.length);
+        SVSComplexSubstitutionModel migrationModel = new SVSComplexSubstitutionModel("migrationModel", dataType,
+                new FrequencyModel(dataType, frequencies), rates, null);
+
+        return new StructuredCoalescentLikelihood(tree, new StrictClockBranchRates(clockRate), popSizes, patterns,
+                null, "", migrationModel, 2, null, new ArrayList<TaxonList>(), true);
+    }
+
+    private void scale(Parameter parameter, int index) {
+        parameter.setParameterValue(index,
+                parameter.getParameterValue(index) * Math.exp(0.5 * (MathUtils.nextDouble() - 0.5)));
+    }
+
+    /**
+     * A random coalescent-like tree with tips sampled at different times.
+     */
+    private String randomNewick(int tipCount) {
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        double[] tipHeights = new double[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            tipHeights[i] = (i == 0 ? 0.0 : MathUtils.nextInt(4) * 0.25 * MathUtils.nextDouble());
+        }
+
+        Integer[] sorted = new Integer[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(tipHeights[a], tipHeights[b]));
+
+        double time = 0.0;
+        int next = 0;
+
+        while (next < tipCount || lineages.size() > 1) {
+            double nextSample = (next < tipCount ? tipHeights[sorted[next]] : Double.POSITIVE_INFINITY);
+            double nextCoalescent = (lineages.size() > 1 ?
+                    time + MathUtils.nextExponential(lineages.size() * (lineages.size() - 1) / 2.0) :
+                    Double.POSITIVE_INFINITY);
+            if (nextSample <= nextCoalescent) {
+                time = Math.max(time, nextSample);
+                lineages.add("t" + sorted[next]);
+                heights.add(tipHeights[sorted[next]]);
+                next++;
+            } else {
+                time = nextCoalescent;
+                int a = MathUtils.nextInt(lineages.size());
+                String left = lineages.remove(a) + ":" + (time - heights.remove(a));
+                int b = MathUtils.nextInt(lineages.size());
+                String right = lineages.remove(b) + ":" + (time - heights.remove(b));
+                lineages.add("(" + left + "," + right + ")");
+                heights.add(time);
+            }
+        }
+        return lineages.get(0) + ";";
+    }
+}
@@ -0,0 +1,220 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.TransitionMatrixCache;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.model.Parameter;
+import dr.oldevomodel.sitemodel.GammaSiteModel;
+import dr.oldevomodel.treelikelihood.TreeLikelihood;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+/**
+ * @author agent
+ */
+public class JavaDataLikelihoodDelegateTest extends TraceCorrelationAssert {
+
+    public JavaDataLikelihoodDelegateTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+
+        patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        Parameter freqs = new Parameter.Default(new double[]{0.3, 0.2, 0.25, 0.25});
+        kappa = new Parameter.Default(2.5);
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, freqs);
+        HKY hky = new HKY(kappa, f);
+
+        siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+        siteRateModel.setSubstitutionModel(hky);
+        alpha = siteRateModel.getAlphaParameter();
+
+        branchModel = new HomogeneousBranchModel(hky);
+        branchRateModel = new StrictClockBranchRates(new Parameter.Default(1.0));
+    }
+
+    public void testMatchesPruning() {
+
+        double expected = getPruningLogLikelihood();
+
+        for (int threadCount : new int[]{1, 4}) {
+            double logLikelihood = getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                    siteRateModel, false, PartialsRescalingScheme.NONE, false, threadCount));
+            assertEquals("threads = " + threadCount, expected, logLikelihood, 1E-8);
+        }
+    }
+
+    public void testMatchesTreeLikelihood() {
+
+        // the original Java likelihood core, built on the old substitution and site models
+        dr.oldevomodel.substmodel.FrequencyModel f = new dr.oldevomodel.substmodel.FrequencyModel(
+                Nucleotides.INSTANCE, new Parameter.Default(new double[]{0.3, 0.2, 0.25, 0.25}));
+        dr.oldevomodel.substmodel.HKY hky = new dr.oldevomodel.substmodel.HKY(new Parameter.Default(2.5), f);
+        GammaSiteModel siteModel = new GammaSiteModel(hky, 0.5, 4);
+        TreeLikelihood treeLikelihood = new TreeLikelihood(patterns, treeModel, siteModel, branchRateModel, null,
+                false, false, true, true, false);
+
+        double expected = treeLikelihood.getLogLikelihood();
+        double logLikelihood = getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                siteRateModel, false, PartialsRescalingScheme.NONE, false, 2));
+        assertEquals(expected, logLikelihood, 1E-8);
+    }
+
+    public void testRescalingSchemes() {
+
+        double expected = getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                siteRateModel, true, PartialsRescalingScheme.NONE, false, 1));
+
+        for (PartialsRescalingScheme scheme : new PartialsRescalingScheme[]{
+                PartialsRescalingScheme.ALWAYS, PartialsRescalingScheme.DYNAMIC}) {
+            double logLikelihood = getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                    siteRateModel, true, scheme, false, 2));
+            assertEquals(scheme.getText(), expected, logLikelihood, 1E-8);
+        }
+    }
+
+    public void testRestore() {
+
+        TreeDataLikelihood likelihood = new TreeDataLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns,
+                branchModel, siteRateModel, false, PartialsRescalingScheme.ALWAYS, false, 2),
+                treeModel, branchRateModel);
+
+        double before = likelihood.getLogLikelihood();
+
+        likelihood.storeModelState();
+        treeModel.storeModelState();
+        treeModel.setNodeHeight(treeModel.getRoot(), treeModel.getNodeHeight(treeModel.getRoot()) * 1.5);
+        double proposed = likelihood.getLogLikelihood();
+        assertTrue(proposed != before);
+
+        treeModel.restoreModelState();
+        likelihood.restoreModelState();
+        assertEquals(before, likelihood.getLogLikelihood(), 1E-10);
+    }
+
+    public void testTransitionMatrixCache() {
+
+        System.setProperty(TransitionMatrixCache.CACHE_SIZE_PROPERTY, "100");
+        TreeDataLikelihood likelihood;
+        try {
+            likelihood = new TreeDataLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns,
+                    branchModel, siteRateModel, false, PartialsRescalingScheme.NONE, false, 1),
+                    treeModel, branchRateModel);
+        } finally {
+            System.clearProperty(TransitionMatrixCache.CACHE_SIZE_PROPERTY);
+        }
+        likelihood.setId("likelihood");
+
+        LogColumn[] columns = likelihood.getColumns();
+        assertEquals(3, columns.length);
+        assertEquals("likelihood.matrixCache.hits", columns[1].getLabel());
+        NumberColumn hits = (NumberColumn) columns[1];
+
+        assertEquals(getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                siteRateModel, false, PartialsRescalingScheme.NONE, false, 1)), likelihood.getLogLikelihood(), 1E-10);
+        double firstHits = hits.getDoubleValue();
+
+        // propose the same root height twice: the second time the matrices come from the cache
+        double rootHeight = treeModel.getNodeHeight(treeModel.getRoot());
+        for (int i = 0; i < 2; i++) {
+            likelihood.storeModelState();
+            treeModel.storeModelState();
+            treeModel.setNodeHeight(treeModel.getRoot(), rootHeight * 1.5);
+            likelihood.getLogLikelihood();
+            treeModel.restoreModelState();
+            likelihood.restoreModelState();
+        }
+        assertEquals(firstHits + 2, hits.getDoubleValue());
+
+        treeModel.setNodeHeight(treeModel.getRoot(), rootHeight * 1.5);
+        assertEquals(getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                siteRateModel, false, PartialsRescalingScheme.NONE, false, 1)), likelihood.getLogLikelihood(), 1E-10);
+
+        // a new substitution model or category rates must not be given the old matrices
+        kappa.setParameterValue(0, 5.0);
+        alpha.setParameterValue(0, 2.0);
+        assertEquals(getLogLikelihood(new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel,
+                siteRateModel, false, PartialsRescalingScheme.NONE, false, 1)), likelihood.getLogLikelihood(), 1E-10);
+    }
+
+    private double getPruningLogLikelihood() {
+        final int stateCount = Nucleotides.INSTANCE.getStateCount();
+        final double[] rates = siteRateModel.getCategoryRates();
+        final double[] proportions = siteRateModel.getCategoryProportions();
+        final double[] frequencies = branchModel.getRootFrequencyModel().getFrequencies();
+
+        double logL = 0.0;
+        for (int k = 0; k < patterns.getPatternCount(); k++) {
+            double siteL = 0.0;
+            for (int l = 0; l < rates.length; l++) {
+                double[] partials = prune(treeModel.getRoot(), k, rates[l], stateCount);
+                double sum = 0.0;
+                for (int i = 0; i < stateCount; i++) {
+                    sum += frequencies[i] * partials[i];
+                }
+                siteL += proportions[l] * sum;
+            }
+            logL += Math.log(siteL) * patterns.getPatternWeight(k);
+        }
+        return logL;
+    }
+
+    private double[] prune(NodeRef node, int pattern, double rate, int stateCount) {
+        double[] partials = new double[stateCount];
+        if (treeModel.isExternal(node)) {
+            int state = patterns.getPatternState(patterns.getTaxonIndex(treeModel.getNodeTaxon(node)), pattern);
+            boolean[] stateSet = Nucleotides.INSTANCE.getStateSet(state);
+            for (int i = 0; i < stateCount; i++) {
+                partials[i] = stateSet[i] ? 1.0 : 0.0;
+            }
+            return partials;
+        }
+
+        java.util.Arrays.fill(partials, 1.0);
+        double[] matrix = new double[stateCount * stateCount];
+        for (int c = 0; c < treeModel.getChildCount(node); c++) {
+            NodeRef child = treeModel.getChild(node, c);
+            double[] childPartials = prune(child, pattern, rate, stateCount);
+            double distance = (treeModel.getNodeHeight(node) - treeModel.getNodeHeight(child)) * rate;
+            siteRateModel.getSubstitutionModel().getTransitionProbabilities(distance, matrix);
+            for (int i = 0; i < stateCount; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < stateCount; j++) {
+                    sum += matrix[i * stateCount + j] * childPartials[j];
+                }
+                partials[i] *= sum;
+            }
+        }
+        return partials;
+    }
+
+    private double getLogLikelihood(DataLikelihoodDelegate delegate) {
+        TreeDataLikelihood likelihood = new TreeDataLikelihood(delegate, treeModel, branchRateModel);
+        return likelihood.getLogLikelihood();
+    }
+
+    private SitePatterns patterns;
+    private Parameter kappa;
+    private Parameter alpha;
+    private GammaSiteRateModel siteRateModel;
+    private BranchModel branchModel;
+    private StrictClockBranchRates branchRateModel;
+}
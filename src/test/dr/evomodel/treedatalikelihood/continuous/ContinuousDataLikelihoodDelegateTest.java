@@ -1,5 +1,6 @@
 package test.dr.evomodel.treedatalikelihood.continuous;
 
+import dr.evolution.io.NewickImporter;
 import dr.evolution.tree.TreeTrait;
 import dr.evomodel.branchratemodel.ArbitraryBranchRates;
 import dr.evomodel.branchratemodel.BranchRateModel;
@@ -7,6 +8,7 @@ import dr.evomodel.branchratemodel.DefaultBranchRateModel;
 import dr.evomodel.branchratemodel.StrictClockBranchRates;
 import dr.evomodel.continuous.MultivariateDiffusionModel;
 import dr.evomodel.continuous.MultivariateElasticModel;
+import dr.evomodel.tree.DefaultTreeModel;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treedatalikelihood.ProcessSimulation;
 import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
@@ -14,6 +16,7 @@ import dr.evomodel.treedatalikelihood.continuous.*;
 import dr.evomodel.treedatalikelihood.continuous.cdi.PrecisionType;
 import dr.evomodel.treedatalikelihood.preorder.MultivariateConditionalOnTipsRealizedDelegate;
 import dr.evomodel.treedatalikelihood.preorder.ProcessSimulationDelegate;
+import dr.evomodel.treedatalikelihood.preorder.TipFullConditionalDistributionDelegate;
 import dr.evomodel.treelikelihood.utilities.TreeTraitLogger;
 import dr.inference.model.DiagonalMatrix;
 import dr.inference.model.MatrixParameter;
@@ -909,6 +912,82 @@ public class ContinuousDataLikelihoodDelegateTest extends ContinuousTraitTest {
                 format.format(likelihoodFactorDataDiagonal + likelihoodFactorDiffusionDiagonal));
     }
 
+    public void testThreadedTraversals() throws Exception {
+        System.out.println("\nTest threaded traversals give the same results as serial ones:");
+
+        // A balanced tree so that there are independent subtrees to run concurrently
+        NewickImporter importer = new NewickImporter(
+                "(((human:1.0,chimp:1.0):1.0,(bonobo:1.0,gorilla:1.0):1.0):1.0,(orangutan:1.5,siamang:1.5):1.5);");
+        TreeModel balancedTree = new DefaultTreeModel(importer.importTree(null));
+        ContinuousRateTransformation balancedRateTransformation
+                = new ContinuousRateTransformation.Default(balancedTree, false, false);
+
+        // One trait of dimension 3 (threaded across subtrees only)
+        testThreadedTraversal("threadedBM", balancedTree, balancedRateTransformation,
+                new HomogeneousDiffusionModelDelegate(balancedTree, diffusionModel),
+                diffusionModel, dataModel, rootPrior);
+
+        List<BranchRateModel> driftModels = new ArrayList<BranchRateModel>();
+        driftModels.add(new StrictClockBranchRates(new Parameter.Default("rate.1", new double[]{100.0})));
+        driftModels.add(new StrictClockBranchRates(new Parameter.Default("rate.2", new double[]{200.0})));
+        driftModels.add(new StrictClockBranchRates(new Parameter.Default("rate.3", new double[]{-200.0})));
+
+        testThreadedTraversal("threadedDrift", balancedTree, balancedRateTransformation,
+                new DriftDiffusionModelDelegate(balancedTree, diffusionModel, driftModels),
+                diffusionModel, dataModel, rootPrior);
+
+        // Three independent traits of dimension 1 (threaded across subtrees and traits)
+        MultivariateDiffusionModel diffusionModelUnivariate = new MultivariateDiffusionModel(
+                new MatrixParameter("precisionMatrixUnivariate",
+                        new Parameter[]{new Parameter.Default(new double[]{2.0})}));
+
+        ContinuousTraitPartialsProvider dataModelUnivariate = new ContinuousTraitDataModel("dataModelUnivariate",
+                traitParameter, new ArrayList<Integer>(), true, 1, PrecisionType.FULL);
+
+        ConjugateRootTraitPrior rootPriorUnivariate = new ConjugateRootTraitPrior(
+                new Parameter.Default(new double[]{0.5}), new Parameter.Default(10.0));
+
+        testThreadedTraversal("threadedBMUnivariate", balancedTree, balancedRateTransformation,
+                new HomogeneousDiffusionModelDelegate(balancedTree, diffusionModelUnivariate),
+                diffusionModelUnivariate, dataModelUnivariate, rootPriorUnivariate);
+    }
+
+    private void testThreadedTraversal(String message,
+                                       TreeModel tree,
+                                       ContinuousRateTransformation rateTransformation,
+                                       DiffusionProcessDelegate diffusionProcessDelegate,
+                                       MultivariateDiffusionModel diffusionModel,
+                                       ContinuousTraitPartialsProvider dataModel,
+                                       ConjugateRootTraitPrior rootPrior) {
+
+        ContinuousDataLikelihoodDelegate serialDelegate = new ContinuousDataLikelihoodDelegate(tree,
+                diffusionProcessDelegate, dataModel, rootPrior, rateTransformation, rateModel, true);
+        TreeDataLikelihood serialLikelihood = new TreeDataLikelihood(serialDelegate, tree, rateModel);
+        serialLikelihood.addTraits(new ProcessSimulation(serialLikelihood, new TipFullConditionalDistributionDelegate(
+                "trait", tree, diffusionModel, dataModel, rootPrior, rateTransformation, serialDelegate)).getTreeTraits());
+
+        ContinuousDataLikelihoodDelegate threadedDelegate = new ContinuousDataLikelihoodDelegate(tree,
+                diffusionProcessDelegate, dataModel, rootPrior, rateTransformation, rateModel, true);
+        threadedDelegate.setThreadCount(4);
+        TreeDataLikelihood threadedLikelihood = new TreeDataLikelihood(threadedDelegate, tree, rateModel);
+        threadedLikelihood.addTraits(new ProcessSimulation(threadedLikelihood, new TipFullConditionalDistributionDelegate(
+                "trait", tree, diffusionModel, dataModel, rootPrior, rateTransformation, threadedDelegate)).getTreeTraits());
+
+        double serialLogLikelihood = serialLikelihood.getLogLikelihood();
+        double threadedLogLikelihood = threadedLikelihood.getLogLikelihood();
+        System.out.println(message + ": " + serialLogLikelihood);
+        assertEquals(message, serialLogLikelihood, threadedLogLikelihood, 0.0);
+
+        // The full conditional moments need a pre-order traversal
+        String serialMoments = new TreeTraitLogger(tree,
+                new TreeTrait[]{serialLikelihood.getTreeTrait("fcd.trait")},
+                TreeTraitLogger.NodeRestriction.EXTERNAL, false).getReport();
+        String threadedMoments = new TreeTraitLogger(tree,
+                new TreeTrait[]{threadedLikelihood.getTreeTrait("fcd.trait")},
+                TreeTraitLogger.NodeRestriction.EXTERNAL, false).getReport();
+        assertEquals(message + " moments", serialMoments, threadedMoments);
+    }
+
     private static double[] parseVectorLine(String s, String sep) {
         String[] vectorString = s.split(sep);
         double[] vec = new double[vectorString.length];
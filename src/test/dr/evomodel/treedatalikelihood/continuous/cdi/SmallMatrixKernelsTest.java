@@ -0,0 +1,227 @@
+package test.dr.evomodel.treedatalikelihood.continuous.cdi;
+
+import dr.evomodel.treedatalikelihood.continuous.cdi.SmallMatrixKernels;
+import dr.math.MathUtils;
+import dr.math.matrixAlgebra.WrappedVector;
+import dr.math.matrixAlgebra.missingData.InversionResult;
+import dr.math.matrixAlgebra.missingData.MissingOps;
+import junit.framework.TestCase;
+import org.ejml.data.DenseMatrix64F;
+
+/**
+ * Checks the safe small-matrix kernels against the MissingOps versions they stand in for, for fully observed,
+ * near-singular and partially observed (zero or infinite diagonal) precision matrices of dimensions one to four.
+ *
+ * @author agent
+ */
+public class SmallMatrixKernelsTest extends TestCase {
+
+    private static final int MAX_DIMENSION = 4;
+    private static final int REPLICATES = 50;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testFullyObserved() {
+        for (int dim = 1; dim <= MAX_DIMENSION; dim++) {
+            for (int r = 0; r < REPLICATES; r++) {
+                DenseMatrix64F matrix = randomPositiveDefinite(dim, 1.0);
+                checkInvert(matrix, 1E-10);
+                checkDeterminant(matrix, 1E-10);
+                checkSolve(matrix, 1E-10);
+            }
+        }
+    }
+
+    public void testNearSingular() {
+        for (int dim = 1; dim <= MAX_DIMENSION; dim++) {
+            for (double epsilon : new double[]{1E-4, 1E-7, 1E-9, 1E-12, 1E-15, 1E-18}) {
+                for (int r = 0; r < REPLICATES; r++) {
+                    DenseMatrix64F matrix = randomPositiveDefinite(dim, epsilon);
+                    if (epsilon >= 1E-7) {
+                        // the inverses themselves are only accurate to about the condition number
+                        checkInvert(matrix, 1E-14 / epsilon);
+                    }
+                    // the smallest singular value has an error of about machine precision in both versions
+                    checkDeterminant(matrix, Math.min(1E-2, Math.max(1E-10, 1E-14 / epsilon)));
+                    checkSolve(matrix, 1E-6);
+                }
+            }
+        }
+    }
+
+    public void testPartiallyObserved() {
+        for (int dim = 1; dim <= MAX_DIMENSION; dim++) {
+            for (int missing = 1; missing < (1 << dim); missing++) {
+                for (double diagonal : new double[]{0.0, Double.POSITIVE_INFINITY}) {
+                    DenseMatrix64F matrix = randomPositiveDefinite(dim, 1.0);
+                    for (int i = 0; i < dim; i++) {
+                        if ((missing & (1 << i)) != 0) {
+                            for (int j = 0; j < dim; j++) {
+                                matrix.set(i, j, 0.0);
+                                matrix.set(j, i, 0.0);
+                            }
+                            matrix.set(i, i, diagonal);
+                        }
+                    }
+
+                    checkInvert(matrix, 0.0);
+                    checkDeterminant(matrix, 0.0);
+                    if (diagonal == 0.0) {
+                        // the pseudo-inverse solve is not defined for infinite entries
+                        checkSolve(matrix, 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testIsWellConditioned() {
+        for (int dim = 1; dim <= 3; dim++) {
+            double[] identity = new double[dim * dim];
+            for (int i = 0; i < dim; i++) {
+                identity[i * dim + i] = 1.0;
+            }
+            assertTrue(SmallMatrixKernels.isWellConditioned(identity, dim, 1.0, 1E-8));
+
+            double[] scaled = identity.clone();
+            for (int i = 0; i < dim * dim; i++) {
+                scaled[i] *= 1E-100;
+            }
+            assertTrue(SmallMatrixKernels.isWellConditioned(scaled, dim, Math.pow(1E-100, dim), 1E-8));
+
+            assertFalse(SmallMatrixKernels.isWellConditioned(identity, dim, 0.0, 1E-8));
+            assertFalse(SmallMatrixKernels.isWellConditioned(identity, dim, Double.NaN, 1E-8));
+
+            if (dim > 1) {
+                DenseMatrix64F matrix = randomPositiveDefinite(dim, 1E-4);
+                double det = SmallMatrixKernels.determinant(matrix.data, 0, dim);
+                assertTrue(SmallMatrixKernels.isWellConditioned(matrix.data, dim, det, 1E-8));
+
+                matrix = randomPositiveDefinite(dim, 1E-12);
+                det = SmallMatrixKernels.determinant(matrix.data, 0, dim);
+                assertFalse(SmallMatrixKernels.isWellConditioned(matrix.data, dim, det, 1E-8));
+
+                // the bound on the smallest singular value overflows
+                double[] huge = identity.clone();
+                huge[0] = Double.MAX_VALUE;
+                assertFalse(SmallMatrixKernels.isWellConditioned(huge, dim, Double.MAX_VALUE, 1E-8));
+            }
+        }
+    }
+
+    private void checkInvert(DenseMatrix64F matrix, double tolerance) {
+        for (boolean getLogDeterminant : new boolean[]{false, true}) {
+            DenseMatrix64F expected = new DenseMatrix64F(matrix.numRows, matrix.numCols);
+            DenseMatrix64F actual = new DenseMatrix64F(matrix.numRows, matrix.numCols);
+            InversionResult expectedResult = MissingOps.safeInvert2(matrix.copy(), expected, getLogDeterminant);
+            InversionResult actualResult = SmallMatrixKernels.safeInvert(matrix.copy(), actual, getLogDeterminant);
+
+            checkResult(expectedResult, actualResult, getLogDeterminant, tolerance);
+            checkEquals(expected.data, actual.data, tolerance);
+        }
+    }
+
+    private void checkDeterminant(DenseMatrix64F matrix, double tolerance) {
+        for (boolean invert : new boolean[]{false, true}) {
+            InversionResult expected = MissingOps.safeDeterminant(matrix.copy(), invert);
+            InversionResult actual = SmallMatrixKernels.safeDeterminant(matrix.copy(), invert);
+            checkResult(expected, actual, true, tolerance);
+        }
+    }
+
+    private void checkSolve(DenseMatrix64F matrix, double tolerance) {
+        int dim = matrix.numCols;
+        double[] b = new double[dim + 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = MathUtils.nextGaussian();
+        }
+
+        double[] expected = new double[dim + 1];
+        double[] actual = new double[dim + 1];
+        MissingOps.safeSolve(matrix.copy(), new WrappedVector.Raw(b, 2, dim), new WrappedVector.Raw(expected, 1, dim),
+                false);
+        SmallMatrixKernels.safeSolve(matrix.copy(), b, 2, actual, 1);
+
+        checkEquals(expected, actual, tolerance);
+    }
+
+    private void checkResult(InversionResult expected, InversionResult actual, boolean checkDeterminant,
+                             double tolerance) {
+        assertEquals(expected.getReturnCode(), actual.getReturnCode());
+        if (expected.getReturnCode() != InversionResult.Code.PARTIALLY_OBSERVED
+                || expected.getEffectiveDimension() >= 0) {
+            assertEquals(expected.getEffectiveDimension(), actual.getEffectiveDimension());
+        }
+        if (checkDeterminant) {
+            checkEquals(new double[]{expected.getLogDeterminant()}, new double[]{actual.getLogDeterminant()},
+                    tolerance);
+        }
+    }
+
+    private void checkEquals(double[] expected, double[] actual, double tolerance) {
+        double scale = 0.0;
+        for (double x : expected) {
+            if (!Double.isInfinite(x)) {
+                scale = Math.max(scale, Math.abs(x));
+            }
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (Double.isInfinite(expected[i]) || tolerance == 0.0) {
+                assertEquals("entry " + i, expected[i], actual[i], 0.0);
+            } else {
+                assertEquals("entry " + i, expected[i], actual[i], tolerance * Math.max(1.0, scale));
+            }
+        }
+    }
+
+    /**
+     * A random symmetric positive definite matrix whose smallest eigenvalue is about epsilon times the largest.
+     */
+    private DenseMatrix64F randomPositiveDefinite(int dim, double epsilon) {
+        double[][] q = new double[dim][dim];
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                q[i][j] = MathUtils.nextGaussian();
+            }
+            // Gram-Schmidt to get an orthonormal basis
+            for (int k = 0; k < i; k++) {
+                double dot = 0.0;
+                for (int j = 0; j < dim; j++) {
+                    dot += q[i][j] * q[k][j];
+                }
+                for (int j = 0; j < dim; j++) {
+                    q[i][j] -= dot * q[k][j];
+                }
+            }
+            double norm = 0.0;
+            for (int j = 0; j < dim; j++) {
+                norm += q[i][j] * q[i][j];
+            }
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < dim; j++) {
+                q[i][j] /= norm;
+            }
+        }
+
+        double[] eigenvalues = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            eigenvalues[i] = (i == dim - 1 && dim > 1 ? epsilon : 1.0 + MathUtils.nextDouble()) * 2.5;
+        }
+
+        DenseMatrix64F matrix = new DenseMatrix64F(dim, dim);
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < dim; k++) {
+                    sum += q[k][i] * eigenvalues[k] * q[k][j];
+                }
+                matrix.set(i, j, sum);
+                matrix.set(j, i, sum);
+            }
+        }
+        return matrix;
+    }
+}
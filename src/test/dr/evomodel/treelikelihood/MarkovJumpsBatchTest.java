@@ -0,0 +1,223 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.MarkovJumpsSubstitutionModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.nucleotide.GTR;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.treelikelihood.MarkovJumpsBatch;
+import dr.inference.markovjumps.MarkovJumpsCore;
+import dr.inference.markovjumps.MarkovJumpsType;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the batched Markov jumps against the conditional expectations of each branch computed one at a time
+ * by MarkovJumpsSubstitutionModel.
+ *
+ * @author agent
+ */
+public class MarkovJumpsBatchTest extends TestCase {
+
+    private static final int STATES = 4;
+    private static final int PATTERNS = 25;
+    private static final int BRANCHES = 30;
+    private static final double[] CATEGORY_RATES = {0.0, 0.4, 1.1, 2.5};
+
+    private Parameter rates;
+    private Parameter kappa;
+    private SubstitutionModel[] substModels;
+    private List<MarkovJumpsSubstitutionModel> registers;
+    private List<Integer> registerModel;
+    private List<double[]> registrations;
+    private boolean[] scaleByTime;
+
+    private int[] modelNumbers;
+    private double[] branchRates;
+    private double[] substTimes;
+    private int[][] parentStates;
+    private int[][] childStates;
+    private int[] rateCategory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        FrequencyModel freqModel = new FrequencyModel(Nucleotides.INSTANCE, new double[]{0.3, 0.2, 0.25, 0.25});
+        rates = new Parameter.Default(new double[]{1.0, 2.0, 0.5, 1.0, 3.0, 1.0});
+        kappa = new Parameter.Default(5.0);
+        substModels = new SubstitutionModel[]{new GTR(rates, freqModel), new HKY(kappa, freqModel)};
+
+        registers = new ArrayList<MarkovJumpsSubstitutionModel>();
+        registerModel = new ArrayList<Integer>();
+        registrations = new ArrayList<double[]>();
+        List<Boolean> scale = new ArrayList<Boolean>();
+        for (int m = 0; m < substModels.length; m++) {
+            double[] transitions = new double[STATES * STATES];
+            MarkovJumpsCore.fillRegistrationMatrix(transitions, 0, 2, STATES, 1.0);
+            MarkovJumpsCore.fillRegistrationMatrix(transitions, 1, 3, STATES, 1.0);
+            addRegister(m, MarkovJumpsType.COUNTS, transitions, false, scale);
+
+            double[] all = new double[STATES * STATES];
+            MarkovJumpsCore.fillRegistrationMatrix(all, STATES);
+            addRegister(m, MarkovJumpsType.COUNTS, all, true, scale);
+
+            addRegister(m, MarkovJumpsType.REWARDS, new double[]{1.0, 0.0, 1.0, 0.0}, true, scale);
+            addRegister(m, MarkovJumpsType.REWARDS, new double[]{0.0, 1.0, 0.0, 2.0}, false, scale);
+        }
+        scaleByTime = new boolean[scale.size()];
+        for (int r = 0; r < scaleByTime.length; r++) {
+            scaleByTime[r] = scale.get(r);
+        }
+
+        modelNumbers = new int[BRANCHES];
+        branchRates = new double[BRANCHES];
+        substTimes = new double[BRANCHES];
+        parentStates = new int[BRANCHES][PATTERNS];
+        childStates = new int[BRANCHES][PATTERNS];
+        for (int b = 0; b < BRANCHES; b++) {
+            modelNumbers[b] = MathUtils.nextInt(substModels.length);
+            branchRates[b] = 0.5 + MathUtils.nextDouble();
+            substTimes[b] = 0.01 + 2.0 * MathUtils.nextDouble();
+            for (int j = 0; j < PATTERNS; j++) {
+                parentStates[b][j] = MathUtils.nextInt(STATES);
+                childStates[b][j] = MathUtils.nextInt(STATES);
+            }
+        }
+        rateCategory = new int[PATTERNS];
+        for (int j = 0; j < PATTERNS; j++) {
+            rateCategory[j] = MathUtils.nextInt(CATEGORY_RATES.length);
+        }
+    }
+
+    private void addRegister(int model, MarkovJumpsType type, double[] registration, boolean scale,
+                             List<Boolean> scaleList) {
+        MarkovJumpsSubstitutionModel markovJumps = new MarkovJumpsSubstitutionModel(substModels[model], type);
+        markovJumps.setRegistration(registration);
+        registers.add(markovJumps);
+        registerModel.add(model);
+        registrations.add(registration);
+        scaleList.add(scale);
+    }
+
+    private double[] getProbabilities(int b) {
+        double[] probabilities = new double[STATES * STATES * CATEGORY_RATES.length];
+        double[] matrix = new double[STATES * STATES];
+        for (int c = 0; c < CATEGORY_RATES.length; c++) {
+            substModels[modelNumbers[b]].getTransitionProbabilities(substTimes[b] * branchRates[b] * CATEGORY_RATES[c],
+                    matrix);
+            System.arraycopy(matrix, 0, probabilities, c * STATES * STATES, STATES * STATES);
+        }
+        return probabilities;
+    }
+
+    private List<double[][]> computeBatch(MarkovJumpsBatch batch, int[] categories) {
+        List<double[][]> expectedJumps = new ArrayList<double[][]>();
+        for (int r = 0; r < registers.size(); r++) {
+            double[][] values = new double[BRANCHES + 1][PATTERNS];
+            for (double[] row : values) {
+                Arrays.fill(row, Double.NaN);
+            }
+            expectedJumps.add(values);
+        }
+
+        batch.clear();
+        for (int b = 0; b < BRANCHES; b++) {
+            batch.addBranch(b, modelNumbers[b], branchRates[b], substTimes[b], parentStates[b], childStates[b],
+                    getProbabilities(b), categories);
+        }
+        batch.computeExpectedJumps(registers, registerModel, scaleByTime, CATEGORY_RATES, expectedJumps);
+        return expectedJumps;
+    }
+
+    private double computeBranch(int r, int b, int j, int[] categories) {
+        if (registerModel.get(r) != modelNumbers[b]) {
+            return 0.0;
+        }
+        // A new model for every branch, so nothing is cached from a previous substitution model
+        MarkovJumpsSubstitutionModel markovJumps = new MarkovJumpsSubstitutionModel(substModels[modelNumbers[b]],
+                registers.get(r).getType());
+        markovJumps.setRegistration(registrations.get(r));
+        int category = categories == null ? 0 : categories[j];
+        double rate = CATEGORY_RATES[category];
+        int entry = parentStates[b][j] * STATES + childStates[b][j];
+        if (rate > 0) {
+            double[] probabilities = new double[STATES * STATES];
+            System.arraycopy(getProbabilities(b), category * STATES * STATES, probabilities, 0, STATES * STATES);
+            double[] condJumps = new double[STATES * STATES];
+            markovJumps.computeCondStatMarkovJumps(substTimes[b] * branchRates[b] * rate, probabilities, condJumps);
+            double value = condJumps[entry];
+            if (scaleByTime[r]) {
+                value /= branchRates[b] * rate;
+            }
+            return value;
+        } else if (markovJumps.getType() == MarkovJumpsType.REWARDS && scaleByTime[r]
+                && parentStates[b][j] == childStates[b][j]) {
+            return substTimes[b];
+        }
+        return 0.0;
+    }
+
+    private void checkAgainstBranches(List<double[][]> expectedJumps, int[] categories) {
+        for (int r = 0; r < registers.size(); r++) {
+            for (int b = 0; b < BRANCHES; b++) {
+                for (int j = 0; j < PATTERNS; j++) {
+                    assertEquals("register " + r + " branch " + b + " pattern " + j,
+                            computeBranch(r, b, j, categories), expectedJumps.get(r)[b][j], 0.0);
+                }
+            }
+            // Nodes without a branch are not touched
+            assertTrue(Double.isNaN(expectedJumps.get(r)[BRANCHES][0]));
+        }
+    }
+
+    public void testBatchMatchesBranches() {
+        MarkovJumpsBatch batch = new MarkovJumpsBatch(STATES, PATTERNS, CATEGORY_RATES.length, BRANCHES + 1);
+        checkAgainstBranches(computeBatch(batch, rateCategory), rateCategory);
+    }
+
+    public void testSingleCategory() {
+        MarkovJumpsBatch batch = new MarkovJumpsBatch(STATES, PATTERNS, 1, BRANCHES + 1);
+        checkAgainstBranches(computeBatch(batch, null), null);
+    }
+
+    public void testThreadedBatch() {
+        MarkovJumpsBatch serial = new MarkovJumpsBatch(STATES, PATTERNS, CATEGORY_RATES.length, BRANCHES + 1);
+        MarkovJumpsBatch threaded = new MarkovJumpsBatch(STATES, PATTERNS, CATEGORY_RATES.length, BRANCHES + 1);
+        threaded.setThreadCount(3);
+
+        List<double[][]> serialJumps = computeBatch(serial, rateCategory);
+        List<double[][]> threadedJumps = computeBatch(threaded, rateCategory);
+        for (int r = 0; r < registers.size(); r++) {
+            for (int b = 0; b < BRANCHES; b++) {
+                for (int j = 0; j < PATTERNS; j++) {
+                    assertEquals(serialJumps.get(r)[b][j], threadedJumps.get(r)[b][j], 0.0);
+                }
+            }
+        }
+    }
+
+    public void testSubstitutionModelChange() {
+        MarkovJumpsBatch batch = new MarkovJumpsBatch(STATES, PATTERNS, CATEGORY_RATES.length, BRANCHES + 1);
+        List<double[][]> before = computeBatch(batch, rateCategory);
+
+        // The cached eigen decomposition and rate registration matrices must follow the new rate matrices
+        rates.setParameterValue(1, 7.0);
+        kappa.setParameterValue(0, 0.5);
+        List<double[][]> after = computeBatch(batch, rateCategory);
+        checkAgainstBranches(after, rateCategory);
+
+        boolean changed = false;
+        for (int j = 0; j < PATTERNS && !changed; j++) {
+            changed = before.get(0)[0][j] != after.get(0)[0][j] || before.get(4)[0][j] != after.get(4)[0][j];
+        }
+        assertTrue(changed);
+    }
+}
@@ -0,0 +1,117 @@
+package test.dr.inference.loggers;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeTrait;
+import dr.evolution.tree.TreeTraitProvider;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.tree.TreeLogger;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.model.Parameter;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that asynchronous logging writes exactly what synchronous logging writes.
+ *
+ * @author agent
+ */
+public class AsyncLoggerTest extends TraceCorrelationAssert {
+
+    public AsyncLoggerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        createAlignment(PRIMATES_TAXON_SEQUENCE, dr.evolution.datatype.Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+    }
+
+    public void testMCLogger() {
+        assertEquals(logParameters(0), logParameters(1));
+        assertEquals(logParameters(0), logParameters(3));
+    }
+
+    public void testTreeLogger() {
+        String trees = logTrees(0, false);
+        assertTrue(trees.contains("tree STATE_100 = [&R] ("));
+        assertTrue(trees.contains("[&height="));
+        assertEquals(trees, logTrees(2, false));
+        assertEquals(logTrees(0, true), logTrees(1, true));
+    }
+
+    private String logParameters(int bufferSize) {
+        final Parameter kappa = new Parameter.Default("kappa", 1.0);
+        Parameter frequencies = new Parameter.Default("frequencies", new double[] { 0.1, 0.2, 0.3, 0.4 });
+
+        StringWriter writer = new StringWriter();
+        MCLogger logger = new MCLogger(new TabDelimitedFormatter(new PrintWriter(writer)), 10, false);
+        logger.setTitle("test");
+        logger.add(kappa);
+        logger.add(frequencies);
+        logger.addColumn(new LogColumn.Abstract("text") {
+            protected String getFormattedValue() {
+                return "k" + kappa.getParameterValue(0);
+            }
+        });
+        if (bufferSize > 0) {
+            logger.setAsynchronous(bufferSize);
+        }
+
+        logger.startLogging();
+        for (long state = 0; state <= 200; state++) {
+            kappa.setParameterValue(0, 1.0 + state / 7.0);
+            frequencies.setParameterValue((int) (state % 4), 1.0 / (state + 1));
+            logger.log(state);
+        }
+        logger.stopLogging();
+
+        return writer.toString();
+    }
+
+    private String logTrees(int bufferSize, boolean substitutions) {
+        TreeTraitProvider heights = new TreeTraitProvider.Helper(new TreeTrait.D() {
+            public String getTraitName() {
+                return "height";
+            }
+
+            public Intent getIntent() {
+                return Intent.NODE;
+            }
+
+            public Double getTrait(Tree tree, NodeRef node) {
+                return tree.getNodeHeight(node);
+            }
+        });
+
+        StrictClockBranchRates branchRates = substitutions ?
+                new StrictClockBranchRates(new Parameter.Default(0.5)) : null;
+
+        StringWriter writer = new StringWriter();
+        TreeLogger logger = new TreeLogger(treeModel, branchRates, null,
+                new TreeTraitProvider[] { heights },
+                new TabDelimitedFormatter(new PrintWriter(writer)), 10, true, true, true, null, null);
+        if (bufferSize > 0) {
+            logger.setAsynchronous(bufferSize);
+        }
+
+        NodeRef root = treeModel.getRoot();
+        double rootHeight = treeModel.getNodeHeight(root);
+
+        logger.startLogging();
+        for (long state = 0; state <= 100; state++) {
+            treeModel.setNodeHeight(root, rootHeight + state * 0.001);
+            logger.log(state);
+        }
+        logger.stopLogging();
+
+        treeModel.setNodeHeight(root, rootHeight);
+
+        return writer.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.mcmcmc.MultiProcessMCMCMC;
+import dr.inference.mcmcmc.ReplicaProtocol;
+import dr.inference.model.Parameter;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the messages passed between the coordinator and the workers read back as written
+ * and that the logs of the workers are merged by state across restarts.
+ *
+ * @author agent
+ */
+public class MultiProcessMCMCMCTest extends TestCase {
+
+    public void testProtocolRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        List<File> logFiles = Arrays.asList(new File("/tmp/run_mc3_0_0.log"), new File("/tmp/run_mc3_0_0.trees"));
+        new ReplicaProtocol.Hello(2, 1, 1000000L, logFiles).write(out);
+        new ReplicaProtocol.Config(0.25, false, 100, 501, 50, "/tmp/run.chk", "").write(out);
+        new ReplicaProtocol.Round(501, -1234.5, new ReplicaProtocol.OperatorTuning(createSchedule(7, 3, 0.8))).write(out);
+        new ReplicaProtocol.Reply(1.0, true, new ReplicaProtocol.OperatorTuning(createSchedule(11, 13, 0.3))).write(out);
+        new ReplicaProtocol.Checkpoint(549, 54900).write(out);
+        new ReplicaProtocol.Done(1000000L).write(out);
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        ReplicaProtocol.expect(in, ReplicaProtocol.HELLO);
+        ReplicaProtocol.Hello hello = new ReplicaProtocol.Hello(in);
+        assertEquals(2, hello.index);
+        assertEquals(1, hello.generation);
+        assertEquals(1000000L, hello.chainLength);
+        assertEquals(2, hello.logFiles.size());
+        assertEquals(logFiles.get(0).getAbsolutePath(), hello.logFiles.get(0).getPath());
+        assertEquals(logFiles.get(1).getAbsolutePath(), hello.logFiles.get(1).getPath());
+
+        ReplicaProtocol.expect(in, ReplicaProtocol.CONFIG);
+        ReplicaProtocol.Config config = new ReplicaProtocol.Config(in);
+        assertEquals(0.25, config.temperature);
+        assertFalse(config.cold);
+        assertEquals(100, config.swapEvery);
+        assertEquals(501, config.firstRound);
+        assertEquals(50, config.checkpointEvery);
+        assertEquals("/tmp/run.chk", config.checkpointStem);
+        assertEquals("", config.loadStateFile);
+
+        assertEquals(ReplicaProtocol.ROUND, ReplicaProtocol.readType(in));
+        ReplicaProtocol.Round round = new ReplicaProtocol.Round(in);
+        assertEquals(501, round.round);
+        assertEquals(-1234.5, round.score);
+        checkTuning(round.tuning, 7, 3, 0.8);
+
+        ReplicaProtocol.expect(in, ReplicaProtocol.REPLY);
+        ReplicaProtocol.Reply reply = new ReplicaProtocol.Reply(in);
+        assertEquals(1.0, reply.temperature);
+        assertTrue(reply.cold);
+        checkTuning(reply.tuning, 11, 13, 0.3);
+
+        assertEquals(ReplicaProtocol.CHECKPOINT, ReplicaProtocol.readType(in));
+        ReplicaProtocol.Checkpoint checkpoint = new ReplicaProtocol.Checkpoint(in);
+        assertEquals(549, checkpoint.round);
+        assertEquals(54900, checkpoint.state);
+
+        assertEquals(ReplicaProtocol.DONE, ReplicaProtocol.readType(in));
+        assertEquals(1000000L, new ReplicaProtocol.Done(in).state);
+        assertEquals(-1, in.read());
+    }
+
+    public void testUnexpectedMessage() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new ReplicaProtocol.Done(10).write(out);
+        out.close();
+
+        try {
+            ReplicaProtocol.expect(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), ReplicaProtocol.REPLY);
+            fail("expected an IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    public void testMergeAcrossRestarts() throws Exception {
+        // two workers take turns to be cold; the first generation fails after state 60 and the
+        // second restarts from the checkpoint at state 40, logging states 40 and 50 again
+        String header = "# BEAST\nstate\tlnL\n";
+        List<List<File>> files = new ArrayList<List<File>>();
+        files.add(Arrays.asList(
+                createFile(header + "0\t-10.0\n10\t-9.0\n40\t-6.0\n"),
+                createFile(header + "20\t-8.0\n30\t-7.0\n50\t-5.5\n60\t-5.0\n")));
+        files.add(Arrays.asList(
+                createFile(header + "50\t-5.0\n70\t-3.0\n"),
+                createFile(header + "40\t-6.0\n60\t-4.0\n80\t-2.0\n")));
+
+        assertEquals(header +
+                "0\t-10.0\n10\t-9.0\n20\t-8.0\n30\t-7.0\n" +
+                "40\t-6.0\n50\t-5.0\n60\t-4.0\n70\t-3.0\n80\t-2.0\n",
+                merge(files, new long[]{0, 40}));
+    }
+
+    public void testMergeTreesAcrossRestarts() throws Exception {
+        String header = "#NEXUS\nBegin trees;\n";
+        List<List<File>> files = new ArrayList<List<File>>();
+        files.add(Arrays.asList(
+                createFile(header + "tree STATE_0 = (A,B);\ntree STATE_20 = (A,B);\nEnd;\n"),
+                createFile(header + "tree STATE_10 = (A,C);\ntree STATE_30 = (A,C);\n")));
+        // a third generation that starts from the same checkpoint as the second replaces it from there
+        files.add(Arrays.asList(
+                createFile(header + "tree STATE_20 = (B,C);\nEnd;\n"),
+                createFile(header + "End;\n")));
+        files.add(Arrays.asList(
+                createFile(header + "tree STATE_20 = (C,B);\ntree STATE_40 = (C,B);\nEnd;\n"),
+                createFile(header + "tree STATE_30 = (B,A);\nEnd;\n")));
+
+        assertEquals(header +
+                "tree STATE_0 = (A,B);\ntree STATE_10 = (A,C);\n" +
+                "tree STATE_20 = (C,B);\ntree STATE_30 = (B,A);\ntree STATE_40 = (C,B);\n" +
+                "End;\n",
+                merge(files, new long[]{0, 20, 20}));
+    }
+
+    private String merge(List<List<File>> files, long[] startStates) throws IOException {
+        StringWriter merged = new StringWriter();
+        PrintWriter writer = new PrintWriter(merged);
+        MultiProcessMCMCMC.mergeLogFiles(files, startStates, writer);
+        writer.close();
+        return merged.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private File createFile(String contents) throws IOException {
+        File file = File.createTempFile("worker", ".log");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        writer.write(contents);
+        writer.close();
+        return file;
+    }
+
+    private OperatorSchedule createSchedule(long accept, long reject, double scale) {
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operator = new ScaleOperator(new Parameter.Default(1.0), scale);
+        operator.setAcceptCount(accept);
+        operator.setRejectCount(reject);
+        operator.setSumDeviation(accept * 0.5);
+        schedule.addOperator(operator);
+        return schedule;
+    }
+
+    private void checkTuning(ReplicaProtocol.OperatorTuning tuning, long accept, long reject, double scale) {
+        OperatorSchedule schedule = createSchedule(0, 0, 0.5);
+        tuning.applyTo(schedule);
+        MCMCOperator operator = schedule.getOperator(0);
+        assertEquals(accept, operator.getAcceptCount());
+        assertEquals(reject, operator.getRejectCount());
+        assertEquals(accept * 0.5, operator.getSumDeviation());
+        assertEquals(scale, ((ScaleOperator) operator).getScaleFactor(), 1E-12);
+    }
+}
@@ -0,0 +1,186 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.mcmcmc.ReplicaExchangeCoordinator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Runs a toy set of chains, each on its own thread, through the coordinator and checks the
+ * swap counts of each pair and the handover of the cold chain.
+ *
+ * @author agent
+ */
+public class ReplicaExchangeCoordinatorTest extends TestCase {
+
+    private static final double[] TEMPERATURES = {1.0, 0.5, 0.25, 0.125};
+    private static final int ROUNDS = 2000;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testAllSwapsAccepted() throws Exception {
+        for (MCMCMCOptions.SwapSchedule schedule : MCMCMCOptions.SwapSchedule.values()) {
+            // with equal scores every swap is accepted
+            ToyReplicas replicas = new ToyReplicas(new double[]{-10.0, -10.0, -10.0, -10.0});
+            ReplicaExchangeCoordinator coordinator = run(replicas, TEMPERATURES, schedule, ROUNDS);
+
+            checkAttempts(coordinator, schedule, ROUNDS);
+            for (int k = 0; k < TEMPERATURES.length - 1; k++) {
+                assertEquals(coordinator.getSwapAttempts(k), coordinator.getSwapAccepts(k));
+            }
+            checkColdChain(replicas, coordinator);
+            assertEquals(coordinator.getSwapAccepts(0), replicas.coldChanges);
+            assertEquals(coordinator.getSwapAccepts(0) + coordinator.getSwapAccepts(1) + coordinator.getSwapAccepts(2),
+                    replicas.tuningSwaps);
+
+            long trips = 0;
+            for (int i = 0; i < TEMPERATURES.length; i++) {
+                trips += coordinator.getRoundTrips(i);
+            }
+            assertTrue(schedule.toString(), trips > 0);
+        }
+    }
+
+    public void testNoSwapsAccepted() throws Exception {
+        for (MCMCMCOptions.SwapSchedule schedule : MCMCMCOptions.SwapSchedule.values()) {
+            // each chain is much better than the next hotter one so no swap is ever accepted
+            ToyReplicas replicas = new ToyReplicas(new double[]{0.0, -1000.0, -2000.0, -3000.0});
+            ReplicaExchangeCoordinator coordinator = run(replicas, TEMPERATURES, schedule, ROUNDS);
+
+            checkAttempts(coordinator, schedule, ROUNDS);
+            for (int k = 0; k < TEMPERATURES.length - 1; k++) {
+                assertEquals(0, coordinator.getSwapAccepts(k));
+            }
+            for (int i = 0; i < TEMPERATURES.length; i++) {
+                assertEquals(i, coordinator.getSlot(i));
+                assertEquals(TEMPERATURES[i], replicas.temperatures[i]);
+                assertEquals(0, coordinator.getRoundTrips(i));
+            }
+            assertEquals(0, replicas.coldChanges);
+            assertEquals(0, replicas.tuningSwaps);
+        }
+    }
+
+    public void testAcceptanceRate() throws Exception {
+        for (MCMCMCOptions.SwapSchedule schedule : MCMCMCOptions.SwapSchedule.values()) {
+            // chain 1 is accepted into the cold slot with probability exp(-1) and always swapped out of it,
+            // so a swap is accepted with probability 2 exp(-1) / (1 + exp(-1)) at stationarity
+            ToyReplicas replicas = new ToyReplicas(new double[]{0.0, -2.0, -1000.0});
+            ReplicaExchangeCoordinator coordinator = run(replicas, new double[]{1.0, 0.5, 0.25}, schedule, 20000);
+
+            double expected = 2.0 * Math.exp(-1.0) / (1.0 + Math.exp(-1.0));
+            double rate = (double) coordinator.getSwapAccepts(0) / coordinator.getSwapAttempts(0);
+            assertEquals(schedule.toString(), expected, rate, 0.03);
+            checkColdChain(replicas, coordinator);
+            assertEquals(coordinator.getSwapAccepts(0), replicas.coldChanges);
+        }
+    }
+
+    private ReplicaExchangeCoordinator run(final ToyReplicas replicas, double[] temperatures,
+                                           MCMCMCOptions.SwapSchedule schedule, final int rounds) throws Exception {
+        for (int i = 0; i < temperatures.length; i++) {
+            replicas.temperatures[i] = temperatures[i];
+        }
+        final ReplicaExchangeCoordinator coordinator = new ReplicaExchangeCoordinator(replicas,
+                new MCMCMCOptions(temperatures, 1, schedule, false));
+
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[temperatures.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int chain = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (long round = 0; round < rounds; round++) {
+                            coordinator.exchange(chain, round);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (error) {
+                            error[0] = t;
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60000);
+            assertFalse("chain did not finish", thread.isAlive());
+        }
+        if (error[0] != null) {
+            throw new RuntimeException(error[0]);
+        }
+        return coordinator;
+    }
+
+    /**
+     * Each round tries either the even or the odd pairs, so the pairs (0, 1) and (2, 3) are tried
+     * together and every round tries one of them or (1, 2).
+     */
+    private void checkAttempts(ReplicaExchangeCoordinator coordinator, MCMCMCOptions.SwapSchedule schedule, int rounds) {
+        assertEquals(coordinator.getSwapAttempts(0), coordinator.getSwapAttempts(2));
+        assertEquals(rounds, coordinator.getSwapAttempts(0) + coordinator.getSwapAttempts(1));
+        if (schedule == MCMCMCOptions.SwapSchedule.DETERMINISTIC) {
+            assertEquals(rounds / 2, coordinator.getSwapAttempts(0));
+        } else {
+            assertTrue(coordinator.getSwapAttempts(0) > 0 && coordinator.getSwapAttempts(1) > 0);
+        }
+    }
+
+    private void checkColdChain(ToyReplicas replicas, ReplicaExchangeCoordinator coordinator) {
+        assertNull(replicas.error, replicas.error);
+        assertEquals(0, coordinator.getSlot(replicas.coldChain));
+        for (int i = 0; i < replicas.getReplicaCount(); i++) {
+            assertEquals(coordinator.getTemperature(coordinator.getSlot(i)), replicas.temperatures[i]);
+        }
+    }
+
+    /**
+     * Chains with a fixed score which record the temperature changes and cold chain handovers.
+     */
+    private static class ToyReplicas implements ReplicaExchangeCoordinator.Replicas {
+
+        ToyReplicas(double[] scores) {
+            this.scores = scores;
+            this.temperatures = new double[scores.length];
+        }
+
+        public int getReplicaCount() {
+            return scores.length;
+        }
+
+        public double getScore(int replica) {
+            return scores[replica];
+        }
+
+        public synchronized double getTemperature(int replica) {
+            return temperatures[replica];
+        }
+
+        public synchronized void setTemperature(int replica, double temperature) {
+            temperatures[replica] = temperature;
+        }
+
+        public synchronized void swapOperatorTuning(int replica1, int replica2) {
+            tuningSwaps++;
+        }
+
+        public synchronized void coldReplicaChanged(int oldColdReplica, int newColdReplica) {
+            if (oldColdReplica != coldChain) {
+                error = "cold chain handed over by chain " + oldColdReplica + " but chain " + coldChain + " was cold";
+            }
+            coldChain = newColdReplica;
+            coldChanges++;
+        }
+
+        private final double[] scores;
+        final double[] temperatures;
+        int coldChain = 0;
+        long coldChanges = 0;
+        long tuningSwaps = 0;
+        String error = null;
+    }
+}
@@ -0,0 +1,104 @@
+package test.dr.inference.model;
+
+import dr.inference.loggers.LogColumn;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.ThreadAwareLikelihood;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the scheduled parallel evaluation of a CompoundLikelihood gives exactly the same
+ * result as evaluating it serially and only recomputes the likelihoods that need it.
+ *
+ * @author agent
+ */
+public class CompoundLikelihoodTest extends TestCase {
+
+    public void testParallelEvaluation() {
+        List<TestLikelihood> components = new ArrayList<TestLikelihood>();
+        for (int i = 0; i < 12; i++) {
+            // a mix of expensive and cheap likelihoods
+            components.add(new TestLikelihood("partition" + (i + 1), -1000.0 / (i + 3), i % 3 == 0 ? 200000 : 1000));
+        }
+
+        CompoundLikelihood serial = new CompoundLikelihood(0, new ArrayList<Likelihood>(components));
+        CompoundLikelihood parallel = new CompoundLikelihood(4, new ArrayList<Likelihood>(components));
+
+        for (int iteration = 0; iteration < 20; iteration++) {
+            for (int i = 0; i < components.size(); i++) {
+                if ((i + iteration) % 4 == 0 || iteration == 0) {
+                    components.get(i).makeDirty();
+                }
+            }
+            int[] counts = getCounts(components);
+
+            double logL = parallel.getLogLikelihood();
+
+            for (int i = 0; i < components.size(); i++) {
+                int expected = ((i + iteration) % 4 == 0 || iteration == 0) ? 1 : 0;
+                assertEquals(counts[i] + expected, components.get(i).computeCount);
+            }
+            assertEquals(serial.getLogLikelihood(), logL);
+        }
+    }
+
+    public void testTimingColumns() {
+        List<Likelihood> components = new ArrayList<Likelihood>();
+        components.add(new TestLikelihood("a", -1.0, 1000));
+        components.add(new TestLikelihood("b", -2.0, 1000));
+
+        CompoundLikelihood likelihood = new CompoundLikelihood(2, components);
+        likelihood.setId("likelihood");
+        assertEquals(1, likelihood.getColumns().length);
+
+        likelihood.setTimingColumns(true);
+        likelihood.getLogLikelihood();
+        LogColumn[] columns = likelihood.getColumns();
+        assertEquals(3, columns.length);
+        assertEquals("likelihood", columns[0].getLabel());
+        assertEquals("a.time", columns[1].getLabel());
+        assertEquals("b.time", columns[2].getLabel());
+        assertTrue(Double.parseDouble(columns[1].getFormatted()) >= 0.0);
+    }
+
+    private int[] getCounts(List<TestLikelihood> components) {
+        int[] counts = new int[components.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = components.get(i).computeCount;
+        }
+        return counts;
+    }
+
+    private static class TestLikelihood extends Likelihood.Abstract implements ThreadAwareLikelihood {
+        TestLikelihood(String id, double logL, long workNanos) {
+            super(null);
+            setId(id);
+            this.logL = logL;
+            this.workNanos = workNanos;
+        }
+
+        @Override
+        protected double calculateLogLikelihood() {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < workNanos) {
+                // busy
+            }
+            synchronized (this) {
+                computeCount++;
+            }
+            return logL;
+        }
+
+        @Override
+        public boolean isLikelihoodKnown() {
+            return getLikelihoodKnown();
+        }
+
+        private final double logL;
+        private final long workNanos;
+        int computeCount = 0;
+    }
+}
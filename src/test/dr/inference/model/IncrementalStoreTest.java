@@ -0,0 +1,160 @@
+package test.dr.inference.model;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.operators.WilsonBalding;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.model.StoreJournal;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that incremental store and restore leaves parameters and trees in exactly the same
+ * state as copying everything.
+ *
+ * @author agent
+ */
+public class IncrementalStoreTest extends TestCase {
+
+    public void testParameter() {
+        Parameter reference = new Parameter.Default(50, 1.0);
+        reference.storeParameterValues();
+        reference.acceptParameterValues();
+
+        Parameter parameter = new Parameter.Default(50, 1.0);
+        System.setProperty(StoreJournal.INCREMENTAL_STORE, "true");
+        try {
+            parameter.storeParameterValues();
+            parameter.acceptParameterValues();
+        } finally {
+            System.clearProperty(StoreJournal.INCREMENTAL_STORE);
+        }
+
+        Random random = new Random(1234);
+        for (int cycle = 0; cycle < 2000; cycle++) {
+            reference.storeParameterValues();
+            parameter.storeParameterValues();
+
+            // sometimes change more values than the journal records
+            int changes = 1 + random.nextInt(cycle % 10 == 0 ? 40 : 4);
+            for (int j = 0; j < changes; j++) {
+                int index = random.nextInt(50);
+                double value = random.nextDouble();
+                if (j % 2 == 0) {
+                    reference.setParameterValue(index, value);
+                    parameter.setParameterValue(index, value);
+                } else {
+                    reference.setParameterValueQuietly(index, value);
+                    parameter.setParameterValueQuietly(index, value);
+                }
+            }
+
+            if (random.nextBoolean()) {
+                reference.restoreParameterValues();
+                parameter.restoreParameterValues();
+            } else {
+                reference.acceptParameterValues();
+                parameter.acceptParameterValues();
+            }
+
+            if (random.nextInt(10) == 0) {
+                // changes outside of a store/restore cycle
+                double value = random.nextDouble();
+                reference.setParameterValue(cycle % 50, value);
+                parameter.setParameterValue(cycle % 50, value);
+            }
+
+            for (int i = 0; i < 50; i++) {
+                assertEquals(reference.getParameterValue(i), parameter.getParameterValue(i));
+            }
+        }
+    }
+
+    public void testTreeModel() throws Exception {
+        Tree tree = createTree(40);
+
+        TreeModel reference = new DefaultTreeModel("reference", tree);
+        reference.storeModelState();
+        reference.acceptModelState();
+
+        TreeModel treeModel;
+        System.setProperty(StoreJournal.INCREMENTAL_STORE, "true");
+        try {
+            treeModel = new DefaultTreeModel("incremental", tree);
+            treeModel.storeModelState();
+            treeModel.acceptModelState();
+        } finally {
+            System.clearProperty(StoreJournal.INCREMENTAL_STORE);
+        }
+
+        WilsonBalding referenceOperator = new WilsonBalding(reference, 1.0);
+        WilsonBalding operator = new WilsonBalding(treeModel, 1.0);
+
+        Random random = new Random(4321);
+        for (int cycle = 0; cycle < 1000; cycle++) {
+            reference.storeModelState();
+            treeModel.storeModelState();
+
+            long seed = random.nextLong();
+            if (random.nextBoolean()) {
+                MathUtils.setSeed(seed);
+                referenceOperator.doOperation();
+                MathUtils.setSeed(seed);
+                operator.doOperation();
+            } else {
+                int node = tree.getExternalNodeCount() + random.nextInt(tree.getInternalNodeCount());
+                double scale = 0.9 + 0.2 * random.nextDouble();
+                scaleHeight(reference, reference.getNode(node), scale);
+                scaleHeight(treeModel, treeModel.getNode(node), scale);
+            }
+
+            if (random.nextBoolean()) {
+                reference.restoreModelState();
+                treeModel.restoreModelState();
+            } else {
+                reference.acceptModelState();
+                treeModel.acceptModelState();
+            }
+
+            assertSameTree(reference, treeModel);
+        }
+    }
+
+    private void scaleHeight(TreeModel tree, NodeRef node, double scale) {
+        double height = tree.getNodeHeight(node) * scale;
+        double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+        double upper = tree.isRoot(node) ? Double.POSITIVE_INFINITY : tree.getNodeHeight(tree.getParent(node));
+        if (height > lower && height < upper) {
+            tree.setNodeHeight(node, height);
+        }
+    }
+
+    private void assertSameTree(TreeModel expected, TreeModel actual) {
+        assertEquals(expected.getRoot().getNumber(), actual.getRoot().getNumber());
+        for (int i = 0; i < expected.getNodeCount(); i++) {
+            NodeRef node1 = expected.getNode(i);
+            NodeRef node2 = actual.getNode(i);
+            assertEquals(expected.getNodeHeight(node1), actual.getNodeHeight(node2));
+            assertEquals(expected.getChildCount(node1), actual.getChildCount(node2));
+            for (int j = 0; j < expected.getChildCount(node1); j++) {
+                assertEquals(expected.getChild(node1, j).getNumber(), actual.getChild(node2, j).getNumber());
+                assertEquals(node2, actual.getParent(actual.getChild(node2, j)));
+            }
+        }
+    }
+
+    private Tree createTree(int tipCount) throws Exception {
+        // a caterpillar with tips at height zero
+        StringBuilder newick = new StringBuilder("(t1:1.0,t2:1.0)");
+        for (int i = 3; i <= tipCount; i++) {
+            newick.insert(0, "(").append(":1.0,t").append(i).append(":").append(i - 1).append(".0)");
+        }
+        newick.append(";");
+        return new NewickImporter(newick.toString()).importTree(null);
+    }
+}
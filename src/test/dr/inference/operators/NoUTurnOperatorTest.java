@@ -0,0 +1,108 @@
+package test.dr.inference.operators;
+
+import dr.inference.distribution.MultivariateDistributionLikelihood;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.hmc.HamiltonianMonteCarloOperator;
+import dr.inference.operators.hmc.MassPreconditioner;
+import dr.inference.operators.hmc.NoUTurnOperator;
+import dr.math.MathUtils;
+import dr.math.distributions.MultivariateNormalDistribution;
+import junit.framework.TestCase;
+
+/**
+ * Runs the No-U-Turn sampler on a correlated trivariate normal with and without the gradient cache
+ * and checks both follow the same trajectory while the cache evaluates fewer gradients.
+ *
+ * @author agent
+ */
+public class NoUTurnOperatorTest extends TestCase {
+
+    private static final int ITERATIONS = 200;
+
+    public void testCacheGradient() {
+        Run plain = new Run(false);
+        Run cached = new Run(true);
+
+        long plainEvaluations = 0;
+        long cachedEvaluations = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            MathUtils.setSeed(666 + i);
+            plain.step();
+            MathUtils.setSeed(666 + i);
+            cached.step();
+
+            double[] plainPosition = plain.parameter.getParameterValues();
+            double[] cachedPosition = cached.parameter.getParameterValues();
+            for (int j = 0; j < plainPosition.length; j++) {
+                assertEquals("iteration " + i, plainPosition[j], cachedPosition[j], 0.0);
+            }
+            assertEquals(plain.getColumn(0), cached.getColumn(0));
+            assertEquals(plain.getColumn(1), cached.getColumn(1));
+
+            // the logged count is the number of gradients the operator asked for in the last iteration
+            assertEquals(plain.evaluations - plainEvaluations, (long) plain.getColumn(2));
+            assertEquals(cached.evaluations - cachedEvaluations, (long) cached.getColumn(2));
+            assertTrue(cached.getColumn(2) < plain.getColumn(2));
+
+            plainEvaluations = plain.evaluations;
+            cachedEvaluations = cached.evaluations;
+        }
+
+        // a leap costs two evaluations without the cache and one with it
+        assertTrue(cachedEvaluations < 0.6 * plainEvaluations);
+    }
+
+    private static class Run {
+
+        Run(boolean cacheGradient) {
+            parameter = new Parameter.Default("x", new double[]{0.5, -0.5, 1.0});
+
+            double[][] precision = {
+                    {2.0, 0.5, 0.0},
+                    {0.5, 1.0, -0.3},
+                    {0.0, -0.3, 4.0}
+            };
+            final MultivariateNormalDistribution distribution =
+                    new MultivariateNormalDistribution(new double[]{0.0, 1.0, -1.0}, precision);
+            final MultivariateDistributionLikelihood mvn = new MultivariateDistributionLikelihood(distribution);
+            mvn.addData(parameter);
+            likelihood = mvn;
+
+            GradientWrtParameterProvider gradient =
+                    new GradientWrtParameterProvider.ParameterWrapper(distribution, parameter, likelihood) {
+                        @Override
+                        public double[] getGradientLogDensity() {
+                            evaluations++;
+                            return super.getGradientLogDensity();
+                        }
+                    };
+
+            HamiltonianMonteCarloOperator.Options options = new HamiltonianMonteCarloOperator.Options(
+                    0.1, 10, 0.0, 0, 0, 0, 0, 1E-3, 10, 0.1, 0.8);
+            operator = new NoUTurnOperator(AdaptationMode.ADAPTATION_OFF, 1.0, gradient, parameter, null, null,
+                    options, MassPreconditioner.Type.NONE, cacheGradient);
+            columns = operator.getColumns();
+        }
+
+        void step() {
+            likelihood.getLogLikelihood();
+            operator.operate(likelihood);
+            operator.accept(0.0);
+        }
+
+        double getColumn(int index) {
+            return ((NumberColumn) columns[index]).getDoubleValue();
+        }
+
+        final Parameter parameter;
+        final Likelihood likelihood;
+        final NoUTurnOperator operator;
+        final LogColumn[] columns;
+        long evaluations = 0;
+    }
+}
@@ -0,0 +1,126 @@
+package test.dr.inference.trace;
+
+import dr.inference.trace.ColumnarLogFile;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.Trace;
+import dr.inference.trace.TraceCorrelation;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Checks that reading a log file through its columnar sidecar gives the same traces as reading it into memory.
+ *
+ * @author agent
+ */
+public class ColumnarLogFileTest extends TestCase {
+
+    private static final int ROW_COUNT = 2000;
+    private static final int COLUMN_COUNT = 300;
+
+    public ColumnarLogFileTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("columnar", ".log");
+        writeLog(logFile);
+    }
+
+    public void tearDown() throws Exception {
+        System.clearProperty("trace.columnar");
+        new File(logFile.getPath() + ColumnarLogFile.SIDECAR_SUFFIX).delete();
+        logFile.delete();
+        super.tearDown();
+    }
+
+    public void testTraces() throws Exception {
+        LogFileTraces expected = loadTraces(false);
+        LogFileTraces actual = loadTraces(true);
+        assertTrue(new File(logFile.getPath() + ColumnarLogFile.SIDECAR_SUFFIX).exists());
+
+        assertEquals(expected.getTraceCount(), actual.getTraceCount());
+        assertEquals(expected.getMaxState(), actual.getMaxState());
+        assertEquals(expected.getStepSize(), actual.getStepSize());
+        assertEquals(expected.getBurnIn(), actual.getBurnIn());
+        assertEquals(expected.getStateCount(), actual.getStateCount());
+
+        assertEquals(expected.getTraceIndex("categorical"), actual.getTraceIndex("categorical"));
+
+        for (int i = 0; i < expected.getTraceCount(); i++) {
+            Trace expectedTrace = expected.getTrace(i);
+            Trace actualTrace = actual.getTrace(i);
+            assertEquals(expectedTrace.getName(), actualTrace.getName());
+            assertEquals(expectedTrace.getTraceType(), actualTrace.getTraceType());
+            assertEquals(expectedTrace.getUniqueValueCount(), actualTrace.getUniqueValueCount());
+            assertEquals(expected.getValues(i), actual.getValues(i));
+            assertEquals(expectedTrace.getCategoryLabelMap(), actualTrace.getCategoryLabelMap());
+        }
+
+        // the burnin can be changed without reading the file again
+        expected.setBurnIn(ROW_COUNT * 10 / 2);
+        actual.setBurnIn(ROW_COUNT * 10 / 2);
+        int index = expected.getTraceIndex("real1");
+        expected.analyseTrace(index);
+        actual.analyseTrace(index);
+        TraceCorrelation expectedStatistics = expected.getCorrelationStatistics(index);
+        TraceCorrelation actualStatistics = actual.getCorrelationStatistics(index);
+        assertEquals(expectedStatistics.getMean(), actualStatistics.getMean(), 0.0);
+        assertEquals(expectedStatistics.getESS(), actualStatistics.getESS(), 0.0);
+    }
+
+    public void testSidecarReused() throws Exception {
+        ColumnarLogFile columns = ColumnarLogFile.open(logFile);
+        File sidecar = new File(logFile.getPath() + ColumnarLogFile.SIDECAR_SUFFIX);
+        long lastModified = sidecar.lastModified();
+
+        ColumnarLogFile reopened = ColumnarLogFile.open(logFile);
+        assertEquals(lastModified, sidecar.lastModified());
+        assertEquals(columns.getRowCount(), reopened.getRowCount());
+
+        double[] all = reopened.readColumn(3);
+        double[] thinned = reopened.readColumn(3, 100, ROW_COUNT, 7);
+        assertEquals((ROW_COUNT - 100 + 6) / 7, thinned.length);
+        for (int i = 0; i < thinned.length; i++) {
+            assertEquals(all[100 + i * 7], thinned[i], 0.0);
+        }
+
+        assertEquals(columns.getState(10) + "", reopened.readLine(10).split("\t")[0]);
+    }
+
+    private LogFileTraces loadTraces(boolean columnar) throws Exception {
+        System.setProperty("trace.columnar", Boolean.toString(columnar));
+        LogFileTraces traces = new LogFileTraces(logFile.getName(), logFile);
+        traces.loadTraces();
+        return traces;
+    }
+
+    private static void writeLog(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(file);
+        writer.println("# BEAST log");
+        writer.print("state\tinteger\tcategorical");
+        for (int j = 0; j < COLUMN_COUNT; j++) {
+            writer.print("\treal" + j);
+        }
+        writer.println();
+
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < ROW_COUNT; i++) {
+            writer.print(i * 10);
+            writer.print("\t" + random.nextInt(5));
+            // numeric to begin with then switches to categorical
+            writer.print("\t" + (i < ROW_COUNT / 3 ? Integer.toString(random.nextInt(3)) : "c" + random.nextInt(4)));
+            for (int j = 0; j < COLUMN_COUNT; j++) {
+                writer.print("\t" + random.nextGaussian());
+            }
+            writer.println();
+        }
+        writer.close();
+    }
+
+    private File logFile;
+}
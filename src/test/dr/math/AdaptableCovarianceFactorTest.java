@@ -0,0 +1,163 @@
+package test.dr.math;
+
+import dr.math.AdaptableCovarianceFactor;
+import dr.math.MathUtils;
+
+/**
+ * @author agent
+ */
+public class AdaptableCovarianceFactorTest extends MathTestCase {
+
+    private static final int DIM = 6;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    private double[][] drawSamples(int count, int factors, double noise) {
+        double[][] loadings = new double[factors][DIM];
+        for (int f = 0; f < factors; f++) {
+            for (int i = 0; i < DIM; i++) {
+                loadings[f][i] = MathUtils.nextGaussian();
+            }
+        }
+        double[][] samples = new double[count][DIM];
+        for (int n = 0; n < count; n++) {
+            for (int i = 0; i < DIM; i++) {
+                samples[n][i] = 1.0 + i + noise * MathUtils.nextGaussian();
+            }
+            for (int f = 0; f < factors; f++) {
+                final double z = MathUtils.nextGaussian();
+                for (int i = 0; i < DIM; i++) {
+                    samples[n][i] += z * loadings[f][i];
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static double[] sampleCovariance(double[][] samples) {
+        final int count = samples.length;
+        double[] mean = new double[DIM];
+        for (double[] sample : samples) {
+            for (int i = 0; i < DIM; i++) {
+                mean[i] += sample[i] / count;
+            }
+        }
+        double[] covariance = new double[DIM * DIM];
+        for (double[] sample : samples) {
+            for (int i = 0; i < DIM; i++) {
+                for (int j = 0; j < DIM; j++) {
+                    covariance[i * DIM + j] += (sample[i] - mean[i]) * (sample[j] - mean[j]) / (count - 1);
+                }
+            }
+        }
+        return covariance;
+    }
+
+    private static void updateAll(AdaptableCovarianceFactor factor, double[][] samples) {
+        for (double[] sample : samples) {
+            factor.update(sample.clone());
+        }
+    }
+
+    public void testCholeskyMatchesSampleCovariance() {
+        double[][] samples = drawSamples(200, DIM, 0.5);
+        AdaptableCovarianceFactor factor = new AdaptableCovarianceFactor.Cholesky(DIM);
+        updateAll(factor, samples);
+
+        assertEquals(sampleCovariance(samples), factor.getCovariance(), 1E-10);
+        assertEquals(200, factor.getUpdateCount());
+    }
+
+    public void testCholeskySemiDefinite() {
+        // fewer samples than dimensions, so the sum of squares is singular
+        double[][] samples = drawSamples(3, DIM, 0.5);
+        AdaptableCovarianceFactor factor = new AdaptableCovarianceFactor.Cholesky(DIM);
+        updateAll(factor, samples);
+
+        assertEquals(sampleCovariance(samples), factor.getCovariance(), 1E-10);
+
+        double[] draw = new double[DIM];
+        factor.addScaledDraw(1.0, draw);
+        for (double x : draw) {
+            assertFalse(Double.isNaN(x));
+        }
+    }
+
+    public void testReset() {
+        AdaptableCovarianceFactor factor = new AdaptableCovarianceFactor.Cholesky(DIM);
+        updateAll(factor, drawSamples(20, DIM, 0.5));
+        factor.reset();
+
+        double[][] samples = drawSamples(50, DIM, 0.5);
+        updateAll(factor, samples);
+        assertEquals(sampleCovariance(samples), factor.getCovariance(), 1E-10);
+    }
+
+    public void testFullRankSketchIsExact() {
+        double[][] samples = drawSamples(200, DIM, 0.5);
+        AdaptableCovarianceFactor factor = new AdaptableCovarianceFactor.LowRankPlusDiagonal(DIM, DIM);
+        updateAll(factor, samples);
+
+        assertEquals(sampleCovariance(samples), factor.getCovariance(), 1E-8);
+    }
+
+    public void testLowRankSketch() {
+        double[][] samples = drawSamples(500, 2, 0.05);
+        AdaptableCovarianceFactor factor = new AdaptableCovarianceFactor.LowRankPlusDiagonal(DIM, 3);
+        updateAll(factor, samples);
+
+        double[] expected = sampleCovariance(samples);
+        double[] approximate = factor.getCovariance();
+
+        double error = 0.0;
+        double norm = 0.0;
+        for (int i = 0; i < DIM; i++) {
+            // the variances are kept exactly
+            assertEquals(expected[i * DIM + i], approximate[i * DIM + i], 1E-8);
+            for (int j = 0; j < DIM; j++) {
+                error += (expected[i * DIM + j] - approximate[i * DIM + j]) * (expected[i * DIM + j] - approximate[i * DIM + j]);
+                norm += expected[i * DIM + j] * expected[i * DIM + j];
+            }
+        }
+        assertTrue("Relative error " + Math.sqrt(error / norm), Math.sqrt(error / norm) < 0.01);
+    }
+
+    private void checkDraws(AdaptableCovarianceFactor factor, double[] expected) {
+        final int draws = 40000;
+        final double scale = 2.0;
+        double[] covariance = new double[DIM * DIM];
+        double[] draw = new double[DIM];
+        for (int n = 0; n < draws; n++) {
+            for (int i = 0; i < DIM; i++) {
+                draw[i] = 0.0;
+            }
+            factor.addScaledDraw(scale, draw);
+            for (int i = 0; i < DIM; i++) {
+                for (int j = 0; j < DIM; j++) {
+                    covariance[i * DIM + j] += draw[i] * draw[j] / draws;
+                }
+            }
+        }
+        for (int i = 0; i < DIM; i++) {
+            for (int j = 0; j < DIM; j++) {
+                final double sd = Math.sqrt(expected[i * DIM + i] * expected[j * DIM + j]);
+                assertEquals(scale * scale * expected[i * DIM + j] / sd, covariance[i * DIM + j] / sd, 0.1);
+            }
+        }
+    }
+
+    public void testDraws() {
+        double[][] samples = drawSamples(100, DIM, 0.5);
+
+        AdaptableCovarianceFactor cholesky = new AdaptableCovarianceFactor.Cholesky(DIM);
+        updateAll(cholesky, samples);
+        checkDraws(cholesky, cholesky.getCovariance());
+
+        AdaptableCovarianceFactor lowRank = new AdaptableCovarianceFactor.LowRankPlusDiagonal(DIM, 2);
+        updateAll(lowRank, samples);
+        checkDraws(lowRank, lowRank.getCovariance());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * LatencyHistogramTest.java
+ *
+ * Copyright (c) 2002-2019 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.util;
+
+import dr.util.LatencyHistogram;
+import junit.framework.TestCase;
+
+/**
+ * @author agent
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public LatencyHistogramTest(String name) {
+        super(name);
+    }
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 10);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500005.0, histogram.getMean(), 1E-6);
+
+        // values are bucketed to within about 3%
+        assertEquals(500000.0, histogram.getValueAtPercentile(50), 500000.0 * 0.03);
+        assertEquals(990000.0, histogram.getValueAtPercentile(99), 990000.0 * 0.03);
+        assertEquals(1000000.0, histogram.getValueAtPercentile(100), 1000000.0 * 0.03);
+    }
+
+    public void testThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(40000L * 1000, histogram.getTotal());
+    }
+}